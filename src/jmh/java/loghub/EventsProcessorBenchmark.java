@@ -0,0 +1,90 @@
+package loghub;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loghub.EventsProcessor.ProcessingStatus;
+import loghub.configuration.ConfigException;
+import loghub.configuration.Configuration;
+import loghub.configuration.Properties;
+
+/**
+ * Run an event through an in-memory pipeline, with the processing loop of {@link EventsProcessor} but without
+ * the queues.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventsProcessorBenchmark {
+
+    private static final String CONFIGURATION = String.join("\n",
+        "pipeline[main] {",
+        "    [#source] = \"bench\"",
+        "    | [level] == \"error\" ? [alert] = true : [alert] = false",
+        "    | [message] =~ /^(\\w+) / ? [verb] = [message] =~ /^(\\w+) /",
+        "    | [size] = [size] + 1",
+        "    | (java.lang.Integer) [code]",
+        "    | $sub",
+        "}",
+        "pipeline[sub] {",
+        "    [host] == \"localhost\" ? [local] = true",
+        "    | [host] < [source_host]",
+        "    | [level] -",
+        "}",
+        "");
+
+    @State(Scope.Thread)
+    public static class Processing {
+        private Properties props;
+        private Pipeline main;
+        private EventsProcessor ep;
+
+        @Setup(Level.Trial)
+        public void configure() throws ConfigException, IOException {
+            props = Configuration.parse(new StringReader(CONFIGURATION));
+            for (Pipeline pipe: props.pipelines) {
+                if (! pipe.configure(props)) {
+                    throw new IllegalStateException("Pipeline " + pipe.getName() + " failed to configure");
+                }
+            }
+            main = props.namedPipeLine.get("main");
+            ep = new EventsProcessor(props.mainQueue, props.outputQueues, props.namedPipeLine, props.maxSteps, props.repository);
+        }
+    }
+
+    @Benchmark
+    public Event process(Processing state) {
+        Event event = Event.emptyEvent(ConnectionContext.EMPTY);
+        event.put("message", "GET /index.html HTTP/1.1");
+        event.put("level", "error");
+        event.put("size", 1024);
+        event.put("code", "200");
+        event.put("host", "localhost");
+        event.refill(state.main);
+        Processor processor;
+        while ((processor = event.next()) != null) {
+            if (state.ep.process(event, processor) != ProcessingStatus.CONTINUE) {
+                // Not expected, the event is already handled
+                return event;
+            }
+        }
+        event.end();
+        return event;
+    }
+
+}
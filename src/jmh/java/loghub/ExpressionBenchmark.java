@@ -0,0 +1,92 @@
+package loghub;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loghub.Expression.ExpressionException;
+import loghub.configuration.ConfigurationTools;
+import loghub.configuration.Properties;
+
+/**
+ * Evaluate a route expression shared by many threads, the throughput should grow with the thread count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpressionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedExpression {
+        @Param({"[a] == \"b\" && [c] > 3"})
+        public String source;
+
+        private Expression expression;
+
+        @Setup(Level.Trial)
+        public void compile() throws ExpressionException {
+            Map<String, VarFormatter> formatters = new HashMap<>();
+            String script = ConfigurationTools.unWrap(source, i -> i.expression(), formatters);
+            expression = new Expression(script, new Properties(new HashMap<>()).groovyClassLoader, formatters);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadEvent {
+        private Event event;
+
+        @Setup(Level.Trial)
+        public void fill() {
+            event = Event.emptyTestEvent(ConnectionContext.EMPTY);
+            event.put("a", "b");
+            event.put("c", 4);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object threads01(SharedExpression shared, ThreadEvent local) throws ProcessorException {
+        return shared.expression.eval(local.event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object threads04(SharedExpression shared, ThreadEvent local) throws ProcessorException {
+        return shared.expression.eval(local.event);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object threads08(SharedExpression shared, ThreadEvent local) throws ProcessorException {
+        return shared.expression.eval(local.event);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object threads16(SharedExpression shared, ThreadEvent local) throws ProcessorException {
+        return shared.expression.eval(local.event);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object threads32(SharedExpression shared, ThreadEvent local) throws ProcessorException {
+        return shared.expression.eval(local.event);
+    }
+
+}
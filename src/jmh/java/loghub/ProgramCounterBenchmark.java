@@ -0,0 +1,71 @@
+package loghub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import loghub.processors.AnonymousSubPipeline;
+import loghub.processors.Identity;
+
+/**
+ * Run an event through a long pipeline, to check the cost of walking through the processors.
+ * Use <code>-prof gc</code> to see the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgramCounterBenchmark {
+
+    @Param({"30"})
+    public int steps;
+
+    private Pipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void buildPipeline() {
+        List<Processor> processors = new ArrayList<>(steps);
+        // One third of the steps are in an anonymous sub-pipeline
+        List<Processor> subProcessors = new ArrayList<>(steps / 3);
+        for (int i = 0; i < steps / 3; i++) {
+            subProcessors.add(new Identity());
+        }
+        AnonymousSubPipeline sub = new AnonymousSubPipeline();
+        sub.setPipeline(new Pipeline(subProcessors, null, null));
+        for (int i = 0; i < steps - subProcessors.size(); i++) {
+            processors.add(new Identity());
+            if (i == steps / 3) {
+                processors.add(sub);
+            }
+        }
+        pipeline = new Pipeline(processors, "benchmark", null);
+    }
+
+    @Benchmark
+    public void walk(Blackhole bh) throws ProcessorException {
+        Event ev = Event.emptyTestEvent(ConnectionContext.EMPTY);
+        ev.refill(pipeline);
+        Processor p;
+        while ((p = ev.next()) != null) {
+            bh.consume(ev.process(p));
+        }
+        bh.consume(ev);
+    }
+
+}
@@ -0,0 +1,52 @@
+package loghub;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Format a map of values with a few usual formats.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class VarFormatterBenchmark {
+
+    @Param({"${a}", "${a}-${b%05d}", "${c%t<UTC>F}T${c%t<UTC>T}", "loghub-${c%t<UTC>Y}.${c%t<UTC>m}.${c%t<UTC>d}-${a%s}"})
+    public String format;
+
+    private VarFormatter formatter;
+    private Map<String, Object> values;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        formatter = new VarFormatter(format);
+        values = new HashMap<>();
+        values.put("a", "value");
+        values.put("b", 42);
+        values.put("c", new Date(0));
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format(values);
+    }
+
+}
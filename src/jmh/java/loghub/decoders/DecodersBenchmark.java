@@ -0,0 +1,78 @@
+package loghub.decoders;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import loghub.ConnectionContext;
+
+/**
+ * Decode a generated message, with the same content for each format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodersBenchmark {
+
+    @Param({"json", "msgpack", "csv"})
+    public String format;
+
+    private Decoder decoder;
+    private byte[] message;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        Map<String, Object> content = new HashMap<>();
+        content.put("host", "localhost");
+        content.put("program", "sshd");
+        content.put("pid", "4906");
+        content.put("message", "Accepted publickey for user from 192.168.0.1 port 52962 ssh2");
+        switch (format) {
+        case "json":
+            decoder = Json.getBuilder().build();
+            message = new ObjectMapper().writeValueAsBytes(content);
+            break;
+        case "msgpack":
+            decoder = Msgpack.getBuilder().build();
+            message = new ObjectMapper(new MessagePackFactory()).writeValueAsBytes(content);
+            break;
+        case "csv":
+            Csv.Builder builder = Csv.getBuilder();
+            builder.setColumns(new String[] {"host", "program", "pid", "message"});
+            builder.setCharset("UTF-8");
+            decoder = builder.build();
+            message = String.join(",", (String) content.get("host"), (String) content.get("program"), (String) content.get("pid"), (String) content.get("message")).getBytes(StandardCharsets.UTF_8);
+            break;
+        default:
+            throw new IllegalArgumentException(format);
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) throws DecodeException {
+        decoder.decode(ConnectionContext.EMPTY, message).forEach(bh::consume);
+    }
+
+}
@@ -0,0 +1,72 @@
+package loghub.encoders;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+
+/**
+ * Encode a generated event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodersBenchmark {
+
+    @Param({"tojson", "msgpack", "gelf"})
+    public String format;
+
+    private Encoder encoder;
+    private Event event;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        switch (format) {
+        case "tojson":
+            encoder = ToJson.getBuilder().build();
+            break;
+        case "msgpack":
+            encoder = Msgpack.getBuilder().build();
+            break;
+        case "gelf":
+            encoder = Gelf.getBuilder().build();
+            break;
+        default:
+            throw new IllegalArgumentException(format);
+        }
+        event = Event.emptyTestEvent(ConnectionContext.EMPTY);
+        event.setTimestamp(new Date(0));
+        event.put("host", "localhost");
+        event.put("program", "sshd");
+        event.put("pid", 4906);
+        event.put("shortmessage", "Accepted publickey");
+        event.put("message", "Accepted publickey for user from 192.168.0.1 port 52962 ssh2");
+        event.put("tags", Arrays.asList("ssh", "auth"));
+        event.put("source", Collections.singletonMap("ip", "192.168.0.1"));
+    }
+
+    @Benchmark
+    public byte[] encode() throws EncodeException {
+        return encoder.encode(event);
+    }
+
+}
@@ -0,0 +1,160 @@
+package loghub.netflow;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import loghub.IpConnectionContext;
+import loghub.decoders.DecodeException;
+import loghub.decoders.Decoder;
+
+/**
+ * Decode generated Netflow v5 and IPFIX packets. The ipfix packet holds the template and the records, the
+ * ipfixdata packet only the records, the template is sent once during the setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NetflowBenchmark {
+
+    private static final int TEMPLATEID = 256;
+    // IPFIX information elements and sizes for the generated template
+    private static final int[][] FIELDS = new int[][] {
+        {8, 4},  // sourceIPv4Address
+        {12, 4}, // destinationIPv4Address
+        {7, 2},  // sourceTransportPort
+        {11, 2}, // destinationTransportPort
+        {4, 1},  // protocolIdentifier
+        {1, 8},  // octetDeltaCount
+        {2, 8},  // packetDeltaCount
+    };
+
+    @Param({"netflow5", "ipfix", "ipfixdata"})
+    public String packetType;
+
+    @Param({"1", "30"})
+    public int records;
+
+    private Decoder decoder;
+    private IpConnectionContext ctx;
+    private byte[] packet;
+
+    @Setup(Level.Trial)
+    public void prepare() throws DecodeException {
+        decoder = NetflowDecoder.getBuilder().build();
+        ctx = new IpConnectionContext(new InetSocketAddress("127.0.0.1", 2055), new InetSocketAddress("127.0.0.1", 2055), null);
+        ByteBuf buffer = Unpooled.buffer();
+        switch (packetType) {
+        case "netflow5":
+            netflow5(buffer);
+            break;
+        case "ipfix":
+            ipfix(buffer, true);
+            break;
+        case "ipfixdata":
+            ByteBuf templateBuffer = Unpooled.buffer();
+            ipfix(templateBuffer, true);
+            decoder.decode(ctx, templateBuffer).count();
+            ipfix(buffer, false);
+            break;
+        default:
+            throw new IllegalArgumentException(packetType);
+        }
+        packet = new byte[buffer.readableBytes()];
+        buffer.readBytes(packet);
+    }
+
+    private void netflow5(ByteBuf buffer) {
+        buffer.writeShort(5);
+        buffer.writeShort(records);
+        buffer.writeInt(3600000);     // sysUptime
+        buffer.writeInt(1500000000);  // unix_secs
+        buffer.writeInt(0);           // unix_nsecs
+        buffer.writeInt(1);           // flow_sequence
+        buffer.writeByte(0);          // engine_type
+        buffer.writeByte(0);          // engine_id
+        buffer.writeShort(0);         // sampling_interval
+        for (int i = 0; i < records; i++) {
+            buffer.writeInt(0x0A000001 + i); // srcaddr
+            buffer.writeInt(0x0A000101);     // dstaddr
+            buffer.writeInt(0);              // nexthop
+            buffer.writeShort(1);            // input
+            buffer.writeShort(2);            // output
+            buffer.writeInt(10);             // dPkts
+            buffer.writeInt(1500);           // dOctets
+            buffer.writeInt(3500000);        // first
+            buffer.writeInt(3590000);        // last
+            buffer.writeShort(40000 + i);    // srcport
+            buffer.writeShort(443);          // dstport
+            buffer.writeByte(0);             // pad1
+            buffer.writeByte(0x18);          // tcp_flags
+            buffer.writeByte(6);             // prot
+            buffer.writeByte(0);             // tos
+            buffer.writeShort(0);            // src_as
+            buffer.writeShort(0);            // dst_as
+            buffer.writeByte(24);            // src_mask
+            buffer.writeByte(24);            // dst_mask
+            buffer.writeShort(0);            // pad2
+        }
+    }
+
+    private void ipfix(ByteBuf buffer, boolean withTemplate) {
+        int recordSize = 0;
+        for (int[] field: FIELDS) {
+            recordSize += field[1];
+        }
+        int templateSetLength = withTemplate ? 4 + 4 + FIELDS.length * 4 : 0;
+        int dataSetLength = 4 + recordSize * records;
+        buffer.writeShort(10);
+        buffer.writeShort(16 + templateSetLength + dataSetLength);
+        buffer.writeInt(1500000000);  // exportTime
+        buffer.writeInt(1);           // sequenceNumber
+        buffer.writeInt(0);           // observation domain
+        if (withTemplate) {
+            buffer.writeShort(2);
+            buffer.writeShort(templateSetLength);
+            buffer.writeShort(TEMPLATEID);
+            buffer.writeShort(FIELDS.length);
+            for (int[] field: FIELDS) {
+                buffer.writeShort(field[0]);
+                buffer.writeShort(field[1]);
+            }
+        }
+        // Data set
+        buffer.writeShort(TEMPLATEID);
+        buffer.writeShort(dataSetLength);
+        for (int i = 0; i < records; i++) {
+            buffer.writeInt(0x0A000001 + i);
+            buffer.writeInt(0x0A000101);
+            buffer.writeShort(40000 + i);
+            buffer.writeShort(443);
+            buffer.writeByte(6);
+            buffer.writeLong(1500);
+            buffer.writeLong(10);
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) throws DecodeException {
+        decoder.decode(ctx, Unpooled.wrappedBuffer(packet)).forEach(bh::consume);
+    }
+
+}
@@ -0,0 +1,113 @@
+package loghub.processors;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+import loghub.ProcessorException;
+import loghub.configuration.Properties;
+
+/**
+ * The parsing processors, applied to a new event each time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessorsBenchmark {
+
+    @State(Scope.Thread)
+    public static class GrokState {
+        @Param({"%{COMBINEDAPACHELOG}", "%{SYSLOG_LINE}", "%{CISCOFW106023}"})
+        public String pattern;
+
+        @Param({"java", "joni"})
+        public String engine;
+
+        private Grok grok;
+        private String message;
+
+        @Setup(Level.Trial)
+        public void configure() {
+            grok = new Grok();
+            grok.setField(new String[] {"message"});
+            grok.setPattern(pattern);
+            grok.setEngine(engine);
+            if (! grok.configure(new Properties(Collections.emptyMap()))) {
+                throw new IllegalStateException("Grok failed to configure");
+            }
+            if ("%{COMBINEDAPACHELOG}".equals(pattern)) {
+                message = "112.169.19.192 - - [06/Mar/2013:01:36:30 +0900] \"GET / HTTP/1.1\" 200 44346 \"-\" \"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_8_2) AppleWebKit/537.22 (KHTML, like Gecko) Chrome/25.0.1364.152 Safari/537.22\"";
+            } else if ("%{SYSLOG_LINE}".equals(pattern)) {
+                message = "<34>1 2016-01-25T12:28:00.164593+01:00 somehost krb5kdc 4906 - -  closing down fd 14";
+            } else {
+                message = "Deny tcp src outside:192.168.1.10/41378 dst inside:10.0.0.1/443 by access-group \"outside_access_in\" [0x0, 0x0]";
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DateParserState {
+        @Param({"ISO_DATE_TIME", "yyyy-MM-dd'T'HH:m:ss.SSSSSSXXX", "MMM dd HH:mm:ss", "UNIX"})
+        public String pattern;
+
+        private DateParser parser;
+        private String date;
+
+        @Setup(Level.Trial)
+        public void configure() {
+            parser = new DateParser();
+            parser.setPattern(pattern);
+            parser.setTimezone("Z");
+            parser.setField(new String[] {"field"});
+            if (! parser.configure(new Properties(Collections.emptyMap()))) {
+                throw new IllegalStateException("DateParser failed to configure");
+            }
+            switch (pattern) {
+            case "ISO_DATE_TIME":
+                date = "2016-01-25T12:28:00.164593+01:00";
+                break;
+            case "MMM dd HH:mm:ss":
+                date = "Jan 25 12:28:00";
+                break;
+            case "UNIX":
+                date = "1453721280.164";
+                break;
+            default:
+                date = "1970-01-01T00:00:00.000000+01:00";
+            }
+        }
+    }
+
+    @Benchmark
+    public Event grok(GrokState state) throws ProcessorException {
+        Event event = Event.emptyTestEvent(ConnectionContext.EMPTY);
+        event.put("message", state.message);
+        event.process(state.grok);
+        return event;
+    }
+
+    @Benchmark
+    public Event dateParser(DateParserState state) throws ProcessorException {
+        Event event = Event.emptyTestEvent(ConnectionContext.EMPTY);
+        event.put("field", state.date);
+        event.process(state.parser);
+        return event;
+    }
+
+}
@@ -0,0 +1,120 @@
+package loghub.queues;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+import loghub.configuration.Properties;
+
+/**
+ * Compare the in-memory output queue with the persistent one, a sender thread takes the events and ends them.
+ * The overflow queue only write events when the sender falls behind, the write ahead one writes all of them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistentQueueBenchmark {
+
+    @Param({"array", "overflow", "writeahead", "writeaheadsync"})
+    public String queueType;
+
+    @Param({"1024"})
+    public int queueDepth;
+
+    private BlockingQueue<Event> queue;
+    private Path directory;
+    private Thread sender;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        new Properties(Collections.emptyMap());
+        PersistentQueue.Builder builder = PersistentQueue.getBuilder();
+        builder.setMemoryCapacity(queueDepth);
+        switch (queueType) {
+        case "array":
+            queue = new ArrayBlockingQueue<>(queueDepth);
+            break;
+        case "overflow":
+            break;
+        case "writeahead":
+            builder.setWriteAhead(true);
+            builder.setSync(PersistentQueue.Sync.NEVER);
+            break;
+        case "writeaheadsync":
+            builder.setWriteAhead(true);
+            builder.setSync(PersistentQueue.Sync.PERIODIC);
+            break;
+        default:
+            throw new IllegalArgumentException(queueType);
+        }
+        if (queue == null) {
+            directory = Files.createTempDirectory("queuebenchmark");
+            builder.setDirectory(directory);
+            queue = builder.build();
+        }
+        sender = new Thread(() -> {
+            try {
+                while (! Thread.currentThread().isInterrupted()) {
+                    queue.take().end();
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }, "Sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException, IOException {
+        sender.interrupt();
+        sender.join(1000);
+        if (queue instanceof Closeable) {
+            ((Closeable) queue).close();
+        }
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public void put() throws InterruptedException {
+        Event event = Event.emptyEvent(ConnectionContext.EMPTY);
+        event.setTimestamp(new Date(0));
+        event.put("host", "localhost");
+        event.put("program", "sshd");
+        event.put("pid", 4906);
+        event.put("message", "Accepted publickey for user from 192.168.0.1 port 52962 ssh2");
+        queue.put(event);
+    }
+
+}
@@ -0,0 +1,95 @@
+package loghub.queues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the main queue implementations, with many receivers threads sending to
+ * the given number of workers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ShardedQueueBenchmark {
+
+    @Param({"array", "sharded"})
+    public String queueType;
+
+    @Param({"1", "8", "32"})
+    public int workers;
+
+    @Param({"1024"})
+    public int queueDepth;
+
+    private BlockingQueue<Object> queue;
+    private final List<Thread> consumers = new ArrayList<>();
+    private final LongAdder consumed = new LongAdder();
+    private final Object element = new Object();
+
+    @Setup(Level.Trial)
+    public void startWorkers() {
+        switch (queueType) {
+        case "array":
+            queue = new ArrayBlockingQueue<>(queueDepth);
+            break;
+        case "sharded":
+            queue = new ShardedQueue<>(workers, queueDepth);
+            break;
+        default:
+            throw new IllegalArgumentException(queueType);
+        }
+        for (int i = 0; i < workers; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (! Thread.currentThread().isInterrupted()) {
+                        queue.take();
+                        consumed.increment();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "EventsProcessor/" + i);
+            t.setDaemon(true);
+            t.start();
+            consumers.add(t);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopWorkers() throws InterruptedException {
+        consumers.forEach(Thread::interrupt);
+        for (Thread t: consumers) {
+            t.join(1000);
+        }
+        consumers.clear();
+    }
+
+    @Benchmark
+    public void put() throws InterruptedException {
+        queue.put(element);
+    }
+
+}
@@ -0,0 +1,73 @@
+package loghub.senders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+import loghub.senders.Sender.EventFuture;
+
+/**
+ * Build the body of a bulk request, no server is needed as the sender is not configured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ElasticSearchBenchmark {
+
+    @Param({"1", "100", "1000", "10000"})
+    public int batchSize;
+
+    private ElasticSearch es;
+    private List<Event> events;
+    private ElasticSearch.BulkBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        ElasticSearch.Builder builder = ElasticSearch.getBuilder();
+        builder.setDestinations(new String[]{"http://localhost:9200"});
+        es = builder.build();
+        events = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            Event ev = Event.emptyTestEvent(ConnectionContext.EMPTY);
+            ev.setTimestamp(new Date(i * 1000L));
+            ev.put("type", "bench");
+            ev.put("host", "localhost");
+            ev.put("message", "Accepted publickey for user from 192.168.0.1 port 52962 ssh2");
+            ev.put("count", i);
+            events.add(ev);
+        }
+        buffer = new ElasticSearch.BulkBuffer(64 * 1024);
+    }
+
+    @Benchmark
+    public int bulk() throws IOException {
+        List<EventFuture> batch = new ArrayList<>(events.size());
+        for (Event ev: events) {
+            batch.add(new EventFuture(ev));
+        }
+        buffer.reset();
+        es.putContent(batch, new ArrayList<>(events.size()), buffer);
+        return buffer.size();
+    }
+
+}
@@ -0,0 +1,91 @@
+package loghub.senders;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+import loghub.configuration.Properties;
+import loghub.encoders.ToJson;
+
+/**
+ * Write batches of events to rotated files, the score is the number of batches written.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FileBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    private Path directory;
+    private File file;
+    private List<Event> events;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        directory = Files.createTempDirectory("filebenchmark");
+        File.Builder builder = File.getBuilder();
+        builder.setFileName(directory.resolve("archive-${seq}.log").toString());
+        builder.setSeparator("\n");
+        builder.setEncoder(ToJson.getBuilder().build());
+        builder.setBatchSize(batchSize);
+        builder.setRotateSize(64 * 1024 * 1024);
+        file = builder.build();
+        file.configure(new Properties(Collections.emptyMap()));
+        events = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            Event ev = Event.emptyTestEvent(ConnectionContext.EMPTY);
+            ev.setTimestamp(new Date(i * 1000L));
+            ev.put("host", "localhost");
+            ev.put("message", "Accepted publickey for user from 192.168.0.1 port 52962 ssh2");
+            ev.put("count", i);
+            events.add(ev);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        file.customStopSending();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(i -> i.toFile().delete());
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public int write() throws SendException {
+        Sender.Batch batch = new Sender.Batch(file);
+        for (Event ev: events) {
+            batch.add(ev);
+        }
+        file.flush(batch);
+        return batch.size();
+    }
+
+}
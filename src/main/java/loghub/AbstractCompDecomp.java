@@ -63,6 +63,19 @@ abstract class AbstractCompDecomp implements Filter {
         return out;
     }
 
+    /**
+     * (De)compress a stream, for content that should not be kept in memory. Both streams are closed.
+     */
+    public void filter(InputStream in, OutputStream out) throws FilterException {
+        try (InputStream ins = source(in);
+             OutputStream outs = destination(out);
+                        ){
+            IOUtils.copy(ins, outs);
+        } catch (IOException | CompressorException e) {
+            throw new FilterException("Failed to (de)compress: " + Helpers.resolveThrowableException(e), e);
+        }
+    }
+
     protected abstract InputStream source(InputStream wrappedInput) throws CompressorException;
 
     protected abstract OutputStream destination(OutputStream wrappedOutput) throws CompressorException;
@@ -3,7 +3,7 @@ package loghub;
 import java.io.Serializable;
 import java.security.Principal;
 
-public abstract class ConnectionContext<A> implements Serializable {
+public abstract class ConnectionContext<A> implements Serializable, Cloneable {
 
     private static final class EmptyPrincipal implements Principal, Serializable {
         @Override
@@ -46,6 +46,20 @@ public abstract class ConnectionContext<A> implements Serializable {
     public void acknowledge() {
     }
 
+    /**
+     * Used when an event is duplicated, the copy can be acknowledged independently.
+     * It's a shallow copy, the addresses and the principal are shared.
+     * @return a copy of this context
+     */
+    @SuppressWarnings("unchecked")
+    public ConnectionContext<A> copy() {
+        try {
+            return (ConnectionContext<A>) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException("Context can't be copied", ex);
+        }
+    }
+
     public Principal getPrincipal() {
         return peerPrincipal;
     }
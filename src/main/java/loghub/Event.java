@@ -175,7 +175,14 @@ public abstract class Event extends HashMap<String, Object> implements Serializa
 
     public abstract void finishPipeline();
 
-    public abstract Event duplicate();
+    /**
+     * @return a deep copy of this event, or null if it can't be copied
+     */
+    public Event duplicate() {
+        return duplicate(false);
+    }
+
+    public abstract Event duplicate(boolean copyOnWrite);
 
     public abstract Processor next();
 
@@ -1,21 +1,13 @@
 package loghub;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.NotSerializableException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
@@ -30,10 +22,15 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
 
 import loghub.Stats.PipelineStat;
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.Handle;
+import loghub.configuration.Properties.MetricRegistryWrapper.PipelineMetrics;
 
 class EventInstance extends Event {
 
@@ -46,13 +43,15 @@ class EventInstance extends Event {
     private static final class ExecutionStackElement {
         private static final Logger logger = LogManager.getLogger();
         private final String name;
+        private final PipelineMetrics pipelineMetrics;
 
         private long duration = 0;
         private long startTime = Long.MIN_VALUE;
         private boolean running;
 
-        private ExecutionStackElement(String name) {
+        private ExecutionStackElement(String name, PipelineMetrics pipelineMetrics) {
             this.name = name;
+            this.pipelineMetrics = pipelineMetrics;
             restart();
         }
 
@@ -61,7 +60,7 @@ class EventInstance extends Event {
                 long elapsed = System.nanoTime() - startTime;
                 duration += elapsed;
             }
-            Properties.metrics.timer("Pipeline." + name + ".timer").update(duration, TimeUnit.NANOSECONDS);
+            pipelineMetrics.timer.get().update(duration, TimeUnit.NANOSECONDS);
             duration = 0;
             running = false;
             startTime = Long.MIN_VALUE;
@@ -69,7 +68,7 @@ class EventInstance extends Event {
 
         private void pause() {
             running = false;
-            Stats.pipelineHanding(name, PipelineStat.INFLIGHTDOWN);
+            Stats.pipelineHanding(pipelineMetrics, PipelineStat.INFLIGHTDOWN);
             long elapsed = System.nanoTime() - startTime;
             duration += elapsed;
         }
@@ -77,7 +76,7 @@ class EventInstance extends Event {
         private void restart() {
             startTime = System.nanoTime();
             running = true;
-            Stats.pipelineHanding(name, PipelineStat.INFLIGHTUP);
+            Stats.pipelineHanding(pipelineMetrics, PipelineStat.INFLIGHTUP);
         }
 
         @Override
@@ -89,9 +88,11 @@ class EventInstance extends Event {
     static private final class PreSubpipline extends Processor {
 
         private final String pipename;
+        private final PipelineMetrics pipelineMetrics;
 
         PreSubpipline(String pipename) {
             this.pipename = pipename;
+            this.pipelineMetrics = Properties.metrics.pipeline(pipename);
         }
 
         @Override
@@ -102,7 +103,7 @@ class EventInstance extends Event {
         @Override
         public boolean process(Event event) throws ProcessorException {
             Optional.ofNullable(event.getRealEvent().executionStack.peek()).ifPresent(ExecutionStackElement::pause);
-            ExecutionStackElement ctxt = new ExecutionStackElement(pipename);
+            ExecutionStackElement ctxt = new ExecutionStackElement(pipename, pipelineMetrics);
             event.getRealEvent().executionStack.add(ctxt);
             ExecutionStackElement.logger.trace("--> {}({})", () -> event.getRealEvent().executionStack, () -> event);
             return true;
@@ -153,20 +154,25 @@ class EventInstance extends Event {
     private static final Map<String, PreSubpipline> preSubpiplines = new ConcurrentHashMap<>();
     private static final PostSubpipline postSubpipline = new PostSubpipline();
 
-    private static PreSubpipline getPre(String name) {
+    static Processor getPre(String name) {
         return preSubpiplines.computeIfAbsent(name, PreSubpipline::new);
     }
 
-    private static PostSubpipline getPost(String name) {
+    static Processor getPost(String name) {
         return postSubpipline;
     }
 
     private static final Logger logger = LogManager.getLogger();
 
+    private static final Handle<Timer> allEventsTimer = Properties.metrics.timerHandle("Allevents.timer");
+    private static final Handle<Counter> allEventsInflight = Properties.metrics.counterHandle("Allevents.inflight");
+    private static final Handle<Histogram> steps = Properties.metrics.histogramHandle("Steps");
+
     private transient EventWrapper wevent;
-    private transient LinkedList<Processor> processors;
+    private transient ProgramCounter processors;
 
     private String currentPipeline;
+    private transient PipelineMetrics currentPipelineMetrics;
     private String nextPipeline;
     private Date timestamp = new Date();
     private final Map<String, Object> metas = new HashMap<>();
@@ -197,13 +203,14 @@ class EventInstance extends Event {
      */
     private void readResolve() {
         if (!test) {
-            timer = Properties.metrics.timer("Allevents.timer").time();
-            Properties.metrics.counter("Allevents.inflight").inc();
+            timer = allEventsTimer.get().time();
+            allEventsInflight.get().inc();
         } else {
             timer = null;
         }
-        processors = new LinkedList<>();
+        processors = new ProgramCounter();
         wevent = null;
+        currentPipelineMetrics = currentPipeline != null ? Properties.metrics.pipeline(currentPipeline) : null;
         executionStack = Collections.asLifoQueue(new ArrayDeque<>());
     }
 
@@ -213,8 +220,8 @@ class EventInstance extends Event {
         if (! test) {
             timer.close();
             executionStack.forEach(ExecutionStackElement::close);
-            Properties.metrics.counter("Allevents.inflight").dec();
-            Properties.metrics.histogram("Steps").update(stepsCount);
+            allEventsInflight.get().dec();
+            steps.get().update(stepsCount);
         } else {
             synchronized(this) {
                 notify();
@@ -234,31 +241,35 @@ class EventInstance extends Event {
     /**
      * Return a deep copy of the event.
      * <p>
-     * It work by doing serialize/deserialize of the event. So a event must
-     * only contains serializable object to make it works.
+     * The map tree, the metas and the processing state are copied without serialization, see {@link StructuralCopy}.
+     * The immutable values are shared and the connection context is copied. Only the values of unknown types must be
+     * serializable.
      * <p>
-     * It will not duplicate a test event
+     * If copyOnWrite is true, the nested maps are copied only when one of the events modifies them. Both
+     * events are then given a copy-on-write view of them, so this event is modified too.
      * <p>
-     * @return a copy of this event, with a different key
+     * @param copyOnWrite if nested maps are copied lazily
+     * @return a copy of this event, with a different key, or null if a value can't be copied
      */
-    public Event duplicate() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream oos = new ObjectOutputStream(bos);) {
-            oos.writeObject(this);
-            oos.flush();
-            bos.flush();
-            byte[] byteData = bos.toByteArray();
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(byteData)) {
-                EventInstance forked = (EventInstance) new ObjectInputStream(bais).readObject();
-                forked.readResolve();
-                return forked;
-            }
+    @Override
+    public Event duplicate(boolean copyOnWrite) {
+        try {
+            // The content is copied first, a failed copy must not leave a started event or a held context
+            Map<String, Object> content = StructuralCopy.duplicate(this, copyOnWrite);
+            Map<String, Object> metasContent = StructuralCopy.duplicate(metas, false);
+            EventInstance forked = new EventInstance(ctx.copy(), test);
+            forked.putAll(content);
+            forked.metas.putAll(metasContent);
+            forked.timestamp = timestamp;
+            forked.currentPipeline = currentPipeline;
+            forked.nextPipeline = nextPipeline;
+            forked.stepsCount = stepsCount;
+            forked.currentPipelineMetrics = currentPipelineMetrics;
+            return forked;
         } catch (NotSerializableException ex) {
             logger.info("Event copy failed: {}", Helpers.resolveThrowableException(ex));
             logger.catching(Level.DEBUG, ex);
             return null;
-        } catch (ClassNotFoundException | IOException | SecurityException | IllegalArgumentException ex) {
-            logger.fatal("Event copy failed: {}", Helpers.resolveThrowableException(ex), ex);
-            return null;
         }
     }
 
@@ -270,65 +281,40 @@ class EventInstance extends Event {
     public Processor next() {
         stepsCount++;
         logger.debug("waiting processors {}", processors);
-        try {
-            return processors.pop();
-        } catch (NoSuchElementException e) {
+        Processor p = processors.next();
+        if (p == null) {
             wevent = null;
-            return null;
         }
+        return p;
     }
 
     public void insertProcessor(Processor p) {
-        addProcessor(p, false);
+        logger.trace("inject processor {} at start", p);
+        processors.insert(p);
     }
 
     public void appendProcessor(Processor p) {
-        addProcessor(p, true);
+        logger.trace("inject processor {} at end", p);
+        processors.append(p);
     }
 
     public void insertProcessors(List<Processor> p) {
-        addProcessors(p, false);
+        logger.trace("inject processors {} at start", p);
+        processors.insert(ProgramCounter.toProgram(p));
     }
 
     public void appendProcessors(List<Processor> p) {
-        addProcessors(p, true);
-    }
-
-    private void addProcessors(List<Processor> newProcessors, boolean append) {
-        ListIterator<Processor> i = newProcessors.listIterator(append ? 0 : newProcessors.size());
-        while(append ? i.hasNext() : i.hasPrevious()) {
-            Processor p = append ? i.next() : i.previous();
-            addProcessor(p, append);
-        }
-    }
-
-    private void addProcessor(Processor p, boolean append) {
-        logger.trace("inject processor {} at {}", () -> p, () -> append ? "end" : "start" );
-        if (p instanceof SubPipeline) {
-            SubPipeline sp = (SubPipeline) p;
-            List<Processor> newProcessors = new ArrayList<>(sp.getPipeline().processors.size() + 2);
-            Optional<String> pipeName = Optional.ofNullable(sp.getPipeline().getName());
-            pipeName.map(EventInstance::getPre).ifPresent(newProcessors::add);
-            newProcessors.addAll(sp.getPipeline().processors);
-            pipeName.map(EventInstance::getPost).ifPresent(newProcessors::add);
-            addProcessors(newProcessors, append);
-        } else {
-            if (append) {
-                processors.addLast(p);
-            } else {
-                processors.addFirst(p);
-            }
-        }
+        logger.trace("inject processors {} at end", p);
+        processors.append(ProgramCounter.toProgram(p));
     }
 
     @Override
     public void refill(Pipeline pipeline) {
-        Optional<String> pipeName = Optional.ofNullable(pipeline.getName());
-        pipeName.map(EventInstance::getPre).ifPresent(this::appendProcessor);
-        pipeName.ifPresent(s -> currentPipeline = s);
+        if (pipeline.getName() != null) {
+            setCurrentPipeline(pipeline.getName(), pipeline.getMetrics());
+        }
         nextPipeline = pipeline.nextPipeline;
-        appendProcessors(pipeline.processors);
-        pipeName.map(EventInstance::getPost).ifPresent(this::appendProcessor);
+        processors.append(pipeline.getProgram());
     }
 
     /* (non-Javadoc)
@@ -336,11 +322,10 @@ class EventInstance extends Event {
      */
     public boolean inject(Pipeline pipeline, BlockingQueue<Event> mainqueue, boolean blocking) {
         nextPipeline = pipeline.nextPipeline;
-        Optional<String>pipeName = Optional.ofNullable(pipeline.getName());
-        pipeName.map(EventInstance::getPre).ifPresent(this::appendProcessor);
-        pipeName.ifPresent(s -> currentPipeline = s);
-        appendProcessors(pipeline.processors);
-        pipeName.map(EventInstance::getPost).ifPresent(this::appendProcessor);
+        if (pipeline.getName() != null) {
+            setCurrentPipeline(pipeline.getName(), pipeline.getMetrics());
+        }
+        processors.append(pipeline.getProgram());
         if (blocking) {
             try {
                 mainqueue.put(this);
@@ -360,8 +345,9 @@ class EventInstance extends Event {
     public boolean inject(Event ev, BlockingQueue<Event> mainqueue) {
         EventInstance master = ev.getRealEvent();
         currentPipeline = master.currentPipeline;
+        currentPipelineMetrics = master.currentPipelineMetrics;
         nextPipeline = master.nextPipeline;
-        appendProcessors(master.processors);
+        processors.append(master.processors);
         return mainqueue.offer(this);
     }
 
@@ -371,6 +357,11 @@ class EventInstance extends Event {
         processors.clear();
     }
 
+    private void setCurrentPipeline(String currentPipeline, PipelineMetrics currentPipelineMetrics) {
+        this.currentPipeline = currentPipeline;
+        this.currentPipelineMetrics = currentPipelineMetrics;
+    }
+
     public String getCurrentPipeline() {
         return currentPipeline;
     }
@@ -426,8 +417,14 @@ class EventInstance extends Event {
     @Override
     public void doMetric(PipelineStat status, Throwable ex) {
         if (! test) {
-            String name = Optional.ofNullable(executionStack.peek()).map(c -> c.name).orElse(currentPipeline);
-            Stats.pipelineHanding(name, status, ex);
+            ExecutionStackElement current = executionStack.peek();
+            if (current != null) {
+                Stats.pipelineHanding(current.pipelineMetrics, status, ex);
+            } else if (currentPipelineMetrics != null) {
+                Stats.pipelineHanding(currentPipelineMetrics, status, ex);
+            } else {
+                Stats.pipelineHanding(currentPipeline, status, ex);
+            }
         }
     }
 
@@ -169,8 +169,8 @@ class EventWrapper extends Event {
     }
 
     @Override
-    public Event duplicate() {
-        return event.duplicate();
+    public Event duplicate(boolean copyOnWrite) {
+        return event.duplicate(copyOnWrite);
     }
 
     @Override
@@ -9,10 +9,13 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.codahale.metrics.Meter;
+
 import io.netty.util.concurrent.Future;
 import loghub.PausedEvent.Builder;
 import loghub.Stats.PipelineStat;
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.Handle;
 import loghub.configuration.TestEventProcessing;
 import loghub.processors.Drop;
 import loghub.processors.Forker;
@@ -32,6 +35,7 @@ public class EventsProcessor extends Thread {
 
     private static final Logger logger = LogManager.getLogger();
     private static final AtomicInteger id = new AtomicInteger();
+    private static final Handle<Meter> allEventsFailed = Properties.metrics.meterHandle("Allevents.failed");
 
     private final BlockingQueue<Event> inQueue;
     private final Map<String, BlockingQueue<Event>> outQueues;
@@ -129,12 +133,12 @@ public class EventsProcessor extends Thread {
                 } else if (event.getCurrentPipeline() != null && ! outQueues.containsKey(event.getCurrentPipeline())){
                     Stats.newUnhandledException(new IllegalArgumentException("No sender consumming pipeline " + event.getCurrentPipeline()));
                     logger.debug("No sender using pipeline {} for event {}", event.getCurrentPipeline(), event);
-                    Properties.metrics.meter("Allevents.failed").mark();
+                    allEventsFailed.get().mark();
                     event.end();
                 } else {
                     Stats.newUnhandledException(new IllegalStateException("Invalid end state for event, no pipeline"));
                     logger.debug("Invalid end state for event {}", event);
-                    Properties.metrics.meter("Allevents.failed").mark();
+                    allEventsFailed.get().mark();
                     event.end();
                 }
             }
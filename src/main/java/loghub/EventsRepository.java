@@ -13,9 +13,12 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.codahale.metrics.Counter;
+
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timeout;
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.Handle;
 
 public class EventsRepository<KEY> {
 
@@ -35,13 +38,15 @@ public class EventsRepository<KEY> {
             } else {
                 task = null;
             }
-            Properties.metrics.counter("paused").inc();
+            pausedCounter.get().inc();
             return new PauseContext<K>(paused, task);
         }
     }
 
     private static final Logger logger = LogManager.getLogger();
 
+    private static final Handle<Counter> pausedCounter = Properties.metrics.counterHandle("paused");
+
     private static final ThreadFactory tf = new ThreadFactory() {
         private final AtomicInteger counter = new AtomicInteger(0);
         private final ThreadFactory defaulttf = Executors.defaultThreadFactory();
@@ -93,7 +98,7 @@ public class EventsRepository<KEY> {
         if(ctx.task != null) {
             ctx.task.cancel();
         } 
-        Properties.metrics.counter("paused").dec();
+        pausedCounter.get().dec();
         return ctx.pausedEvent;
     }
 
@@ -122,7 +127,7 @@ public class EventsRepository<KEY> {
         if (ctx.task != null) {
             ctx.task.cancel();
         }
-        Properties.metrics.counter("paused").dec();
+        pausedCounter.get().dec();
         logger.trace("Waking up event {}", ctx.pausedEvent.event);
         ctx.pausedEvent.event.insertProcessor(source.apply(ctx.pausedEvent));
         Event transformed = transform.apply(ctx.pausedEvent).apply(ctx.pausedEvent.event);
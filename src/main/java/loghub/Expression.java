@@ -11,6 +11,8 @@ import groovy.lang.Binding;
 import groovy.lang.GroovyClassLoader;
 import groovy.lang.Script;
 
+import loghub.configuration.Properties;
+
 public class Expression {
 
     /**
@@ -25,27 +27,70 @@ public class Expression {
         }
     }
 
+    /**
+     * An expression compiled to java code, used instead of groovy for the simple expressions.
+     */
+    @FunctionalInterface
+    public interface Lambda {
+        Object apply(Event event) throws Exception;
+    }
+
     private static final Logger logger = LogManager.getLogger();
 
-    private static final Binding EMPTYBIDDING = new Binding();
+    /**
+     * A script and its binding, used by a single thread. So the evaluation don't need any lock and
+     * the binding is reused, only the event is changed.
+     */
+    private static final class Evaluator {
+        private final Script script;
+        private final Binding binding;
+        private Evaluator(Script script, Map<String, VarFormatter> formatters) {
+            this.script = script;
+            this.binding = new Binding();
+            binding.setVariable("formatters", formatters);
+            script.setBinding(binding);
+        }
+    }
 
     private final String expression;
-    private Map<String, VarFormatter> formatters;
-    private final ThreadLocal<Script> groovyScript;
+    private final Map<String, VarFormatter> formatters;
+    private final ThreadLocal<Evaluator> evaluators;
+    private final Lambda lambda;
+
+    /**
+     * Build an expression from the configuration, it will use the native version if the parser
+     * was able to build it.
+     * @param expression the groovy source of the expression
+     * @param properties the configuration
+     * @throws ExpressionException if the groovy compilation failed
+     */
+    public Expression(String expression, Properties properties) throws ExpressionException {
+        this(expression, properties.groovyClassLoader, properties.formatters, properties.lambdas.get(expression));
+    }
 
-    @SuppressWarnings("unchecked")
     public Expression(String expression, GroovyClassLoader loader, Map<String, VarFormatter> formatters) throws ExpressionException {
+        this(expression, loader, formatters, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Expression(String expression, GroovyClassLoader loader, Map<String, VarFormatter> formatters, Lambda lambda) throws ExpressionException {
         logger.trace("adding expression {}", expression);
         this.expression = expression;
+        this.formatters = formatters;
+        this.lambda = lambda;
+        if (lambda != null) {
+            evaluators = null;
+            return;
+        }
         Class<Script> groovyClass;
         try {
             groovyClass = loader.parseClass(expression);
         } catch (CompilationFailedException e) {
             throw new ExpressionException(e);
         }
-        groovyScript = ThreadLocal.withInitial(() -> {
+        evaluators = ThreadLocal.withInitial(() -> {
             try {
-                return groovyClass.newInstance();
+                return new Evaluator(groovyClass.newInstance(), formatters);
             } catch (IllegalAccessException | InstantiationException e) {
                 throw new UnsupportedOperationException(e);
             }
@@ -54,33 +99,37 @@ public class Expression {
         // Try to catch it early instead of for each event
         // Just for too smart compiler
         try {
-            if (groovyScript.get() == null) {
+            if (evaluators.get() == null) {
                 throw new ExpressionException(new NullPointerException());
             }
         } catch (UnsupportedOperationException e) {
             throw new ExpressionException(e);
         }
-        this.formatters = formatters;
     }
 
-    public synchronized Object eval(Event event) throws ProcessorException {
+    public Object eval(Event event) throws ProcessorException {
         logger.trace("Evaluating script {} with formatters {}", expression, formatters);
-        Binding groovyBinding = new Binding();
-        groovyBinding.setVariable("event", event);
-        groovyBinding.setVariable("formatters", formatters);
-        Script localscript;
+        if (lambda != null) {
+            try {
+                return lambda.apply(event);
+            } catch (Exception e) {
+                throw event.buildException(String.format("failed expression '%s': %s", expression, Helpers.resolveThrowableException(e)));
+            }
+        }
+        Evaluator evaluator;
         try {
-            localscript = groovyScript.get();
+            evaluator = evaluators.get();
         } catch (UnsupportedOperationException e) {
             throw event.buildException(String.format("script compilation failed '%s': %s", expression, e.getCause().getMessage()));
         }
-        localscript.setBinding(groovyBinding);
+        evaluator.binding.setVariable("event", event);
         try {
-            return localscript.run();
+            return evaluator.script.run();
         } catch (Exception e) {
             throw event.buildException(String.format("failed expression '%s': %s", expression, Helpers.resolveThrowableException(e)));
         } finally {
-            localscript.setBinding(EMPTYBIDDING);
+            // Don't keep a reference to the event
+            evaluator.binding.setVariable("event", null);
         }
     }
 
@@ -91,6 +140,13 @@ public class Expression {
         return expression;
     }
 
+    /**
+     * @return true if the expression is evaluated without groovy
+     */
+    public boolean isNative() {
+        return lambda != null;
+    }
+
     public static void logError(ExpressionException e, String source, Logger logger) {
         Throwable cause = e.getCause();
         if (cause instanceof CompilationFailedException) {
@@ -5,22 +5,61 @@ import java.util.Collections;
 import java.util.List;
 
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.PipelineMetrics;
 
 public class Pipeline {
 
     private final String name;
+    private final PipelineMetrics metrics;
 
     public final List<Processor> processors;
     public final String nextPipeline;
+    private volatile Processor[] program = null;
 
     public Pipeline(List<Processor> steps, String name, String nextPipeline) {
         processors = Collections.unmodifiableList(new ArrayList<>(steps));
         this.name = name;
         this.nextPipeline = nextPipeline;
+        this.metrics = Properties.metrics.pipeline(name);
     }
 
     public boolean configure(Properties properties) {
-        return processors.stream().allMatch(i -> i.configure(properties));
+        boolean configured = processors.stream().allMatch(i -> i.configure(properties));
+        program = compile();
+        return configured;
+    }
+
+    /**
+     * The processors flattened in an array, with the anonymous sub-pipelines inlined
+     * and wrapped with the timing processors if the pipeline is named. It's shared
+     * by all the events, so it must not be modified.
+     * @return the program for this pipeline
+     */
+    Processor[] getProgram() {
+        Processor[] current = program;
+        if (current == null) {
+            current = compile();
+            program = current;
+        }
+        return current;
+    }
+
+    private Processor[] compile() {
+        List<Processor> flattened = new ArrayList<>(processors.size() + 2);
+        if (name != null) {
+            flattened.add(EventInstance.getPre(name));
+        }
+        for (Processor p: processors) {
+            if (p instanceof SubPipeline && ((SubPipeline) p).getPipeline() != null && ((SubPipeline) p).getPipeline().getName() == null) {
+                Collections.addAll(flattened, ((SubPipeline) p).getPipeline().getProgram());
+            } else {
+                flattened.add(p);
+            }
+        }
+        if (name != null) {
+            flattened.add(EventInstance.getPost(name));
+        }
+        return ProgramCounter.toProgram(flattened);
     }
 
     @Override
@@ -36,4 +75,11 @@ public class Pipeline {
         return name;
     }
 
+    /**
+     * @return the metrics for this pipeline, resolved once.
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
 }
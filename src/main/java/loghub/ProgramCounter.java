@@ -0,0 +1,189 @@
+package loghub;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The processors still to be run for an event.
+ * <p>
+ * Pipelines are flattened once in an immutable array of processors, the program (see {@link Pipeline#getProgram()}).
+ * An event only keeps a cursor in each program it's running. The programs are stacked, so a sub-pipeline or a
+ * processor inserted by a failure handler or a {@link loghub.processors.Test} branch just push a new frame,
+ * without copying anything.
+ * <p>
+ * A {@link SubPipeline} is expanded only when it's reached.
+ */
+final class ProgramCounter {
+
+    private static final Processor[] EMPTY = new Processor[0];
+    private static final int INITIALDEPTH = 4;
+
+    // Frames are stored in parallel arrays, the top of the stack is at depth - 1.
+    // A frame without program hold a single processor.
+    private Processor[][] programs = new Processor[INITIALDEPTH][];
+    private Processor[] singles = new Processor[INITIALDEPTH];
+    private int[] cursors = new int[INITIALDEPTH];
+    private int depth = 0;
+
+    /**
+     * Fetch the next processor to run, the sub-pipelines are resolved.
+     * @return the next processor or null if no more processors are waiting
+     */
+    Processor next() {
+        while (depth > 0) {
+            int top = depth - 1;
+            Processor[] program = programs[top];
+            Processor p;
+            if (program == null) {
+                p = singles[top];
+                pop();
+            } else {
+                p = program[cursors[top]++];
+                if (cursors[top] == program.length) {
+                    pop();
+                }
+            }
+            if (p instanceof SubPipeline) {
+                push(((SubPipeline) p).getPipeline().getProgram());
+            } else {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a processor that will be run next.
+     * @param p the processor
+     */
+    void insert(Processor p) {
+        ensureCapacity();
+        programs[depth] = null;
+        singles[depth] = p;
+        cursors[depth] = 0;
+        depth++;
+    }
+
+    /**
+     * Add a program that will be run next.
+     * @param program the processors, the array is kept, not copied
+     */
+    void insert(Processor[] program) {
+        push(program);
+    }
+
+    /**
+     * Add a processor that will be run after all the waiting ones.
+     * @param p the processor
+     */
+    void append(Processor p) {
+        makeRoomAtBottom(1);
+        programs[0] = null;
+        singles[0] = p;
+    }
+
+    /**
+     * Add a program that will be run after all the waiting ones.
+     * @param program the processors, the array is kept, not copied
+     */
+    void append(Processor[] program) {
+        if (program.length != 0) {
+            makeRoomAtBottom(1);
+            programs[0] = program;
+        }
+    }
+
+    /**
+     * Add all the processors waiting in another counter after all the waiting ones.
+     * The programs are shared, only the cursors are copied.
+     * @param other the counter to copy
+     */
+    void append(ProgramCounter other) {
+        if (other.depth != 0) {
+            makeRoomAtBottom(other.depth);
+            System.arraycopy(other.programs, 0, programs, 0, other.depth);
+            System.arraycopy(other.singles, 0, singles, 0, other.depth);
+            System.arraycopy(other.cursors, 0, cursors, 0, other.depth);
+        }
+    }
+
+    /**
+     * @return the count of waiting processors, a sub-pipeline not yet reached is counted as one.
+     */
+    int size() {
+        int size = 0;
+        for (int i = 0; i < depth; i++) {
+            size += programs[i] == null ? 1 : programs[i].length - cursors[i];
+        }
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(programs, 0, depth, null);
+        Arrays.fill(singles, 0, depth, null);
+        depth = 0;
+    }
+
+    private void push(Processor[] program) {
+        if (program.length != 0) {
+            ensureCapacity();
+            programs[depth] = program;
+            singles[depth] = null;
+            cursors[depth] = 0;
+            depth++;
+        }
+    }
+
+    private void pop() {
+        depth--;
+        programs[depth] = null;
+        singles[depth] = null;
+    }
+
+    private void makeRoomAtBottom(int count) {
+        while (depth + count > programs.length) {
+            grow();
+        }
+        System.arraycopy(programs, 0, programs, count, depth);
+        System.arraycopy(singles, 0, singles, count, depth);
+        System.arraycopy(cursors, 0, cursors, count, depth);
+        for (int i = 0; i < count; i++) {
+            programs[i] = null;
+            singles[i] = null;
+            cursors[i] = 0;
+        }
+        depth += count;
+    }
+
+    private void ensureCapacity() {
+        if (depth == programs.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        int newSize = programs.length * 2;
+        programs = Arrays.copyOf(programs, newSize);
+        singles = Arrays.copyOf(singles, newSize);
+        cursors = Arrays.copyOf(cursors, newSize);
+    }
+
+    @Override
+    public String toString() {
+        List<Processor> waiting = new ArrayList<>(size());
+        for (int i = depth - 1; i >= 0; i--) {
+            if (programs[i] == null) {
+                waiting.add(singles[i]);
+            } else {
+                waiting.addAll(Arrays.asList(programs[i]).subList(cursors[i], programs[i].length));
+            }
+        }
+        return waiting.toString();
+    }
+
+    static Processor[] toProgram(List<Processor> processors) {
+        return processors.isEmpty() ? EMPTY : processors.toArray(EMPTY);
+    }
+
+}
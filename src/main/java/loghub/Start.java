@@ -1,6 +1,7 @@
 package loghub;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
@@ -243,6 +244,14 @@ public class Start {
             props.receivers.forEach( i -> i.stopReceiving());
             allep.forEach(i -> i.stopProcessing());
             props.senders.forEach( i -> i.stopSending());
+            // Persistent queues save the waiting events
+            props.outputQueues.values().stream().filter(Closeable.class::isInstance).forEach(i -> {
+                try {
+                    ((Closeable) i).close();
+                } catch (IOException e) {
+                    logger.error("Failed to close queue {}: {}", i, Helpers.resolveThrowableException(e));
+                }
+            });
             JmxService.stop();
         };
         shutdownAction = ThreadBuilder.get()
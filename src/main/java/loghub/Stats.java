@@ -9,6 +9,7 @@ import java.util.stream.Collectors;
 import com.codahale.metrics.MetricRegistry;
 
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.PipelineMetrics;
 
 public final class Stats {
 
@@ -228,35 +229,43 @@ public final class Stats {
     }
 
     public static void pipelineHanding(String name, PipelineStat status, Throwable ex) {
+        pipelineHanding(Properties.metrics.pipeline(name), status, ex);
+    }
+
+    public static void pipelineHanding(PipelineMetrics pipelineMetrics, PipelineStat status) {
+        pipelineHanding(pipelineMetrics, status, null);
+    }
+
+    public static void pipelineHanding(PipelineMetrics pipelineMetrics, PipelineStat status, Throwable ex) {
         switch(status) {
         case FAILURE:
             Stats.newProcessorError((ProcessingException) ex);
-            Properties.metrics.meter(PIPELINECOUNTERS.FAILED.metricName(name)).mark();
+            pipelineMetrics.failed.get().mark();
             break;
         case DROP:
             Stats.dropped.incrementAndGet();
-            Properties.metrics.meter(PIPELINECOUNTERS.DROPPED.metricName(name)).mark();
+            pipelineMetrics.dropped.get().mark();
             break;
         case EXCEPTION:
             Stats.newUnhandledException(ex);
-            Properties.metrics.counter(PIPELINECOUNTERS.EXCEPTION.metricName(name)).inc();
+            pipelineMetrics.exception.get().mark();
             break;
         case LOOPOVERFLOW:
             Stats.loopOverflow.incrementAndGet();
-            Properties.metrics.counter(PIPELINECOUNTERS.LOOPOVERFLOW.metricName(name)).inc();
+            pipelineMetrics.loopOverflow.get().inc();
             break;
         case INFLIGHTUP:
-            Properties.metrics.counter(PIPELINECOUNTERS.INFLIGHT.metricName(name)).inc();
+            pipelineMetrics.inflight.get().inc();
             break;
         case INFLIGHTDOWN:
-            Properties.metrics.counter(PIPELINECOUNTERS.INFLIGHT.metricName(name)).dec();
+            pipelineMetrics.inflight.get().dec();
             break;
         case BLOCKOUT:
             Stats.blocked.incrementAndGet();
-            Properties.metrics.meter(PIPELINECOUNTERS.BLOCKEDOUT.metricName(name)).mark();
+            pipelineMetrics.blockedOut.get().mark();
             break;
         case BLOCKIN:
-            Properties.metrics.meter(PIPELINECOUNTERS.BLOCKEDIN.metricName(name)).mark();
+            pipelineMetrics.blockedIn.get().mark();
             break;
         }
     }
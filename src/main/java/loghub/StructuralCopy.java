@@ -0,0 +1,320 @@
+package loghub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.temporal.TemporalAccessor;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Copy the values stored in events, without serialization.
+ * <p>
+ * The copy walks the maps, collections and arrays; the immutable values (String, Number, Date, InetAddress…) are
+ * shared. Unknown types are still copied using serialization.
+ * <p>
+ * Maps can also be copied lazily: the original and the copy are both given a copy-on-write view of the same map,
+ * and each one will copy a level of the map tree only when it's modified or when a mutable value is read from it.
+ * So the maps must not be modified directly anymore once given to {@link #duplicate(Map, boolean)}.
+ */
+public final class StructuralCopy {
+
+    private StructuralCopy() {
+    }
+
+    /**
+     * A copy-on-write view of a map. The shared map is never modified, it's copied on the first write, or when
+     * a mutable value is read, because it might be modified by the caller.
+     */
+    private static final class CopyOnWriteMap<K, V> extends AbstractMap<K, V> implements Serializable {
+        private Map<K, V> shared;
+        private Map<K, V> own = null;
+
+        private CopyOnWriteMap(Map<K, V> shared) {
+            this.shared = shared;
+        }
+
+        private Map<K, V> content() {
+            return own != null ? own : shared;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<K, V> own() throws NotSerializableException {
+            if (own == null) {
+                // The same kind of map, to keep the iteration order
+                Map<K, V> newOwn = newMap(shared);
+                for (Map.Entry<K, V> e: shared.entrySet()) {
+                    newOwn.put(e.getKey(), (V) copy(e.getValue(), true));
+                }
+                own = newOwn;
+                shared = null;
+            }
+            return own;
+        }
+
+        private Map<K, V> ownUnchecked() {
+            try {
+                return own();
+            } catch (NotSerializableException ex) {
+                throw new IllegalStateException("Value can't be copied: " + Helpers.resolveThrowableException(ex), ex);
+            }
+        }
+
+        @Override
+        public V get(Object key) {
+            V value = content().get(key);
+            if (own == null && ! isImmutable(value)) {
+                return ownUnchecked().get(key);
+            } else {
+                return value;
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return content().containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return content().size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return content().isEmpty();
+        }
+
+        @Override
+        public V put(K key, V value) {
+            return ownUnchecked().put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return ownUnchecked().remove(key);
+        }
+
+        @Override
+        public void clear() {
+            if (own == null) {
+                own = newMap(shared);
+                shared = null;
+            } else {
+                own.clear();
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return ownUnchecked().entrySet();
+        }
+
+        @Override
+        public Set<K> keySet() {
+            return ownUnchecked().keySet();
+        }
+
+        private Object writeReplace() {
+            Map<K, V> replacement = newMap(content());
+            replacement.putAll(content());
+            return replacement;
+        }
+    }
+
+    /**
+     * Copy the content of a map in another one.
+     * <p>
+     * If copyOnWrite is true, the nested maps in the source are replaced by a copy-on-write view, so source and
+     * destination can be modified independently.
+     *
+     * @param source the map to copy
+     * @param destination where to put the copy
+     * @param copyOnWrite if nested maps are copied lazily
+     * @throws NotSerializableException if a value can't be copied
+     */
+    @SuppressWarnings("unchecked")
+    public static <K> void duplicate(Map<K, Object> source, Map<K, Object> destination, boolean copyOnWrite) throws NotSerializableException {
+        for (Map.Entry<K, Object> e: source.entrySet()) {
+            Object value = e.getValue();
+            if (copyOnWrite && value instanceof Map) {
+                Map<Object, Object> shared = unwrap((Map<Object, Object>) value);
+                e.setValue(new CopyOnWriteMap<>(shared));
+                destination.put(e.getKey(), new CopyOnWriteMap<>(shared));
+            } else {
+                destination.put(e.getKey(), copy(value, false));
+            }
+        }
+    }
+
+    /**
+     * Return a copy of a map, see {@link #duplicate(Map, Map, boolean)}.
+     *
+     * @param source the map to copy
+     * @param copyOnWrite if nested maps are copied lazily
+     * @return a new map
+     * @throws NotSerializableException if a value can't be copied
+     */
+    public static <K> Map<K, Object> duplicate(Map<K, Object> source, boolean copyOnWrite) throws NotSerializableException {
+        Map<K, Object> destination = new HashMap<>(Math.max((int) (source.size() / .75f) + 1, 16));
+        duplicate(source, destination, copyOnWrite);
+        return destination;
+    }
+
+    /**
+     * Return a deep copy of a value, sharing only the immutable parts.
+     *
+     * @param value the value to copy
+     * @return the copy
+     * @throws NotSerializableException if a part of the value is neither a well known type nor serializable
+     */
+    public static Object copy(Object value) throws NotSerializableException {
+        return copy(value, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object value, boolean copyOnWrite) throws NotSerializableException {
+        if (isImmutable(value)) {
+            return value;
+        } else if (value instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            if (copyOnWrite) {
+                return new CopyOnWriteMap<>(unwrap(map));
+            } else {
+                Map<Object, Object> newMap = newMap(map);
+                for (Map.Entry<Object, Object> e: map.entrySet()) {
+                    newMap.put(e.getKey(), copy(e.getValue(), false));
+                }
+                return newMap;
+            }
+        } else if (value instanceof Collection) {
+            Collection<Object> collection = (Collection<Object>) value;
+            Collection<Object> newCollection;
+            if (collection instanceof List) {
+                newCollection = new ArrayList<>(collection.size());
+            } else if (collection instanceof SortedSet) {
+                newCollection = new TreeSet<>(((SortedSet<Object>) collection).comparator());
+            } else if (collection instanceof LinkedHashSet) {
+                newCollection = new LinkedHashSet<>(collection.size());
+            } else if (collection instanceof Set) {
+                newCollection = new HashSet<>(collection.size());
+            } else {
+                return copySerializable(value);
+            }
+            for (Object o: collection) {
+                newCollection.add(copy(o, false));
+            }
+            return newCollection;
+        } else if (value.getClass().isArray()) {
+            Class<?> component = value.getClass().getComponentType();
+            int length = Array.getLength(value);
+            if (component.isPrimitive()) {
+                Object newArray = Array.newInstance(component, length);
+                System.arraycopy(value, 0, newArray, 0, length);
+                return newArray;
+            } else {
+                Object[] array = (Object[]) value;
+                Object[] newArray = (Object[]) Array.newInstance(component, length);
+                for (int i = 0; i < length; i++) {
+                    newArray[i] = copy(array[i], false);
+                }
+                return newArray;
+            }
+        } else {
+            return copySerializable(value);
+        }
+    }
+
+    /**
+     * An empty map of the same kind as the source, sorted or ordered the same way.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Map<K, V> newMap(Map<K, V> source) {
+        if (source instanceof SortedMap) {
+            return new TreeMap<>(((SortedMap<K, V>) source).comparator());
+        } else if (source instanceof LinkedHashMap) {
+            return new LinkedHashMap<>(Math.max((int) (source.size() / .75f) + 1, 16));
+        } else {
+            return new HashMap<>(Math.max((int) (source.size() / .75f) + 1, 16));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> unwrap(Map<Object, Object> map) throws NotSerializableException {
+        if (map instanceof CopyOnWriteMap) {
+            CopyOnWriteMap<Object, Object> cow = (CopyOnWriteMap<Object, Object>) map;
+            // The owned content is given up, so it's shared now
+            if (cow.own != null) {
+                return cow.own;
+            } else {
+                return cow.shared;
+            }
+        } else {
+            return map;
+        }
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value == null
+                        || value instanceof String
+                        || value instanceof Integer
+                        || value instanceof Long
+                        || value instanceof Double
+                        || value instanceof Float
+                        || value instanceof Short
+                        || value instanceof Byte
+                        || value instanceof Boolean
+                        || value instanceof Character
+                        || value instanceof BigInteger
+                        || value instanceof BigDecimal
+                        || value instanceof Date
+                        || value instanceof InetAddress
+                        || value instanceof InetSocketAddress
+                        || value instanceof UUID
+                        || value instanceof Enum
+                        || value instanceof TemporalAccessor && value.getClass().getName().startsWith("java.time.");
+    }
+
+    private static Object copySerializable(Object value) throws NotSerializableException {
+        if (! (value instanceof Serializable)) {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(value);
+            oos.flush();
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+                return ois.readObject();
+            }
+        } catch (NotSerializableException ex) {
+            throw ex;
+        } catch (IOException | ClassNotFoundException ex) {
+            NotSerializableException nse = new NotSerializableException(value.getClass().getName());
+            nse.initCause(ex);
+            throw nse;
+        }
+    }
+
+}
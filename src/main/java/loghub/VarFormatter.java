@@ -3,34 +3,23 @@ package loghub;
 import java.text.DateFormatSymbols;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.text.FieldPosition;
-import java.text.Format;
-import java.text.MessageFormat;
-import java.text.NumberFormat;
-import java.text.ParsePosition;
 import java.time.DateTimeException;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.chrono.JapaneseDate;
 import java.time.chrono.ThaiBuddhistDate;
-import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoField;
 import java.time.temporal.TemporalAccessor;
-import java.time.temporal.TemporalQuery;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Optional;
 import java.util.TimeZone;
 import java.util.function.Function;
-import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -79,254 +68,244 @@ public class VarFormatter {
         }
     }
 
-    private static final class NonParsingFormat extends Format {
-        private final Locale l;
-        private final boolean toUpper;
-        private final Function<Object, String > f;
-
-        private NonParsingFormat(Locale l, boolean toUpper, Function<Object, String > f) {
-            super();
-            this.l = l;
-            this.toUpper = toUpper;
-            this.f = f;
-        }
-
-        @Override
-        public final StringBuffer format(Object obj, StringBuffer toAppendTo,
-                                         FieldPosition pos) {
-            String formatted = f.apply(obj);
-            if(toUpper) {
-                formatted = formatted.toUpperCase(l);
-            }
-            return toAppendTo.append(formatted);
-        }
-        @Override
-        public Object parseObject(String source, ParsePosition pos) {
-            throw new UnsupportedOperationException("Can't parse an object");
-        }
-    };
-
-    private static final class RightJustifyFormat extends Format {
-        private final Format f;
-        private final int size;
-        private RightJustifyFormat(Format f, int size) {
-            super();
-            this.f = f;
-            this.size = size;
-        }
-        public final StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
-            String formatted = f.format(obj, new StringBuffer(), pos).toString();
-            if(formatted.length() < size) {
-                char[] prefix = new char[size - formatted.length()];
-                Arrays.fill(prefix, ' ');
-                toAppendTo.append(prefix);
-            }
-            return toAppendTo.append(formatted);
-        }
-        @Override
-        public Object parseObject(String source, ParsePosition pos) {
-            throw new UnsupportedOperationException("Can't parse an object");
-        }
+    /**
+     * Format a resolved value at the end of a buffer.
+     */
+    @FunctionalInterface
+    private interface Appender {
+        void append(StringBuilder buffer, Object value);
     }
 
-    private static final class LeftJustifyFormat extends Format {
-        private final Format f;
-        private final int size;
-        private LeftJustifyFormat(Format f, int size) {
-            super();
-            this.f = f;
-            this.size = size;
-        }
-        public final StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
-            String formatted = f.format(obj, new StringBuffer(), pos).toString();
-            toAppendTo.append(formatted);
-            if(formatted.length() < size) {
-                char[] prefix = new char[size - formatted.length()];
-                Arrays.fill(prefix, ' ');
-                toAppendTo.append(prefix);
+    /**
+     * A variable of the pattern, the way to resolve it from the formatted object and it's format.
+     */
+    private static final class Variable {
+        private final String key;
+        // null for the whole object
+        private final String[] path;
+        // The index in a list, -1 if not an indexed variable
+        private final int index;
+        private final Appender appender;
+        private Variable(String key, int index, Appender appender) {
+            this.key = key;
+            this.path = ".".equals(key) || index >= 0 ? null : key.split("\\.");
+            this.index = index;
+            this.appender = appender;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object resolve(Object arg, Map<String, Object> variables) {
+            if (index >= 0) {
+                List<Object> l = (List<Object>) arg;
+                if (index > l.size()) {
+                    throw new IllegalArgumentException("index out of range");
+                }
+                return l.get(index - 1);
+            } else if (path == null) {
+                return arg;
+            } else if (path.length == 1) {
+                // Only one element in the key, just use it
+                if (! variables.containsKey(key)) {
+                    throw new IllegalArgumentException("invalid values for format key " + key);
+                }
+                return variables.get(key);
+            } else {
+                // Variables written as "a.b.c" are paths in maps
+                Map<String, Object> current = variables;
+                for (int i = 0; i < path.length - 1; i++) {
+                    Object next = current.get(path[i]);
+                    if (! (next instanceof Map)) {
+                        throw new IllegalArgumentException("invalid values for format key " + key);
+                    }
+                    current = (Map<String, Object>) next;
+                }
+                return current.get(path[path.length - 1]);
             }
-            return toAppendTo;
-        }
-        @Override
-        public Object parseObject(String source, ParsePosition pos) {
-            throw new UnsupportedOperationException("Can't parse an object");
         }
     }
 
-    private static final class NonDecimalFormat extends Format {
-        private final Locale l;
-        private final int base;
-        private final boolean toUpper;
-        private final Flags flags;
-        private final int size;
-        private NonDecimalFormat(Locale l, int base, boolean toUpper, Flags flags, int size) {
-            super();
-            this.l = l;
-            this.base = base;
-            this.toUpper = toUpper;
-            this.flags = flags;
-            this.size = size;
-        }
-        public final StringBuffer format(Object obj, StringBuffer toAppendTo, FieldPosition pos) {
-            Number n = (Number) obj;
-            String formatted;
-            String prefix;
-            if(base == 16) {
-                formatted = Long.toHexString(n.longValue());
-                prefix = "0x";
-            } else if (base == 8) {
-                formatted = Long.toOctalString(n.longValue());
-                prefix = "0";
-            } else {
-                formatted = Long.toString(n.longValue());
-                prefix = "";
+    private static final class DateAppender implements Appender {
+        private final ZoneId tz;
+        private final Locale locale;
+        private final char timeFormat;
+        private final boolean isUpper;
+        private final char zeroDigit;
+        private final String[] symbols;
+        private final TimeZone timeZone;
+        private final String[] zoneNames;
+        // Conversions made of other conversions, a null element is a separator
+        private final String template;
+        private final DateAppender[] parts;
+
+        private DateAppender(Locale l, char timeFormat, ZoneId tz, boolean isUpper) {
+            this.tz = tz;
+            this.locale = l;
+            this.timeFormat = timeFormat;
+            this.isUpper = isUpper;
+            this.zeroDigit = DecimalFormatSymbols.getInstance(l).getZeroDigit();
+            DateFormatSymbols dfs = DateFormatSymbols.getInstance(l);
+            switch (timeFormat) {
+            case 'p': // Locale-specific morning or afternoon marker in lower case, e.g."am" or "pm". Use of the conversion prefix 'T' forces this output to upper case.
+                symbols = dfs.getAmPmStrings(); break;
+            case 'B': // Locale-specific full month name, e.g. "January", "February".
+                symbols = dfs.getMonths(); break;
+            case 'b': // Locale-specific abbreviated month name, e.g. "Jan", "Feb", same as h.
+            case 'h': // Locale-specific abbreviated month name, e.g. "Jan", "Feb", same as b.
+                symbols = dfs.getShortMonths(); break;
+            case 'A': // Locale-specific full name of the day of the week, e.g. "Sunday", "Monday"
+                symbols = dfs.getWeekdays(); break;
+            case 'a': // Locale-specific short name of the day of the week, e.g. "Sun", "Mon"
+                symbols = dfs.getShortWeekdays(); break;
+            default: symbols = null;
             }
-            if(flags.alternateform) {
-                formatted = prefix + formatted;
+            if (timeFormat == 'Z') {
+                timeZone = TimeZone.getTimeZone(tz);
+                zoneNames = new String[] {timeZone.getDisplayName(false, TimeZone.SHORT, l), timeZone.getDisplayName(true, TimeZone.SHORT, l)};
+            } else {
+                timeZone = null;
+                zoneNames = null;
             }
-            if(toUpper) {
-                formatted = formatted.toUpperCase(l);
+            switch (timeFormat) {
+            // Time formatted for the 24-hour clock as "%tH:%tM".
+            case 'R': template = "H:M" ; break;
+            // Time formatted for the 24-hour clock as "%tH:%tM:%tS".
+            case 'T': template = "H:M:S" ; break;
+            // Time formatted for the 12-hour clock as "%tI:%tM:%tS %Tp".
+            case 'r': template = "I:M:S P" ; break;
+            // Date formatted as "%tm/%td/%ty".
+            case 'D': template = "m/d/y" ; break;
+            // ISO 8601 complete date formatted as "%tY-%tm-%td".
+            case 'F': template = "Y-m-d" ; break;
+            // Date and time formatted as "%ta %tb %td %tT %tZ %tY", e.g. "Sun Jul 20 16:17:00 EDT 1969".
+            case 'c': template = "a b d T Z Y" ; break;
+            default: template = null;
             }
-            if(formatted.length() < size && ! flags.leftjustified) {
-                char[] paddingprefix = new char[size - formatted.length()];
-                Arrays.fill(paddingprefix, '0');
-                toAppendTo.append(paddingprefix);
+            if (template != null) {
+                parts = new DateAppender[template.length()];
+                for (int i = 0; i < template.length(); i++) {
+                    char c = template.charAt(i);
+                    if (c == 'P') {
+                        parts[i] = new DateAppender(l, 'p', tz, true);
+                    } else if (Character.isLetter(c)) {
+                        parts[i] = new DateAppender(l, c, tz, false);
+                    }
+                }
+            } else {
+                parts = null;
             }
-
-            return toAppendTo.append(formatted);
-        }
-        @Override
-        public Object parseObject(String source, ParsePosition pos) {
-            throw new UnsupportedOperationException("Can't parse an object");
         }
-    }
 
-    private static final class ExtendedDateFormat extends Format {
-        private ZoneId tz;
-        private DecimalFormat nf = null;
-        private DateTimeFormatter dtf;
-        private ChronoField field;
-        private TemporalQuery<Long> transform;
-        private Function<String, String> transformResult;
-        private Supplier<String[]> symbols = null;
-        private int calendarField = -1;
-        private Locale locale;
-        private Function<Calendar, String> calToStr;
-        private ExtendedDateFormat(Locale l, char timeFormat, ZoneId tz, boolean isUpper) {
-            this.tz = tz;
-            this.locale = l;
-            String dtfPattern = null;
-            String nfPattern = null;
-            Function<DateFormatSymbols, String[]> tempSymbols = null;
-            transformResult = isUpper ? i -> i.toUpperCase(l) : null ;
-            switch(timeFormat) {
+        @Override
+        public void append(StringBuilder buffer, Object obj) {
+            if ( ! (obj instanceof Date) && ! (obj instanceof TemporalAccessor)) {
+                return;
+            }
+            int start = buffer.length();
+            switch (timeFormat) {
             case 'H': // Hour of the day for the 24-hour clock, formatted as two digits with a leading zero as necessary i.e. 00 - 23.
-                nfPattern = "00" ; field = ChronoField.HOUR_OF_DAY ; break;
+                appendNumber(buffer, getField(obj, ChronoField.HOUR_OF_DAY), 2); break;
             case 'I': // Hour for the 12-hour clock, formatted as two digits with a leading zero as necessary, i.e. 01 - 12.
-                nfPattern = "00" ; field = ChronoField.CLOCK_HOUR_OF_AMPM ; break;
+                appendNumber(buffer, getField(obj, ChronoField.CLOCK_HOUR_OF_AMPM), 2); break;
             case 'k': // Hour of the day for the 24-hour clock, i.e. 0 - 23.
-                calToStr = i -> NumberFormat.getIntegerInstance(locale).format(i.get(Calendar.HOUR_OF_DAY)) ; break;
+                appendNumber(buffer, atZone(obj).getHour(), 1); break;
             case 'l': // Hour for the 12-hour clock, i.e. 1 - 12.
-                calToStr = i ->  {
-                    int hour = i.get(Calendar.HOUR);
-                    return NumberFormat.getIntegerInstance(locale).format(hour > 12 ? hour - 12 : hour == 0 ? 12 : hour);
-                };
-                break;
+                appendNumber(buffer, atZone(obj).get(ChronoField.CLOCK_HOUR_OF_AMPM), 1); break;
             case 'M': // Minute within the hour formatted as two digits with a leading zero as necessary, i.e. 00 - 59.
-                nfPattern = "00" ; field = ChronoField.MINUTE_OF_HOUR ; break;
+                appendNumber(buffer, getField(obj, ChronoField.MINUTE_OF_HOUR), 2); break;
             case 'S': // Seconds within the minute, formatted as two digits with a leading zero as necessary, i.e. 00 - 60 ("60" is a special value required to support leap seconds).
-                nfPattern = "00" ; field = ChronoField.SECOND_OF_MINUTE ; break;
+                appendNumber(buffer, getField(obj, ChronoField.SECOND_OF_MINUTE), 2); break;
             case 'L': // Millisecond within the second formatted as three digits with leading zeros as necessary, i.e. 000 - 999.
-                nfPattern = "000" ; field = ChronoField.MILLI_OF_SECOND ; break;
-            case 'N':// Nanosecond within the second, formatted as nine digits with leading zeros as necessary, i.e. 000000000 - 999999999.
-                nfPattern = "000000000" ; field = ChronoField.NANO_OF_SECOND ; break;
-            case 'p': // Locale-specific morning or afternoon marker in lower case, e.g."am" or "pm". Use of the conversion prefix 'T' forces this output to upper case.
-                calendarField = Calendar.AM_PM;
-                tempSymbols = i -> i.getAmPmStrings() ; transformResult = isUpper ? i -> i.toUpperCase(l) : i -> i.toLowerCase(l) ; break;
-            case 'z': // RFC 822 style numeric time zone offset from GMT, e.g. -0800. This value will be adjusted as necessary for Daylight Saving Time. For long, Long, and Date the time zone used is the default time zone for this instance of the Java virtual machine.
-                // There is no equivalent in DateTimeFormatter, rules from Format are too complicated to rewrite.
-                calToStr = i -> String.format(locale, "%tz", i);
-                break;
-            case 'Z': // A string representing the abbreviation for the time zone. This value will be adjusted as necessary for Daylight Saving Time. For long, Long, and Date the time zone used is the default time zone for this instance of the Java virtual machine. The Formatter's locale will supersede the locale of the argument (if any).
-                calToStr = i -> {
-                    Date d = i.getTime();
-                    TimeZone z = i.getTimeZone();
-                    return z.getDisplayName(z.inDaylightTime(d), TimeZone.SHORT, locale);
-                };
+                appendNumber(buffer, getField(obj, ChronoField.MILLI_OF_SECOND), 3); break;
+            case 'N': // Nanosecond within the second, formatted as nine digits with leading zeros as necessary, i.e. 000000000 - 999999999.
+                appendNumber(buffer, getField(obj, ChronoField.NANO_OF_SECOND), 9); break;
+            case 'p':
+                buffer.append(symbols[atZone(obj).get(ChronoField.AMPM_OF_DAY)]); break;
+            case 'z': { // RFC 822 style numeric time zone offset from GMT, e.g. -0800. This value will be adjusted as necessary for Daylight Saving Time.
+                int offset = atZone(obj).getOffset().getTotalSeconds() / 60;
+                buffer.append(offset < 0 ? '-' : '+');
+                offset = Math.abs(offset);
+                appendNumber(buffer, (offset / 60) * 100 + (offset % 60), 4);
                 break;
+            }
+            case 'Z': // A string representing the abbreviation for the time zone. This value will be adjusted as necessary for Daylight Saving Time.
+                buffer.append(zoneNames[timeZone.inDaylightTime(new Date(epochMillis(obj))) ? 1 : 0]); break;
             case 's': // Seconds since the beginning of the epoch starting at 1 January 1970 00:00:00 UTC, i.e. Long.MIN_VALUE/1000 to Long.MAX_VALUE/1000.
-                // There is no equivalent in DateTimeFormatter, rules from Format are too complicated to rewrite.
-                calToStr = i -> String.format(locale, "%ts", i);
-                break ;
+                appendNumber(buffer, epochMillis(obj) / 1000, 1); break;
             case 'Q': // Milliseconds since the beginning of the epoch starting at 1 January 1970 00:00:00 UTC, i.e. Long.MIN_VALUE to Long.MAX_VALUE.
-                // There is no equivalent in DateTimeFormatter, rules from Format are too complicated to rewrite.
-                calToStr = i -> String.format(locale, "%tQ", i);
-                break ;
-            case 'B': // Locale-specific full month name, e.g. "January", "February".
-                tempSymbols = i -> i.getMonths() ; calendarField = Calendar.MONTH ; break;
-            case 'b': // Locale-specific abbreviated month name, e.g. "Jan", "Feb", same as h.
-            case 'h': // Locale-specific abbreviated month name, e.g. "Jan", "Feb", same as b.
-                tempSymbols = i -> i.getShortMonths() ; calendarField = Calendar.MONTH ; break;
-            case 'A': // Locale-specific full name of the day of the week, e.g. "Sunday", "Monday"
-                tempSymbols = i -> i.getWeekdays(); calendarField = Calendar.DAY_OF_WEEK; break;
-            case 'a': // Locale-specific short name of the day of the week, e.g. "Sun", "Mon"
-                tempSymbols = i -> i.getShortWeekdays() ; calendarField = Calendar.DAY_OF_WEEK; break;
+                appendNumber(buffer, epochMillis(obj), 1); break;
+            case 'B':
+            case 'b':
+            case 'h':
+                buffer.append(symbols[atZone(obj).getMonthValue() - 1]); break;
+            case 'A':
+            case 'a':
+                // Symbols are indexed by the Calendar's day of week, starting on Sunday
+                buffer.append(symbols[atZone(obj).getDayOfWeek().getValue() % 7 + 1]); break;
                 // Four-digit year divided by 100, formatted as two digits with leading zero as necessary, i.e. 00 - 99
-            case 'C': nfPattern = "00" ; field = ChronoField.YEAR_OF_ERA ; transform = i -> i.getLong(ChronoField.YEAR_OF_ERA) / 100 ; break;
+            case 'C': appendNumber(buffer, getField(obj, ChronoField.YEAR_OF_ERA) / 100, 2); break;
             // Year, formatted as at least four digits with leading zeros as necessary, e.g. 0092 equals 92 CE for the Gregorian calendar.
-            case 'Y': nfPattern = "0000" ; field = ChronoField.YEAR_OF_ERA; break;
+            case 'Y': appendNumber(buffer, getField(obj, ChronoField.YEAR_OF_ERA), 4); break;
             // Last two digits of the year, formatted with leading zeros as necessary, i.e. 00 - 99.
-            case 'y': nfPattern = "00" ; field = ChronoField.YEAR_OF_ERA; transform = i -> i.getLong(ChronoField.YEAR_OF_ERA) % 100 ; break;
+            case 'y': appendNumber(buffer, getField(obj, ChronoField.YEAR_OF_ERA) % 100, 2); break;
             // Day of year, formatted as three digits with leading zeros as necessary, e.g. 001 - 366 for the Gregorian calendar.
-            case 'j': nfPattern = "000" ; field = ChronoField.DAY_OF_YEAR ; break;
+            case 'j': appendNumber(buffer, getField(obj, ChronoField.DAY_OF_YEAR), 3); break;
             // Month, formatted as two digits with leading zeros as necessary, i.e. 01 - 13.
-            case 'm': nfPattern = "00" ; field = ChronoField.MONTH_OF_YEAR ; break;
+            case 'm': appendNumber(buffer, getField(obj, ChronoField.MONTH_OF_YEAR), 2); break;
             // Day of month, formatted as two digits with leading zeros as necessary, i.e. 01 - 31
-            case 'd': nfPattern = "00" ; field = ChronoField.DAY_OF_MONTH ; break;
+            case 'd': appendNumber(buffer, getField(obj, ChronoField.DAY_OF_MONTH), 2); break;
             case 'e': // Day of month, formatted as two digits, i.e. 1 - 31.
-                calToStr = i -> NumberFormat.getIntegerInstance(locale).format(i.get(Calendar.DAY_OF_MONTH)) ; break ;
-                // Time formatted for the 24-hour clock as "%tH:%tM".
-            case 'R': dtfPattern = "" ; break;
-            // Time formatted for the 24-hour clock as "%tH:%tM:%tS".
-            case 'T': dtfPattern = "" ; break;
-            // Time formatted for the 12-hour clock as "%tI:%tM:%tS %Tp". The location of the morning or afternoon marker ('%Tp') may be locale-dependent.
-            case 'r': dtfPattern = "" ; break;
-            // Date formatted as "%tm/%td/%ty".
-            case 'D': dtfPattern = "" ; field = ChronoField.HOUR_OF_DAY ; break;
-            // ISO 8601 complete date formatted as "%tY-%tm-%td".
-            case 'F': dtfPattern = "" ; break;
-            // Date and time formatted as "%ta %tb %td %tT %tZ %tY", e.g. "Sun Jul 20 16:17:00 EDT 1969".
-            case 'c': dtfPattern = "" ; break;
-            default: nfPattern = null ; dtfPattern = null ; field = null;
+                appendNumber(buffer, atZone(obj).getDayOfMonth(), 1); break;
+            default:
+                if (template != null) {
+                    for (int i = 0; i < parts.length; i++) {
+                        if (parts[i] != null) {
+                            parts[i].append(buffer, obj);
+                        } else {
+                            buffer.append(template.charAt(i));
+                        }
+                    }
+                }
             }
-            if(nfPattern != null) {
-                nf = new DecimalFormat(nfPattern, DecimalFormatSymbols.getInstance(l));
-            } else if (tempSymbols != null) {
-                final Function<DateFormatSymbols, String[]> finalSymbols = tempSymbols;
-                DateFormatSymbols dfs = DateFormatSymbols.getInstance(l);
-                symbols = () -> finalSymbols.apply(dfs); 
-            } else if (dtfPattern != null) {
-                dtf = DateTimeFormatter.ofPattern(dtfPattern, l);
+            if (isUpper) {
+                String formatted = buffer.substring(start).toUpperCase(locale);
+                buffer.setLength(start);
+                buffer.append(formatted);
+            } else if (timeFormat == 'p') {
+                String formatted = buffer.substring(start).toLowerCase(locale);
+                buffer.setLength(start);
+                buffer.append(formatted);
             }
         }
 
-        private Calendar getCalendar(Object obj) {
-            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone(tz), locale);
-            if(obj instanceof Date) {
-                Date d = (Date) obj;
-                if (calendarField > 0 || calToStr != null) {
-                    cal.setTimeInMillis(d.getTime());
-                }
-            } else if (obj instanceof TemporalAccessor){
-                TemporalAccessor timePoint = (TemporalAccessor) obj;
-                cal.setTimeInMillis(timePoint.getLong(ChronoField.INSTANT_SECONDS) * 1000L + timePoint.getLong(ChronoField.MILLI_OF_SECOND));
+        private void appendNumber(StringBuilder buffer, long value, int width) {
+            VarFormatter.appendInteger(buffer, value, width, zeroDigit, '-');
+        }
+
+        private long epochMillis(Object obj) {
+            if (obj instanceof Date) {
+                return ((Date) obj).getTime();
             } else {
-                return null;
+                TemporalAccessor timePoint = (TemporalAccessor) obj;
+                return timePoint.getLong(ChronoField.INSTANT_SECONDS) * 1000L + timePoint.getLong(ChronoField.MILLI_OF_SECOND);
+            }
+        }
+
+        /**
+         * The time point in the time zone of the formatter, used by the conversions that were resolved with a calendar
+         */
+        private ZonedDateTime atZone(Object obj) {
+            return Instant.ofEpochMilli(epochMillis(obj)).atZone(tz);
+        }
+
+        private long getField(Object obj, ChronoField field) {
+            try {
+                return getTemporalAccessor(obj, field).getLong(field);
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Can't format the given time data: " + Helpers.resolveThrowableException(e), e);
             }
-            return cal;
         }
 
-        private TemporalAccessor withCalendarSystem(ZonedDateTime timePoint) {
+        private TemporalAccessor withCalendarSystem(ZonedDateTime timePoint, ChronoField field) {
             // Some thai and japanese locals needs special treatment because of different calendar systems
             if (field == ChronoField.YEAR_OF_ERA || field == ChronoField.DAY_OF_YEAR) {
                 switch(locale.getLanguage()) {
@@ -351,56 +330,16 @@ public class VarFormatter {
             }
         }
 
-        private TemporalAccessor getTemporalAccessor(Object obj) {
-            TemporalAccessor timePoint;
+        private TemporalAccessor getTemporalAccessor(Object obj, ChronoField field) {
             if(obj instanceof Date) {
                 Date d = (Date) obj;
-                timePoint = withCalendarSystem(ZonedDateTime.ofInstant(d.toInstant(), tz));
+                return withCalendarSystem(ZonedDateTime.ofInstant(d.toInstant(), tz), field);
             } else if (obj instanceof Instant){
                 Instant i = (Instant) obj;
-                timePoint = withCalendarSystem(i.atZone(tz));
-            } else if (obj instanceof TemporalAccessor){
-                timePoint = (TemporalAccessor) obj;
+                return withCalendarSystem(i.atZone(tz), field);
             } else {
-                return null;
+                return (TemporalAccessor) obj;
             }
-            return timePoint;
-        }
-
-        @Override
-        public StringBuffer format(Object obj, StringBuffer toAppendTo,
-                                   FieldPosition pos) {
-            if ( ! (obj instanceof Date) && ! (obj instanceof TemporalAccessor)) {
-                return toAppendTo;
-            }
-            String resulStr = "";
-            if (calToStr != null) {
-                resulStr = Optional.ofNullable(getCalendar(obj)).map(calToStr::apply).orElse("");
-            } else if (symbols != null && calendarField > 0) {
-                resulStr = Optional.ofNullable(getCalendar(obj)).map(i -> i.get(calendarField)).map(i -> symbols.get()[i.intValue()]).orElse("");
-            } else if (nf != null) {
-                long value = 0;
-                if(transform != null) {
-                    value = transform.queryFrom(getTemporalAccessor(obj));
-                    resulStr = nf.format(value);
-                } else if (field != null){
-                    try {
-                        resulStr = Optional.ofNullable(getTemporalAccessor(obj)).map( i -> i.getLong(field)).map(i -> nf.format(i)).orElse("");
-                    } catch (DateTimeException e) {
-                        throw new IllegalArgumentException("Can't format the given time data: " + Helpers.resolveThrowableException(e), e);
-                    }
-                }
-            } else if ( dtf != null) {
-                resulStr = Optional.ofNullable(getTemporalAccessor(obj)).map( i -> dtf.format(i)).orElse("");
-            }
-            if(transformResult != null && resulStr != null ) {
-                resulStr = transformResult.apply(resulStr);
-            }
-            return toAppendTo.append(resulStr);
-        }
-        @Override
-        public Object parseObject(String source, ParsePosition pos) {
-            throw new UnsupportedOperationException("Can't parse an object");
         }
     }
 
@@ -411,8 +350,11 @@ public class VarFormatter {
 
     private static final Logger logger = LogManager.getLogger();
 
-    private final Map<Object, Integer> mapper = new LinkedHashMap<>();
-    private final MessageFormat mf;
+    // literals[i] is before variables[i], the last one ends the string
+    private final String[] literals;
+    private final Variable[] variables;
+    private final boolean indexed;
+    private final int sizeHint;
 
     private ZoneId tz = ZoneId.systemDefault();
     private Locale locale;
@@ -431,80 +373,51 @@ public class VarFormatter {
         logger.trace("new format: {}", format);
         this.format = format;
         locale = l;
-        List<String> formats = new ArrayList<>();
-        // Convert the pattern to a MessageFormat which is compiled and be reused
-        String pattern = findVariables(new StringBuilder(), format, 0, formats).toString();
-        try {
-            mf = new MessageFormat(pattern, l);
-        } catch (IllegalArgumentException ex) {
-            throw new IllegalArgumentException(String.format("Can'f format %s, locale %s: %s", format, l, ex.getMessage()), ex);
-        }
-        for(int i = 0; i < mf.getFormats().length; i++) {
-            mf.setFormat(i, resolveFormat(formats.get(i)));
-        }
-        if (mapper.size() != 0) {
-            mapper.keySet().stream().reduce((i,j) ->  {
-                if (i.getClass() != j.getClass()) {
-                    throw new IllegalArgumentException("Can't mix indexed with object resolution");
-                } else {
-                    return j;
-                }
-            });
-        }
+        List<String> literals = new ArrayList<>();
+        List<Variable> variables = new ArrayList<>();
+        // Split the pattern in literals and variables, the formats are compiled once
+        literals.add(findVariables(new StringBuilder(), format, literals, variables).toString());
+        long indexedCount = variables.stream().filter(i -> i.index >= 0).count();
+        if (indexedCount != 0 && indexedCount != variables.size()) {
+            throw new IllegalArgumentException("Can't mix indexed with object resolution");
+        }
+        this.indexed = indexedCount != 0;
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.variables = variables.toArray(new Variable[variables.size()]);
+        this.sizeHint = literals.stream().mapToInt(String::length).sum() + 16 * variables.size();
     }
 
-    @SuppressWarnings("unchecked")
     public String format(Object arg) throws IllegalArgumentException {
-        Map<String, Object> variables;
-        Object mapperType = mapper.keySet().stream().findAny().orElse("");
-        if (( mapperType instanceof Number) && ! ( arg instanceof List)) {
+        return format(arg, new StringBuilder(sizeHint)).toString();
+    }
+
+    /**
+     * Format an object at the end of a buffer, that can be reused.
+     * @param arg the object to format
+     * @param buffer the destination buffer
+     * @return the buffer
+     * @throws IllegalArgumentException if a variable can't be resolved or formatted
+     */
+    @SuppressWarnings("unchecked")
+    public StringBuilder format(Object arg, StringBuilder buffer) throws IllegalArgumentException {
+        Map<String, Object> values;
+        if (indexed && ! ( arg instanceof List)) {
             throw new IllegalArgumentException("Given a non-list to a format expecting only a list");
         } else if (arg instanceof Map) {
-            variables = (Map<String, Object>) arg;
+            values = (Map<String, Object>) arg;
         } else {
-            variables = Collections.emptyMap();
+            values = Collections.emptyMap();
         }
-        Object[] resolved = new Object[mapper.size()];
-        for(Map.Entry<Object, Integer> mapping: mapper.entrySet()) {
-            if (".".equals(mapping.getKey())) {
-                resolved[mapping.getValue()] = checkIsArray(arg);
-                continue;
-            }
-            if (mapperType instanceof Number) {
-                int i = ((Number) mapping.getKey()).intValue();
-                int j = ((Number) mapping.getValue()).intValue();
-                List<Object> l = (List<Object>) arg;
-                if (j > l.size()) {
-                    throw new IllegalArgumentException("index out of range");
-                }
-                resolved[i] = checkIsArray(l.get(j - 1));
+        for (int i = 0; i < variables.length; i++) {
+            buffer.append(literals[i]);
+            Object value = checkIsArray(variables[i].resolve(arg, values));
+            if (value == null) {
+                buffer.append("null");
             } else {
-                String[] path = mapping.getKey().toString().split("\\.");
-                if (path.length == 1) {
-                    // Only one element in the key, just use it
-                    if (! variables.containsKey(mapping.getKey())) {
-                        throw new IllegalArgumentException("invalid values for format key " + mapping.getKey());
-                    }
-                    resolved[mapping.getValue()] = checkIsArray(variables.get(mapping.getKey()));
-                } else {
-                    // Recurse, variables written as "a.b.c" are paths in maps
-                    Map<String, Object> current = variables;
-                    String key = path[0];
-                    for(int i = 0; i < path.length - 1; i++) {
-                        Map<String, Object> next = (Map<String, Object>) current.get(key);
-                        if( next == null || ! (next instanceof Map) ) {
-                            throw new IllegalArgumentException("invalid values for format key " + mapping.getKey());
-                        }
-                        current = next;
-                        key = path[i + 1];
-                    }
-                    if (current != null) {
-                        resolved[mapping.getValue()] = checkIsArray(current.get(key));
-                    }
-                }
+                variables[i].appender.append(buffer, value);
             }
         }
-        return mf.format(resolved, new StringBuffer(), new FieldPosition(0)).toString();
+        return buffer.append(literals[variables.length]);
     }
 
     private Object checkIsArray(Object arg) {
@@ -531,7 +444,7 @@ public class VarFormatter {
         }
     }
 
-    private StringBuilder findVariables(StringBuilder buffer, String in, int last, List<String> formats) {
+    private StringBuilder findVariables(StringBuilder buffer, String in, List<String> literals, List<Variable> variables) {
         Matcher m = varregexp.matcher(in);
         if(m.find()) {
             String before = m.group("before");
@@ -542,14 +455,13 @@ public class VarFormatter {
             String after = m.group("after");
             buffer.append(before);
             if (curlybraces != null) {
-                // Escape a {} pair
-                buffer.append("'" + curlybraces + "'");
+                // A {} pair is kept
+                buffer.append(curlybraces);
             } else if (quote != null) {
-                // Escape a lone '
-                buffer.append("''");
+                buffer.append(quote);
             } else if (varname == null && format == null) {
                 // Not really a find, put back and continue
-                buffer.append("$'{}'");
+                buffer.append("${}");
             } else {
                 if(format == null || format.isEmpty()) {
                     format = "%s";
@@ -557,30 +469,27 @@ public class VarFormatter {
                 if(varname == null || varname.isEmpty()) {
                     varname = ".";
                 }
+                literals.add(buffer.toString());
+                buffer.setLength(0);
                 // Remove the initial %
-                formats.add(format.substring(1));
+                Appender appender = resolveFormat(format.substring(1));
                 Matcher listIndexMatch = arrayIndex.matcher(varname);
-                int index;
                 if (listIndexMatch.matches()) {
-                    index = last;
-                    int i = Integer.parseInt(listIndexMatch.group("index"));
-                    mapper.put(last++, i);
-                } else  if( ! mapper.containsKey(varname)) {
-                    index = last;
-                    mapper.put(varname, last++);
+                    variables.add(new Variable(varname, Integer.parseInt(listIndexMatch.group("index")), appender));
                 } else {
-                    index = mapper.get(varname);
+                    variables.add(new Variable(varname, -1, appender));
                 }
-                buffer.append("{" + index + "}");
             }
-            findVariables(buffer, after, last, formats);
+            findVariables(buffer, after, literals, variables);
+        } else if (in.indexOf('{') >= 0) {
+            throw new IllegalArgumentException(String.format("Can't format %s, locale %s: unmatched braces", format, locale));
         } else {
             buffer.append(in);
         }
         return buffer;
     }
 
-    private Format resolveFormat(String format) {
+    private Appender resolveFormat(String format) {
         Matcher m = formatSpecifier.matcher(format);
         if(m.matches()) {
             String localeStr = m.group("locale");
@@ -620,22 +529,27 @@ public class VarFormatter {
             boolean isUpper = conversionStr.toUpperCase(locale).equals(conversionStr);
             char conversion = conversionStr.toLowerCase(locale).charAt(0);
 
-            final Function<String, String> cut = i -> precision < 0 ? i : i.substring(0, precision);
             switch(conversion) {
-            case 'b': return new NonParsingFormat(Locale.getDefault(), isUpper, i -> cut.apply(i == null ? "false" : (i instanceof Boolean) ? i.toString() : "true"));
-            case 's': return new NonParsingFormat(Locale.getDefault(), isUpper, i -> cut.apply(i.toString()) );
-            case 'h': return new NonParsingFormat(Locale.getDefault(), isUpper, i -> cut.apply(i == null ? "null" : Integer.toHexString(i.hashCode())));
-            case 'c': return new NonParsingFormat(Locale.getDefault(), isUpper, i -> (i instanceof Character) ? i.toString() : "null");
-            case 'd': {Format f = numberFormat(locale, conversion, flags, true, length, precision, isUpper); return new NonParsingFormat(locale, false, i -> f.format(i));}
-            case 'o': return new NonDecimalFormat(locale, 8, isUpper, flags, precision);
-            case 'x': return new NonDecimalFormat(locale, 16, isUpper, flags, precision);
-            case 'e': {Format f = numberFormat(locale, conversion, flags, false, length, precision, isUpper); return new NonParsingFormat(locale, false, i -> f.format(i));}
-            case 'f': {Format f = numberFormat(locale, conversion, flags, false, length, precision, isUpper); return new NonParsingFormat(locale, false, i -> f.format(i));}
-            case 'g': {Format f = numberFormat(locale, conversion, flags, false, length, precision, isUpper); return new NonParsingFormat(locale, false, i -> f.format(i));}
-            case 'a': {Format f = numberFormat(locale, conversion, flags, false, length, precision, isUpper); return new NonParsingFormat(locale, false, i -> f.format(i));}
-            case 't': return new ExtendedDateFormat(locale, timeFormat, tz, isUpper);
-            case '%': return new NonParsingFormat(Locale.getDefault(), false, i -> "%");
-            case 'n': return new NonParsingFormat(Locale.getDefault(), false, i -> lineseparator);
+            case 'b': return stringAppender(Locale.getDefault(), isUpper, precision, i -> (i instanceof Boolean) ? i.toString() : "true");
+            case 's': {
+                if (precision < 0 && ! isUpper) {
+                    return StringBuilder::append;
+                } else {
+                    return stringAppender(Locale.getDefault(), isUpper, precision, Object::toString);
+                }
+            }
+            case 'h': return stringAppender(Locale.getDefault(), isUpper, precision, i -> Integer.toHexString(i.hashCode()));
+            case 'c': return stringAppender(Locale.getDefault(), isUpper, -1, i -> (i instanceof Character) ? i.toString() : "null");
+            case 'd': return numberFormat(locale, conversion, flags, true, length, precision, isUpper);
+            case 'o': return nonDecimalFormat(locale, 8, isUpper, flags, precision);
+            case 'x': return nonDecimalFormat(locale, 16, isUpper, flags, precision);
+            case 'e':
+            case 'f':
+            case 'g':
+            case 'a': return numberFormat(locale, conversion, flags, false, length, precision, isUpper);
+            case 't': return new DateAppender(locale, timeFormat, tz, isUpper);
+            case '%': return (b, i) -> b.append('%');
+            case 'n': return (b, i) -> b.append(lineseparator);
             default: throw new IllegalArgumentException("Invalid format specifier: " + format);
             }
         } else {
@@ -643,7 +557,45 @@ public class VarFormatter {
         }
     }
 
-    private Format numberFormat(Locale l, char conversion, Flags flags, boolean integer, int length, int precision, boolean isUpper) {
+    private static Appender stringAppender(Locale l, boolean toUpper, int precision, Function<Object, String> f) {
+        return (b, i) -> {
+            String formatted = f.apply(i);
+            if (precision >= 0) {
+                formatted = formatted.substring(0, precision);
+            }
+            if (toUpper) {
+                formatted = formatted.toUpperCase(l);
+            }
+            b.append(formatted);
+        };
+    }
+
+    private static Appender nonDecimalFormat(Locale l, int base, boolean toUpper, Flags flags, int size) {
+        return (b, i) -> {
+            Number n = (Number) i;
+            String formatted;
+            String prefix;
+            if(base == 16) {
+                formatted = Long.toHexString(n.longValue());
+                prefix = "0x";
+            } else {
+                formatted = Long.toOctalString(n.longValue());
+                prefix = "0";
+            }
+            if(flags.alternateform) {
+                formatted = prefix + formatted;
+            }
+            if(toUpper) {
+                formatted = formatted.toUpperCase(l);
+            }
+            for (int j = formatted.length(); j < size && ! flags.leftjustified; j++) {
+                b.append('0');
+            }
+            b.append(formatted);
+        };
+    }
+
+    private Appender numberFormat(Locale l, char conversion, Flags flags, boolean integer, int length, int precision, boolean isUpper) {
         precision = (precision == -1 ? 6 : precision);
         DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(l);
         symbols.setExponentSeparator( isUpper ? "E" : "e");
@@ -667,12 +619,68 @@ public class VarFormatter {
         if(symbols.getDigit() == '0') {
             df.setMinimumIntegerDigits(fixed);
         }
-        if(flags.leftjustified) {
-            return new LeftJustifyFormat(df, length);
+        // DecimalFormat is not thread safe
+        ThreadLocal<DecimalFormat> formats = ThreadLocal.withInitial(() -> (DecimalFormat) df.clone());
+        Appender decimalFormat = (b, i) -> {
+            int start = b.length();
+            b.append(formats.get().format(i));
+            justify(b, start, length, flags.leftjustified);
+        };
+        if (integer && ! flags.grouping && ! flags.parenthesis && ! flags.withsign) {
+            // Integer values are written directly
+            int minDigits = df.getMinimumIntegerDigits();
+            char zeroDigit = symbols.getZeroDigit();
+            char minusSign = symbols.getMinusSign();
+            return (b, i) -> {
+                if (i instanceof Integer || i instanceof Long || i instanceof Short || i instanceof Byte) {
+                    int start = b.length();
+                    appendInteger(b, ((Number) i).longValue(), minDigits, zeroDigit, minusSign);
+                    justify(b, start, length, flags.leftjustified);
+                } else {
+                    decimalFormat.append(b, i);
+                }
+            };
         } else {
-            return new RightJustifyFormat(df, length);
+            return decimalFormat;
         }
+    }
 
+    /**
+     * Append an integer with localized digits, zero padded to width.
+     */
+    private static void appendInteger(StringBuilder buffer, long value, int width, char zeroDigit, char minusSign) {
+        String digits = Long.toString(value);
+        int first = 0;
+        if (value < 0) {
+            buffer.append(minusSign);
+            first = 1;
+        }
+        for (int i = digits.length() - first; i < width; i++) {
+            buffer.append(zeroDigit);
+        }
+        if (zeroDigit == '0') {
+            buffer.append(digits, first, digits.length());
+        } else {
+            for (int i = first; i < digits.length(); i++) {
+                buffer.append((char) (digits.charAt(i) - '0' + zeroDigit));
+            }
+        }
+    }
+
+    /**
+     * Pad with spaces the text appended since start.
+     */
+    private static void justify(StringBuilder buffer, int start, int size, boolean leftjustified) {
+        int missing = size - (buffer.length() - start);
+        if (missing > 0) {
+            char[] padding = new char[missing];
+            Arrays.fill(padding, ' ');
+            if (leftjustified) {
+                buffer.append(padding);
+            } else {
+                buffer.insert(start, padding);
+            }
+        }
     }
 
     @Override
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -25,6 +26,7 @@ import org.apache.logging.log4j.Logger;
 
 import loghub.AbstractBuilder;
 import loghub.Event;
+import loghub.Expression;
 import loghub.Helpers;
 import loghub.Pipeline;
 import loghub.Processor;
@@ -192,11 +194,14 @@ class ConfigListener extends RouteBaseListener {
     final List<Output> outputs = new ArrayList<>();
     final Map<String, Object> properties = new HashMap<>();
     final Map<String, VarFormatter> formatters = new HashMap<>();
+    final Map<String, Expression.Lambda> lambdas = new HashMap<>();
     final Map<String, SourceProvider> sources = new HashMap<>();
     final Set<String> outputPipelines = new HashSet<>();
 
     private String currentPipeLineName = null;
     private int expressionDepth = 0;
+    // The native version of the expressions being parsed, null if groovy is needed, so a LinkedList is used
+    private final LinkedList<NativeExpressions.Node> lambdaStack = new LinkedList<>();
 
     private Set<String> lockedProperties = new HashSet<>();
 
@@ -820,6 +825,12 @@ class ConfigListener extends RouteBaseListener {
         }
         Collections.reverse(expressionsList);
         stack.push(expressionsList.toString());
+        List<NativeExpressions.Node> lambdasList = new ArrayList<>(expressionsList.size());
+        for (int i = 0; i < expressionsList.size(); i++) {
+            lambdasList.add(lambdaStack.pop());
+        }
+        Collections.reverse(lambdasList);
+        lambdaStack.push(NativeExpressions.list(lambdasList));
     }
 
     @Override
@@ -830,11 +841,14 @@ class ConfigListener extends RouteBaseListener {
     @Override
     public void exitExpression(ExpressionContext ctx) {
         String expression = null;
+        NativeExpressions.Node lambda = null;
         if(ctx.sl != null) {
             String format = ctx.sl.getText();
             String key = "h_" + Integer.toHexString(format.hashCode());
+            VarFormatter formatter;
             try {
-                formatters.put(key, new VarFormatter(format));
+                formatter = new VarFormatter(format);
+                formatters.put(key, formatter);
             } catch (IllegalArgumentException ex) {
                 logger.catching(Level.DEBUG, ex);
                 throw new RecognitionException(ex.getMessage(), parser, stream, ctx);
@@ -843,18 +857,23 @@ class ConfigListener extends RouteBaseListener {
             if (ctx.expressionsList() != null) {
                 subexpression = (String) stack.pop();
                 expression = String.format("formatters.%s.format(%s)", key, subexpression);
+                lambda = NativeExpressions.format(formatter, lambdaStack.pop());
             } else {
                 expression = String.format("formatters.%s.format(event)", key);
+                lambda = NativeExpressions.format(formatter);
             }
         } else if (ctx.l != null) {
             expression = ctx.l.getText();
+            lambda = NativeExpressions.literal(ctx.l);
         } else if (ctx.ev != null && ctx.ev.MetaName() != null) {
             expression = "event.getMeta(\"" + ctx.ev.MetaName().getText().substring(1) + "\")";
+            lambda = NativeExpressions.meta(ctx.ev.MetaName().getText().substring(1));
         } else if (ctx.ev != null) {
             StringBuilder buffer = new StringBuilder("event");
             String[] path = convertEventVariable(ctx.ev);
             if (Event.TIMESTAMPKEY.equals(path[0])) {
                 buffer.append(".getTimestamp()");
+                lambda = NativeExpressions.timestamp();
             } else if (Event.CONTEXTKEY.equals(path[0])) {
                 buffer.append(".getConnectionContext()");
                 Arrays.stream(path, 1, path.length).forEach( i-> {
@@ -867,6 +886,7 @@ class ConfigListener extends RouteBaseListener {
                               .collect(Collectors.joining(","))
                                 );
                 buffer.append(")");
+                lambda = NativeExpressions.path(path);
             }
             expression = buffer.toString();
         } else if (ctx.qi != null) {
@@ -875,12 +895,14 @@ class ConfigListener extends RouteBaseListener {
             String opu = ctx.opu.getText();
             opu = ".~".equals(opu) ? "~" : opu;
             expression = opu + " " + stack.pop();
+            lambda = NativeExpressions.unary(opu, lambdaStack.pop());
         } else if (ctx.opm != null) {
             Object pre = stack.pop();
             expression = pre + " " + ctx.opm.getText() + " " + ctx.patternLiteral().getText();
             if ("=~".equals(ctx.opm.getText())) {
                 expression = String.format("(((%s)?:[])[0]?:[])", expression);
             }
+            lambda = NativeExpressions.match(ctx.opm.getText(), lambdaStack.pop(), ctx.patternLiteral().getText());
         } else if (ctx.opb != null) {
             String opb = ctx.opb.getText();
             // because of use of | as a pipe symbol, it can't be used for the binary 'or'
@@ -892,21 +914,32 @@ class ConfigListener extends RouteBaseListener {
             Object post = stack.pop();
             Object pre = stack.pop();
             expression = pre + " " + opb + " " + post;
+            NativeExpressions.Node postLambda = lambdaStack.pop();
+            NativeExpressions.Node preLambda = lambdaStack.pop();
+            lambda = NativeExpressions.binary(opb, preLambda, postLambda);
         } else if (ctx.e3 != null) {
             Object subexpression = stack.pop();
             expression = "(" + subexpression + ")";
+            lambda = NativeExpressions.parenthesis(lambdaStack.pop());
         } else if (ctx.newclass != null) {
             Object subexpression = stack.pop();
             expression = String.format("new %s(%s)", ctx.newclass.getText(), subexpression);
+            lambdaStack.pop();
         } else if (ctx.arrayIndex != null) {
             Object subexpression = stack.pop();
             expression = String.format("%s[%s]", subexpression, ctx.arrayIndex.getText());
+            lambda = NativeExpressions.index(lambdaStack.pop(), ctx.arrayIndex.getText());
         }
         expressionDepth--;
         if(expressionDepth == 0) {
             stack.push( new ObjectWrapped<String>(expression));
+            Expression.Lambda resolved = NativeExpressions.resolve(lambda);
+            if (resolved != null) {
+                lambdas.put(expression, resolved);
+            }
         } else {
             stack.push(expression);
+            lambdaStack.push(lambda);
         }
     }
 
@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -45,6 +46,7 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.LoggerContext;
 
 import loghub.Event;
+import loghub.Helpers;
 import loghub.Helpers.ThrowingConsumer;
 import loghub.Helpers.ThrowingPredicate;
 import loghub.Pipeline;
@@ -60,6 +62,8 @@ import loghub.RouteParser.SourcesContext;
 import loghub.Source;
 import loghub.configuration.ConfigListener.Input;
 import loghub.configuration.ConfigListener.Output;
+import loghub.queues.PersistentQueue;
+import loghub.queues.ShardedQueue;
 import loghub.receivers.Receiver;
 import loghub.senders.Sender;
 
@@ -352,11 +356,38 @@ public class Configuration {
         final int queuesDepth = newProperties.containsKey("queueDepth") ? (Integer) newProperties.remove("queueDepth") : DEFAULTQUEUEDEPTH;
         newProperties.put(Properties.PROPSNAMES.QUEUESDEPTH.toString(), queuesDepth);
 
-        BlockingQueue<Event> mainQueue = new ArrayBlockingQueue<Event>(queuesDepth);
+        // The number of workers is needed to build the main queue, resolve it now
+        final int numWorkers = newProperties.containsKey("numWorkers") ? (Integer) newProperties.get("numWorkers") : Runtime.getRuntime().availableProcessors() * 2;
+        newProperties.put("numWorkers", numWorkers);
+
+        // A sharded queue gives each worker it's own ring, instead of one lock shared by all
+        final boolean shardedQueue = newProperties.containsKey("shardedQueue") ? (Boolean) newProperties.remove("shardedQueue") : false;
+
+        BlockingQueue<Event> mainQueue = shardedQueue ? new ShardedQueue<Event>(numWorkers, queuesDepth) : new ArrayBlockingQueue<Event>(queuesDepth);
         Map<String, BlockingQueue<Event>> outputQueues = new HashMap<>(namedPipeLine.size());
-        conf.outputPipelines.forEach( i-> outputQueues.put(i, new ArrayBlockingQueue<Event>(queuesDepth)));
+        // The output queues can be stored on disk, in a sub-directory for each pipeline
+        final Object outputQueuePath = newProperties.remove("outputQueuePath");
+        if (outputQueuePath != null) {
+            PersistentQueue.Builder queueBuilder = PersistentQueue.getBuilder();
+            queueBuilder.setMemoryCapacity(queuesDepth);
+            Optional.ofNullable(newProperties.remove("outputQueueWriteAhead")).map(i -> (Boolean) i).ifPresent(queueBuilder::setWriteAhead);
+            Optional.ofNullable(newProperties.remove("outputQueueSync")).map(i -> PersistentQueue.Sync.valueOf(i.toString().toUpperCase(Locale.ENGLISH))).ifPresent(queueBuilder::setSync);
+            Optional.ofNullable(newProperties.remove("outputQueueSegmentSize")).map(i -> ((Number) i).longValue()).ifPresent(queueBuilder::setSegmentSize);
+            Optional.ofNullable(newProperties.remove("outputQueueMaxSize")).map(i -> ((Number) i).longValue()).ifPresent(queueBuilder::setMaxSize);
+            for (String i: conf.outputPipelines) {
+                queueBuilder.setDirectory(Paths.get(outputQueuePath.toString(), i));
+                try {
+                    outputQueues.put(i, queueBuilder.build());
+                } catch (IOException e) {
+                    throw new ConfigException("Can't open queue for pipeline " + i + ": " + Helpers.resolveThrowableException(e), e);
+                }
+            }
+        } else {
+            conf.outputPipelines.forEach( i-> outputQueues.put(i, new ArrayBlockingQueue<Event>(queuesDepth)));
+        }
 
         newProperties.put(Properties.PROPSNAMES.FORMATTERS.toString(), conf.formatters);
+        newProperties.put(Properties.PROPSNAMES.LAMBDAS.toString(), conf.lambdas);
         newProperties.put(Properties.PROPSNAMES.MAINQUEUE.toString(), mainQueue);
         newProperties.put(Properties.PROPSNAMES.OUTPUTQUEUE.toString(), outputQueues);
 
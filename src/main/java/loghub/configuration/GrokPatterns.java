@@ -0,0 +1,112 @@
+package loghub.configuration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.krakens.grok.api.Grok;
+import io.krakens.grok.api.GrokCompiler;
+import loghub.Helpers;
+
+/**
+ * The dictionary of the grok patterns found in the class path, shared by all the grok processors.
+ * <p>
+ * The patterns are read once for each class loader, when first needed. The compiled groks that don't use
+ * custom patterns are also shared. A library is kept only while it's used, it doesn't prevent its class loader from
+ * being collected.
+ */
+public class GrokPatterns {
+
+    public static final String PATTERNSFOLDER = "patterns";
+
+    // The library references its class loader, so the value must be weak too
+    private static final Map<ClassLoader, WeakReference<GrokPatterns>> libraries = new WeakHashMap<>();
+
+    /**
+     * Return the patterns library for a class loader.
+     * @param classloader the class loader used to find the pattern files
+     * @return the shared library
+     */
+    public static synchronized GrokPatterns get(ClassLoader classloader) {
+        WeakReference<GrokPatterns> ref = libraries.get(classloader);
+        GrokPatterns library = ref != null ? ref.get() : null;
+        if (library == null) {
+            library = new GrokPatterns(classloader);
+            libraries.put(classloader, new WeakReference<>(library));
+        }
+        return library;
+    }
+
+    private final ClassLoader classloader;
+    private final Map<String, Grok> compiled = new ConcurrentHashMap<>();
+    private volatile Map<String, String> patterns = null;
+
+    private GrokPatterns(ClassLoader classloader) {
+        this.classloader = classloader;
+    }
+
+    /**
+     * @return the patterns definitions, read from the class path on the first call
+     * @throws IOException if a patterns file can't be read
+     * @throws URISyntaxException if a patterns file can't be found
+     */
+    public Map<String, String> getPatterns() throws IOException, URISyntaxException {
+        Map<String, String> current = patterns;
+        if (current == null) {
+            synchronized (this) {
+                current = patterns;
+                if (current == null) {
+                    GrokCompiler grokCompiler = GrokCompiler.newInstance();
+                    Helpers.ThrowingConsumer<InputStream> grokloader = is -> {
+                        try (Reader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+                            grokCompiler.register(r);
+                        }
+                    };
+                    Helpers.readRessources(classloader, PATTERNSFOLDER, grokloader);
+                    current = Collections.unmodifiableMap(grokCompiler.getPatternDefinitions());
+                    patterns = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Compile a grok pattern, only named captures are kept.
+     * @param pattern the pattern to compile
+     * @param customPatterns additional patterns definitions, they can override the shared ones
+     * @return the compiled grok
+     * @throws IOException if a patterns file can't be read
+     * @throws URISyntaxException if a patterns file can't be found
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public Grok compile(String pattern, Map<?, ?> customPatterns) throws IOException, URISyntaxException {
+        Map<String, String> definitions = getPatterns();
+        if (customPatterns.isEmpty()) {
+            Grok grok = compiled.get(pattern);
+            if (grok == null) {
+                grok = compiled.computeIfAbsent(pattern, k -> newCompiler(definitions, customPatterns).compile(k, true));
+            }
+            return grok;
+        } else {
+            return newCompiler(definitions, customPatterns).compile(pattern, true);
+        }
+    }
+
+    private GrokCompiler newCompiler(Map<String, String> definitions, Map<?, ?> customPatterns) {
+        GrokCompiler grokCompiler = GrokCompiler.newInstance();
+        grokCompiler.register(definitions);
+        customPatterns.forEach((k, v) -> grokCompiler.register(k.toString(), v.toString()));
+        return grokCompiler;
+    }
+
+}
@@ -0,0 +1,366 @@
+package loghub.configuration;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
+
+import org.codehaus.groovy.runtime.DefaultGroovyMethods;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.codehaus.groovy.runtime.ScriptBytecodeAdapter;
+import org.codehaus.groovy.runtime.StringGroovyMethods;
+import org.codehaus.groovy.runtime.typehandling.DefaultTypeTransformation;
+
+import loghub.Expression.Lambda;
+import loghub.RouteParser.LiteralContext;
+import loghub.VarFormatter;
+
+/**
+ * Build the native version of the simple route expressions: event variables, literals, comparisons,
+ * boolean operators, regex matches, string formatting and array indexing.
+ * <p>
+ * The groovy runtime helpers are used for the operators, so the results are the same than the ones of the
+ * groovy script, without the dynamic dispatch.
+ * <p>
+ * The route grammar gives the same precedence to all the binary operators, but the expression is given to groovy
+ * as a string, so it's the groovy precedence that is applied. The nodes keep the operators, so the tree can be
+ * reordered to follow it.
+ * <p>
+ * All the methods return null if the expression can't be handled, it's then given to groovy. So the arguments
+ * might be null too.
+ */
+class NativeExpressions {
+
+    /**
+     * A part of an expression. A node is resolved as a {@link Lambda} only when the expression is complete.
+     */
+    abstract static class Node {
+        abstract Lambda lambda();
+        int precedence() {
+            return ATOMIC;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        private final Lambda lambda;
+        private Leaf(Lambda lambda) {
+            this.lambda = lambda;
+        }
+        @Override
+        Lambda lambda() {
+            return lambda;
+        }
+    }
+
+    private static final class Unary extends Node {
+        private final Node value;
+        private Unary(Node value) {
+            this.value = value;
+        }
+        @Override
+        Lambda lambda() {
+            Lambda l = value.lambda();
+            return ev -> ! DefaultTypeTransformation.castToBoolean(l.apply(ev));
+        }
+        @Override
+        int precedence() {
+            return UNARY;
+        }
+    }
+
+    private static final class Binary extends Node {
+        private final String operator;
+        private final Node left;
+        private final Node right;
+        private Binary(String operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        Lambda lambda() {
+            return binaryLambda(operator, left.lambda(), right.lambda());
+        }
+        @Override
+        int precedence() {
+            return PRECEDENCES.get(operator);
+        }
+    }
+
+    // A regex match, without the wrapping parenthesis used by the find operator
+    private static final class Match extends Node {
+        private final Lambda lambda;
+        private Match(Lambda lambda) {
+            this.lambda = lambda;
+        }
+        @Override
+        Lambda lambda() {
+            return lambda;
+        }
+        @Override
+        int precedence() {
+            return REGEX;
+        }
+    }
+
+    private static final int ATOMIC = 100;
+    private static final int UNARY = 90;
+    private static final int REGEX = 50;
+    // The groovy precedence for the binary operators, only the handled operators are listed
+    private static final Map<String, Integer> PRECEDENCES = new HashMap<>();
+    static {
+        Stream.of("<", "<=", ">", ">=").forEach(i -> PRECEDENCES.put(i, 70));
+        Stream.of("==", "!=", "<=>", "===", "!==").forEach(i -> PRECEDENCES.put(i, 60));
+        PRECEDENCES.put("&&", 30);
+        PRECEDENCES.put("||", 20);
+    }
+
+    private static final Pattern DECIMALINTEGER = Pattern.compile("(?:0|[1-9][0-9_]*)([lL])?");
+    private static final Pattern DECIMALFLOAT = Pattern.compile("[0-9][0-9_]*(?:\\.[0-9][0-9_]*)?(?:[eE][+-]?[0-9]+)?([fFdD])?");
+    // A slashy string with a $ might be a GString
+    private static final Pattern GROOVYSPECIAL = Pattern.compile("\\$[\\p{javaJavaIdentifierStart}{]|\\\\u|\\\\/|[\\r\\n]");
+
+    private NativeExpressions() {
+    }
+
+    /**
+     * Resolve the top level node
+     * @param node the node, might be null
+     * @return the lambda for the expression, or null if groovy is needed
+     */
+    static Lambda resolve(Node node) {
+        return node != null ? node.lambda() : null;
+    }
+
+    static Node literal(LiteralContext literal) {
+        String text = literal.getText();
+        Object value;
+        if (literal.nullLiteral() != null) {
+            value = null;
+        } else if (literal.booleanLiteral() != null) {
+            value = Boolean.valueOf(text);
+        } else if (literal.integerLiteral() != null) {
+            value = parseInteger(text);
+            if (value == null) {
+                return null;
+            }
+        } else if (literal.floatingPointLiteral() != null) {
+            value = parseFloat(text);
+            if (value == null) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        return new Leaf(ev -> value);
+    }
+
+    /**
+     * Integer literals are Integer, Long or BigInteger, depending on the size, like in groovy.
+     * Only decimal values are handled.
+     */
+    private static Number parseInteger(String text) {
+        Matcher m = DECIMALINTEGER.matcher(text);
+        if (! m.matches()) {
+            return null;
+        }
+        String digits = (m.group(1) != null ? text.substring(0, text.length() - 1) : text).replace("_", "");
+        BigInteger value = new BigInteger(digits);
+        if (m.group(1) != null) {
+            return value.bitLength() < 64 ? value.longValue() : null;
+        } else if (value.bitLength() < 32) {
+            return value.intValue();
+        } else if (value.bitLength() < 64) {
+            return value.longValue();
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Floating point literals without suffix are BigDecimal, like in groovy.
+     */
+    private static Number parseFloat(String text) {
+        Matcher m = DECIMALFLOAT.matcher(text);
+        if (! m.matches()) {
+            return null;
+        }
+        String suffix = m.group(1);
+        String digits = (suffix != null ? text.substring(0, text.length() - 1) : text).replace("_", "");
+        if (suffix == null) {
+            return new BigDecimal(digits);
+        } else if ("f".equalsIgnoreCase(suffix)) {
+            return Float.valueOf(digits);
+        } else {
+            return Double.valueOf(digits);
+        }
+    }
+
+    static Node format(VarFormatter formatter) {
+        return new Leaf(ev -> formatter.format(ev));
+    }
+
+    static Node format(VarFormatter formatter, Node arguments) {
+        if (arguments == null) {
+            return null;
+        }
+        Lambda l = arguments.lambda();
+        return new Leaf(ev -> formatter.format(l.apply(ev)));
+    }
+
+    static Node list(List<Node> elements) {
+        if (elements.contains(null)) {
+            return null;
+        }
+        Lambda[] content = elements.stream().map(Node::lambda).toArray(Lambda[]::new);
+        return new Leaf(ev -> {
+            List<Object> values = new ArrayList<>(content.length);
+            for (Lambda l: content) {
+                values.add(l.apply(ev));
+            }
+            return values;
+        });
+    }
+
+    static Node meta(String name) {
+        return new Leaf(ev -> ev.getMeta(name));
+    }
+
+    static Node timestamp() {
+        return new Leaf(ev -> ev.getTimestamp());
+    }
+
+    static Node path(String[] path) {
+        return new Leaf(ev -> ev.getPath(path));
+    }
+
+    static Node parenthesis(Node value) {
+        return value != null ? new Leaf(value.lambda()) : null;
+    }
+
+    static Node unary(String operator, Node value) {
+        if (value == null || ! "!".equals(operator)) {
+            return null;
+        }
+        return new Unary(value);
+    }
+
+    static Node binary(String operator, Node pre, Node post) {
+        if (pre == null || post == null || ! PRECEDENCES.containsKey(operator)) {
+            return null;
+        }
+        int precedence = PRECEDENCES.get(operator);
+        if (pre instanceof Binary && pre.precedence() < precedence) {
+            // Groovy will bind the operator to the right operand of pre
+            Binary left = (Binary) pre;
+            Node right = binary(operator, left.right, post);
+            return right != null ? new Binary(left.operator, left.left, right) : null;
+        } else if (pre.precedence() < precedence || (pre.precedence() == precedence && precedence == PRECEDENCES.get("<"))) {
+            // A regex match on the left, or chained relational operators, groovy will not agree
+            return null;
+        } else {
+            return new Binary(operator, pre, post);
+        }
+    }
+
+    static Lambda binaryLambda(String operator, Lambda pre, Lambda post) {
+        switch (operator) {
+        case "&&":
+            return ev -> DefaultTypeTransformation.castToBoolean(pre.apply(ev)) && DefaultTypeTransformation.castToBoolean(post.apply(ev));
+        case "||":
+            return ev -> DefaultTypeTransformation.castToBoolean(pre.apply(ev)) || DefaultTypeTransformation.castToBoolean(post.apply(ev));
+        case "==":
+            return ev -> ScriptBytecodeAdapter.compareEqual(pre.apply(ev), post.apply(ev));
+        case "!=":
+            return ev -> ScriptBytecodeAdapter.compareNotEqual(pre.apply(ev), post.apply(ev));
+        case "===":
+            return ev -> ScriptBytecodeAdapter.compareIdentical(pre.apply(ev), post.apply(ev));
+        case "!==":
+            return ev -> ScriptBytecodeAdapter.compareNotIdentical(pre.apply(ev), post.apply(ev));
+        case "<":
+            return ev -> ScriptBytecodeAdapter.compareLessThan(pre.apply(ev), post.apply(ev));
+        case "<=":
+            return ev -> ScriptBytecodeAdapter.compareLessThanEqual(pre.apply(ev), post.apply(ev));
+        case ">":
+            return ev -> ScriptBytecodeAdapter.compareGreaterThan(pre.apply(ev), post.apply(ev));
+        case ">=":
+            return ev -> ScriptBytecodeAdapter.compareGreaterThanEqual(pre.apply(ev), post.apply(ev));
+        case "<=>":
+            return ev -> ScriptBytecodeAdapter.compareTo(pre.apply(ev), post.apply(ev));
+        default:
+            throw new IllegalArgumentException("Unhandled operator " + operator);
+        }
+    }
+
+    /**
+     * The pattern is compiled once. The find operator returns the first match as done in the groovy version:
+     * <code>(((value =~ pattern)?:[])[0]?:[])</code>.
+     * @param operator the match operator
+     * @param value the matched value
+     * @param patternLiteral the pattern, as a groovy slashy string
+     */
+    static Node match(String operator, Node value, String patternLiteral) {
+        // A looser operator on the left will not be bound the same way by groovy
+        if (value == null || value.precedence() < REGEX || GROOVYSPECIAL.matcher(patternLiteral).find()) {
+            return null;
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(patternLiteral.substring(1, patternLiteral.length() - 1));
+        } catch (PatternSyntaxException e) {
+            // Let groovy fails with the good message
+            return null;
+        }
+        Lambda l = value.lambda();
+        switch (operator) {
+        case "==~":
+            return new Match(ev -> InvokerHelper.matchRegex(l.apply(ev), pattern));
+        case "=~":
+            return new Leaf(ev -> {
+                Matcher m = InvokerHelper.findRegex(l.apply(ev), pattern);
+                Object found = DefaultTypeTransformation.castToBoolean(m) ? StringGroovyMethods.getAt(m, 0) : null;
+                return DefaultTypeTransformation.castToBoolean(found) ? found : new ArrayList<>();
+            });
+        default:
+            return null;
+        }
+    }
+
+    static Node index(Node value, String indexLiteral) {
+        if (value == null) {
+            return null;
+        }
+        // Groovy will apply the index to the last operand
+        if (value instanceof Binary) {
+            Binary b = (Binary) value;
+            Node right = index(b.right, indexLiteral);
+            return right != null ? new Binary(b.operator, b.left, right) : null;
+        } else if (value instanceof Unary) {
+            Node indexed = index(((Unary) value).value, indexLiteral);
+            return indexed != null ? new Unary(indexed) : null;
+        } else if (value.precedence() != ATOMIC) {
+            return null;
+        }
+        Number index = parseInteger(indexLiteral);
+        if (! (index instanceof Integer)) {
+            return null;
+        }
+        int i = index.intValue();
+        Lambda l = value.lambda();
+        return new Leaf(ev -> {
+            Object o = l.apply(ev);
+            if (o instanceof List) {
+                return DefaultGroovyMethods.getAt((List<?>) o, i);
+            } else {
+                return InvokerHelper.invokeMethod(o, "getAt", i);
+            }
+        });
+    }
+
+}
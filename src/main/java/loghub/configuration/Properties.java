@@ -11,9 +11,11 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.management.InstanceAlreadyExistsException;
@@ -30,6 +32,7 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 
 import groovy.lang.GroovyClassLoader;
@@ -37,6 +40,7 @@ import io.netty.util.concurrent.Future;
 import loghub.DashboardHttpServer;
 import loghub.Event;
 import loghub.EventsRepository;
+import loghub.Expression;
 import loghub.Helpers;
 import loghub.Pipeline;
 import loghub.Processor;
@@ -56,7 +60,69 @@ import loghub.zmq.ZMQSocketFactory;
 public class Properties extends HashMap<String, Object> {
 
     public static final class MetricRegistryWrapper {
-        private MetricRegistry metrics = new MetricRegistry();
+        private volatile MetricRegistry metrics = new MetricRegistry();
+        private final Map<String, PipelineMetrics> pipelinesMetrics = new ConcurrentHashMap<>();
+
+        private static final class Resolved<M extends Metric> {
+            private final MetricRegistry registry;
+            private final M metric;
+            private Resolved(MetricRegistry registry, M metric) {
+                this.registry = registry;
+                this.metric = metric;
+            }
+        }
+
+        /**
+         * A metric resolved once, it's looked up in the registry again only after a {@link MetricRegistryWrapper#reset()}.
+         * It should be used in the hot path instead of the lookup by name.
+         *
+         * @param <M> The type of the metric
+         */
+        public final class Handle<M extends Metric> {
+            private final String name;
+            private final BiFunction<MetricRegistry, String, M> resolver;
+            private volatile Resolved<M> resolved = null;
+            private Handle(String name, BiFunction<MetricRegistry, String, M> resolver) {
+                this.name = name;
+                this.resolver = resolver;
+            }
+            public M get() {
+                Resolved<M> current = resolved;
+                MetricRegistry registry = metrics;
+                if (current == null || current.registry != registry) {
+                    current = new Resolved<>(registry, resolver.apply(registry, name));
+                    resolved = current;
+                }
+                return current.metric;
+            }
+            public String getName() {
+                return name;
+            }
+        }
+
+        /**
+         * All the metrics used by a named pipeline
+         */
+        public final class PipelineMetrics {
+            public final Handle<Meter> blockedOut;
+            public final Handle<Meter> blockedIn;
+            public final Handle<Counter> loopOverflow;
+            public final Handle<Meter> exception;
+            public final Handle<Meter> dropped;
+            public final Handle<Meter> failed;
+            public final Handle<Counter> inflight;
+            public final Handle<com.codahale.metrics.Timer> timer;
+            private PipelineMetrics(String name) {
+                blockedOut = meterHandle(Stats.PIPELINECOUNTERS.BLOCKEDOUT.metricName(name));
+                blockedIn = meterHandle(Stats.PIPELINECOUNTERS.BLOCKEDIN.metricName(name));
+                loopOverflow = counterHandle(Stats.PIPELINECOUNTERS.LOOPOVERFLOW.metricName(name));
+                exception = meterHandle(Stats.PIPELINECOUNTERS.EXCEPTION.metricName(name));
+                dropped = meterHandle(Stats.PIPELINECOUNTERS.DROPPED.metricName(name));
+                failed = meterHandle(Stats.PIPELINECOUNTERS.FAILED.metricName(name));
+                inflight = counterHandle(Stats.PIPELINECOUNTERS.INFLIGHT.metricName(name));
+                timer = timerHandle(Stats.PIPELINECOUNTERS.TIMER.metricName(name));
+            }
+        }
 
         public Counter counter(String name) {
             return metrics.counter(name);
@@ -74,6 +140,54 @@ public class Properties extends HashMap<String, Object> {
             return metrics.timer(name);
         }
 
+        /**
+         * Register a gauge, a previous gauge with the same name is replaced.
+         * @param name the gauge name
+         * @param value the source of the gauge's values
+         */
+        public synchronized <T> void gauge(String name, Supplier<T> value) {
+            metrics.remove(name);
+            metrics.register(name, (Gauge<T>) value::get);
+        }
+
+        /**
+         * Register a gauge, unless it's already registered, for gauges shared by many components.
+         * @param name the gauge name
+         * @param value the source of the gauge's values
+         */
+        public synchronized <T> void gaugeIfAbsent(String name, Supplier<T> value) {
+            if (! metrics.getGauges().containsKey(name)) {
+                metrics.register(name, (Gauge<T>) value::get);
+            }
+        }
+
+        public Handle<Counter> counterHandle(String name) {
+            return new Handle<>(name, MetricRegistry::counter);
+        }
+
+        public Handle<Histogram> histogramHandle(String name) {
+            return new Handle<>(name, MetricRegistry::histogram);
+        }
+
+        public Handle<Meter> meterHandle(String name) {
+            return new Handle<>(name, MetricRegistry::meter);
+        }
+
+        public Handle<com.codahale.metrics.Timer> timerHandle(String name) {
+            return new Handle<>(name, MetricRegistry::timer);
+        }
+
+        /**
+         * Return the metrics for a named pipeline. The handles are shared, so it should be resolved
+         * once and kept.
+         * @param name the pipeline name
+         * @return the pipeline's metrics
+         */
+        public PipelineMetrics pipeline(String name) {
+            // Some events might not be attached to a pipeline, keep the old naming for them
+            return pipelinesMetrics.computeIfAbsent(String.valueOf(name), PipelineMetrics::new);
+        }
+
         public void reset() {
             metrics = new MetricRegistry();
             JmxService.stopMetrics();
@@ -86,6 +200,7 @@ public class Properties extends HashMap<String, Object> {
         CLASSLOADERNAME,
         NAMEDPIPELINES,
         FORMATTERS,
+        LAMBDAS,
         MAINQUEUE,
         OUTPUTQUEUE,
         QUEUESDEPTH,
@@ -108,6 +223,7 @@ public class Properties extends HashMap<String, Object> {
     public final Map<String, Source> sources;
     public final GroovyClassLoader groovyClassLoader;
     public final Map<String, VarFormatter> formatters;
+    public final Map<String, Expression.Lambda> lambdas;
     public final JmxService.Configuration jmxServiceConfiguration;
     public final int numWorkers;
     public final BlockingQueue<Event> mainQueue;
@@ -120,6 +236,7 @@ public class Properties extends HashMap<String, Object> {
     public final JWTHandler jwtHandler;
     public final DashboardHttpServer.Builder dashboardBuilder;
     public final CacheManager cacheManager;
+    public final GrokPatterns grokPatterns;
     public final ZMQSocketFactory zSocketFactory;
 
     public final Timer timer = new Timer("loghubtimer", true);
@@ -170,6 +287,12 @@ public class Properties extends HashMap<String, Object> {
             formatters = Collections.emptyMap();
         }
 
+        if (properties.containsKey(PROPSNAMES.LAMBDAS.toString())) {
+            lambdas = Collections.unmodifiableMap((Map<String, Expression.Lambda>) properties.remove(PROPSNAMES.LAMBDAS.toString()));
+        } else {
+            lambdas = Collections.emptyMap();
+        }
+
         // Extracts all the named pipelines and generate metrics for them
         namedPipeLine.keySet().stream().forEach( i -> {
             Arrays.stream(Stats.PIPELINECOUNTERS.values()).forEach( j -> j.instanciate(metrics.metrics, i));
@@ -178,6 +301,7 @@ public class Properties extends HashMap<String, Object> {
         metrics.timer("Allevents.timer");
         metrics.histogram("Steps");
         cacheManager = new CacheManager(this);
+        grokPatterns = GrokPatterns.get(classloader);
 
         if (properties.containsKey("numWorkers")) {
             numWorkers = (Integer) properties.remove("numWorkers");
@@ -1,5 +1,7 @@
 package loghub.encoders;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
@@ -32,7 +34,7 @@ public abstract class Encoder {
     }
 
     public boolean configure(Properties properties, Sender sender) {
-        if (getClass().getAnnotation(CanBatch.class) == null && sender.isWithBatch()) {
+        if (getClass().getAnnotation(CanBatch.class) == null && sender.isBatchEncoded()) {
             logger.error("This encoder don't handle batches");
             return false;
         } else {
@@ -46,4 +48,15 @@ public abstract class Encoder {
 
     public abstract byte[] encode(Event event) throws EncodeException;
 
+    /**
+     * Split an encoded message in many datagrams, for message oriented senders.
+     * By default, the message is kept whole.
+     * @param message the encoded message
+     * @return the datagrams to send, in order
+     * @throws EncodeException if the message can't be split
+     */
+    public List<byte[]> chunk(byte[] message) throws EncodeException {
+        return Collections.singletonList(message);
+    }
+
 }
@@ -2,22 +2,36 @@ package loghub.encoders;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import loghub.BuilderClass;
 import loghub.Event;
+import loghub.Helpers;
+import loghub.configuration.Properties;
+import loghub.senders.Sender;
 import lombok.Setter;
 
+/**
+ * Encode events as GELF messages.
+ * <p>
+ * Compressed messages use the zlib format. When sent through an UDP sender, messages bigger than
+ * <code>chunkSize</code> are split in GELF chunks.
+ */
 @BuilderClass(Gelf.Builder.class)
 public class Gelf extends Encoder {
 
@@ -28,6 +42,8 @@ public class Gelf extends Encoder {
         private String shortmessagefield = "shortmessage";
         @Setter
         private String fullmessagefield = null;
+        @Setter
+        private int chunkSize = 8192;
         public Builder setCompressed(Boolean compressed) {
             this.compressed = compressed;
             this.stream = compressed ? false : this.stream;
@@ -47,6 +63,10 @@ public class Gelf extends Encoder {
         return new Builder();
     }
 
+    static final int CHUNKHEADERSIZE = 12;
+    static final int MAXCHUNKS = 128;
+    private static final byte[] CHUNKMAGIC = new byte[] {0x1e, 0x0f};
+
     private static final Pattern fieldpattner = Pattern.compile("^[\\w\\.\\-]*$");
     private static final Predicate<String> fieldpredicate = fieldpattner.asPredicate();
     private static final String hostname;
@@ -58,13 +78,24 @@ public class Gelf extends Encoder {
         }
     }
 
-    private static final JsonFactory factory = new JsonFactory();
-    private static final ThreadLocal<ObjectMapper> json = ThreadLocal.withInitial(() -> new ObjectMapper(factory));
+    private static final JsonFactory factory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final ObjectMapper json = new ObjectMapper(factory);
+
+    /**
+     * The buffers and the deflater are reused by each thread, a message is built in a single pass.
+     */
+    private static class Output {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        private final Deflater deflater = new Deflater();
+        private final DeflaterOutputStream compressor = new DeflaterOutputStream(buffer, deflater, 1024);
+    }
+    private static final ThreadLocal<Output> outputs = ThreadLocal.withInitial(Output::new);
 
     private final boolean compressed;
     private final boolean stream;
     private final String shortmessagefield;
     private final String fullmessagefield;
+    private final int chunkSize;
 
     private Gelf(Builder builder) {
         super(builder);
@@ -72,43 +103,91 @@ public class Gelf extends Encoder {
         this.stream = builder.stream;
         this.shortmessagefield = builder.shortmessagefield;
         this.fullmessagefield = builder.fullmessagefield;
+        this.chunkSize = builder.chunkSize;
+    }
+
+    @Override
+    public boolean configure(Properties properties, Sender sender) {
+        if (chunkSize > 0 && chunkSize <= CHUNKHEADERSIZE) {
+            logger.error("Chunk size too small: {}", chunkSize);
+            return false;
+        }
+        return super.configure(properties, sender);
     }
 
     @Override
     public byte[] encode(Event event) throws EncodeException {
+        Output output = outputs.get();
+        output.buffer.reset();
         try {
-            Map<String, Object> gelfcontent = new HashMap<>(event.size() + 5);
-            gelfcontent.put("version", "1.1");
-            gelfcontent.put("host", hostname);
+            if (compressed) {
+                output.deflater.reset();
+                write(event, output.compressor);
+                output.compressor.finish();
+            } else {
+                write(event, output.buffer);
+                if (stream) {
+                    output.buffer.write(0);
+                }
+            }
+            return output.buffer.toByteArray();
+        } catch (IOException e) {
+            throw new EncodeException("Failed to encode to GELF: " + Helpers.resolveThrowableException(e), e);
+        }
+    }
+
+    private void write(Event event, OutputStream out) throws IOException {
+        try (JsonGenerator gen = json.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeStringField("version", "1.1");
+            gen.writeStringField("host", hostname);
             if (event.containsKey(shortmessagefield)) {
-                gelfcontent.put("short_message", event.remove(shortmessagefield));
+                gen.writeObjectField("short_message", event.get(shortmessagefield));
             }
             if (fullmessagefield != null && event.containsKey(fullmessagefield)) {
-                gelfcontent.put("full_message", event.remove(fullmessagefield));
+                gen.writeObjectField("full_message", event.get(fullmessagefield));
             }
-            gelfcontent.put("timestamp", event.getTimestamp().getTime() / 1000.0);
-            event.entrySet().stream()
-            .filter( i ->  ! "id".equals(i.getKey()))
-            .filter( i -> fieldpredicate.test(i.getKey()))
-            .forEach( i -> gelfcontent.put( "_" + i.getKey(), i.getValue()));
-            byte[] buffer1 = json.get().writeValueAsBytes(gelfcontent);
-            byte[] buffer2;
-            if (compressed) {
-                try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                     GZIPOutputStream stream = new GZIPOutputStream(bos)) {
-                    stream.write(buffer1);
-                    stream.finish();
-                    buffer2 = bos.toByteArray();
+            gen.writeNumberField("timestamp", event.getTimestamp().getTime() / 1000.0);
+            for (Map.Entry<String, Object> e: event.entrySet()) {
+                String key = e.getKey();
+                if (! "id".equals(key) && ! key.equals(shortmessagefield) && ! key.equals(fullmessagefield) && fieldpredicate.test(key)) {
+                    gen.writeObjectField("_" + key, e.getValue());
                 }
-            } else if (stream) {
-                buffer2 = Arrays.copyOf(buffer1, buffer1.length+1);
-            } else {
-                buffer2 = buffer1;
             }
-            return buffer2;
-        } catch (IOException e) {
-            throw new EncodeException("Failed to encode to GELF", e);
+            gen.writeEndObject();
+        }
+    }
+
+    /**
+     * Split a message in GELF chunks if it's bigger than the chunk size.
+     */
+    @Override
+    public List<byte[]> chunk(byte[] message) throws EncodeException {
+        if (chunkSize <= 0 || message.length <= chunkSize) {
+            return Collections.singletonList(message);
+        }
+        int payloadSize = chunkSize - CHUNKHEADERSIZE;
+        int count = (message.length + payloadSize - 1) / payloadSize;
+        if (count > MAXCHUNKS) {
+            throw new EncodeException(String.format("GELF message too big, %d chunks needed", count));
+        }
+        long messageId = ThreadLocalRandom.current().nextLong();
+        List<byte[]> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = i * payloadSize;
+            int length = Math.min(payloadSize, message.length - offset);
+            byte[] chunk = new byte[CHUNKHEADERSIZE + length];
+            chunk[0] = CHUNKMAGIC[0];
+            chunk[1] = CHUNKMAGIC[1];
+            for (int j = 0; j < 8; j++) {
+                chunk[2 + j] = (byte) (messageId >>> (56 - 8 * j));
+            }
+            chunk[10] = (byte) i;
+            chunk[11] = (byte) count;
+            System.arraycopy(message, offset, chunk, CHUNKHEADERSIZE, length);
+            chunks.add(chunk);
         }
+        return chunks;
     }
 
 }
@@ -123,28 +123,67 @@ class IpfixInformationElements {
     private static final ThreadLocal<byte[]> buffer4 = ThreadLocal.withInitial(() -> new byte[4]);
     private static final ThreadLocal<byte[]> buffer16 = ThreadLocal.withInitial(() -> new byte[16]);
 
+    /**
+     * Read the value of an element from a slice that contains only it.
+     */
+    @FunctionalInterface
+    interface ValueReader {
+        Object read(ByteBuf bbuf) throws UnknownHostException;
+    }
+
+    private static final ValueReader BYTESREADER = bbuf -> {
+        byte[] buffer = new byte[bbuf.readableBytes()];
+        bbuf.readBytes(buffer);
+        return buffer;
+    };
+
     public Object getValue(int i, ByteBuf bbuf) {
         try {
-            Element e = elements.get(i);
-            if (e == null) {
-                byte[] buffer = new byte[bbuf.readableBytes()];
-                bbuf.readBytes(buffer);
-                return buffer;
-            }
-            if ("ipv4Address".equals(e.type) && bbuf.isReadable(4)) {
-                bbuf.readBytes(buffer4.get());
-                return InetAddress.getByAddress(buffer4.get());
-            } else if ("ipv6Address".equals(e.type) && bbuf.isReadable(16)) {
-                bbuf.readBytes(buffer16.get());
-                return InetAddress.getByAddress(buffer16.get());
-            } else if ("dateTimeMilliseconds".equals(e.type)) {
-                long value = readNumValue(bbuf);
-                return new Date(value);
-            } else if (e.type.startsWith("unsigned")) {
-                return readUnsignedNumValue(bbuf);
-            } else if (e.type.startsWith("signed")) {
-                return readNumValue(bbuf);
-            } else if ("applicationId".equals(e.name)) {
+            return getReader(i).read(bbuf);
+        } catch (UnknownHostException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Resolve the way to read an element, so it's done only once for each field of a template.
+     * @param i the element id
+     * @return the reader for this element
+     */
+    ValueReader getReader(int i) {
+        Element e = elements.get(i);
+        if (e == null) {
+            return BYTESREADER;
+        }
+        ValueReader unmanaged = bbuf -> {
+            throw new RuntimeException("unmannage type: " + e.name);
+        };
+        if ("ipv4Address".equals(e.type)) {
+            return bbuf -> {
+                if (bbuf.isReadable(4)) {
+                    bbuf.readBytes(buffer4.get());
+                    return InetAddress.getByAddress(buffer4.get());
+                } else {
+                    return unmanaged.read(bbuf);
+                }
+            };
+        } else if ("ipv6Address".equals(e.type)) {
+            return bbuf -> {
+                if (bbuf.isReadable(16)) {
+                    bbuf.readBytes(buffer16.get());
+                    return InetAddress.getByAddress(buffer16.get());
+                } else {
+                    return unmanaged.read(bbuf);
+                }
+            };
+        } else if ("dateTimeMilliseconds".equals(e.type)) {
+            return bbuf -> new Date(readNumValue(bbuf));
+        } else if (e.type.startsWith("unsigned")) {
+            return this::readUnsignedNumValue;
+        } else if (e.type.startsWith("signed")) {
+            return this::readNumValue;
+        } else if ("applicationId".equals(e.name)) {
+            return bbuf -> {
                 byte[] buffer = new byte[bbuf.readableBytes()];
                 bbuf.readBytes(buffer);
                 Map<String, Number> applicationId = new HashMap<>();
@@ -153,23 +192,27 @@ class IpfixInformationElements {
                 ByteBuf selectorBuffer = Unpooled.wrappedBuffer(buffer);
                 applicationId.put("SelectorID", readUnsignedNumValue(selectorBuffer));
                 return applicationId;
-            } else if ("octetArray".equals(e.type) || "Reserved".equals(e.name)) {
-                byte[] buffer = new byte[bbuf.readableBytes()];
-                bbuf.readBytes(buffer);
-                return buffer;
-            } else if ("macAddress".equals(e.type) && bbuf.isReadable(6)) {
-                byte[] buffer = new byte[6];
-                bbuf.readBytes(buffer);
-                return new MacAddress(buffer);
-            } else if ("string".equals(e.type)) {
+            };
+        } else if ("octetArray".equals(e.type) || "Reserved".equals(e.name)) {
+            return BYTESREADER;
+        } else if ("macAddress".equals(e.type)) {
+            return bbuf -> {
+                if (bbuf.isReadable(6)) {
+                    byte[] buffer = new byte[6];
+                    bbuf.readBytes(buffer);
+                    return new MacAddress(buffer);
+                } else {
+                    return unmanaged.read(bbuf);
+                }
+            };
+        } else if ("string".equals(e.type)) {
+            return bbuf -> {
                 byte[] buffer = new byte[bbuf.readableBytes()];
                 bbuf.readBytes(buffer);
                 return new String(buffer, CharsetUtil.UTF_8);
-            } else {
-                throw new RuntimeException("unmannage type: " + e.name);
-            }
-        } catch (UnknownHostException e) {
-            throw new UncheckedIOException(e);
+            };
+        } else {
+            return unmanaged;
         }
     }
 
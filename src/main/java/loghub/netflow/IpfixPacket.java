@@ -14,7 +14,11 @@ public class IpfixPacket extends TemplateBasePacket implements NetflowPacket {
     };
 
     public IpfixPacket(InetAddress remoteAddr, ByteBuf bbuf, IpfixInformationElements ipfixtypes) {
-        super(remoteAddr, bbuf, headerreder, ipfixtypes);
+        this(remoteAddr, bbuf, ipfixtypes, new TemplateCache());
+    }
+
+    IpfixPacket(InetAddress remoteAddr, ByteBuf bbuf, IpfixInformationElements ipfixtypes, TemplateCache templates) {
+        super(remoteAddr, bbuf, headerreder, ipfixtypes, templates);
     }
 
     @Override
@@ -19,7 +19,11 @@ public class Netflow9Packet extends TemplateBasePacket implements NetflowPacket
     private final Duration sysUpTime;
 
     public Netflow9Packet(InetAddress remoteAddr, ByteBuf bbuf, IpfixInformationElements nf9types) {
-        super(remoteAddr, bbuf, headerreder, nf9types);
+        this(remoteAddr, bbuf, nf9types, new TemplateCache());
+    }
+
+    Netflow9Packet(InetAddress remoteAddr, ByteBuf bbuf, IpfixInformationElements nf9types, TemplateCache templates) {
+        super(remoteAddr, bbuf, headerreder, nf9types, templates);
         sysUpTime = Duration.of(header.sysUpTime, ChronoUnit.MILLIS);
     }
 
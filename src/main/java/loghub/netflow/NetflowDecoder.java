@@ -1,22 +1,35 @@
 package loghub.netflow;
 
 import java.net.InetAddress;
+import java.time.temporal.ChronoUnit;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.cache.Cache;
+
 import io.netty.buffer.ByteBuf;
 import loghub.BuilderClass;
 import loghub.ConnectionContext;
 import loghub.Event;
 import loghub.IpConnectionContext;
+import loghub.configuration.CacheManager.Policy;
+import loghub.configuration.Properties;
 import loghub.decoders.DecodeException;
 import loghub.decoders.Decoder;
+import loghub.netflow.TemplateCache.TemplateId;
+import loghub.receivers.Receiver;
+import lombok.Setter;
 
 @BuilderClass(NetflowDecoder.Builder.class)
 public class NetflowDecoder extends Decoder {
 
     public static class Builder extends Decoder.Builder<NetflowDecoder> {
+        @Setter
+        private int templateCacheSize = 10000;
+        // In seconds
+        @Setter
+        private int templateExpiry = 3600;
         @Override
         public NetflowDecoder build() {
             return new NetflowDecoder(this);
@@ -26,8 +39,26 @@ public class NetflowDecoder extends Decoder {
         return new Builder();
     }
 
-    private NetflowDecoder(loghub.decoders.Decoder.Builder<? extends Decoder> builder) {
+    private final int templateCacheSize;
+    private final int templateExpiry;
+    // Until configured, the templates are kept without limits
+    private TemplateCache templates = new TemplateCache();
+
+    private NetflowDecoder(Builder builder) {
         super(builder);
+        templateCacheSize = builder.templateCacheSize;
+        templateExpiry = builder.templateExpiry;
+    }
+
+    @Override
+    public boolean configure(Properties properties, Receiver receiver) {
+        Cache<TemplateId, Template> cache = properties.cacheManager.getBuilder(TemplateId.class, Template.class)
+                        .setName("NetflowTemplates", this)
+                        .setCacheSize(templateCacheSize)
+                        .setExpiry(Policy.MODIFIED, templateExpiry, ChronoUnit.SECONDS)
+                        .build();
+        templates = new TemplateCache(cache);
+        return super.configure(properties, receiver);
     }
 
     @Override
@@ -35,7 +66,7 @@ public class NetflowDecoder extends Decoder {
         InetAddress addr;
         if (ctx instanceof IpConnectionContext) {
             addr = ((IpConnectionContext)ctx).getRemoteAddress().getAddress();
-            NetflowPacket packet = PacketFactory.parsePacket(addr, bbuf);
+            NetflowPacket packet = PacketFactory.parsePacket(addr, bbuf, templates);
             Map<String, Object> ev = new HashMap<>();
             ev.put(Event.TIMESTAMPKEY, Date.from(packet.getExportTime()));
             ev.put("sequenceNumber", packet.getSequenceNumber());
@@ -23,7 +23,17 @@ public class PacketFactory {
     private PacketFactory() {
     }
 
+    /**
+     * Parse a packet, the templates it contains are only used for this packet.
+     */
     public static NetflowPacket parsePacket(InetAddress remoteAddr, ByteBuf bbuf) throws DecodeException {
+        return parsePacket(remoteAddr, bbuf, new TemplateCache());
+    }
+
+    /**
+     * Parse a packet, using and filling the given template cache.
+     */
+    static NetflowPacket parsePacket(InetAddress remoteAddr, ByteBuf bbuf, TemplateCache templates) throws DecodeException {
         bbuf.markReaderIndex();
         short version = bbuf.readShort();
         bbuf.resetReaderIndex();
@@ -31,9 +41,9 @@ public class PacketFactory {
         case 5:
             return new Netflow5Packet(bbuf);
         case 9:
-            return new Netflow9Packet(remoteAddr, bbuf, ipfixtypes);
+            return new Netflow9Packet(remoteAddr, bbuf, ipfixtypes, templates);
         case 10:
-            return new IpfixPacket(remoteAddr, bbuf, ipfixtypes);
+            return new IpfixPacket(remoteAddr, bbuf, ipfixtypes, templates);
         default:
             throw new DecodeException("Unsupported netflow/IPFIX packet version: " + version);
         }
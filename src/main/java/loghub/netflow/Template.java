@@ -0,0 +1,113 @@
+package loghub.netflow;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import loghub.netflow.IpfixInformationElements.ValueReader;
+import loghub.netflow.TemplateBasePacket.TemplateType;
+
+/**
+ * A Netflow v9 or IPFIX template. The names and the readers of the fields are resolved when it's received, so
+ * decoding a record only needs to walk the arrays.
+ */
+final class Template {
+
+    static class Builder {
+        private final TemplateType type;
+        private final List<Number> types;
+        private final List<Integer> sizes;
+        private final List<Boolean> areScops;
+        Builder(TemplateType type, int count) {
+            this.type = type;
+            types = new ArrayList<>(count);
+            sizes = new ArrayList<>(count);
+            areScops = new ArrayList<>(count);
+        }
+        Builder(TemplateType type) {
+            this(type, 10);
+        }
+        void addField(Number type, int size, boolean isScope) {
+            types.add(type);
+            sizes.add(size);
+            areScops.add(isScope);
+        }
+        Template build(IpfixInformationElements elements) {
+            return new Template(this, elements);
+        }
+    }
+
+    final TemplateType type;
+    private final long[] types;
+    private final int[] sizes;
+    private final boolean[] areScops;
+    private final String[] names;
+    private final ValueReader[] readers;
+
+    private Template(Builder builder, IpfixInformationElements elements) {
+        this.type = builder.type;
+        int count = builder.types.size();
+        types = new long[count];
+        sizes = new int[count];
+        areScops = new boolean[count];
+        names = new String[count];
+        readers = new ValueReader[count];
+        for (int i = 0; i < count; i++) {
+            Number fieldType = builder.types.get(i);
+            types[i] = fieldType.longValue();
+            sizes[i] = builder.sizes.get(i);
+            areScops[i] = builder.areScops.get(i);
+            names[i] = elements.getName(fieldType.intValue());
+            readers[i] = elements.getReader(fieldType.intValue());
+        }
+    }
+
+    int getSizes() {
+        return sizes.length;
+    }
+
+    /**
+     * Decode a record.
+     * @param bbuf the data set, positioned at the start of the record
+     * @return the record values
+     * @throws UnknownHostException
+     */
+    Map<String, Object> read(ByteBuf bbuf) throws UnknownHostException {
+        Map<String, Object> record = new HashMap<>((int) ((sizes.length + 1) / 0.75f) + 1);
+        for (int i = 0 ; i < sizes.length ; i++) {
+            int fieldSize = sizes[i];
+            try {
+                if (fieldSize == 65535) {
+                    fieldSize = Byte.toUnsignedInt(bbuf.readByte());
+                    if (fieldSize == 255) {
+                        fieldSize = Short.toUnsignedInt(bbuf.readShort());
+                    }
+                }
+                ByteBuf content = bbuf.readSlice(fieldSize);
+                record.put(names[i], readers[i].read(content));
+            } catch (IndexOutOfBoundsException e) {
+                throw new RuntimeException(String.format("reading outsing range: %d out of %d\n", fieldSize, bbuf.readableBytes()));
+            }
+        }
+        if (sizes.length > 0) {
+            record.put(PacketFactory.TYPEKEY, type);
+        }
+        return record;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        for(int i = 0 ; i < types.length ; i++) {
+            buffer.append(String.format("%d[%d]%s, ", types[i], sizes[i], areScops[i] ? "S" : ""));
+        }
+        if (buffer.length() > 0) {
+            buffer.delete(buffer.length() - 2 , buffer.length());
+        }
+        return buffer.toString();
+    }
+
+}
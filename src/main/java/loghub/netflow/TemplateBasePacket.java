@@ -1,10 +1,11 @@
 package loghub.netflow;
 
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
@@ -16,42 +17,6 @@ import io.netty.buffer.ByteBuf;
 
 public abstract class TemplateBasePacket implements NetflowPacket {
 
-    private static class TemplateId {
-        private final InetAddress remoteAddr;
-        private final int id;
-        private TemplateId(InetAddress remoteAddr, int id) {
-            super();
-            this.remoteAddr = remoteAddr;
-            this.id = id;
-        }
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + id;
-            result = prime * result + ((remoteAddr == null) ? 0 : remoteAddr.hashCode());
-            return result;
-        }
-        @Override
-        public boolean equals(Object obj) {
-            if(this == obj)
-                return true;
-            if(obj == null)
-                return false;
-            if(getClass() != obj.getClass())
-                return false;
-            TemplateId other = (TemplateId) obj;
-            if(id != other.id)
-                return false;
-            if(remoteAddr == null) {
-                if(other.remoteAddr != null)
-                    return false;
-            } else if(!remoteAddr.equals(other.remoteAddr))
-                return false;
-            return true;
-        }
-    }
-
     enum TemplateType {
         Records,
         Options
@@ -59,47 +24,6 @@ public abstract class TemplateBasePacket implements NetflowPacket {
 
     private static final Logger logger = LogManager.getLogger();
 
-    protected final Map<TemplateId, Map<Integer,Template>> templates = new HashMap<>();
-
-    private static class Template {
-        private final TemplateType type;
-        private final List<Number> types;
-        private final List<Integer> sizes;
-        private final List<Boolean> areScops;
-        private Template(TemplateType type, int count) {
-            this.type = type;
-            types = new ArrayList<>(count);
-            sizes = new ArrayList<>(count);
-            areScops = new ArrayList<>(count);
-        }
-        private Template(TemplateType type) {
-            this.type = type;
-            types = new ArrayList<>();
-            sizes = new ArrayList<>();
-            areScops = new ArrayList<>();
-        }
-        private void addField(Number type, int size, boolean isScope) {
-            types.add(type);
-            sizes.add(size);
-            areScops.add(isScope);
-        }
-        private int getSizes() {
-            return sizes.size();
-        }
-        private int getSize(int record) {
-            return sizes.get(record);
-        }
-        @Override
-        public String toString() {
-            StringBuilder buffer = new StringBuilder();
-            for(int i = 0 ; i < types.size() ; i++) {
-                buffer.append(String.format("%d[%d]%s, ", types.get(i).longValue(), sizes.get(i), areScops.get(i) ? "S" : ""));
-            }
-            buffer.delete(buffer.length() - 2 , buffer.length());
-            return buffer.toString();
-        }
-    }
-
     protected static class HeaderInfo {
         int count = -1;
         int length = -1;
@@ -113,11 +37,13 @@ public abstract class TemplateBasePacket implements NetflowPacket {
     protected final int length;
     protected final int count;
     private final IpfixInformationElements types;
+    private final TemplateCache templates;
     private int recordseen = 0;
     private final List<Map<String, Object>> records = new ArrayList<>();
 
-    protected TemplateBasePacket(InetAddress remoteAddr, ByteBuf bbuf, Function<ByteBuf, HeaderInfo> headerreader, IpfixInformationElements types) {
+    protected TemplateBasePacket(InetAddress remoteAddr, ByteBuf bbuf, Function<ByteBuf, HeaderInfo> headerreader, IpfixInformationElements types, TemplateCache templates) {
         this.types = types;
+        this.templates = templates;
         short version = bbuf.readShort();
         if (version < 9) {
             throw new RuntimeException("Invalid version");
@@ -174,7 +100,7 @@ public abstract class TemplateBasePacket implements NetflowPacket {
         }
     }
 
-    private void readDefinition(ByteBuf bbuf, boolean canEntrepriseNumber, Template template, boolean isScope) {
+    private void readDefinition(ByteBuf bbuf, boolean canEntrepriseNumber, Template.Builder template, boolean isScope) {
         Number type = Short.toUnsignedInt(bbuf.readShort());
         int length = Short.toUnsignedInt(bbuf.readShort());
         if ((type.intValue() & 0x8000) != 0 && canEntrepriseNumber) {
@@ -195,11 +121,11 @@ public abstract class TemplateBasePacket implements NetflowPacket {
                 //It was padding, not a real template template
                 break;
             }
-            Template template = new Template(TemplateType.Records, fieldsCount);
+            Template.Builder template = new Template.Builder(TemplateType.Records, fieldsCount);
             for (int i = 0 ; i < fieldsCount ; i++) {
                 readDefinition(bbuf, canEntrepriseNumber, template, false);
             }
-            templates.computeIfAbsent(new TemplateId(remoteAddr, sourceId), i -> new HashMap<>()).put(templateId, template);
+            templates.put(remoteAddr, sourceId, templateId, template.build(types));
         }
     }
 
@@ -211,7 +137,7 @@ public abstract class TemplateBasePacket implements NetflowPacket {
             int templateId = Short.toUnsignedInt(bbuf.readShort());
             int scopeLength = Short.toUnsignedInt(bbuf.readShort());
             int optionsLength = Short.toUnsignedInt(bbuf.readShort());
-            Template template = new Template(TemplateType.Options);
+            Template.Builder template = new Template.Builder(TemplateType.Options);
             ByteBuf scopes = bbuf.readSlice(scopeLength);
             ByteBuf options = bbuf.readSlice(optionsLength);
             // The test ensure there is more than padding left in the ByteBuf
@@ -222,7 +148,7 @@ public abstract class TemplateBasePacket implements NetflowPacket {
             while (options.isReadable(3)) {
                 readDefinition(options, false, template, false);
             }
-            templates.computeIfAbsent(new TemplateId(remoteAddr, sourceId), i -> new HashMap<>()).put(templateId, template);
+            templates.put(remoteAddr, sourceId, templateId, template.build(types));
         }
     }
 
@@ -234,53 +160,32 @@ public abstract class TemplateBasePacket implements NetflowPacket {
             int templateId = Short.toUnsignedInt(bbuf.readShort());
             int fieldsCount = Short.toUnsignedInt(bbuf.readShort());
             int scopesCount = Short.toUnsignedInt(bbuf.readShort());
-            Template template = new Template(TemplateType.Options, fieldsCount);
+            Template.Builder template = new Template.Builder(TemplateType.Options, fieldsCount);
             for(int i = 0; i < scopesCount; i++) {
                 readDefinition(bbuf, true, template, true);
             }
             for(int i = scopesCount; i < fieldsCount; i++) {
                 readDefinition(bbuf, true, template, false);
-            } 
-            templates.computeIfAbsent(new TemplateId(remoteAddr, sourceId), i -> new HashMap<>()).put(templateId, template);
+            }
+            templates.put(remoteAddr, sourceId, templateId, template.build(types));
         }
     }
 
     protected void readDataSet(InetAddress remoteAddr, ByteBuf bbuf, int flowSetId) {
-        TemplateId key = new TemplateId(remoteAddr, sourceId);
-        if ( ! templates.containsKey(key)) {
-            return;
-        }
-        Template tpl = templates.get(key).get(flowSetId);
+        Template tpl = templates.get(remoteAddr, sourceId, flowSetId);
         if (tpl == null) {
+            logger.debug("No template {} for {}/{}", flowSetId, remoteAddr, sourceId);
             return;
         }
         // The test ensure there is more than padding left in the ByteBuf
         while (bbuf.isReadable(3)) {
             recordseen++;
-            Map<String, Object> record = new HashMap<>(tpl.getSizes());
             logger.trace("  data");
-            for (int i = 0 ; i < tpl.getSizes() ; i++) {
-                Number type = null;
-                int fieldSize = 0;
-                try {
-                    type = tpl.types.get(i);
-                    fieldSize = tpl.getSize(i);
-                    if (fieldSize == 65535) {
-                        fieldSize = Byte.toUnsignedInt(bbuf.readByte());
-                        if (fieldSize == 255) {
-                            fieldSize = Short.toUnsignedInt(bbuf.readShort());
-                        }
-                    }
-                    ByteBuf content = bbuf.readSlice(fieldSize);
-                    Object value = types.getValue(type.intValue(), content);
-                    logger.trace("    {} {} {}", types.getName(type.intValue()), fieldSize, value);
-                    record.put(types.getName(type.intValue()), value);
-                    record.put(PacketFactory.TYPEKEY, tpl.type);
-                } catch (IndexOutOfBoundsException e) {
-                    throw new RuntimeException(String.format("reading outsing range: %d out of %d\n", fieldSize, bbuf.readableBytes()));
-                }
+            try {
+                records.add(tpl.read(bbuf));
+            } catch (UnknownHostException e) {
+                throw new UncheckedIOException(e);
             }
-            records.add(record);
         }
     }
 
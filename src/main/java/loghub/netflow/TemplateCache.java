@@ -0,0 +1,87 @@
+package loghub.netflow;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.cache.Cache;
+
+/**
+ * The templates received from the exporters. Templates are usually sent only every few packets, so they are kept
+ * between packets, identified by the exporter address, the source id (observation domain for IPFIX) and the
+ * template id.
+ * <p>
+ * It uses a cache from the {@link loghub.configuration.CacheManager} when the decoder is configured, or a plain
+ * map otherwise.
+ */
+class TemplateCache {
+
+    static final class TemplateId {
+        private final InetAddress remoteAddr;
+        private final int sourceId;
+        private final int templateId;
+        TemplateId(InetAddress remoteAddr, int sourceId, int templateId) {
+            this.remoteAddr = remoteAddr;
+            this.sourceId = sourceId;
+            this.templateId = templateId;
+        }
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + templateId;
+            result = prime * result + sourceId;
+            result = prime * result + ((remoteAddr == null) ? 0 : remoteAddr.hashCode());
+            return result;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            TemplateId other = (TemplateId) obj;
+            if (templateId != other.templateId || sourceId != other.sourceId)
+                return false;
+            if (remoteAddr == null) {
+                return other.remoteAddr == null;
+            } else {
+                return remoteAddr.equals(other.remoteAddr);
+            }
+        }
+        @Override
+        public String toString() {
+            return remoteAddr + "/" + sourceId + "/" + templateId;
+        }
+    }
+
+    private final Cache<TemplateId, Template> cache;
+    private final Map<TemplateId, Template> templates;
+
+    TemplateCache() {
+        cache = null;
+        templates = new ConcurrentHashMap<>();
+    }
+
+    TemplateCache(Cache<TemplateId, Template> cache) {
+        this.cache = cache;
+        templates = null;
+    }
+
+    Template get(InetAddress remoteAddr, int sourceId, int templateId) {
+        TemplateId key = new TemplateId(remoteAddr, sourceId, templateId);
+        return cache != null ? cache.get(key) : templates.get(key);
+    }
+
+    void put(InetAddress remoteAddr, int sourceId, int templateId, Template template) {
+        TemplateId key = new TemplateId(remoteAddr, sourceId, templateId);
+        if (cache != null) {
+            cache.put(key, template);
+        } else {
+            templates.put(key, template);
+        }
+    }
+
+}
@@ -1,9 +1,13 @@
 package loghub.processors;
 
+import java.math.BigDecimal;
+import java.text.ParsePosition;
 import java.time.DateTimeException;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.Month;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
@@ -14,11 +18,14 @@ import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAccessor;
 import java.time.temporal.TemporalField;
 import java.time.temporal.TemporalQueries;
+import java.time.zone.ZoneRules;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import loghub.Event;
 import loghub.ProcessorException;
@@ -61,27 +68,117 @@ public class DateParser extends FieldsProcessor {
     };
     private final static String isoChronology = IsoChronology.INSTANCE.getId();
 
+    // Named patterns for epoch time, they are not handled by a DateTimeFormatter
+    private static final String UNIX = "UNIX";
+    private static final String UNIX_MS = "UNIX_MS";
+
+    // Days from 0000-01-01 to 1970-01-01
+    private static final long DAYS_0000_TO_1970 = 719528;
+    // The current date and time are refreshed every second
+    private static final long TODAYREFRESH = 1000;
+    // The number of input shapes remembered
+    private static final int MAXSHAPES = 256;
+
+    /**
+     * Parse a date string, return null if it can't be parsed. When the string is probably in another format,
+     * a formatter checks it before the full parsing, so no exception is thrown.
+     */
+    @FunctionalInterface
+    private interface Parser {
+        Date parse(String dateString, boolean probablyOther);
+        /**
+         * Check if the structure of a date string can be parsed, the values are not checked, so the result
+         * is the same for all the strings with the same shape. By default, the parsing only checks the structure.
+         */
+        default boolean matches(String dateString) {
+            return parse(dateString, true) != null;
+        }
+    }
+
+    /**
+     * A parser using a formatter, with an optional faster parser for the common forms.
+     */
+    private final class FormatterParser implements Parser {
+        private final DateTimeFormatter formatter;
+        private final Function<String, Date> fast;
+        private FormatterParser(DateTimeFormatter formatter, Function<String, Date> fast) {
+            this.formatter = formatter;
+            this.fast = fast;
+        }
+        @Override
+        public Date parse(String dateString, boolean probablyOther) {
+            Date d = fast != null ? fast.apply(dateString) : null;
+            return d != null ? d : parseFormatter(formatter, dateString, probablyOther);
+        }
+        @Override
+        public boolean matches(String dateString) {
+            return (fast != null && fast.apply(dateString) != null) || matchesFormatter(formatter, dateString);
+        }
+    }
+
+    private static final class Today {
+        private final ZoneId zone;
+        private final LocalDate date;
+        // Truncated to the second
+        private final LocalTime time;
+        private final long expiry;
+        private Today(ZoneId zone, LocalDateTime now, long expiry) {
+            this.zone = zone;
+            this.date = now.toLocalDate();
+            this.time = now.toLocalTime().truncatedTo(ChronoUnit.SECONDS);
+            this.expiry = expiry;
+        }
+    }
+
     private String[] patternsStrings;
-    private DateTimeFormatter[] patterns = NAMEDPATTERNS.values().toArray(new DateTimeFormatter[NAMEDPATTERNS.size()]);
+    private Parser[] parsers;
     private Locale locale = Locale.ENGLISH;
     private ZoneId zone = ZoneId.systemDefault();
+    private String[] monthNames;
+    private volatile Today today = null;
+    // For each shape of input, the first parser whose structure matches, the previous ones are skipped
+    private final Map<String, Integer> shapes = new ConcurrentHashMap<>();
 
     @Override
     public boolean configure(Properties properties) {
+        DateTimeFormatter monthFormatter = DateTimeFormatter.ofPattern("MMM", locale);
+        monthNames = Arrays.stream(Month.values()).map(monthFormatter::format).toArray(String[]::new);
         if (patternsStrings != null) {
-            patterns = Arrays.stream(patternsStrings)
-                    .map(i -> {
-                        try {
-                            return NAMEDPATTERNS.containsKey(i) ? NAMEDPATTERNS.get(i) : DateTimeFormatter.ofPattern(i, locale);
-                        } catch (IllegalArgumentException e) {
-                            logger.error("invalid date time pattern '{}' : {}", i, e.getMessage());
-                            return null;
-                        }
-                    })
-                    .toArray(DateTimeFormatter[]::new);
-            ;
+            parsers = new Parser[patternsStrings.length];
+            for (int i = 0; i < patternsStrings.length; i++) {
+                String pattern = patternsStrings[i];
+                if (UNIX.equals(pattern)) {
+                    parsers[i] = (ds, p) -> parseEpoch(ds, true);
+                } else if (UNIX_MS.equals(pattern)) {
+                    parsers[i] = (ds, p) -> parseEpoch(ds, false);
+                } else {
+                    try {
+                        DateTimeFormatter formatter = NAMEDPATTERNS.containsKey(pattern) ? NAMEDPATTERNS.get(pattern) : DateTimeFormatter.ofPattern(pattern, locale);
+                        parsers[i] = getParser(pattern, formatter);
+                    } catch (IllegalArgumentException e) {
+                        logger.error("invalid date time pattern '{}' : {}", pattern, e.getMessage());
+                        return false;
+                    }
+                }
+            }
+        } else {
+            parsers = NAMEDPATTERNS.values().stream().map(i -> getParser(null, i)).toArray(Parser[]::new);
+        }
+        return super.configure(properties);
+    }
+
+    /**
+     * Use a fast parser for the common formats, the formatter is used for the other forms.
+     */
+    private Parser getParser(String pattern, DateTimeFormatter formatter) {
+        if (formatter == DateTimeFormatter.ISO_DATE_TIME) {
+            return new FormatterParser(formatter, this::parseIso);
+        } else if ("MMM dd HH:mm:ss".equals(pattern) || "MMM d HH:mm:ss".equals(pattern)) {
+            boolean padded = pattern.contains("dd");
+            return new FormatterParser(formatter, ds -> parseRfc3164(ds, padded));
+        } else {
+            return new FormatterParser(formatter, null);
         }
-        return Arrays.stream(patterns).allMatch(i -> i != null) && super.configure(properties);
     }
 
     /**
@@ -93,75 +190,334 @@ public class DateParser extends FieldsProcessor {
      */
     @Override
     public Object fieldFunction(Event event, Object value) throws ProcessorException {
-        String dateString = value.toString();
+        String dateString;
+        if (value instanceof Double || value instanceof Float) {
+            dateString = BigDecimal.valueOf(((Number) value).doubleValue()).toPlainString();
+        } else {
+            dateString = value.toString();
+        }
         logger.debug("trying to parse {}", dateString);
-        for(DateTimeFormatter formatter: patterns) {
-            logger.trace("trying to parse {} with {}", () -> dateString, () -> formatter.toString());
-            try {
-                TemporalAccessor ta = formatter.parse(dateString);
-                logger.trace("parsed {} as {}", () -> dateString, () -> ta.toString());
-
-                if (! isoChronology.equals(ta.query(TemporalQueries.chronology()).getId())) {
-                    logger.warn("Can't hande non ISO chronology");
-                    continue;
-                }
-                // Try to resolve the zone offset
-                ZoneId zi = ta.query(TemporalQueries.zone());
-                if (zi == null) {
-                    zi = zone;
-                }
-                // Try to resolve the date
-                LocalDate ld = ta.query(TemporalQueries.localDate());
-                if (ld == null) {
-                    ld = LocalDate.now(zi);
-                    // date not found, but perhaps there is enough information anyway
-                    // For example, when year is missing, so try to recover day and month
-                    for (TemporalField cf: dateTemporalFields) {
-                        if (ta.isSupported(cf)) {
-                            logger.trace("{} {}", () -> cf, () -> ta.getLong(cf));
-                            ld = ld.with(cf, ta.getLong(cf));
-                        }
+        if (parsers.length == 1) {
+            Date date = parsers[0].parse(dateString, false);
+            return date != null ? date : FieldsProcessor.RUNSTATUS.FAILED;
+        }
+        // Skip the parsers that can't match the same shape of input, the others are tried in the configured
+        // order, as values can be valid for many patterns
+        String shape = shape(dateString);
+        Integer first = shapes.get(shape);
+        if (first == null && shapes.size() < MAXSHAPES) {
+            first = firstMatching(dateString);
+            shapes.put(shape, first);
+        }
+        int start = first != null ? first : 0;
+        for (int i = start; i < parsers.length; i++) {
+            // The structure of the first one is known to match
+            Date date = parsers[i].parse(dateString, first == null || i != start);
+            if (date != null) {
+                return date;
+            }
+        }
+        return FieldsProcessor.RUNSTATUS.FAILED;
+    }
+
+    private int firstMatching(String dateString) {
+        for (int i = 0; i < parsers.length; i++) {
+            if (parsers[i].matches(dateString)) {
+                return i;
+            }
+        }
+        return parsers.length;
+    }
+
+    /**
+     * The shape of a date string, the digits are replaced by 0, the letters are kept as they can be names.
+     */
+    private static String shape(String dateString) {
+        char[] shape = dateString.toCharArray();
+        for (int i = 0; i < shape.length; i++) {
+            if (isDigit(shape[i])) {
+                shape[i] = '0';
+            }
+        }
+        return new String(shape);
+    }
+
+    private static boolean matchesFormatter(DateTimeFormatter formatter, String dateString) {
+        ParsePosition pos = new ParsePosition(0);
+        return formatter.parseUnresolved(dateString, pos) != null && pos.getIndex() == dateString.length();
+    }
+
+    private Date parseFormatter(DateTimeFormatter formatter, String dateString, boolean probablyOther) {
+        logger.trace("trying to parse {} with {}", () -> dateString, () -> formatter.toString());
+        // Check that the pattern matches without the cost of an exception
+        if (probablyOther && ! matchesFormatter(formatter, dateString)) {
+            logger.debug("failed to parse date with pattern {}", () -> formatter.toString());
+            return null;
+        }
+        try {
+            TemporalAccessor ta = formatter.parse(dateString);
+            logger.trace("parsed {} as {}", () -> dateString, () -> ta.toString());
+
+            if (! isoChronology.equals(ta.query(TemporalQueries.chronology()).getId())) {
+                logger.warn("Can't hande non ISO chronology");
+                return null;
+            }
+            // Try to resolve the zone offset
+            ZoneId zi = ta.query(TemporalQueries.zone());
+            if (zi == null) {
+                zi = zone;
+            }
+            // Try to resolve the date
+            LocalDate ld = ta.query(TemporalQueries.localDate());
+            if (ld == null) {
+                ld = today(zi);
+                // date not found, but perhaps there is enough information anyway
+                // For example, when year is missing, so try to recover day and month
+                for (TemporalField cf: dateTemporalFields) {
+                    if (ta.isSupported(cf)) {
+                        logger.trace("{} {}", () -> cf, () -> ta.getLong(cf));
+                        ld = ld.with(cf, ta.getLong(cf));
                     }
                 }
-                // Try to resolve the time
-                LocalTime lt = ta.query(TemporalQueries.localTime());
-                if (lt == null) {
-                    lt = LocalTime.now(zi);
-                    // We are rarely interested in sub second, drop it to don't have false value
-                    lt = lt.truncatedTo(ChronoUnit.SECONDS);
-                    // Ok now try to resolve sub-second precision
-                    for (TemporalField cf: subSecondTemporalFields) {
-                        if (ta.isSupported(cf)) {
-                            logger.trace("{} {}", () -> cf, () -> ta.getLong(cf));
-                            lt = lt.with(cf, ta.getLong(cf));
-                            break;
-                        }
+            }
+            // Try to resolve the time
+            LocalTime lt = ta.query(TemporalQueries.localTime());
+            if (lt == null) {
+                // We are rarely interested in sub second, it's dropped to don't have false value
+                lt = current(zi).time;
+                // Ok now try to resolve sub-second precision
+                for (TemporalField cf: subSecondTemporalFields) {
+                    if (ta.isSupported(cf)) {
+                        logger.trace("{} {}", () -> cf, () -> ta.getLong(cf));
+                        lt = lt.with(cf, ta.getLong(cf));
+                        break;
                     }
-                    for (TemporalField cf: timeTemporalFields) {
-                        if (ta.isSupported(cf)) {
-                            logger.trace("{} {}", () -> cf, () -> ta.getLong(cf));
-                            lt = lt.with(cf, ta.getLong(cf));
-                        }
+                }
+                for (TemporalField cf: timeTemporalFields) {
+                    if (ta.isSupported(cf)) {
+                        logger.trace("{} {}", () -> cf, () -> ta.getLong(cf));
+                        lt = lt.with(cf, ta.getLong(cf));
                     }
+                }
 
+            }
+            ZoneOffset zo;
+            if (zi instanceof ZoneOffset) {
+                zo = (ZoneOffset)zi;
+            } else {
+                zo = zi.getRules().getOffset(LocalDateTime.of(ld, lt));
+            }
+            OffsetDateTime parsed = OffsetDateTime.of(ld, lt, zo);
+            // We should have a complete OffsetDateTime now
+            logger.debug("Resolved to {}", parsed);
+            Date date = Date.from(parsed.toInstant());
+            return date;
+        } catch (DateTimeException e) {
+            logger.debug("failed to parse date with pattern {}: {}", () -> formatter.toString(), () -> e.getMessage());
+            //no problem, just wrong parser, keep going
+            return null;
+        }
+    }
+
+    /**
+     * The current date in a time zone, refreshed every second.
+     */
+    private LocalDate today(ZoneId zi) {
+        return current(zi).date;
+    }
+
+    private Today current(ZoneId zi) {
+        long now = System.currentTimeMillis();
+        Today current = today;
+        if (current == null || now >= current.expiry || ! current.zone.equals(zi)) {
+            current = new Today(zi, LocalDateTime.now(zi), now + TODAYREFRESH);
+            today = current;
+        }
+        return current;
+    }
+
+    /**
+     * Parse yyyy-MM-ddTHH:mm:ss[.S][offset], the common form of ISO_DATE_TIME.
+     * Any other form is left to the formatter.
+     */
+    private Date parseIso(String ds) {
+        int length = ds.length();
+        if (length < 19 || ds.charAt(4) != '-' || ds.charAt(7) != '-' || (ds.charAt(10) != 'T' && ds.charAt(10) != 't')
+                        || ds.charAt(13) != ':' || ds.charAt(16) != ':') {
+            return null;
+        }
+        int year = digits(ds, 0, 4);
+        int month = digits(ds, 5, 2);
+        int day = digits(ds, 8, 2);
+        int hour = digits(ds, 11, 2);
+        int minute = digits(ds, 14, 2);
+        int second = digits(ds, 17, 2);
+        int pos = 19;
+        int millis = 0;
+        if (pos < length && ds.charAt(pos) == '.') {
+            int start = ++pos;
+            while (pos < length && pos - start < 9 && isDigit(ds.charAt(pos))) {
+                if (pos - start < 3) {
+                    millis = millis * 10 + ds.charAt(pos) - '0';
                 }
-                ZoneOffset zo;
-                if (zi instanceof ZoneOffset) {
-                    zo = (ZoneOffset)zi;
-                } else {
-                    zo = zi.getRules().getOffset(LocalDateTime.of(ld, lt));
+                pos++;
+            }
+            if (pos == start) {
+                return null;
+            }
+            for (int i = pos - start; i < 3; i++) {
+                millis *= 10;
+            }
+        }
+        int offsetSeconds;
+        if (pos == length) {
+            offsetSeconds = Integer.MIN_VALUE;
+        } else if (ds.charAt(pos) == 'Z' && pos + 1 == length) {
+            offsetSeconds = 0;
+        } else if ((ds.charAt(pos) == '+' || ds.charAt(pos) == '-') && pos + 6 == length && ds.charAt(pos + 3) == ':') {
+            int offsetHours = digits(ds, pos + 1, 2);
+            int offsetMinutes = digits(ds, pos + 4, 2);
+            if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return null;
+            }
+            offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (ds.charAt(pos) == '-' ? -1 : 1);
+        } else {
+            return null;
+        }
+        return toDate(year, month, day, hour, minute, second, millis, offsetSeconds);
+    }
+
+    /**
+     * Parse MMM dd HH:mm:ss, as used by RFC 3164, the year is the current one.
+     */
+    private Date parseRfc3164(String ds, boolean padded) {
+        int length = ds.length();
+        int month = -1;
+        int pos = 0;
+        for (int i = 0; i < monthNames.length; i++) {
+            if (ds.startsWith(monthNames[i])) {
+                month = i + 1;
+                pos = monthNames[i].length();
+                break;
+            }
+        }
+        if (month < 0 || pos >= length || ds.charAt(pos++) != ' ') {
+            return null;
+        }
+        int dayLength = pos + 1 < length && isDigit(ds.charAt(pos + 1)) ? 2 : 1;
+        if ((padded && dayLength != 2) || pos + dayLength + 9 != length) {
+            return null;
+        }
+        int day = digits(ds, pos, dayLength);
+        pos += dayLength;
+        if (ds.charAt(pos) != ' ' || ds.charAt(pos + 3) != ':' || ds.charAt(pos + 6) != ':') {
+            return null;
+        }
+        int hour = digits(ds, pos + 1, 2);
+        int minute = digits(ds, pos + 4, 2);
+        int second = digits(ds, pos + 7, 2);
+        return toDate(today(zone).getYear(), month, day, hour, minute, second, 0, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Parse a number of seconds, with an optional fraction, or of milliseconds since the epoch.
+     */
+    private Date parseEpoch(String ds, boolean seconds) {
+        int length = ds.length();
+        int pos = 0;
+        boolean negative = false;
+        if (length > 0 && ds.charAt(0) == '-') {
+            negative = true;
+            pos++;
+        }
+        int start = pos;
+        long value = 0;
+        while (pos < length && isDigit(ds.charAt(pos))) {
+            value = value * 10 + ds.charAt(pos++) - '0';
+        }
+        if (pos == start || pos - start > 15) {
+            return null;
+        }
+        if (seconds) {
+            long millis = 0;
+            if (pos < length && ds.charAt(pos) == '.') {
+                int fractionStart = ++pos;
+                while (pos < length && isDigit(ds.charAt(pos))) {
+                    if (pos - fractionStart < 3) {
+                        millis = millis * 10 + ds.charAt(pos) - '0';
+                    }
+                    pos++;
+                }
+                for (int i = pos - fractionStart; i < 3; i++) {
+                    millis *= 10;
                 }
-                OffsetDateTime parsed = OffsetDateTime.of(ld, lt, zo);
-                // We should have a complete OffsetDateTime now
-                logger.debug("Resolved to {}", parsed);
-                Date date = Date.from(parsed.toInstant());
-                return date;
-            } catch (DateTimeException e) {
-                logger.debug("failed to parse date with pattern {}: {}", () -> formatter.toString(), () -> e.getMessage());
-                //no problem, just wrong parser, keep going
             }
+            value = value * 1000 + millis;
         }
-        return FieldsProcessor.RUNSTATUS.FAILED;
+        if (pos != length) {
+            return null;
+        }
+        return new Date(negative ? -value : value);
+    }
+
+    private Date toDate(int year, int month, int day, int hour, int minute, int second, int millis, int offsetSeconds) {
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > Month.of(month).length(IsoChronology.INSTANCE.isLeapYear(year))
+                        || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+        long epochSecond = toEpochDay(year, month, day) * 86400 + hour * 3600 + minute * 60 + second;
+        if (offsetSeconds == Integer.MIN_VALUE) {
+            // No offset, use the time zone
+            ZoneRules rules = zone.getRules();
+            ZoneOffset zo;
+            if (rules.isFixedOffset()) {
+                zo = rules.getOffset(Instant.EPOCH);
+            } else {
+                zo = rules.getOffset(LocalDateTime.of(year, month, day, hour, minute, second));
+            }
+            offsetSeconds = zo.getTotalSeconds();
+        }
+        return new Date((epochSecond - offsetSeconds) * 1000 + millis);
+    }
+
+    /**
+     * Same as {@link LocalDate#toEpochDay()}
+     */
+    private static long toEpochDay(long year, long month, int day) {
+        long total = 365 * year;
+        if (year >= 0) {
+            total += (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        } else {
+            total -= year / -4 - year / -100 + year / -400;
+        }
+        total += (367 * month - 362) / 12;
+        total += day - 1;
+        if (month > 2) {
+            total--;
+            if (! IsoChronology.INSTANCE.isLeapYear(year)) {
+                total--;
+            }
+        }
+        return total - DAYS_0000_TO_1970;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Read a fixed number of digits, return -1 if one is not a digit
+     */
+    private static int digits(String ds, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = ds.charAt(i);
+            if (! isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
     }
 
     /**
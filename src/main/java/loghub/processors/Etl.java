@@ -47,7 +47,7 @@ public abstract class Etl extends Processor {
         @Override
         public boolean configure(Properties properties) {
             try {
-                script = new Expression(expression, properties.groovyClassLoader, properties.formatters);
+                script = new Expression(expression, properties);
             } catch (ExpressionException e) {
                 Throwable cause = e.getCause();
                 if (cause instanceof CompilationFailedException) {
@@ -1,5 +1,7 @@
 package loghub.processors;
 
+import java.io.NotSerializableException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
@@ -10,6 +12,7 @@ import loghub.Expression;
 import loghub.Pipeline;
 import loghub.Processor;
 import loghub.ProcessorException;
+import loghub.StructuralCopy;
 import loghub.Expression.ExpressionException;
 import loghub.Event.Action;
 import loghub.configuration.Properties;
@@ -27,7 +30,7 @@ public class FireEvent extends Processor {
         expressions = new HashMap<>(fields.size());
         for(Map.Entry<String[], String> i: fields.entrySet()) {
             try {
-                Expression ex = new Expression(i.getValue(), properties.groovyClassLoader, properties.formatters);
+                Expression ex = new Expression(i.getValue(), properties);
                 expressions.put(i.getKey(), ex);
             } catch (ExpressionException e) {
                 logger.error("invalid expression for field {}: {}", i.getKey(), i.getValue());
@@ -48,6 +51,12 @@ public class FireEvent extends Processor {
         Event newEvent = Event.emptyEvent(ConnectionContext.EMPTY);
         for(Map.Entry<String[], Expression> e: expressions.entrySet()) {
             Object value = e.getValue().eval(event);
+            try {
+                // Don't share mutable values with the source event
+                value = StructuralCopy.copy(value);
+            } catch (NotSerializableException ex) {
+                throw event.buildException("Unable to copy value for " + Arrays.toString(e.getKey()), ex);
+            }
             newEvent.applyAtPath(Action.PUT, e.getKey(), value);
         }
         return newEvent.inject(pipeDestination, mainQueue);
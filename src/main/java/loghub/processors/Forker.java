@@ -18,6 +18,7 @@ public class Forker extends Processor {
     private String destination;
     private Pipeline pipeDestination;
     private BlockingQueue<Event> mainQueue;
+    private boolean copyOnWrite = true;
 
     @Override
     public boolean process(Event event) {
@@ -25,7 +26,7 @@ public class Forker extends Processor {
     }
 
     public boolean fork(Event event) {
-        Event newEvent = event.duplicate();
+        Event newEvent = event.duplicate(copyOnWrite);
         if(newEvent == null) {
             return false;
         }
@@ -48,6 +49,20 @@ public class Forker extends Processor {
         this.destination = destination;
     }
 
+    /**
+     * @return true if the nested maps are copied only when modified
+     */
+    public boolean isCopyOnWrite() {
+        return copyOnWrite;
+    }
+
+    /**
+     * @param copyOnWrite if the nested maps are copied only when modified
+     */
+    public void setCopyOnWrite(boolean copyOnWrite) {
+        this.copyOnWrite = copyOnWrite;
+    }
+
     @Override
     public boolean configure(Properties properties) {
         if( ! properties.namedPipeLine.containsKey(destination)) {
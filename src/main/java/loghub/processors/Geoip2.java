@@ -3,28 +3,31 @@ package loghub.processors;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.WeakHashMap;
 
 import javax.cache.Cache;
-import javax.cache.processor.EntryProcessor;
-import javax.cache.processor.EntryProcessorException;
 
 import org.apache.logging.log4j.Level;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.maxmind.db.NodeCache;
-import com.maxmind.db.NodeCache.Loader;
+import com.codahale.metrics.Meter;
+import com.maxmind.db.CHMCache;
+import com.maxmind.db.Reader.FileMode;
 import com.maxmind.geoip2.DatabaseReader;
-import com.maxmind.geoip2.exception.AddressNotFoundException;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
 import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.model.CountryResponse;
@@ -39,27 +42,82 @@ import loghub.Event;
 import loghub.Helpers;
 import loghub.ProcessorException;
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.Handle;
 import loghub.configuration.CacheManager.Policy;
 
+/**
+ * Add geolocation informations from a MaxMind GeoIP2 database.
+ * <p>
+ * The database readers are shared by all the processors, a database file is memory mapped once. If the file is
+ * replaced, the processors configured after that use a new reader. The informations for an address and a locale are
+ * stored in a cache, shared by the processors using the same database, as immutable maps.
+ */
 public class Geoip2 extends FieldsProcessor {
 
     static enum LocationType {
-        COUNTRY,
-        REGISTREDCOUNTRY,
-        REPRESENTEDCOUNTRY,
-        CITY,
-        LOCATION,
-        CONTINENT,
-        POSTAL,
-        SUBDIVISION,
+        COUNTRY("country"),
+        REGISTREDCOUNTRY("registred_country"),
+        REPRESENTEDCOUNTRY("represented_country"),
+        CITY("city"),
+        LOCATION("location"),
+        CONTINENT("continent"),
+        POSTAL("postal"),
+        SUBDIVISION("subdivisions");
+        private final String field;
+        LocationType(String field) {
+            this.field = field;
+        }
     };
 
+    private static final class CacheKey {
+        private final InetAddress address;
+        private final String locale;
+        private CacheKey(InetAddress address, String locale) {
+            this.address = address;
+            this.locale = locale;
+        }
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, locale);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            } else {
+                CacheKey other = (CacheKey) obj;
+                return address.equals(other.address) && Objects.equals(locale, other.locale);
+            }
+        }
+    }
+
+    /**
+     * A shared reader for a database file, with the modification time of the file when it was opened.
+     */
+    private static final class DatabaseFile {
+        private final FileTime modified;
+        private final WeakReference<DatabaseReader> reader;
+        private DatabaseFile(FileTime modified, DatabaseReader reader) {
+            this.modified = modified;
+            this.reader = new WeakReference<>(reader);
+        }
+    }
+
+    // The readers are weakly held, they are released with the last processor using them
+    private static final Map<Path, DatabaseFile> readers = new HashMap<>();
+    private static final Map<ClassLoader, WeakReference<DatabaseReader>> embeddedReaders = new WeakHashMap<>();
+    private static final Handle<Meter> cacheHits = Properties.metrics.meterHandle("Geoip2.cache.hits");
+    private static final Handle<Meter> cacheMisses = Properties.metrics.meterHandle("Geoip2.cache.misses");
 
     private Path geoipdb = null;
     private LocationType[] types = new LocationType[] {};
     private String locale = null;
-    private int cacheSize = 100;
+    private int cacheSize = 10000;
     private DatabaseReader reader;
+    private boolean cityDatabase;
+    private Cache<CacheKey, Map<String, Object>> cache;
 
     @Override
     public Object fieldFunction(Event event, Object addr) throws ProcessorException {
@@ -79,6 +137,35 @@ public class Geoip2 extends FieldsProcessor {
             throw event.buildException("It's not an IP address: " + addr);
         }
 
+        CacheKey key = new CacheKey(ipInfo, locale);
+        Map<String, Object> found = cache.get(key);
+        if (found == null) {
+            cacheMisses.get().mark();
+            found = resolve(event, ipInfo);
+            cache.put(key, found);
+        } else {
+            cacheHits.get().mark();
+        }
+        // The cached values are immutable, only the top level map is built for each event
+        Map<String, Object> informations = new HashMap<>(types.length);
+        for(LocationType type: types) {
+            Object info = found.get(type.field);
+            if (info != null) {
+                informations.put(type.field, info);
+            }
+        }
+        if (informations.size() > 0) {
+            return informations;
+        } else {
+            return RUNSTATUS.FAILED;
+        }
+    }
+
+    /**
+     * Search an address in the database and build the informations for all the location types.
+     * @return the informations found, an empty map if the address is unknown
+     */
+    private Map<String, Object> resolve(Event event, InetAddress ipInfo) throws ProcessorException {
         Country country = null;
         Country registred_country = null;
         Country represented_country = null;
@@ -88,16 +175,13 @@ public class Geoip2 extends FieldsProcessor {
         Postal postal = null;
         List<Subdivision> subdivision = null;
 
-        Map<String, Object> informations = new HashMap<>();
-
         try {
-            switch(reader.getMetadata().getDatabaseType()) {
-            case "GeoIP2-City":
-            case "GeoLite2-City": {
-                CityResponse response = reader.city(ipInfo);
-                if(response == null) {
-                    throw event.buildException("City not found for " + ipInfo.toString());
+            if (cityDatabase) {
+                Optional<CityResponse> found = reader.tryCity(ipInfo);
+                if (! found.isPresent()) {
+                    return Collections.emptyMap();
                 }
+                CityResponse response = found.get();
                 country = response.getCountry();
                 city = response.getCity();
                 continent = response.getContinent();
@@ -106,31 +190,23 @@ public class Geoip2 extends FieldsProcessor {
                 registred_country = response.getRegisteredCountry();
                 represented_country = response.getRepresentedCountry();
                 subdivision = response.getSubdivisions();
-                break;
-            }
-            case "GeoIP2-Country":
-            case "GeoLite2-Country": {
-                CountryResponse response = reader.country(ipInfo);
-                if(response == null) {
-                    throw event.buildException("Country not found for " + ipInfo.toString());
+            } else {
+                Optional<CountryResponse> found = reader.tryCountry(ipInfo);
+                if (! found.isPresent()) {
+                    return Collections.emptyMap();
                 }
+                CountryResponse response = found.get();
                 country = response.getCountry();
                 continent = response.getContinent();
                 registred_country = response.getRegisteredCountry();
                 represented_country = response.getRepresentedCountry();
-                break;
             }
-            default:
-                throw event.buildException("Unknown database type: " + reader.getMetadata().getDatabaseType());
-            }
-        } catch (AddressNotFoundException e) {
-            // not an error, just return a failure
-            return RUNSTATUS.FAILED;
         } catch (IOException | GeoIp2Exception e) {
             throw event.buildException("can't read geoip database", e);
         }
 
-        for(LocationType type: types) {
+        Map<String, Object> informations = new HashMap<>();
+        for(LocationType type: LocationType.values()) {
             switch(type) {
             case COUNTRY:
                 if(country != null) {
@@ -138,7 +214,7 @@ public class Geoip2 extends FieldsProcessor {
                     Optional.ofNullable(country.getIsoCode()).ifPresent(i -> infos.put("code", i));
                     Optional.ofNullable(country.getNames().get(locale)).ifPresent(i -> infos.put("name", i));
                     if(infos.size() > 0) {
-                        informations.put("country", infos);
+                        informations.put(type.field, Collections.unmodifiableMap(infos));
                     }
                 }
                 break;
@@ -148,7 +224,7 @@ public class Geoip2 extends FieldsProcessor {
                     Optional.ofNullable(represented_country.getIsoCode()).ifPresent(i -> infos.put("code", i));
                     Optional.ofNullable(represented_country.getNames().get(locale)).ifPresent(i -> infos.put("name", i));
                     if(infos.size() > 0) {
-                        informations.put("represented_country", infos);
+                        informations.put(type.field, Collections.unmodifiableMap(infos));
                     }
                 }
                 break;
@@ -158,13 +234,13 @@ public class Geoip2 extends FieldsProcessor {
                     Optional.ofNullable(registred_country.getIsoCode()).ifPresent(i -> infos.put("code", i));
                     Optional.ofNullable(registred_country.getNames().get(locale)).ifPresent(i -> infos.put("name", i));
                     if(infos.size() > 0) {
-                        informations.put("registred_country", infos);
+                        informations.put(type.field, Collections.unmodifiableMap(infos));
                     }
                 }
                 break;
             case CITY: {
                 if(city != null) {
-                    Optional.ofNullable(city.getNames().get(locale)).ifPresent(i -> informations.put("city", i));
+                    Optional.ofNullable(city.getNames().get(locale)).ifPresent(i -> informations.put(type.field, i));
                 }
                 break;
             }
@@ -179,18 +255,18 @@ public class Geoip2 extends FieldsProcessor {
                     Optional.ofNullable(location.getAverageIncome()).ifPresent(i -> infos.put("average_income", i));
                     Optional.ofNullable(location.getPopulationDensity()).ifPresent(i -> infos.put("population_density", i));
                     if(infos.size() > 0) {
-                        informations.put("location", infos);
+                        informations.put(type.field, Collections.unmodifiableMap(infos));
                     }
                 }
                 break;
             case CONTINENT:
                 if(continent != null) {
-                    Optional.ofNullable(continent.getNames().get(locale)).ifPresent(i -> informations.put("continent", i));
+                    Optional.ofNullable(continent.getNames().get(locale)).ifPresent(i -> informations.put(type.field, i));
                 }
                 break;
             case POSTAL:
                 if(postal != null) {
-                    Optional.ofNullable(postal.getCode()).ifPresent(i -> informations.put("postal", i));
+                    Optional.ofNullable(postal.getCode()).ifPresent(i -> informations.put(type.field, i));
                 }
                 break;
             case SUBDIVISION:
@@ -201,23 +277,20 @@ public class Geoip2 extends FieldsProcessor {
                         Optional.ofNullable(sub.getIsoCode()).ifPresent(i -> subdivisioninfo.put("code", i));
                         Optional.ofNullable(sub.getNames().get(locale)).ifPresent(i -> subdivisioninfo.put("name", i));
                         if(subdivisioninfo.size() > 0) {
-                            all.add(subdivisioninfo);
+                            all.add(Collections.unmodifiableMap(subdivisioninfo));
                         }
                     }
                     if(all.size() > 0) {
-                        informations.put("subdivisions", all);
+                        informations.put(type.field, Collections.unmodifiableList(all));
                     }
                 }
                 break;
             }
         }
-        if (informations.size() > 0) {
-            return informations;
-        } else {
-            return RUNSTATUS.FAILED;
-        }
+        return Collections.unmodifiableMap(informations);
     }
 
+    @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public boolean configure(Properties properties) {
         // It might have been setup by properties
@@ -228,29 +301,9 @@ public class Geoip2 extends FieldsProcessor {
         if (geoipdb == null) {
             geoipdb = Optional.ofNullable(properties.get("geoip2data")).map(i-> Paths.get(i.toString())).orElse(null);
         }
-        Cache<Integer, JsonNode> ehCache = properties.cacheManager.getBuilder(Integer.class, JsonNode.class)
-                        .setCacheSize(cacheSize)
-                        .setName("Geoip2", geoipdb != null ? geoipdb : "GeoLite2-City.mmdb")
-                        .setExpiry(Policy.ETERNAL)
-                        .build();
-        EntryProcessor<Integer, JsonNode, JsonNode> ep = (i, j) -> {
-            try {
-                JsonNode node = i.getValue();
-                if (! i.exists()) {
-                    Loader loader = (Loader)j[0];
-                    node = loader.load(i.getKey());
-                    i.setValue(node);
-                }
-                return node;
-            } catch (Exception e) {
-                throw new EntryProcessorException(e);
-            }
-        };
-        NodeCache nc = (k, l) -> ehCache.invoke(k, ep, l);
-
         if(geoipdb != null) {
             try {
-                reader = new DatabaseReader.Builder(geoipdb.toFile()).withCache(nc).build();
+                reader = getReader(geoipdb);
             } catch (IOException e) {
                 logger.error("can't read geoip database " + geoipdb.toString());
                 logger.throwing(Level.DEBUG, e);
@@ -258,13 +311,10 @@ public class Geoip2 extends FieldsProcessor {
             }
         } else {
             try {
-                InputStream is = properties.classloader.getResourceAsStream("GeoLite2-City.mmdb");
-                if (is == null) {
+                reader = getReader(properties.classloader);
+                if (reader == null) {
                     logger.error("Didn't find a default database");
                     return false;
-                } else {
-                    InputStream embedded = new BufferedInputStream(is);
-                    reader = new DatabaseReader.Builder(embedded).withCache(nc).build();
                 }
             } catch (IOException e) {
                 logger.error("Didn't find a default database");
@@ -272,9 +322,73 @@ public class Geoip2 extends FieldsProcessor {
                 return false;
             }
         }
+        switch(reader.getMetadata().getDatabaseType()) {
+        case "GeoIP2-City":
+        case "GeoLite2-City":
+            cityDatabase = true;
+            break;
+        case "GeoIP2-Country":
+        case "GeoLite2-Country":
+            cityDatabase = false;
+            break;
+        default:
+            logger.error("Unknown database type: {}", reader.getMetadata().getDatabaseType());
+            return false;
+        }
+        // The cache name is build from the reader, so processors using the same database share it
+        cache = (Cache) properties.cacheManager.getBuilder(CacheKey.class, Map.class)
+                        .setCacheSize(cacheSize)
+                        .setName("Geoip2", reader)
+                        .setExpiry(Policy.ETERNAL)
+                        .build();
+        Properties.metrics.gaugeIfAbsent("Geoip2.cache.hitRatio", Geoip2::getHitRatio);
         return super.configure(properties);
     }
 
+    /**
+     * @return the part of the lookups found in the caches
+     */
+    static double getHitRatio() {
+        long hits = cacheHits.get().getCount();
+        long total = hits + cacheMisses.get().getCount();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * A replaced file gives a new reader. The previous one is not closed, as processors might still use it, it's
+     * released with them.
+     */
+    private static synchronized DatabaseReader getReader(Path geoipdb) throws IOException {
+        Path path = geoipdb.toAbsolutePath().normalize();
+        FileTime modified = Files.getLastModifiedTime(path);
+        DatabaseFile shared = readers.get(path);
+        DatabaseReader found = shared != null && shared.modified.equals(modified) ? shared.reader.get() : null;
+        if (found == null) {
+            found = new DatabaseReader.Builder(path.toFile()).fileMode(FileMode.MEMORY_MAPPED).withCache(new CHMCache()).build();
+            readers.put(path, new DatabaseFile(modified, found));
+        }
+        return found;
+    }
+
+    /**
+     * The embedded database is read once for each class loader
+     */
+    private static synchronized DatabaseReader getReader(ClassLoader classloader) throws IOException {
+        WeakReference<DatabaseReader> shared = embeddedReaders.get(classloader);
+        DatabaseReader found = shared != null ? shared.get() : null;
+        if (found == null) {
+            InputStream is = classloader.getResourceAsStream("GeoLite2-City.mmdb");
+            if (is == null) {
+                return null;
+            }
+            try (InputStream embedded = new BufferedInputStream(is)) {
+                found = new DatabaseReader.Builder(embedded).withCache(new CHMCache()).build();
+            }
+            embeddedReaders.put(classloader, new WeakReference<>(found));
+        }
+        return found;
+    }
+
     public String getGeoipdb() {
         return geoipdb.toString();
     }
@@ -303,7 +417,7 @@ public class Geoip2 extends FieldsProcessor {
     }
 
     /**
-     * @return the cacheSize
+     * @return the size of the cache of resolved addresses
      */
     public int getCacheSize() {
         return cacheSize;
@@ -1,45 +1,88 @@
 package loghub.processors;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.Level;
+import org.joni.exception.JOniException;
 
-import io.krakens.grok.api.GrokCompiler;
 import io.krakens.grok.api.Match;
 import loghub.Event;
-import loghub.Helpers;
+import loghub.configuration.GrokPatterns;
 import loghub.configuration.Properties;
 
 public class Grok extends FieldsProcessor {
 
 
-    public static final String PATTERNSFOLDER = "patterns";
+    public static final String PATTERNSFOLDER = GrokPatterns.PATTERNSFOLDER;
+
+    /**
+     * A destination field and the named groups that fill it.
+     */
+    private static class Capture {
+        private final String field;
+        private final String[] groups;
+        private Capture(String field, List<String> groups) {
+            this.field = field;
+            this.groups = groups.toArray(new String[groups.size()]);
+        }
+    }
+
+    /**
+     * The regex engine used
+     */
+    public enum Engine {
+        /**
+         * java-grok, using java.util.regex
+         */
+        JAVA,
+        /**
+         * Oniguruma, using the joni library, the match is done on the bytes of the value
+         */
+        JONI
+    }
 
     private io.krakens.grok.api.Grok grok;
-    private String pattern;
+    private Capture[] captures;
+    private JoniGrok joniGrok;
+    private String[] patterns;
+    private Engine engine = Engine.JAVA;
     private Map<Object, Object> customPatterns = Collections.emptyMap();
 
     @Override
     public boolean configure(Properties properties) {
-        GrokCompiler grokCompiler = GrokCompiler.newInstance();
-
-        Helpers.ThrowingConsumer<InputStream> grokloader = is -> grokCompiler.register(new InputStreamReader(new BufferedInputStream(is)));
+        if (patterns == null || patterns.length == 0) {
+            logger.error("No pattern given");
+            return false;
+        }
         try {
-            Helpers.readRessources(properties.classloader, PATTERNSFOLDER, grokloader);
-            customPatterns.forEach((k,v) -> {
-                grokCompiler.register(k.toString(), v.toString());
-            });
-            grok = grokCompiler.compile(pattern, true);
-            // Switch to true when  https://github.com/thekrakken/java-grok/issues/61 is fixed
-        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            if (engine == Engine.JONI) {
+                Map<String, String> definitions = properties.grokPatterns.getPatterns();
+                if (! customPatterns.isEmpty()) {
+                    definitions = new HashMap<>(definitions);
+                    for (Map.Entry<Object, Object> e: customPatterns.entrySet()) {
+                        definitions.put(e.getKey().toString(), e.getValue().toString());
+                    }
+                }
+                joniGrok = new JoniGrok(patterns, definitions);
+            } else {
+                // Multiple patterns are tried as alternatives in a single regex
+                String pattern = patterns.length == 1 ? patterns[0] : Arrays.stream(patterns).map(i -> "(?:" + i + ")").collect(Collectors.joining("|"));
+                grok = properties.grokPatterns.compile(pattern, customPatterns);
+                // Typed captures are converted by java-grok
+                captures = grok.converters.isEmpty() ? resolveCaptures() : null;
+            }
+        } catch (IOException | URISyntaxException | IllegalArgumentException | JOniException e) {
             logger.error("unable to load patterns: {}", e.getMessage());
             logger.catching(Level.DEBUG, e);
             return false;
@@ -47,20 +90,79 @@ public class Grok extends FieldsProcessor {
         return super.configure(properties);
     }
 
+    /**
+     * Resolve the destination of each named group once, filtering the unwanted ones.
+     */
+    private Capture[] resolveCaptures() {
+        Map<String, List<String>> fields = new LinkedHashMap<>();
+        for (String group: grok.namedGroups) {
+            String id = grok.getNamedRegexCollectionById(group);
+            String destinationField = id != null && ! id.isEmpty() ? id : group;
+            // Dirty hack to filter non named regex
+            // Needed until https://github.com/thekrakken/java-grok/issues/61 is fixed
+            if ("UNWANTED".equals(destinationField) || (destinationField.equals(destinationField.toUpperCase()) && ! ".".equals(destinationField))) {
+                continue;
+            }
+            fields.computeIfAbsent(destinationField, k -> new ArrayList<>(1)).add(group);
+        }
+        return fields.entrySet().stream().map(e -> new Capture(e.getKey(), e.getValue())).toArray(Capture[]::new);
+    }
+
     @Override
     public Object fieldFunction(Event event, Object value) {
+        if (joniGrok != null) {
+            return joniGrok.match(event, value.toString());
+        }
         Match gm = grok.match(value.toString());
-        //Results from grok needs to be cleaned
-        Map<String, Object> captures = gm.capture();
+        if (captures == null) {
+            return storeCaptures(event, gm.capture());
+        }
+        Matcher m = gm.getMatch();
+        if (m == null || grok.namedGroups.isEmpty()) {
+            return FieldsProcessor.RUNSTATUS.FAILED;
+        }
+        Object returned = FieldsProcessor.RUNSTATUS.NOSTORE;
+        for (Capture c: captures) {
+            Object stored;
+            if (c.groups.length == 1) {
+                stored = cleanString(m.group(c.groups[0]));
+            } else {
+                List<String> newvalues = new ArrayList<>(c.groups.length);
+                for (String group: c.groups) {
+                    String groupValue = m.group(group);
+                    if (groupValue != null) {
+                        newvalues.add(cleanString(groupValue));
+                    }
+                }
+                if (newvalues.size() == 0) {
+                    stored = null;
+                } else if (newvalues.size() == 1) {
+                    stored = newvalues.get(0);
+                } else {
+                    stored = newvalues;
+                }
+            }
+            if (stored == null) {
+                continue;
+            }
+            // . is a special field name, it mean a value to put back in the original field
+            if (! ".".equals(c.field) ) {
+                event.put(c.field, stored);
+            } else {
+                returned = stored;
+            }
+        }
+        return returned;
+    }
+
+    private Object storeCaptures(Event event, Map<String, Object> captures) {
         if (captures.size() == 0) {
             return FieldsProcessor.RUNSTATUS.FAILED;
         }
         Object returned = FieldsProcessor.RUNSTATUS.NOSTORE;
-        for (Map.Entry<String, Object> e: gm.capture().entrySet()) {
+        for (Map.Entry<String, Object> e: captures.entrySet()) {
             String destinationField = e.getKey();
             Object stored;
-            // Dirty hack to filter non named regex
-            // Needed until https://github.com/thekrakken/java-grok/issues/61 is fixed
             if (destinationField.equals(destinationField.toUpperCase()) && ! ".".equals(destinationField)) {
                 continue;
             }
@@ -81,7 +183,6 @@ public class Grok extends FieldsProcessor {
             } else {
                 stored = e.getValue();
             }
-            // . is a special field name, it mean a value to put back in the original field
             if (! ".".equals(destinationField) ) {
                 event.put(destinationField, stored);
             } else {
@@ -91,12 +192,50 @@ public class Grok extends FieldsProcessor {
         return returned;
     }
 
+    /**
+     * Remove surrounding quotes, like java-grok does.
+     */
+    static String cleanString(String value) {
+        if (value == null || value.isEmpty()) {
+            return value;
+        }
+        char first = value.charAt(0);
+        if (first != value.charAt(value.length() - 1) || (first != '"' && first != '\'')) {
+            return value;
+        } else if (value.length() <= 2) {
+            return "";
+        } else if (value.indexOf(first, 1) < value.length() - 1) {
+            return value;
+        } else {
+            return value.substring(1, value.length() - 1);
+        }
+    }
+
     public void setPattern(String pattern) {
-        this.pattern = pattern;
+        this.patterns = new String[] {pattern};
     }
 
     public String getPattern() {
-        return pattern;
+        return patterns != null && patterns.length == 1 ? patterns[0] : null;
+    }
+
+    /**
+     * @param patterns the patterns to try, the first one that match is used
+     */
+    public void setPatterns(String[] patterns) {
+        this.patterns = Arrays.copyOf(patterns, patterns.length);
+    }
+
+    public String[] getPatterns() {
+        return patterns;
+    }
+
+    public String getEngine() {
+        return engine.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public void setEngine(String engine) {
+        this.engine = Engine.valueOf(engine.toUpperCase(Locale.ENGLISH));
     }
 
     @Override
@@ -0,0 +1,298 @@
+package loghub.processors;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jcodings.specific.USASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.joni.Option;
+import org.joni.Regex;
+import org.joni.Region;
+
+import loghub.Event;
+import loghub.Helpers;
+
+/**
+ * A grok pattern expanded in a single Oniguruma regex, matched on the bytes of the value.
+ * <p>
+ * Each <code>%{NAME:field:type}</code> is replaced by the definition of NAME in a named group, unnamed references
+ * are replaced with a non capturing group. The field and the type of each named group are resolved once,
+ * so the captures are converted and stored while iterating the groups.
+ */
+class JoniGrok {
+
+    private static final Pattern GROKREFERENCE = Pattern.compile("%\\{(?<name>\\w+)(?::(?<field>[^:}]+)(?::(?<type>\\w+))?)?\\}");
+    private static final int MAXDEPTH = 100;
+    private static final String GROUPPREFIX = "grok";
+    private static final String UNWANTED = "UNWANTED";
+
+    enum Type {
+        STRING(Grok::cleanString),
+        INT(Integer::valueOf),
+        LONG(Long::valueOf),
+        FLOAT(Float::valueOf),
+        DOUBLE(Double::valueOf),
+        BOOLEAN(Boolean::valueOf);
+        private final Function<String, Object> converter;
+        Type(Function<String, Object> converter) {
+            this.converter = converter;
+        }
+        static Type resolve(String type) {
+            if (type == null) {
+                return STRING;
+            }
+            switch (type.toLowerCase(Locale.ENGLISH)) {
+            case "int":
+            case "integer":
+                return INT;
+            case "long":
+                return LONG;
+            case "float":
+                return FLOAT;
+            case "double":
+                return DOUBLE;
+            case "boolean":
+                return BOOLEAN;
+            case "string":
+                return STRING;
+            default:
+                throw new IllegalArgumentException("Unsupported grok type: " + type);
+            }
+        }
+    }
+
+    /**
+     * A destination field and the group numbers that fill it.
+     */
+    private static class Capture {
+        private final String field;
+        private final int[] backRefs;
+        private final Type[] types;
+        private Capture(String field, List<Integer> backRefs, List<Type> types) {
+            this.field = field;
+            this.backRefs = backRefs.stream().mapToInt(Integer::intValue).toArray();
+            this.types = types.toArray(new Type[types.size()]);
+        }
+    }
+
+    private final Regex patternAscii;
+    private final Regex patternUtf8;
+    private final Capture[] captures;
+
+    /**
+     * Build a new grok, where each pattern is an alternative
+     * @param patterns the grok patterns
+     * @param definitions the patterns definitions
+     * @throws IllegalArgumentException if a pattern can't be expanded
+     * @throws org.joni.exception.SyntaxException if the expanded regex is invalid
+     */
+    JoniGrok(String[] patterns, Map<String, String> definitions) {
+        List<String[]> groups = new ArrayList<>();
+        StringBuilder regex = new StringBuilder();
+        for (String pattern: patterns) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            if (patterns.length > 1) {
+                regex.append("(?:");
+                expand(pattern, definitions, groups, regex, 0);
+                regex.append(')');
+            } else {
+                expand(pattern, definitions, groups, regex, 0);
+            }
+        }
+        String regexSrc = regex.toString();
+        String escapedSrc = escapeCodePoints(regexSrc);
+        // The ASCII regex is generated only if there is no non ASCII code points in the regex
+        byte[] regexBytesAscii = escapedSrc == regexSrc ? OnigurumaRegex.getBytesAscii(regexSrc) : null;
+        if (regexBytesAscii != null) {
+            patternAscii = new Regex(regexBytesAscii, 0, regexBytesAscii.length, Option.NONE, USASCIIEncoding.INSTANCE);
+        } else {
+            patternAscii = null;
+        }
+        byte[] regexBytesUtf8 = escapedSrc.getBytes(StandardCharsets.UTF_8);
+        patternUtf8 = new Regex(regexBytesUtf8, 0, regexBytesUtf8.length, Option.NONE, UTF8Encoding.INSTANCE);
+        captures = resolveCaptures(groups);
+    }
+
+    private void expand(String pattern, Map<String, String> definitions, List<String[]> groups, StringBuilder regex, int depth) {
+        if (depth > MAXDEPTH) {
+            throw new IllegalArgumentException("Deep recursion pattern compilation of " + pattern);
+        }
+        Matcher m = GROKREFERENCE.matcher(pattern);
+        int last = 0;
+        while (m.find()) {
+            regex.append(pattern, last, m.start());
+            last = m.end();
+            String name = m.group("name");
+            String definition = definitions.get(name);
+            if (definition == null) {
+                throw new IllegalArgumentException(String.format("No definition for key '%s' found, aborting", name));
+            }
+            String field = m.group("field");
+            // UNWANTED is used in some definitions, it's not captured
+            if (field != null && ! UNWANTED.equals(field)) {
+                regex.append("(?<").append(GROUPPREFIX).append(groups.size()).append('>');
+                groups.add(new String[] {field, m.group("type")});
+            } else {
+                regex.append("(?:");
+            }
+            expand(definition, definitions, groups, regex, depth + 1);
+            regex.append(')');
+        }
+        regex.append(pattern, last, pattern.length());
+    }
+
+    /**
+     * In java, <code>\xHH</code> is a code point, but it's a byte for joni, so it's rewritten
+     * as <code>\x{HH}</code> when not in the ASCII range.
+     * @return the same string if nothing was rewritten
+     */
+    private String escapeCodePoints(String regex) {
+        StringBuilder escaped = new StringBuilder(regex.length());
+        boolean rewritten = false;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            escaped.append(c);
+            if (c == '\\' && i < regex.length()) {
+                char next = regex.charAt(i++);
+                if (next == 'x' && i + 1 < regex.length()
+                    && Character.digit(regex.charAt(i), 16) >= 8 && Character.digit(regex.charAt(i + 1), 16) >= 0) {
+                    escaped.append("x{").append(regex, i, i + 2).append('}');
+                    i += 2;
+                    rewritten = true;
+                } else {
+                    escaped.append(next);
+                }
+            }
+        }
+        return rewritten ? escaped.toString() : regex;
+    }
+
+    /**
+     * Resolve the destination of each named group, the uppercase names are not captured, they come from
+     * named groups in the patterns definitions.
+     */
+    private Capture[] resolveCaptures(List<String[]> groups) {
+        if (patternUtf8.numberOfNames() == 0) {
+            return new Capture[0];
+        }
+        // The iterator is not in the groups order, the values of a field are kept in that order
+        SortedMap<Integer, String> fields = new TreeMap<>();
+        Map<Integer, Type> types = new HashMap<>();
+        Helpers.iteratorToStream(patternUtf8.namedBackrefIterator()).forEach(e -> {
+            String name = new String(e.name, e.nameP, e.nameEnd - e.nameP, StandardCharsets.UTF_8);
+            String field;
+            Type type;
+            if (name.startsWith(GROUPPREFIX) && name.length() > GROUPPREFIX.length() && Character.isDigit(name.charAt(GROUPPREFIX.length()))) {
+                String[] group = groups.get(Integer.parseInt(name.substring(GROUPPREFIX.length())));
+                field = group[0];
+                type = Type.resolve(group[1]);
+            } else if (name.equals(name.toUpperCase())) {
+                return;
+            } else {
+                field = name;
+                type = Type.STRING;
+            }
+            for (int number: e.getBackRefs()) {
+                fields.put(number, field);
+                types.put(number, type);
+            }
+        });
+        Map<String, List<Integer>> backRefs = new LinkedHashMap<>();
+        Map<String, List<Type>> fieldTypes = new HashMap<>();
+        fields.forEach((number, field) -> {
+            backRefs.computeIfAbsent(field, k -> new ArrayList<>()).add(number);
+            fieldTypes.computeIfAbsent(field, k -> new ArrayList<>()).add(types.get(number));
+        });
+        return backRefs.entrySet().stream().map(e -> new Capture(e.getKey(), e.getValue(), fieldTypes.get(e.getKey()))).toArray(Capture[]::new);
+    }
+
+    /**
+     * Match a value and store the captures in the event
+     * @param event the event to fill
+     * @param line the value to match
+     * @return {@link FieldsProcessor.RUNSTATUS#FAILED} if the value doesn't match or if the pattern has no named
+     *         group, like the java engine, the value for the special field <code>.</code>, or
+     *         {@link FieldsProcessor.RUNSTATUS#NOSTORE}
+     */
+    Object match(Event event, String line) {
+        if (patternUtf8.numberOfNames() == 0) {
+            return FieldsProcessor.RUNSTATUS.FAILED;
+        }
+        Regex regex;
+        Charset cs;
+        byte[] lineBytes = patternAscii != null ? OnigurumaRegex.getBytesAscii(line) : null;
+        if (lineBytes != null) {
+            regex = patternAscii;
+            cs = StandardCharsets.US_ASCII;
+        } else {
+            regex = patternUtf8;
+            cs = StandardCharsets.UTF_8;
+            lineBytes = line.getBytes(StandardCharsets.UTF_8);
+        }
+        org.joni.Matcher matcher = regex.matcher(lineBytes);
+        if (matcher.search(0, lineBytes.length, Option.DEFAULT) == -1) {
+            return FieldsProcessor.RUNSTATUS.FAILED;
+        }
+        Region region = matcher.getEagerRegion();
+        Object returned = FieldsProcessor.RUNSTATUS.NOSTORE;
+        if (region == null) {
+            return returned;
+        }
+        for (Capture c: captures) {
+            Object stored = null;
+            List<Object> values = null;
+            for (int i = 0; i < c.backRefs.length; i++) {
+                int number = c.backRefs[i];
+                int begin = region.beg[number];
+                if (begin < 0) {
+                    continue;
+                }
+                String content = new String(lineBytes, begin, region.end[number] - begin, cs);
+                Object value;
+                try {
+                    value = c.types[i].converter.apply(content);
+                } catch (NumberFormatException ex) {
+                    event.put(c.field + "_grokfailure", ex.toString());
+                    continue;
+                }
+                if (stored == null) {
+                    stored = value;
+                } else {
+                    if (values == null) {
+                        values = new ArrayList<>(c.backRefs.length);
+                        values.add(stored);
+                    }
+                    values.add(value);
+                }
+            }
+            if (values != null) {
+                stored = values;
+            }
+            if (stored == null) {
+                continue;
+            }
+            // . is a special field name, it mean a value to put back in the original field
+            if (! ".".equals(c.field)) {
+                event.put(c.field, stored);
+            } else {
+                returned = stored;
+            }
+        }
+        return returned;
+    }
+
+}
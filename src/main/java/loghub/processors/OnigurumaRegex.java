@@ -31,7 +31,7 @@ public class OnigurumaRegex extends FieldsProcessor {
 
     private static final int BUFFERSIZE = 4096;
     private static final ThreadLocal<char[]> holder_ascii = ThreadLocal.withInitial(() -> new char[BUFFERSIZE]);
-    private static byte[] getBytesAscii(String searched) {
+    static byte[] getBytesAscii(String searched) {
         int length = searched.length();
         char[] buffer;
         if (length > BUFFERSIZE) {
@@ -56,7 +56,7 @@ public class Test extends Processor {
         thenTransformer.configure(properties);
         elseTransformer.configure(properties);
         try {
-            ifClause = new Expression(ifClauseSource, properties.groovyClassLoader, properties.formatters);
+            ifClause = new Expression(ifClauseSource, properties);
         } catch (ExpressionException e) {
             Expression.logError(e, ifClauseSource, logger);
             return false;
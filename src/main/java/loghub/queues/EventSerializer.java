@@ -0,0 +1,327 @@
+package loghub.queues;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+
+/**
+ * A compact binary encoding of events, used to store them on disk.
+ * <p>
+ * Only the timestamp, the metas and the fields are stored. Each value is prefixed with a type tag, the usual
+ * types of an event are written directly, other serializable values are written with java serialization. An
+ * {@link InetAddress} keeps only its address.
+ */
+final class EventSerializer {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte TRUE = 6;
+    private static final byte FALSE = 7;
+    private static final byte SHORT = 8;
+    private static final byte BYTE = 9;
+    private static final byte CHARACTER = 10;
+    private static final byte BIGINTEGER = 11;
+    private static final byte BIGDECIMAL = 12;
+    private static final byte DATE = 13;
+    private static final byte INSTANT = 14;
+    private static final byte BYTES = 15;
+    private static final byte INETADDRESS = 16;
+    private static final byte MAP = 17;
+    private static final byte LIST = 18;
+    private static final byte SET = 19;
+    private static final byte ARRAY = 20;
+    private static final byte SERIALIZED = 21;
+
+    /**
+     * The buffer where events are written, it's reused for each event.
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private final Buffer buffer = new Buffer(4096);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+
+    /**
+     * Encode an event, the result is valid until the next call.
+     * @param event the event to encode
+     * @return the buffer holding the encoded event
+     * @throws NotSerializableException if a value can't be encoded
+     */
+    Buffer write(Event event) throws IOException {
+        buffer.reset();
+        out.writeLong(event.getTimestamp().getTime());
+        Object[] metas = event.getMetaAsStream().toArray();
+        out.writeInt(metas.length);
+        for (Object o: metas) {
+            @SuppressWarnings("unchecked")
+            Map.Entry<String, Object> e = (Map.Entry<String, Object>) o;
+            writeString(e.getKey());
+            writeValue(e.getValue());
+        }
+        out.writeInt(event.size());
+        for (Map.Entry<String, Object> e: event.entrySet()) {
+            writeString(e.getKey());
+            writeValue(e.getValue());
+        }
+        return buffer;
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] content = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    private void writeValue(Object o) throws IOException {
+        if (o == null) {
+            out.writeByte(NULL);
+        } else if (o instanceof String) {
+            out.writeByte(STRING);
+            writeString((String) o);
+        } else if (o instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) o);
+        } else if (o instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) o);
+        } else if (o instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) o);
+        } else if (o instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) o);
+        } else if (o instanceof Boolean) {
+            out.writeByte((Boolean) o ? TRUE : FALSE);
+        } else if (o instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) o);
+        } else if (o instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) o);
+        } else if (o instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) o);
+        } else if (o instanceof BigInteger) {
+            out.writeByte(BIGINTEGER);
+            writeBytes(((BigInteger) o).toByteArray());
+        } else if (o instanceof BigDecimal) {
+            BigDecimal bd = (BigDecimal) o;
+            out.writeByte(BIGDECIMAL);
+            out.writeInt(bd.scale());
+            writeBytes(bd.unscaledValue().toByteArray());
+        } else if (o.getClass() == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) o).getTime());
+        } else if (o instanceof Instant) {
+            Instant i = (Instant) o;
+            out.writeByte(INSTANT);
+            out.writeLong(i.getEpochSecond());
+            out.writeInt(i.getNano());
+        } else if (o instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeBytes((byte[]) o);
+        } else if (o instanceof InetAddress) {
+            out.writeByte(INETADDRESS);
+            writeBytes(((InetAddress) o).getAddress());
+        } else if (o instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) o;
+            out.writeByte(MAP);
+            out.writeInt(m.size());
+            for (Map.Entry<?, ?> e: m.entrySet()) {
+                writeValue(e.getKey());
+                writeValue(e.getValue());
+            }
+        } else if (o instanceof List || o instanceof Set) {
+            Collection<?> c = (Collection<?>) o;
+            out.writeByte(o instanceof List ? LIST : SET);
+            out.writeInt(c.size());
+            for (Object i: c) {
+                writeValue(i);
+            }
+        } else if (o instanceof Object[]) {
+            Object[] a = (Object[]) o;
+            out.writeByte(ARRAY);
+            out.writeInt(a.length);
+            for (Object i: a) {
+                writeValue(i);
+            }
+        } else if (o instanceof Serializable) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(o);
+            }
+            out.writeByte(SERIALIZED);
+            writeBytes(bos.toByteArray());
+        } else {
+            throw new NotSerializableException(o.getClass().getName());
+        }
+    }
+
+    private void writeBytes(byte[] content) throws IOException {
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    /**
+     * Decode an event.
+     * @param content the buffer holding the encoded event
+     * @param offset the start of the event in the buffer
+     * @param length the size of the encoded event
+     * @param ctx the context of the new event
+     * @return a new event
+     * @throws IOException if the content is invalid
+     */
+    Event read(byte[] content, int offset, int length, ConnectionContext<?> ctx) throws IOException {
+        return read(content, offset, length, ctx, false);
+    }
+
+    /**
+     * Decode an event, that can be a test event, not counted as in flight.
+     * @param content the buffer holding the encoded event
+     * @param offset the start of the event in the buffer
+     * @param length the size of the encoded event
+     * @param ctx the context of the new event
+     * @param test true for a test event
+     * @return a new event
+     * @throws IOException if the content is invalid
+     */
+    Event read(byte[] content, int offset, int length, ConnectionContext<?> ctx, boolean test) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, offset, length));
+        Event event = test ? Event.emptyTestEvent(ctx) : Event.emptyEvent(ctx);
+        event.setTimestamp(new Date(in.readLong()));
+        int metasCount = in.readInt();
+        for (int i = 0; i < metasCount; i++) {
+            event.putMeta(readString(in), readValue(in));
+        }
+        int fieldsCount = in.readInt();
+        for (int i = 0; i < fieldsCount; i++) {
+            event.put(readString(in), readValue(in));
+        }
+        return event;
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        return content;
+    }
+
+    private Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case INTEGER:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case DOUBLE:
+            return in.readDouble();
+        case FLOAT:
+            return in.readFloat();
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case SHORT:
+            return in.readShort();
+        case BYTE:
+            return in.readByte();
+        case CHARACTER:
+            return in.readChar();
+        case BIGINTEGER:
+            return new BigInteger(readBytes(in));
+        case BIGDECIMAL: {
+            int scale = in.readInt();
+            return new BigDecimal(new BigInteger(readBytes(in)), scale);
+        }
+        case DATE:
+            return new Date(in.readLong());
+        case INSTANT:
+            return Instant.ofEpochSecond(in.readLong(), in.readInt());
+        case BYTES:
+            return readBytes(in);
+        case INETADDRESS:
+            return InetAddress.getByAddress(readBytes(in));
+        case MAP: {
+            int size = in.readInt();
+            Map<Object, Object> m = new HashMap<>((int) (size / 0.75f) + 1);
+            for (int i = 0; i < size; i++) {
+                m.put(readValue(in), readValue(in));
+            }
+            return m;
+        }
+        case LIST: {
+            int size = in.readInt();
+            List<Object> l = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                l.add(readValue(in));
+            }
+            return l;
+        }
+        case SET: {
+            int size = in.readInt();
+            Set<Object> s = new LinkedHashSet<>((int) (size / 0.75f) + 1);
+            for (int i = 0; i < size; i++) {
+                s.add(readValue(in));
+            }
+            return s;
+        }
+        case ARRAY: {
+            Object[] a = new Object[in.readInt()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = readValue(in);
+            }
+            return a;
+        }
+        case SERIALIZED:
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown class " + e.getMessage(), e);
+            }
+        default:
+            throw new StreamCorruptedException("Unknown type " + type);
+        }
+    }
+
+}
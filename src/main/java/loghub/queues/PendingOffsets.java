@@ -0,0 +1,101 @@
+package loghub.queues;
+
+/**
+ * The positions of elements read from a log and not yet acknowledged. The positions are added in the reading order
+ * and the position that can be saved only moves past elements that are all acknowledged, even when they are
+ * acknowledged out of order.
+ * <p>
+ * Each element is given its position and the position of the next element, so it can be used for logs with gaps,
+ * like Kafka offsets or byte positions in a file.
+ */
+public final class PendingOffsets {
+
+    private long[] offsets = new long[64];
+    private long[] nexts = new long[64];
+    private boolean[] acked = new boolean[64];
+    private int head = 0;
+    private int size = 0;
+    private long position = -1;
+    private long saved = -1;
+
+    /**
+     * Add a new element, it must be after all the previous ones.
+     * @param offset the position of the element
+     * @param next the position of the following element
+     */
+    public synchronized void add(long offset, long next) {
+        if (size == offsets.length) {
+            long[] newOffsets = new long[offsets.length * 2];
+            long[] newNexts = new long[offsets.length * 2];
+            boolean[] newAcked = new boolean[offsets.length * 2];
+            for (int i = 0; i < size; i++) {
+                int j = (head + i) % offsets.length;
+                newOffsets[i] = offsets[j];
+                newNexts[i] = nexts[j];
+                newAcked[i] = acked[j];
+            }
+            offsets = newOffsets;
+            nexts = newNexts;
+            acked = newAcked;
+            head = 0;
+        }
+        int tail = (head + size) % offsets.length;
+        offsets[tail] = offset;
+        nexts[tail] = next;
+        acked[tail] = false;
+        size++;
+    }
+
+    /**
+     * Acknowledge an element, unknown positions are ignored.
+     * @param offset the position of the element
+     */
+    public synchronized void ack(long offset) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int i = (head + middle) % offsets.length;
+            if (offsets[i] < offset) {
+                low = middle + 1;
+            } else if (offsets[i] > offset) {
+                high = middle - 1;
+            } else {
+                acked[i] = true;
+                break;
+            }
+        }
+        while (size > 0 && acked[head]) {
+            position = nexts[head];
+            head = (head + 1) % offsets.length;
+            size--;
+        }
+    }
+
+    /**
+     * @return the position following the contiguous acknowledged elements, or -1 if none was acknowledged
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the position to save, or -1 if it did not change since the last call
+     */
+    public synchronized long toSave() {
+        if (position > saved) {
+            saved = position;
+            return position;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the count of elements not yet acknowledged
+     */
+    public synchronized int pending() {
+        return size;
+    }
+
+}
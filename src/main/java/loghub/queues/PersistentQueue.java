@@ -0,0 +1,892 @@
+package loghub.queues;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+import loghub.Helpers;
+import loghub.Stats;
+import lombok.Setter;
+
+/**
+ * A {@link BlockingQueue} of events stored in files, so a sender can fall behind without blocking the processing
+ * threads, and the waiting events are read again after a restart.
+ * <p>
+ * The events are appended to segment files, named by the position of their first byte in the queue. Each record is
+ * the size and the CRC of the content, followed by the content, encoded by {@link EventSerializer}. The events read
+ * from the files are new events, whose context is acknowledged when they are ended. The position of the first event
+ * not yet acknowledged is saved in a checkpoint file, it's where the reading starts when the queue is opened again.
+ * Segments before the checkpoint are deleted. Records are grouped in a buffer before being written, it's flushed when
+ * full, when the segment is synchronized or when the records are read.
+ * <p>
+ * Without write ahead, events are first kept in memory and only written when the memory queue is full, or when the
+ * queue is closed. With it, all events are written, and the original event is ended once written.
+ * <p>
+ * Events are encoded and written without holding the queue lock, a separate lock protects the segment being written,
+ * so a slow disk only blocks the producers, not the consumers. As concurrent producers check the size before writing,
+ * the maximum size can be exceeded by a few events.
+ */
+public class PersistentQueue extends AbstractQueue<Event> implements BlockingQueue<Event>, Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * When the segment files are synchronized to the disk.
+     */
+    public enum Sync {
+        /**
+         * After each event
+         */
+        ALWAYS,
+        /**
+         * At most every sync interval
+         */
+        PERIODIC,
+        /**
+         * Only when a segment is closed, the operating system decides
+         */
+        NEVER,
+    }
+
+    public static class Builder {
+        @Setter
+        private Path directory;
+        @Setter
+        private int memoryCapacity = 1000;
+        @Setter
+        private boolean writeAhead = false;
+        @Setter
+        private long segmentSize = 64 * 1024 * 1024;
+        @Setter
+        private long maxSize = Long.MAX_VALUE;
+        @Setter
+        private Sync sync = Sync.PERIODIC;
+        @Setter
+        private long syncInterval = 1000;
+        @Setter
+        private long checkpointInterval = 1000;
+        public PersistentQueue build() throws IOException {
+            return new PersistentQueue(this);
+        }
+    }
+    public static Builder getBuilder() {
+        return new Builder();
+    }
+
+    private static final String SEGMENTSUFFIX = ".segment";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final int HEADERSIZE = 8;
+    private static final int WRITEBUFFERSIZE = 64 * 1024;
+
+    /**
+     * The context of events read from the files, it acknowledge the record.
+     */
+    private static class QueueContext extends ConnectionContext<Object> {
+        private final transient PendingOffsets offsets;
+        private final transient long position;
+        QueueContext(PendingOffsets offsets, long position) {
+            this.offsets = offsets;
+            this.position = position;
+        }
+        @Override
+        public void acknowledge() {
+            if (offsets != null) {
+                offsets.ack(position);
+            }
+        }
+        @Override
+        public Object getLocalAddress() {
+            return null;
+        }
+        @Override
+        public Object getRemoteAddress() {
+            return null;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long maxSize;
+    private final Sync sync;
+    private final long syncInterval;
+    private final long checkpointInterval;
+    // The first events, not written, null with write ahead
+    private final BlockingQueue<Event> memory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    // Protects the segment being written, when both are needed, it's taken after lock
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // The segments, indexed by their base position
+    private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    // RandomAccessFile is used instead of FileChannel, a channel is closed if the thread using it is interrupted
+    private RandomAccessFile writer;
+    private long writerBase;
+    private volatile long writePosition;
+    // Records are grouped before being written, the last bytes of writePosition are still there
+    private final byte[] writeBuffer = new byte[WRITEBUFFERSIZE];
+    private int buffered;
+    private RandomAccessFile reader;
+    private long readerBase;
+    private long readPosition;
+    // A window of the file read, starting at readBufferOffset
+    private byte[] readBuffer = new byte[WRITEBUFFERSIZE];
+    private long readBufferOffset;
+    private int readBufferSize;
+    // Where the last record read starts in readBuffer
+    private int recordStart;
+    // Records written but not read
+    private long waiting;
+    // Events being written outside of the lock
+    private int writing;
+
+    private final PendingOffsets pending = new PendingOffsets();
+    private long checkpoint;
+    private long lastCheckpoint;
+    private long lastSync;
+    private boolean closed = false;
+
+    // Used by the consumers, producers use their own
+    private final EventSerializer serializer = new EventSerializer();
+    private final CRC32 crc = new CRC32();
+    private static final ThreadLocal<EventSerializer> writeSerializer = ThreadLocal.withInitial(EventSerializer::new);
+
+    private PersistentQueue(Builder builder) throws IOException {
+        this.directory = Objects.requireNonNull(builder.directory, "No directory for the queue");
+        this.segmentSize = builder.segmentSize;
+        this.maxSize = builder.maxSize;
+        this.sync = builder.sync;
+        this.syncInterval = builder.syncInterval;
+        this.checkpointInterval = builder.checkpointInterval;
+        this.memory = builder.writeAhead ? null : new ArrayBlockingQueue<>(builder.memoryCapacity);
+        Files.createDirectories(directory);
+        recover();
+        lastCheckpoint = System.currentTimeMillis();
+        lastSync = lastCheckpoint;
+    }
+
+    /**
+     * Find the segments and the checkpoint, count the waiting records and truncate a partially written record.
+     */
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENTSUFFIX)) {
+            for (Path p: stream) {
+                String name = p.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENTSUFFIX.length())), p);
+                } catch (NumberFormatException e) {
+                    logger.warn("Unexpected file in queue {}: {}", directory, p);
+                }
+            }
+        }
+        Path checkpointFile = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpointFile)) {
+            checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile)).getLong();
+        } else if (! segments.isEmpty()) {
+            checkpoint = segments.firstKey();
+        } else {
+            checkpoint = 0;
+        }
+        // Drop the segments fully read
+        Long readSegment = segments.floorKey(checkpoint);
+        for (Long base: new ArrayList<>(segments.headMap(readSegment == null ? checkpoint : readSegment, false).keySet())) {
+            Files.delete(segments.remove(base));
+        }
+        if (segments.isEmpty()) {
+            segments.put(checkpoint, segmentPath(checkpoint));
+            Files.createFile(segments.get(checkpoint));
+        } else if (segments.firstKey() > checkpoint) {
+            // The events before were lost
+            checkpoint = segments.firstKey();
+        }
+        readerBase = segments.firstKey();
+        readPosition = checkpoint;
+        // Scan the records, to count them and find the end
+        long position = readPosition;
+        long base = readerBase;
+        boolean corrupted = false;
+        while (! corrupted) {
+            try (RandomAccessFile file = new RandomAccessFile(segments.get(base).toFile(), "rw")) {
+                long size = file.length();
+                readBufferSize = 0;
+                while (position - base < size) {
+                    int length = readRecord(file, position - base, size);
+                    if (length < 0) {
+                        logger.warn("Truncated queue {} at {}", directory, position);
+                        file.setLength(position - base);
+                        corrupted = true;
+                        break;
+                    }
+                    position += HEADERSIZE + length;
+                    waiting++;
+                }
+            }
+            Long next = segments.higherKey(base);
+            if (next == null) {
+                break;
+            } else if (corrupted || next != position) {
+                // The following segments can't be trusted
+                for (Long dropped: new ArrayList<>(segments.tailMap(next, true).keySet())) {
+                    logger.warn("Dropping segment {}", segments.get(dropped));
+                    Files.delete(segments.remove(dropped));
+                }
+                break;
+            }
+            base = next;
+        }
+        writerBase = segments.lastKey();
+        writePosition = position;
+        writer = new RandomAccessFile(segments.get(writerBase).toFile(), "rw");
+        writer.seek(writePosition - writerBase);
+        reader = new RandomAccessFile(segments.get(readerBase).toFile(), "r");
+        readBufferSize = 0;
+        logger.debug("Queue {} opened with {} waiting events", directory, waiting);
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format(Locale.ENGLISH, "%020d%s", base, SEGMENTSUFFIX));
+    }
+
+    /**
+     * Read a record in {@link #readBuffer}, it starts at {@link #recordStart}
+     * @return the size of the content, or -1 if it's truncated or invalid
+     */
+    private int readRecord(RandomAccessFile file, long offset, long fileSize) throws IOException {
+        if (fileSize - offset < HEADERSIZE) {
+            return -1;
+        }
+        fill(file, offset, HEADERSIZE, fileSize);
+        int start = (int) (offset - readBufferOffset);
+        int length = getInt(readBuffer, start);
+        int checksum = getInt(readBuffer, start + 4);
+        if (length < 0 || fileSize - offset - HEADERSIZE < length) {
+            return -1;
+        }
+        fill(file, offset, HEADERSIZE + length, fileSize);
+        recordStart = (int) (offset - readBufferOffset) + HEADERSIZE;
+        crc.reset();
+        crc.update(readBuffer, recordStart, length);
+        return (int) crc.getValue() == checksum ? length : -1;
+    }
+
+    /**
+     * Ensure that the bytes from offset are in {@link #readBuffer}, reading ahead as much as possible. Bytes already
+     * read don't change, the files are only appended.
+     */
+    private void fill(RandomAccessFile file, long offset, int needed, long fileSize) throws IOException {
+        if (offset >= readBufferOffset && offset + needed <= readBufferOffset + readBufferSize) {
+            return;
+        }
+        if (readBuffer.length < needed) {
+            readBuffer = new byte[needed];
+        }
+        int toRead = (int) Math.min(readBuffer.length, fileSize - offset);
+        file.seek(offset);
+        file.readFully(readBuffer, 0, toRead);
+        readBufferOffset = offset;
+        readBufferSize = toRead;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private void flushWrites() throws IOException {
+        if (buffered > 0) {
+            writer.write(writeBuffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    private void syncWrites() throws IOException {
+        flushWrites();
+        writer.getFD().sync();
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Append an event to the segment being written, the caller must not hold {@link #lock}, except when closing.
+     */
+    private void write(Event e) throws IOException {
+        EventSerializer.Buffer content = writeSerializer.get().write(e);
+        int length = content.size();
+        int recordSize = HEADERSIZE + length;
+        CRC32 checksum = new CRC32();
+        checksum.update(content.getBuffer(), 0, length);
+        writeLock.lock();
+        try {
+            if (writePosition > writerBase && writePosition - writerBase + recordSize > segmentSize) {
+                syncWrites();
+                writer.close();
+                Path newSegment = segmentPath(writePosition);
+                Files.createFile(newSegment);
+                writer = new RandomAccessFile(newSegment.toFile(), "rw");
+                // The segment is visible before writerBase changes, see readLimit()
+                segments.put(writePosition, newSegment);
+                writerBase = writePosition;
+            }
+            append(content, length, (int) checksum.getValue());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void append(EventSerializer.Buffer content, int length, int checksum) throws IOException {
+        int recordSize = HEADERSIZE + length;
+        if (writeBuffer.length - buffered < recordSize) {
+            flushWrites();
+        }
+        if (recordSize > writeBuffer.length) {
+            byte[] header = new byte[HEADERSIZE];
+            putInt(header, 0, length);
+            putInt(header, 4, checksum);
+            writer.write(header);
+            writer.write(content.getBuffer(), 0, length);
+        } else {
+            putInt(writeBuffer, buffered, length);
+            putInt(writeBuffer, buffered + 4, checksum);
+            System.arraycopy(content.getBuffer(), 0, writeBuffer, buffered + HEADERSIZE, length);
+            buffered += recordSize;
+        }
+        writePosition += recordSize;
+        if (sync == Sync.ALWAYS || (sync == Sync.PERIODIC && System.currentTimeMillis() - lastSync > syncInterval)) {
+            syncWrites();
+        }
+    }
+
+    /**
+     * Open the segment holding {@link #readPosition} and find how much of it can be read.
+     */
+    private long readLimit() throws IOException {
+        while (true) {
+            Long next = segments.higherKey(readerBase);
+            if (next != null) {
+                if (readPosition < next) {
+                    return next - readerBase;
+                }
+                // The current segment is done, the next one starts here
+                reader.close();
+                readerBase = next;
+                reader = new RandomAccessFile(segments.get(readerBase).toFile(), "r");
+                readBufferSize = 0;
+                continue;
+            }
+            writeLock.lock();
+            try {
+                if (writerBase == readerBase) {
+                    // Reading in the segment being written, the record might still be in the write buffer
+                    if (readPosition >= writePosition - buffered) {
+                        flushWrites();
+                    }
+                    return writePosition - buffered - writerBase;
+                }
+                // A new segment was just created, look again
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read the record at {@link #readPosition}, without moving it.
+     * @return the size of the content, it starts at {@link #recordStart} in {@link #readBuffer}
+     */
+    private int readHead() throws IOException {
+        long limit = readLimit();
+        int length = readRecord(reader, readPosition - readerBase, limit);
+        if (length < 0) {
+            throw new IOException("Corrupted queue " + directory + " at " + readPosition);
+        }
+        return length;
+    }
+
+    private Event read() throws IOException {
+        long position = readPosition;
+        int length = readHead();
+        readPosition += HEADERSIZE + length;
+        waiting--;
+        pending.add(position, readPosition);
+        notFull.signal();
+        return serializer.read(readBuffer, recordStart, length, new QueueContext(pending, position));
+    }
+
+    /**
+     * Save the position of the first event not acknowledged, and delete the segments before it.
+     */
+    private void checkpoint(boolean force) throws IOException {
+        long now = System.currentTimeMillis();
+        if (! force && now - lastCheckpoint < checkpointInterval) {
+            return;
+        }
+        lastCheckpoint = now;
+        long position = pending.toSave();
+        if (position <= checkpoint) {
+            return;
+        }
+        checkpoint = position;
+        Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw")) {
+            file.setLength(0);
+            file.writeLong(checkpoint);
+            file.getFD().sync();
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // Delete the segments before the checkpoint, but not the one being read
+        Long checkpointSegment = segments.floorKey(checkpoint);
+        for (Long base: new ArrayList<>(segments.headMap(checkpointSegment, false).keySet())) {
+            Files.delete(segments.remove(base));
+        }
+    }
+
+    private Event dequeue() {
+        try {
+            Event e;
+            if (memory != null && ! memory.isEmpty()) {
+                // The memory events are older than the written ones
+                e = memory.poll();
+                notFull.signal();
+            } else {
+                e = read();
+            }
+            checkpoint(false);
+            return e;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Wait for new events, but wake up regularly to save the acknowledged events.
+     */
+    private long awaitNotEmpty(long nanos) throws InterruptedException {
+        long wait = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(Math.max(checkpointInterval, 100)));
+        long left = nanos - wait + notEmpty.awaitNanos(wait);
+        if (! closed) {
+            try {
+                checkpoint(false);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Store an event, called with {@link #lock} held, it's released while the event is written.
+     * @return false if the event can't be written, it's not ended
+     */
+    private boolean enqueue(Event e) {
+        if (closed) {
+            throw new IllegalStateException("Queue " + directory + " closed");
+        }
+        if (memory != null && waiting == 0 && writing == 0 && memory.offer(e)) {
+            notEmpty.signal();
+            return true;
+        }
+        writing++;
+        boolean done = false;
+        lock.unlock();
+        try {
+            write(e);
+            done = true;
+        } catch (IOException | RuntimeException ex) {
+            Stats.newUnhandledException(ex);
+            logger.error("Can't store event in queue {}: {}", directory, Helpers.resolveThrowableException(ex));
+        } finally {
+            lock.lock();
+            writing--;
+            if (done) {
+                waiting++;
+                notEmpty.signal();
+            }
+            written.signalAll();
+        }
+        if (done) {
+            e.end();
+        }
+        return done;
+    }
+
+    private boolean isFull() {
+        return writePosition - readPosition >= maxSize;
+    }
+
+    private boolean isQueueEmpty() {
+        return waiting == 0 && (memory == null || memory.isEmpty());
+    }
+
+    @Override
+    public boolean offer(Event e) {
+        Objects.requireNonNull(e);
+        lock.lock();
+        try {
+            if (isFull()) {
+                return false;
+            } else {
+                return enqueue(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Event e) throws InterruptedException {
+        Objects.requireNonNull(e);
+        lock.lockInterruptibly();
+        try {
+            while (isFull()) {
+                notFull.await();
+            }
+            if (! enqueue(e)) {
+                Stats.dropped.incrementAndGet();
+                e.end();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Event e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (isFull()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (isQueueEmpty()) {
+                awaitNotEmpty(Long.MAX_VALUE);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (isQueueEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = awaitNotEmpty(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event poll() {
+        lock.lock();
+        try {
+            return isQueueEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the first event without removing it. If it's stored in a file, it's a new copy that doesn't need to be
+     * ended.
+     */
+    @Override
+    public Event peek() {
+        lock.lock();
+        try {
+            if (memory != null && ! memory.isEmpty()) {
+                return memory.peek();
+            } else if (waiting == 0) {
+                return null;
+            } else {
+                int length = readHead();
+                return serializer.read(readBuffer, recordStart, length, new QueueContext(null, readPosition), true);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterate over a snapshot of the queue, that can't be modified. The events stored in files are decoded when reached,
+     * as new copies that don't need to be ended. The iteration stops early if their segment was deleted since.
+     */
+    @Override
+    public Iterator<Event> iterator() {
+        lock.lock();
+        try {
+            List<Event> inMemory = memory != null ? new ArrayList<>(memory) : Collections.emptyList();
+            NavigableMap<Long, Path> snapshot;
+            writeLock.lock();
+            try {
+                flushWrites();
+                snapshot = new TreeMap<>(segments);
+            } finally {
+                writeLock.unlock();
+            }
+            Iterator<Event> memoryIterator = Collections.unmodifiableList(inMemory).iterator();
+            Iterator<Event> fileIterator = new SegmentsIterator(snapshot, readPosition, waiting);
+            return new Iterator<Event>() {
+                @Override
+                public boolean hasNext() {
+                    return memoryIterator.hasNext() || fileIterator.hasNext();
+                }
+                @Override
+                public Event next() {
+                    return memoryIterator.hasNext() ? memoryIterator.next() : fileIterator.next();
+                }
+            };
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read a fixed count of records from a copy of the segments list, with its own file and decoder.
+     */
+    private class SegmentsIterator implements Iterator<Event> {
+        private final NavigableMap<Long, Path> segments;
+        private final EventSerializer decoder = new EventSerializer();
+        private final CRC32 checksum = new CRC32();
+        private long position;
+        private long remaining;
+        private RandomAccessFile file;
+        private long base;
+        private Event nextEvent;
+
+        SegmentsIterator(NavigableMap<Long, Path> segments, long position, long count) {
+            this.segments = segments;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextEvent == null && remaining > 0) {
+                try {
+                    nextEvent = readNext();
+                } catch (IOException ex) {
+                    // The segment was probably consumed and deleted
+                    logger.debug("Iteration of queue {} stopped at {}: {}", directory, position, Helpers.resolveThrowableException(ex));
+                    remaining = 0;
+                }
+                if (remaining == 0) {
+                    close();
+                }
+            }
+            return nextEvent != null;
+        }
+
+        @Override
+        public Event next() {
+            if (! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Event e = nextEvent;
+            nextEvent = null;
+            return e;
+        }
+
+        private Event readNext() throws IOException {
+            Map.Entry<Long, Path> segment = segments.floorEntry(position);
+            if (segment == null) {
+                throw new NoSuchFileException(Long.toString(position));
+            }
+            if (file == null || base != segment.getKey()) {
+                close();
+                base = segment.getKey();
+                file = new RandomAccessFile(segment.getValue().toFile(), "r");
+            }
+            file.seek(position - base);
+            int length = file.readInt();
+            int expected = file.readInt();
+            byte[] content = new byte[length];
+            file.readFully(content);
+            checksum.reset();
+            checksum.update(content, 0, length);
+            if ((int) checksum.getValue() != expected) {
+                throw new IOException("Corrupted queue " + directory + " at " + position);
+            }
+            Event e = decoder.read(content, 0, length, new QueueContext(null, position), true);
+            position += HEADERSIZE + length;
+            remaining--;
+            return e;
+        }
+
+        private void close() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Only read, nothing lost
+                }
+                file = null;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return (int) Math.min(Integer.MAX_VALUE, waiting + (memory != null ? memory.size() : 0));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An estimation of the count of events that can still be added, from the mean size of the stored events.
+     */
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            if (maxSize == Long.MAX_VALUE) {
+                return Integer.MAX_VALUE;
+            } else if (isFull()) {
+                return 0;
+            } else {
+                long used = writePosition - readPosition;
+                long recordSize = waiting > 0 ? Math.max(HEADERSIZE, used / waiting) : HEADERSIZE;
+                long room = (maxSize - used) / recordSize + (memory != null ? memory.remainingCapacity() : 0);
+                // Not full, so at least one event can be added
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(1, room));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && ! isQueueEmpty()) {
+                c.add(dequeue());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the events still in memory and save the checkpoint.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // Wait for the events being written
+            while (writing > 0) {
+                written.awaitUninterruptibly();
+            }
+            if (memory != null) {
+                List<Event> inMemory = new ArrayList<>(memory);
+                memory.clear();
+                for (Event e: inMemory) {
+                    write(e);
+                    waiting++;
+                    e.end();
+                }
+            }
+            writeLock.lock();
+            try {
+                syncWrites();
+                writer.close();
+            } finally {
+                writeLock.unlock();
+            }
+            checkpoint(true);
+            reader.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PersistentQueue[" + directory + "]";
+    }
+
+}
@@ -0,0 +1,122 @@
+package loghub.queues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded multi-producers, multi-consumers lock-free ring.
+ * <p>
+ * Each slot hold a sequence number that tells if it's ready to be written or read, so
+ * producers and consumers only contend on the head or tail counter with a CAS. For the
+ * position <code>pos</code>, the slot is free when the sequence is <code>2 * pos</code>
+ * and filled when it's <code>2 * pos + 1</code>, so the two states can't be mixed up,
+ * even with a single slot ring.
+ *
+ * @param <E> the type of elements held in this ring
+ */
+class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+
+    RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Ring capacity must be positive");
+        }
+        this.capacity = capacity;
+        buffer = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, 2L * i);
+        }
+    }
+
+    boolean offer(E e) {
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos % capacity);
+            long delta = sequences.get(index) - 2 * pos;
+            if (delta == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (delta < 0) {
+                // The slot was not released by a consumer, the ring is full
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        buffer.set(index, e);
+        sequences.set(index, 2 * pos + 1);
+        return true;
+    }
+
+    E poll() {
+        long pos = head.get();
+        int index;
+        while (true) {
+            index = (int) (pos % capacity);
+            long delta = sequences.get(index) - (2 * pos + 1);
+            if (delta == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = head.get();
+            } else if (delta < 0) {
+                // The slot was not filled by a producer, the ring is empty
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+        E e = buffer.get(index);
+        buffer.set(index, null);
+        sequences.set(index, 2 * (pos + capacity));
+        return e;
+    }
+
+    E peek() {
+        long pos = head.get();
+        int index = (int) (pos % capacity);
+        if (sequences.get(index) == 2 * pos + 1) {
+            return buffer.get(index);
+        } else {
+            return null;
+        }
+    }
+
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * A weakly consistent copy of the content of the ring, only used for
+     * introspection.
+     * @return the elements found in the ring
+     */
+    List<E> snapshot() {
+        List<E> content = new ArrayList<>(size());
+        for (int i = 0; i < capacity; i++) {
+            E e = buffer.get(i);
+            if (e != null) {
+                content.add(e);
+            }
+        }
+        return content;
+    }
+
+}
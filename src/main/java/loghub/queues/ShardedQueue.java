@@ -0,0 +1,254 @@
+package loghub.queues;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A {@link BlockingQueue} split in many lock-free rings, one for each consumer.
+ * <p>
+ * Each consuming thread is given a home ring the first time it takes an element, and will
+ * drain it first. When it's empty, it steal from the other rings before going to sleep.
+ * Producers spread elements across the rings, starting from a random one, so they don't
+ * share any lock with the consumers.
+ * <p>
+ * The semantic of the blocking and non blocking methods are the same than the ones of
+ * {@link java.util.concurrent.ArrayBlockingQueue}: {@link #offer(Object)} fails only when
+ * all the rings are full and {@link #put(Object)} waits for a free slot.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class ShardedQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    // How many times a thread look at the rings before sleeping
+    private static final int SPINS = 16;
+    // Sleeping threads will wake up after this delay, even if not signaled
+    private static final long PARKNANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final RingBuffer<E>[] rings;
+    private final int capacity;
+    private final AtomicInteger nextHome = new AtomicInteger(0);
+    private final ThreadLocal<Integer> home;
+    private final Queue<Thread> waitingConsumers = new ConcurrentLinkedQueue<>();
+    private final Queue<Thread> waitingProducers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Build a new sharded queue
+     * @param shards the number of rings, usually the number of consumers
+     * @param capacity the total capacity, it will be split between rings.
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedQueue(int shards, int capacity) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Shards count must be positive");
+        }
+        int shardCapacity = Math.max(1, (capacity + shards - 1) / shards);
+        rings = new RingBuffer[shards];
+        for (int i = 0; i < shards; i++) {
+            rings[i] = new RingBuffer<>(shardCapacity);
+        }
+        this.capacity = shardCapacity * shards;
+        home = ThreadLocal.withInitial(() -> Math.floorMod(nextHome.getAndIncrement(), rings.length));
+    }
+
+    public int getShards() {
+        return rings.length;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        int start = rings.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(rings.length);
+        for (int i = 0; i < rings.length; i++) {
+            if (rings[(start + i) % rings.length].offer(e)) {
+                signal(waitingConsumers);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        for (int spin = 0; ; spin++) {
+            if (offer(e)) {
+                return;
+            }
+            await(waitingProducers, spin, Long.MAX_VALUE, () -> remainingCapacity() > 0);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int spin = 0; ; spin++) {
+            if (offer(e)) {
+                return true;
+            } else if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            await(waitingProducers, spin, deadline, () -> remainingCapacity() > 0);
+        }
+    }
+
+    @Override
+    public E poll() {
+        int start = home.get();
+        for (int i = 0; i < rings.length; i++) {
+            E e = rings[(start + i) % rings.length].poll();
+            if (e != null) {
+                signal(waitingProducers);
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        for (int spin = 0; ; spin++) {
+            E e = poll();
+            if (e != null) {
+                return e;
+            }
+            await(waitingConsumers, spin, Long.MAX_VALUE, () -> ! isEmpty());
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int spin = 0; ; spin++) {
+            E e = poll();
+            if (e != null) {
+                return e;
+            } else if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            await(waitingConsumers, spin, deadline, () -> ! isEmpty());
+        }
+    }
+
+    /**
+     * Wait for a signal from the other side. The thread first spin a few times, and then
+     * register itself in the waiting list before parking. The condition is checked again once
+     * registered, so a signal can't be lost.
+     */
+    private void await(Queue<Thread> waiting, int spin, long deadline, BooleanSupplier ready) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (spin < SPINS) {
+            Thread.yield();
+            return;
+        }
+        Thread current = Thread.currentThread();
+        waiting.add(current);
+        try {
+            if (! ready.getAsBoolean()) {
+                long wait = deadline == Long.MAX_VALUE ? PARKNANOS : Math.min(PARKNANOS, deadline - System.nanoTime());
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        } finally {
+            waiting.remove(current);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private void signal(Queue<Thread> waiting) {
+        if (! waiting.isEmpty()) {
+            Thread t = waiting.poll();
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        int start = home.get();
+        for (int i = 0; i < rings.length; i++) {
+            E e = rings[(start + i) % rings.length].peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (RingBuffer<E> r: rings) {
+            size += r.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (RingBuffer<E> r: rings) {
+            if (r.size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns a weakly consistent and read only iterator over the elements in this queue.
+     * <p>
+     * The iterator walks an unmodifiable snapshot of the shards taken when it's created: later changes of the queue
+     * are not seen and {@link Iterator#remove()} throws an {@link UnsupportedOperationException}.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> content = new ArrayList<>(size());
+        for (RingBuffer<E> r: rings) {
+            content.addAll(r.snapshot());
+        }
+        return Collections.unmodifiableList(content).iterator();
+    }
+
+}
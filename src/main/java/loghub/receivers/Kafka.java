@@ -1,29 +1,38 @@
 package loghub.receivers;
 
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
-import org.apache.kafka.common.header.Header;
-import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.WakeupException;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 
 import loghub.BuilderClass;
 import loghub.ConnectionContext;
+import loghub.Event;
 import loghub.Helpers;
+import loghub.queues.PendingOffsets;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -33,8 +42,41 @@ public class Kafka extends Receiver {
 
     public static class KafkaContext extends ConnectionContext<Object> {
         public final String topic;
+        private final transient PendingOffsets offsets;
+        private final transient long offset;
+        // Shared between the copies of the context, the record is done when all of them are acknowledged
+        private final transient AtomicInteger pending;
         KafkaContext(String topic) {
             this.topic = topic;
+            this.offsets = null;
+            this.offset = -1;
+            this.pending = null;
+        }
+        /**
+         * A context for a record whose offset is committed once it's acknowledged. It starts with a hold released
+         * by the receiver when the record is decoded.
+         */
+        KafkaContext(String topic, PendingOffsets offsets, long offset) {
+            this.topic = topic;
+            this.offsets = offsets;
+            this.offset = offset;
+            this.pending = new AtomicInteger(1);
+        }
+        void hold() {
+            if (pending != null) {
+                pending.incrementAndGet();
+            }
+        }
+        @Override
+        public void acknowledge() {
+            if (pending != null && pending.decrementAndGet() == 0) {
+                offsets.ack(offset);
+            }
+        }
+        @Override
+        public ConnectionContext<Object> copy() {
+            hold();
+            return super.copy();
         }
         @Override
         public Object getLocalAddress() {
@@ -57,6 +99,10 @@ public class Kafka extends Receiver {
         private String group ="loghub";
         @Setter
         private String keyDeserializer = ByteArrayDeserializer.class.getName();
+        @Setter
+        private int threads = 1;
+        @Setter
+        private boolean commitOnAck = false;
         @Override
         public Kafka build() {
             return new Kafka(this);
@@ -66,7 +112,8 @@ public class Kafka extends Receiver {
         return new Builder();
     }
 
-    private Consumer<Long, byte[]> consumer;
+    private final List<ConsumerLoop> loops;
+    private volatile boolean stopping = false;
 
     private final String[] brokers;
     @Getter
@@ -77,6 +124,10 @@ public class Kafka extends Receiver {
     private final String group;
     @Getter
     private final String keyDeserializer;
+    @Getter
+    private final int threads;
+    @Getter
+    private final boolean commitOnAck;
 
     protected Kafka(Builder builder) {
         super(builder);
@@ -85,6 +136,9 @@ public class Kafka extends Receiver {
         this.topic = builder.topic;
         this.group = builder.group;
         this.keyDeserializer = builder.keyDeserializer;
+        this.threads = Math.max(1, builder.threads);
+        this.commitOnAck = builder.commitOnAck;
+        this.loops = new ArrayList<>(threads);
     }
 
     @Override
@@ -104,52 +158,219 @@ public class Kafka extends Receiver {
         props.put(ConsumerConfig.GROUP_ID_CONFIG, group);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, keyDeserializer);
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
-        consumer = new KafkaConsumer<>(props);
+        if (commitOnAck) {
+            props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        }
+        loops.clear();
+        for (int i = 0; i < threads; i++) {
+            loops.add(new ConsumerLoop(getConsumer(props)));
+        }
         return super.configure(properties);
     }
 
+    /**
+     * Create a consumer, each consumer thread uses its own.
+     * @param props the consumer properties
+     * @return a new consumer
+     */
+    protected Consumer<Long, byte[]> getConsumer(Properties props) {
+        return new KafkaConsumer<>(props);
+    }
+
     @Override
     public void run() {
-        consumer.subscribe(Collections.singletonList(topic));
-        boolean broke = false;
-        while (! isInterrupted()) {
-            ConsumerRecords<Long, byte[]> consumerRecords = consumer.poll(100);
-            if (consumerRecords.count()==0) {
-                continue;
+        List<Thread> workers = new ArrayList<>(loops.size() - 1);
+        // The receiver thread runs the first consumer
+        for (int i = 1; i < loops.size(); i++) {
+            Thread worker = new Thread(loops.get(i)::run, getName() + "/" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        loops.get(0).run();
+        stopping = true;
+        for (Thread worker: workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                break;
             }
-            for(ConsumerRecord<Long, byte[]> record: consumerRecords) {
-                KafkaContext ctxt = new KafkaContext(record.topic());
-                Optional<Date> timestamp = Optional.empty().map(ts ->  record.timestampType() ==  TimestampType.CREATE_TIME ? new Date(record.timestamp()) : null);
-                Optional<Map<String, byte[]>> headers= Optional.empty().map(n-> {
-                    Header[] h = record.headers().toArray();
-                    if (h.length > 0) {
-                        Map<String, byte[]> headersMap = new HashMap<>(h.length);
-                        Arrays.stream(h).forEach( i-> headersMap.put(i.key(), i.value()));
-                        return headersMap;
-                    } else {
-                        return null;
+        }
+        close();
+    }
+
+    @Override
+    public void stopReceiving() {
+        stopping = true;
+        loops.forEach(l -> l.consumer.wakeup());
+        super.stopReceiving();
+    }
+
+    private class ConsumerLoop implements ConsumerRebalanceListener {
+        private final Consumer<Long, byte[]> consumer;
+        // Only used by the consumer thread
+        private final Map<TopicPartition, PendingOffsets> offsets = new HashMap<>();
+        private final Map<String, KafkaContext> contexts = new HashMap<>();
+        private final Deque<Event> backlog = new ArrayDeque<>();
+        private boolean paused = false;
+
+        ConsumerLoop(Consumer<Long, byte[]> consumer) {
+            this.consumer = consumer;
+        }
+
+        private boolean isStopped() {
+            return stopping || Thread.currentThread().isInterrupted();
+        }
+
+        void run() {
+            try {
+                consumer.subscribe(Collections.singletonList(topic), this);
+                while (! isStopped()) {
+                    if (commitOnAck) {
+                        drainBacklog();
                     }
-                });
-                byte[] content = record.value();
-                decodeStream(ctxt, content).forEach( e -> {
-                    timestamp.ifPresent(e::setTimestamp);
-                    headers.ifPresent( h -> e.put("headers", h));
-                    send(e);
-                });
-                if (isInterrupted()) {
+                    ConsumerRecords<Long, byte[]> consumerRecords = consumer.poll(100);
+                    if (commitOnAck) {
+                        processAcknowledged(consumerRecords);
+                        commitAcknowledged();
+                    } else if (consumerRecords.count() > 0 && ! process(consumerRecords)) {
+                        break;
+                    }
+                }
+            } catch (WakeupException | InterruptException e) {
+                // Stopping
+            } catch (KafkaException e) {
+                logger.error("Kafka consumer failed: {}", Helpers.resolveThrowableException(e));
+                logger.catching(e);
+            } finally {
+                try {
+                    if (commitOnAck) {
+                        commitAll(offsets.keySet());
+                    }
+                } catch (KafkaException e) {
+                    logger.error("Failed to commit offsets: {}", Helpers.resolveThrowableException(e));
+                }
+                consumer.close();
+            }
+        }
+
+        /**
+         * Send the records and commit each poll
+         * @return false if processing was interrupted
+         */
+        private boolean process(ConsumerRecords<Long, byte[]> consumerRecords) {
+            for (ConsumerRecord<Long, byte[]> record: consumerRecords) {
+                // The context only holds the topic, so it can be shared
+                KafkaContext ctxt = contexts.computeIfAbsent(record.topic(), KafkaContext::new);
+                decodeStream(ctxt, record.value()).forEach(Kafka.this::send);
+                if (isStopped()) {
                     consumer.commitSync(Collections.singletonMap(new TopicPartition(record.topic(), record.partition()), new OffsetAndMetadata(record.offset())));
-                    broke = true;
-                    break;
+                    return false;
                 }
             }
-            if (! broke) {
-                consumer.commitAsync();
-            } else {
-                break;
+            consumer.commitAsync();
+            return true;
+        }
+
+        /**
+         * Send the records, the offsets are committed once the events are acknowledged. If the pipeline is
+         * full, the remaining events are kept and the partitions are paused.
+         */
+        private void processAcknowledged(ConsumerRecords<Long, byte[]> consumerRecords) {
+            for (TopicPartition tp: consumerRecords.partitions()) {
+                PendingOffsets partitionOffsets = offsets.computeIfAbsent(tp, k -> new PendingOffsets());
+                for (ConsumerRecord<Long, byte[]> record: consumerRecords.records(tp)) {
+                    partitionOffsets.add(record.offset(), record.offset() + 1);
+                    KafkaContext ctxt = new KafkaContext(record.topic(), partitionOffsets, record.offset());
+                    decodeStream(ctxt, record.value()).forEach(e -> {
+                        ctxt.hold();
+                        if (! backlog.isEmpty() || isQueueFull()) {
+                            backlog.add(e);
+                        } else {
+                            send(e);
+                        }
+                    });
+                    // Release the decoding hold, a record without events is done
+                    ctxt.acknowledge();
+                }
+            }
+            if (! backlog.isEmpty() && ! paused) {
+                logger.debug("Pipeline full, pausing {}", consumer::assignment);
+                consumer.pause(consumer.assignment());
+                paused = true;
             }
         }
-        consumer.close();
-        close();
+
+        private void drainBacklog() {
+            while (! backlog.isEmpty() && ! isQueueFull()) {
+                send(backlog.poll());
+            }
+            if (backlog.isEmpty() && paused) {
+                logger.debug("Resuming {}", consumer::paused);
+                consumer.resume(consumer.paused());
+                paused = false;
+            }
+        }
+
+        private void commitAcknowledged() {
+            Map<TopicPartition, OffsetAndMetadata> toCommit = null;
+            for (Map.Entry<TopicPartition, PendingOffsets> e: offsets.entrySet()) {
+                long position = e.getValue().toSave();
+                if (position >= 0) {
+                    if (toCommit == null) {
+                        toCommit = new HashMap<>();
+                    }
+                    toCommit.put(e.getKey(), new OffsetAndMetadata(position));
+                }
+            }
+            if (toCommit != null) {
+                consumer.commitAsync(toCommit, (o, ex) -> {
+                    if (ex != null) {
+                        logger.warn("Failed to commit offsets {}: {}", o, Helpers.resolveThrowableException(ex));
+                    }
+                });
+            }
+        }
+
+        private void commitAll(Collection<TopicPartition> partitions) {
+            Map<TopicPartition, OffsetAndMetadata> toCommit = new HashMap<>(partitions.size());
+            for (TopicPartition tp: partitions) {
+                long position = offsets.get(tp).getPosition();
+                if (position >= 0) {
+                    toCommit.put(tp, new OffsetAndMetadata(position));
+                }
+            }
+            if (! toCommit.isEmpty()) {
+                consumer.commitSync(toCommit);
+            }
+        }
+
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            if (commitOnAck) {
+                List<TopicPartition> known = partitions.stream().filter(offsets::containsKey).collect(Collectors.toList());
+                commitAll(known);
+                // The waiting events will be read again by the new owner of the partition
+                Iterator<Event> i = backlog.iterator();
+                while (i.hasNext()) {
+                    Event e = i.next();
+                    KafkaContext ctxt = (KafkaContext) e.<Object>getConnectionContext();
+                    if (known.stream().anyMatch(tp -> offsets.get(tp) == ctxt.offsets)) {
+                        i.remove();
+                        e.end();
+                    }
+                }
+                known.forEach(offsets::remove);
+            }
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            if (paused) {
+                consumer.pause(partitions);
+            }
+        }
+
     }
 
     public String[] getBrokers() {
@@ -28,6 +28,7 @@ import loghub.Pipeline;
 import loghub.Stats;
 import loghub.Stats.PipelineStat;
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.PipelineMetrics;
 import loghub.decoders.DecodeException;
 import loghub.decoders.DecodeException.RuntimeDecodeException;
 import loghub.decoders.Decoder;
@@ -91,6 +92,7 @@ public abstract class Receiver extends Thread implements Iterator<Event>, Closea
 
     private BlockingQueue<Event> outQueue;
     private Pipeline pipeline;
+    private PipelineMetrics pipelineMetrics;
     private final boolean blocking;
     private Meter count;
     protected final Decoder decoder;
@@ -350,7 +352,7 @@ public abstract class Receiver extends Thread implements Iterator<Event>, Closea
             Stats.received.incrementAndGet();
             if(! event.inject(pipeline, outQueue, blocking)) {
                 event.end();
-                Stats.pipelineHanding(pipeline.getName(), PipelineStat.BLOCKIN);
+                Stats.pipelineHanding(pipelineMetrics, PipelineStat.BLOCKIN);
                 Stats.newBlockedError("Listener " + getName() + " sending to " + pipeline.getName());
                 logger.debug("send failed from {}, pipeline destination {} blocked", () -> getName(), () -> pipeline.getName());
                 return false;
@@ -360,6 +362,14 @@ public abstract class Receiver extends Thread implements Iterator<Event>, Closea
         }
     }
 
+    /**
+     * Used by receivers that can stop reading from their source instead of blocking when the destination is full.
+     * @return true if the pipeline queue can't accept a new event
+     */
+    protected boolean isQueueFull() {
+        return outQueue.remainingCapacity() == 0;
+    }
+
     public abstract String getReceiverName();
 
     protected boolean withJaas() {
@@ -372,6 +382,7 @@ public abstract class Receiver extends Thread implements Iterator<Event>, Closea
 
     public void setPipeline(Pipeline pipeline) {
         this.pipeline = pipeline;
+        this.pipelineMetrics = pipeline.getMetrics();
     }
 
 }
@@ -2,6 +2,7 @@ package loghub.senders;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UncheckedIOException;
@@ -10,9 +11,14 @@ import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanRegistrationException;
@@ -31,7 +37,6 @@ import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.entity.EntityBuilder;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.ConnectionConfig;
@@ -55,6 +60,9 @@ import org.apache.http.pool.ConnPoolControl;
 import org.apache.http.util.VersionInfo;
 import org.apache.logging.log4j.Level;
 
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
 import loghub.Helpers;
 import loghub.configuration.Properties;
 import lombok.Setter;
@@ -76,6 +84,18 @@ public abstract class AbstractHttpSender extends Sender {
         private int port = -1;
         @Setter
         private String[] destinations;
+        @Setter
+        private String transport = "httpclient";
+        @Setter
+        private int connections = 2;
+        @Setter
+        private int inFlight = 4;
+        @Setter
+        private int ioThreads = 2;
+        @Setter
+        private int maxFailures = 3;
+        @Setter
+        private int ejectionTime = 10;
     };
 
     protected class HttpRequest {
@@ -83,7 +103,10 @@ public abstract class AbstractHttpSender extends Sender {
         private HttpVersion httpVersion = HttpVersion.HTTP_1_1;
         private URL url = null;
         private final Map<String, String> headers = new HashMap<>();
-        private HttpEntity content = null;
+        private String contentType = null;
+        private byte[] content = null;
+        private int contentOffset = 0;
+        private int contentLength = 0;
         public String getVerb() {
             return verb;
         }
@@ -109,13 +132,28 @@ public abstract class AbstractHttpSender extends Sender {
             headers.clear();
         }
         public void setContent(byte[] content) {
-            this.content = new ByteArrayEntity(content);
+            this.contentType = null;
+            this.content = content;
+            this.contentOffset = 0;
+            this.contentLength = content.length;
         }
         public void setTypeAndContent(String mimeType, Charset charset, byte[] content) throws IOException {
-            EntityBuilder builder = EntityBuilder.create()
-                            .setBinary(content)
-                            .setContentType(org.apache.http.entity.ContentType.create(mimeType, charset));
-            this.content = builder.build();
+            setTypeAndContent(mimeType, charset, content, 0, content.length);
+        }
+        public void setTypeAndContent(String mimeType, Charset charset, byte[] content, int offset, int length) {
+            this.contentType = org.apache.http.entity.ContentType.create(mimeType, charset).toString();
+            this.content = content;
+            this.contentOffset = offset;
+            this.contentLength = length;
+        }
+        private HttpEntity getEntity() {
+            if (content == null) {
+                return null;
+            } else if (contentType == null) {
+                return new ByteArrayEntity(content, contentOffset, contentLength);
+            } else {
+                return new ByteArrayEntity(content, contentOffset, contentLength, org.apache.http.entity.ContentType.parse(contentType));
+            }
         }
     }
 
@@ -138,19 +176,44 @@ public abstract class AbstractHttpSender extends Sender {
 
     };
 
-    protected class HttpResponse implements Closeable {
-        private final HttpHost host;
-        private final CloseableHttpResponse response;
+    protected abstract class HttpResponse implements Closeable {
+        private final String host;
         private final IOException socketException;
         private final GeneralSecurityException sslexception;
 
-        private HttpResponse(HttpHost host, CloseableHttpResponse response, IOException socketException, GeneralSecurityException sslexception) {
+        private HttpResponse(String host, IOException socketException, GeneralSecurityException sslexception) {
             super();
             this.host = host;
-            this.response = response;
             this.socketException = socketException;
             this.sslexception = sslexception;
         }
+        public abstract String getMimeType();
+        public String getHost() {
+            return host;
+        }
+        public abstract void close();
+        public abstract Reader getContentReader() throws IOException;
+        public abstract int getStatus();
+        public abstract String getStatusMessage();
+        public boolean isConnexionFailed() {
+            return socketException != null || sslexception != null;
+        }
+        public IOException getSocketException() {
+            return socketException;
+        }
+        public GeneralSecurityException getSslexception() {
+            return sslexception;
+        }
+    }
+
+    private class HttpClientResponse extends HttpResponse {
+        private final CloseableHttpResponse response;
+
+        private HttpClientResponse(HttpHost host, CloseableHttpResponse response, IOException socketException, GeneralSecurityException sslexception) {
+            super(host.toURI(), socketException, sslexception);
+            this.response = response;
+        }
+        @Override
         public String getMimeType() {
             HttpEntity resultBody = response.getEntity();
             org.apache.http.entity.ContentType ct = org.apache.http.entity.ContentType.get(resultBody);
@@ -160,9 +223,7 @@ public abstract class AbstractHttpSender extends Sender {
                 return "";
             }
         }
-        public String getHost() {
-            return host.toURI();
-        }
+        @Override
         public void close() {
             try {
                 if (response != null) {
@@ -172,6 +233,7 @@ public abstract class AbstractHttpSender extends Sender {
                 throw new UncheckedIOException(e);
             }
         }
+        @Override
         public Reader getContentReader() throws IOException {
             HttpEntity resultBody = response.getEntity();
             org.apache.http.entity.ContentType ct = org.apache.http.entity.ContentType.get(resultBody);
@@ -181,20 +243,46 @@ public abstract class AbstractHttpSender extends Sender {
             }
             return new InputStreamReader(resultBody.getContent(), charset);
         }
+        @Override
         public int getStatus() {
             return response.getStatusLine().getStatusCode();
         }
+        @Override
         public String getStatusMessage() {
             return response.getStatusLine().getReasonPhrase();
         }
-        public boolean isConnexionFailed() {
-            return socketException != null || sslexception != null;
+    }
+
+    private class NettyResponse extends HttpResponse {
+        private final FullHttpResponse response;
+
+        private NettyResponse(String host, FullHttpResponse response, IOException socketException, GeneralSecurityException sslexception) {
+            super(host, socketException, sslexception);
+            this.response = response;
         }
-        public IOException getSocketException() {
-            return socketException;
+        @Override
+        public String getMimeType() {
+            CharSequence mimeType = HttpUtil.getMimeType(response);
+            return mimeType != null ? mimeType.toString() : "";
         }
-        public GeneralSecurityException getSslexception() {
-            return sslexception;
+        @Override
+        public void close() {
+            if (response != null) {
+                response.release();
+            }
+        }
+        @Override
+        public Reader getContentReader() {
+            Charset charset = HttpUtil.getCharset(response, Charset.defaultCharset());
+            return new InputStreamReader(new ByteBufInputStream(response.content()), charset);
+        }
+        @Override
+        public int getStatus() {
+            return response.status().code();
+        }
+        @Override
+        public String getStatusMessage() {
+            return response.status().reasonPhrase();
         }
     }
 
@@ -231,17 +319,33 @@ public abstract class AbstractHttpSender extends Sender {
         }
     }
 
+    // An endpoint failing more than half of the requests is ejected
+    private static final double MAXERRORRATE = 0.5;
+
     // Beans
     private final int timeout;
     private CredentialsProvider credsProvider = null;
 
+    private final boolean withNetty;
+    private final int connections;
+    private final int inFlight;
+    private final int ioThreads;
+    private String authorization = null;
+
     private CloseableHttpClient client = null;
+    private NettyHttpClient nettyClient = null;
     protected final URL[] endPoints;
+    private final EndpointBalancer balancer;
 
     public AbstractHttpSender(Builder<? extends AbstractHttpSender> builder) {
         super(builder);
         timeout = builder.timeout;
         endPoints = Helpers.stringsToUrl(builder.destinations, builder.port, builder.protocol, logger);
+        balancer = new EndpointBalancer(endPoints, builder.maxFailures, MAXERRORRATE, builder.ejectionTime * 1000L, logger);
+        withNetty = "netty".equalsIgnoreCase(builder.transport);
+        connections = builder.connections;
+        inFlight = builder.inFlight;
+        ioThreads = builder.ioThreads;
         // Two names for login/user
         String user = builder.user != null ? builder.user : builder.login;
         if (user != null && builder.password != null) {
@@ -251,6 +355,9 @@ public abstract class AbstractHttpSender extends Sender {
                                              new AuthScope(i.getHost(), i.getPort()), 
                                              new UsernamePasswordCredentials(user, builder.password));
             }
+            // The Netty transport sends them preemptively
+            String userPass = user + ":" + builder.password;
+            authorization = "Basic " + Base64.getEncoder().encodeToString(userPass.getBytes(StandardCharsets.UTF_8));
         }
 
     }
@@ -261,6 +368,9 @@ public abstract class AbstractHttpSender extends Sender {
             if(endPoints.length == 0) {
                 return false;
             }
+            if (withNetty) {
+                return configureNetty(properties);
+            }
 
             // The HTTP connection management
             HttpClientBuilder clientBuilder = HttpClientBuilder.create();
@@ -314,7 +424,87 @@ public abstract class AbstractHttpSender extends Sender {
         }
     }
 
+    private boolean configureNetty(Properties properties) {
+        try {
+            nettyClient = new NettyHttpClient(getName(), properties.ssl, timeout * 1000, connections, inFlight, ioThreads, authorization);
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("No SSL context: {}", Helpers.resolveThrowableException(e));
+            return false;
+        }
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            mbs.registerMBean(new StandardMBean(nettyClient, HttpClientStatsMBean.class), new ObjectName("loghub:type=sender,servicename=" + getName() + ",name=connectionsPool"));
+        } catch (NotCompliantMBeanException | MalformedObjectNameException
+                        | InstanceAlreadyExistsException | MBeanRegistrationException e) {
+            throw new RuntimeException("jmx configuration failed: " + Helpers.resolveThrowableException(e), e);
+        }
+        return true;
+    }
+
+    @Override
+    protected void customStopSending() {
+        if (nettyClient != null) {
+            nettyClient.close();
+        }
+    }
+
+    /**
+     * The endpoints in the order they should be tried for a request, the first one is chosen for its latency and
+     * its requests in progress. Ejected endpoints are last.
+     * @return the endpoints
+     */
+    protected URL[] getEndpoints() {
+        return balancer.order().stream().map(EndpointBalancer.Endpoint::getUrl).toArray(URL[]::new);
+    }
+
+    /**
+     * Send a request, the latency and the failures of the endpoint are tracked.
+     * @param therequest the request
+     * @return the response
+     */
     protected HttpResponse doRequest(HttpRequest therequest) {
+        try {
+            return doAsyncRequest(therequest).join();
+        } catch (CompletionException e) {
+            // The responses are built from the failures, only unexpected exceptions are thrown
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Send a request without waiting for the response, the latency and the failures of the endpoint are tracked.
+     * Only the Netty transport is really asynchronous, the response is then handled in a IO thread.
+     * @param therequest the request
+     * @return the future response
+     */
+    protected CompletableFuture<HttpResponse> doAsyncRequest(HttpRequest therequest) {
+        EndpointBalancer.Endpoint endpoint = balancer.find(therequest.url);
+        long start = endpoint != null ? balancer.start(endpoint) : 0;
+        CompletableFuture<HttpResponse> future;
+        if (nettyClient != null) {
+            future = doNettyRequest(therequest);
+        } else {
+            future = new CompletableFuture<>();
+            try {
+                future.complete(doHttpClientRequest(therequest));
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+            }
+        }
+        if (endpoint != null) {
+            future.whenComplete((r, e) -> balancer.done(endpoint, start, r != null && ! r.isConnexionFailed() && r.getStatus() < 500));
+        }
+        return future;
+    }
+
+    private HttpResponse doHttpClientRequest(HttpRequest therequest) {
 
         HttpClientContext context = HttpClientContext.create();
         if (credsProvider != null) {
@@ -323,8 +513,9 @@ public abstract class AbstractHttpSender extends Sender {
 
         RequestLine requestLine = new BasicRequestLine(therequest.verb, therequest.url.getPath(), therequest.httpVersion);
         BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest(requestLine);
-        if (therequest.content != null) {
-            request.setEntity(therequest.content);
+        HttpEntity entity = therequest.getEntity();
+        if (entity != null) {
+            request.setEntity(entity);
         }
         therequest.headers.forEach((i,j) -> request.addHeader(i, j));
         HttpHost host = new HttpHost(therequest.url.getHost(),
@@ -332,10 +523,10 @@ public abstract class AbstractHttpSender extends Sender {
                             therequest.url.getProtocol());
         try {
             CloseableHttpResponse response = client.execute(host, request, context);
-            return new HttpResponse(host, response, null, null);
+            return new HttpClientResponse(host, response, null, null);
         } catch (ConnectionPoolTimeoutException e) {
             logger.error("All connections slots to {} used.", host);
-            return new HttpResponse(host, null, e, null);
+            return new HttpClientResponse(host, null, e, null);
         } catch (HttpHostConnectException e) {
             String message = "";
             try {
@@ -350,7 +541,7 @@ public abstract class AbstractHttpSender extends Sender {
             }
             logger.error(message);
             logger.catching(Level.DEBUG, e.getCause());
-            return new HttpResponse(host, null, e, null);
+            return new HttpClientResponse(host, null, e, null);
         } catch (IOException e) {
             Throwable rootCause = e;
             while (rootCause.getCause() != null){
@@ -360,13 +551,46 @@ public abstract class AbstractHttpSender extends Sender {
             if (rootCause instanceof GeneralSecurityException) {
                 logger.error("Secure comunication with {} failed: {}", host, Helpers.resolveThrowableException(rootCause));
                 logger.catching(Level.DEBUG, rootCause);
-                return new HttpResponse(host, null, null, (GeneralSecurityException) rootCause);
+                return new HttpClientResponse(host, null, null, (GeneralSecurityException) rootCause);
             } else {
                 logger.error("Comunication with {} failed: {}", host, Helpers.resolveThrowableException(e));
                 logger.catching(Level.DEBUG, e);
-                return new HttpResponse(host, null, e, null);
+                return new HttpClientResponse(host, null, e, null);
             }
         }
     };
 
+    private CompletableFuture<HttpResponse> doNettyRequest(HttpRequest therequest) {
+        URL url = therequest.url;
+        String host = url.getProtocol() + "://" + url.getAuthority();
+        return nettyClient.execute(url, therequest.verb, therequest.headers, therequest.contentType, therequest.content, therequest.contentOffset, therequest.contentLength)
+                          .handle((r, e) -> e == null ? new NettyResponse(host, r, null, null) : nettyFailure(host, e));
+    }
+
+    private HttpResponse nettyFailure(String host, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof InterruptedException) {
+            return new NettyResponse(host, null, new InterruptedIOException("Interrupted"), null);
+        }
+        Throwable rootCause = cause;
+        while (rootCause.getCause() != null){
+            rootCause = rootCause.getCause();
+        };
+        if (rootCause instanceof GeneralSecurityException) {
+            logger.error("Secure comunication with {} failed: {}", host, Helpers.resolveThrowableException(rootCause));
+            logger.catching(Level.DEBUG, rootCause);
+            return new NettyResponse(host, null, null, (GeneralSecurityException) rootCause);
+        } else if (cause instanceof ConnectException) {
+            logger.error("Connection to {} refused", host);
+            logger.catching(Level.DEBUG, cause);
+        } else if (cause instanceof SocketTimeoutException) {
+            logger.error("Slow response from {}", host);
+        } else {
+            logger.error("Comunication with {} failed: {}", host, Helpers.resolveThrowableException(cause));
+            logger.catching(Level.DEBUG, cause);
+        }
+        IOException ioex = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        return new NettyResponse(host, null, ioex, null);
+    }
+
 }
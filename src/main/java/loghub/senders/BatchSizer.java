@@ -0,0 +1,62 @@
+package loghub.senders;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the batch size of a sender, between a minimum and a maximum, using an additive increase, multiplicative
+ * decrease rule.
+ * <p>
+ * After each flush, the size is increased by a step if the batch was full, the flush succeeded quickly and events are
+ * waiting. It's halved if the flush failed or took longer than the allowed flush time, as the destination is
+ * overloaded. When a batch is flushed by the timer before being full, the size goes half-way to the flushed size,
+ * so events wait less when the traffic is low.
+ */
+class BatchSizer {
+
+    // The count of successful flushes needed to go from the minimum to the maximum size
+    private static final int STEPS = 32;
+
+    private final int minSize;
+    private final int maxSize;
+    private final int step;
+    // in ns
+    private final long maxFlushTime;
+    private volatile int size;
+
+    /**
+     * @param initialSize the starting batch size
+     * @param minSize the smallest batch size
+     * @param maxSize the biggest batch size
+     * @param maxFlushTime a flush slower than that reduce the batch size, in ms
+     */
+    BatchSizer(int initialSize, int minSize, int maxSize, long maxFlushTime) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.step = Math.max(1, (this.maxSize - this.minSize) / STEPS);
+        this.maxFlushTime = TimeUnit.MILLISECONDS.toNanos(maxFlushTime);
+        this.size = Math.min(this.maxSize, Math.max(this.minSize, initialSize));
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Called when a batch is flushed
+     * @param flushed the number of events in the batch
+     * @param full true if the batch was sent because it was full
+     * @param duration the flush duration, in ns
+     * @param failed true if the destination failed
+     * @param backlog the number of events waiting to be batched
+     */
+    synchronized void flushed(int flushed, boolean full, long duration, boolean failed, int backlog) {
+        if (failed || duration > maxFlushTime) {
+            size = Math.max(minSize, size / 2);
+        } else if (full && backlog >= size) {
+            size = Math.min(maxSize, size + step);
+        } else if (! full) {
+            size = Math.max(minSize, (size + flushed) / 2);
+        }
+    }
+
+}
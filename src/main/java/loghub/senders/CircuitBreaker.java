@@ -0,0 +1,200 @@
+package loghub.senders;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A circuit breaker for a sender, it stops sending when the destination is failing.
+ * <p>
+ * The results of the last sends, or flushes for a batching sender, are kept in a sliding window. A send is bad if it
+ * failed or was slower than the maximum latency. When the window is full and the rate of bad sends is too high, the
+ * breaker is opened, and events are not sent for the open time. The breaker is then half-open, a single event is sent
+ * as a probe, its result closes the breaker, or opens it again.
+ */
+class CircuitBreaker implements Sender.CircuitBreakerMBean {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private final Logger logger;
+    private final boolean[] window;
+    private final double maxFailureRate;
+    // in ns
+    private final long maxLatency;
+    private final long openTime;
+
+    private volatile State state = State.CLOSED;
+    private int position = 0;
+    private int recorded = 0;
+    private int bad = 0;
+    private long openedAt = 0;
+    // Set when the probe of the half-open breaker was allowed, until its result is recorded
+    private boolean probing = false;
+    private final AtomicLong openings = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * @param windowSize the number of results used to compute the failure rate
+     * @param maxFailureRate the rate of bad results that opens the breaker
+     * @param maxLatency a send slower than that is bad, in ms, 0 to ignore the latency
+     * @param openTime how long the breaker stays open, in ms
+     * @param logger the logger of the sender
+     */
+    CircuitBreaker(int windowSize, double maxFailureRate, long maxLatency, long openTime, Logger logger) {
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.maxFailureRate = maxFailureRate;
+        this.maxLatency = maxLatency > 0 ? TimeUnit.MILLISECONDS.toNanos(maxLatency) : Long.MAX_VALUE;
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+        this.logger = logger;
+    }
+
+    /**
+     * Check if an event can be sent. When half-open, only the first caller is allowed, its event is the probe.
+     * @return true if an event can be sent
+     */
+    boolean allow() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            halfOpen();
+            if (state == State.HALF_OPEN && ! probing) {
+                probing = true;
+                return true;
+            } else {
+                return state == State.CLOSED;
+            }
+        }
+    }
+
+    /**
+     * Like {@link #allow()}, but the probe of a half-open breaker is not taken.
+     * @return true if an event might be sent
+     */
+    boolean canSend() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            halfOpen();
+            return state == State.CLOSED || (state == State.HALF_OPEN && ! probing);
+        }
+    }
+
+    private void halfOpen() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openTime) {
+            logger.info("Circuit breaker half-open");
+            state = State.HALF_OPEN;
+        }
+    }
+
+    /**
+     * Wait until the breaker is not open any more, or the probe of the half-open breaker is allowed.
+     * @throws InterruptedException
+     */
+    void await() throws InterruptedException {
+        while (! allow()) {
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    long remaining = openTime - (System.nanoTime() - openedAt);
+                    if (remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } else if (state == State.HALF_OPEN && probing) {
+                    // Woken up by the result of the probe
+                    TimeUnit.NANOSECONDS.timedWait(this, openTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the result of a send
+     * @param success true if it succeeded
+     * @param latency the send duration in ns, negative if unknown
+     */
+    synchronized void record(boolean success, long latency) {
+        boolean isBad = ! success || latency > maxLatency;
+        switch (state) {
+        case OPEN:
+            // Sent before the opening
+            return;
+        case HALF_OPEN:
+            probing = false;
+            notifyAll();
+            if (isBad) {
+                open();
+            } else {
+                logger.info("Circuit breaker closed");
+                reset();
+                state = State.CLOSED;
+            }
+            return;
+        case CLOSED:
+            if (recorded == window.length && window[position]) {
+                bad--;
+            }
+            window[position] = isBad;
+            position = (position + 1) % window.length;
+            recorded = Math.min(recorded + 1, window.length);
+            if (isBad) {
+                bad++;
+            }
+            if (recorded == window.length && bad >= maxFailureRate * window.length) {
+                open();
+            }
+        }
+    }
+
+    private void open() {
+        logger.warn("Circuit breaker opened for {} ms", TimeUnit.NANOSECONDS.toMillis(openTime));
+        state = State.OPEN;
+        probing = false;
+        openedAt = System.nanoTime();
+        openings.incrementAndGet();
+        reset();
+    }
+
+    private void reset() {
+        position = 0;
+        recorded = 0;
+        bad = 0;
+    }
+
+    /**
+     * Count an event that was not sent because the breaker is open
+     */
+    void shed() {
+        shed.incrementAndGet();
+    }
+
+    State getBreakerState() {
+        return state;
+    }
+
+    @Override
+    public String getState() {
+        return state.name();
+    }
+
+    @Override
+    public synchronized double getFailureRate() {
+        return recorded == 0 ? 0 : ((double) bad) / recorded;
+    }
+
+    @Override
+    public long getOpenings() {
+        return openings.get();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.get();
+    }
+
+}
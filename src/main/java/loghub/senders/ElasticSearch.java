@@ -1,33 +1,51 @@
 package loghub.senders;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
 import org.apache.logging.log4j.Level;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.json.JsonWriteFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
 
 import io.netty.util.CharsetUtil;
 import loghub.BuilderClass;
@@ -62,6 +80,10 @@ public class ElasticSearch extends AbstractHttpSender {
         private String templatePath = null;
         @Setter
         private boolean withTemplate = true;
+        @Setter
+        private int maxRetries = 3;
+        @Setter
+        private int retryBackoff = 100;
         public Builder() {
             this.setPort(9200);
             this.setBatchSize(20);
@@ -81,11 +103,52 @@ public class ElasticSearch extends AbstractHttpSender {
         protected ObjectMapper initialValue() {
             return new ObjectMapper(factory)
                             .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+                            .configure(SerializationFeature.FLUSH_AFTER_WRITE_VALUE, false)
                             .configure(JsonWriteFeature.ESCAPE_NON_ASCII.mappedFeature(), true);
         }
     };
 
-    private static final ThreadLocal<DateFormat> ISO8601 = ThreadLocal.withInitial( () -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
+    /**
+     * The buffer used to build a bulk request, it's reused between batches once the response is received.
+     */
+    static class BulkBuffer extends ByteArrayOutputStream {
+        BulkBuffer(int size) {
+            super(size);
+        }
+        byte[] getBuffer() {
+            return buf;
+        }
+        int capacity() {
+            return buf.length;
+        }
+        void truncate(int size) {
+            count = size;
+        }
+    }
+
+    // A buffer bigger than that is not kept for the next batch
+    private static final int MAXKEPTBUFFER = 16 * 1024 * 1024;
+
+    // The retries are limited to a fraction of the documents sent, in thousandths of a retry
+    private static final long RETRYRATIO = 200;
+    private static final long RETRYCOST = 1000;
+    // The back-off is at most retryBackoff * 2^6
+    private static final int MAXBACKOFFSHIFT = 6;
+    // A bulk request rejected as a whole because the cluster is overloaded is retried too
+    private static final Map<Integer, Function<JsonNode, BulkResponse>> BULKREJECTED;
+    static {
+        Map<Integer, Function<JsonNode, BulkResponse>> handlers = new HashMap<>(2);
+        handlers.put(429, node -> BulkResponse.rejected(429));
+        handlers.put(503, node -> BulkResponse.rejected(503));
+        BULKREJECTED = Collections.unmodifiableMap(handlers);
+    }
+
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(Reader content) throws IOException;
+    }
+
+    private static final DateTimeFormatter ISO8601 = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
 
     private final String type;
     private final String typeExpressionSrc;
@@ -97,7 +160,13 @@ public class ElasticSearch extends AbstractHttpSender {
     private final boolean withTemplate;
 
     private ThreadLocal<DateFormat> esIndexFormat;
-    private final ThreadLocal<URL[]> UrlArrayCopy;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final int maxRetries;
+    // in ms
+    private final long retryBackoff;
+    private final AtomicLong retryTokens;
+    // The buffers used to build the bulk requests, they are kept until the response is received
+    private final Queue<BulkBuffer> bulkBuffers = new ConcurrentLinkedQueue<>();
 
     public ElasticSearch(Builder builder) {
         super(builder);
@@ -117,9 +186,11 @@ public class ElasticSearch extends AbstractHttpSender {
             }
         }
         type = builder.type;
+        maxRetries = Math.max(0, builder.maxRetries);
+        retryBackoff = Math.max(1, builder.retryBackoff);
+        retryTokens = new AtomicLong(maxRetryTokens());
         typeExpressionSrc = builder.typeX;
         indexExpressionSrc = builder.indexX;
-        UrlArrayCopy = ThreadLocal.withInitial(() -> Arrays.copyOf(endPoints, endPoints.length));
         if (indexExpressionSrc == null) {
             esIndexFormat = ThreadLocal.withInitial( () -> {
                 DateFormat df = new SimpleDateFormat(builder.indexformat);
@@ -137,11 +208,11 @@ public class ElasticSearch extends AbstractHttpSender {
             try {
                 if (typeExpressionSrc != null) {
                     processedSrc = typeExpressionSrc;
-                    typeExpression = new Expression(typeExpressionSrc, properties.groovyClassLoader, properties.formatters);
+                    typeExpression = new Expression(typeExpressionSrc, properties);
                 }
                 if (indexExpressionSrc != null) {
                     processedSrc = indexExpressionSrc;
-                    indexExpression = new Expression(indexExpressionSrc, properties.groovyClassLoader, properties.formatters);
+                    indexExpression = new Expression(indexExpressionSrc, properties);
                 }
             } catch (ExpressionException e) {
                 Expression.logError(e, processedSrc, logger);
@@ -168,115 +239,387 @@ public class ElasticSearch extends AbstractHttpSender {
     }
 
     @Override
-    protected void flush(Batch documents) throws SendException {
-        HttpRequest request = new HttpRequest();
+    protected CompletableFuture<?> asyncFlush(Batch documents) throws SendException {
+        BulkBuffer content = getBulkBuffer();
         // This list contains the event futures that will be effectively sent to ES
         List<EventFuture> tosend = new ArrayList<EventFuture>(documents.size());
-        byte[] content = putContent(documents, tosend);
-        if (content.length == 0) {
-            return;
-        }
         try {
-            request.setTypeAndContent("application/json", CharsetUtil.UTF_8, content);
+            if (putContent(documents, tosend, content) == 0) {
+                releaseBulkBuffer(content);
+                return CompletableFuture.completedFuture(null);
+            }
         } catch (IOException e) {
+            releaseBulkBuffer(content);
             throw new SendException(e);
         }
+        int attempt = documents.getAttempt();
+        if (attempt == 0) {
+            depositRetryTokens(tosend.size());
+        }
+        HttpRequest request = new HttpRequest();
+        request.setTypeAndContent("application/json", CharsetUtil.UTF_8, content.getBuffer(), 0, content.size());
         request.setVerb("POST");
-        Function<JsonNode, Map<String, ? extends Object>> reader;
-        reader = node -> {
-            try {
-                return json.get().readerFor(Map.class).readValue(node);
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+        // The buffer is kept until all the endpoints that might be needed were tried
+        return doflush(request, tosend).whenComplete((r, e) -> releaseBulkBuffer(content)).thenAccept(retry -> {
+            if (retry.isEmpty()) {
+                return;
+            } else if (attempt >= maxRetries || ! withdrawRetryTokens(retry.size())) {
+                logger.debug("Giving up retry for {} documents", retry.size());
+                retry.forEach(EventFuture::failure);
+            } else {
+                // The publisher is not blocked during the backoff, the documents are sent again in a new batch
+                long delay = backoff(attempt);
+                logger.debug("Retrying {} documents in {} ms", retry.size(), delay);
+                retry(documents, retry.keySet(), delay);
+            }
+        });
+    }
+
+    private BulkBuffer getBulkBuffer() {
+        BulkBuffer buffer = bulkBuffers.poll();
+        return buffer != null ? buffer : new BulkBuffer(64 * 1024);
+    }
+
+    private void releaseBulkBuffer(BulkBuffer buffer) {
+        if (buffer.capacity() <= MAXKEPTBUFFER) {
+            buffer.reset();
+            bulkBuffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Send a bulk request and complete the futures of the documents, except the ones that can be retried
+     * @return the documents to retry, with the failure message
+     */
+    private CompletableFuture<Map<EventFuture, String>> doflush(HttpRequest request, List<EventFuture> tosend) {
+        ResponseReader<BulkResponse> reader = r -> {
+            try (JsonParser parser = factory.createParser(r)) {
+                return BulkResponse.parse(parser);
             }
         };
-        Map<String, ? extends Object> response = doquery(request, "/_bulk", reader, Collections.emptyMap(), null);
-        if (response != null && Boolean.TRUE.equals(response.get("errors"))) {
-            @SuppressWarnings("unchecked")
-            List<Map<String, ?>> items = (List<Map<String, ?>>) response.get("items");
-            int eventIndex = 0;
-            for (Map<String, ?> i: items) {
-                @SuppressWarnings("unchecked")
-                Map<String, Map<String, ? extends Object>> index = (Map<String, Map<String, ? extends Object>>) i.get("index");
-                EventFuture f = tosend.get(eventIndex);
-                if (! index.containsKey("error")) {
-                    f.complete(true);
+        return dostreamqueryAsync(request, "/_bulk", reader, BULKREJECTED, null).thenApply(response -> {
+            Map<EventFuture, String> retry = new LinkedHashMap<>();
+            if (response == null) {
+                tosend.forEach(i -> i.complete(false));
+            } else if (response.rejected != 0) {
+                // The whole request was rejected, all the documents can be sent again
+                String failure = "Bulk request rejected with status " + response.rejected;
+                tosend.forEach(i -> retry.put(i, failure));
+            } else if (! response.isErrors()) {
+                tosend.forEach(i -> i.complete(true));
+            } else if (response.size() != tosend.size()) {
+                logger.error("Bulk response with {} items for {} documents", response.size(), tosend.size());
+                tosend.forEach(i -> i.complete(false));
+            } else {
+                for (int i = 0; i < tosend.size(); i++) {
+                    EventFuture f = tosend.get(i);
+                    String failure = response.getFailure(i);
+                    if (failure == null) {
+                        f.complete(true);
+                    } else if (response.isRetryable(i)) {
+                        retry.put(f, failure);
+                    } else {
+                        f.failure(failure);
+                    }
+                }
+            }
+            return retry;
+        });
+    }
+
+    /**
+     * The outcome of a bulk request. The response is streamed and only the fields needed are kept, for each item
+     * the status and the error. If there is no errors, the items are skipped.
+     */
+    static class BulkResponse {
+        // The status if the whole bulk request was rejected because the cluster is overloaded
+        private int rejected = 0;
+        private boolean errors = false;
+        private final List<Integer> statuses = new ArrayList<>();
+        private final List<String> types = new ArrayList<>();
+        // The failure message, or null for a success
+        private final List<String> failures = new ArrayList<>();
+
+        static BulkResponse rejected(int status) {
+            BulkResponse response = new BulkResponse();
+            response.rejected = status;
+            return response;
+        }
+
+        static BulkResponse parse(JsonParser parser) throws IOException {
+            BulkResponse response = new BulkResponse();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Not a bulk response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("errors".equals(field)) {
+                    response.errors = token == JsonToken.VALUE_TRUE;
+                } else if ("items".equals(field) && response.errors && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        // The action, only one
+                        parser.nextToken();
+                        parser.nextToken();
+                        response.parseItem(parser);
+                        parser.nextToken();
+                    }
                 } else {
-                    Map<String, ? extends Object> error =  Optional.ofNullable((Map<String, ? extends Object>) index.get("error")).orElse(Collections.emptyMap());
-                    String type = (String) error.get("type");
-                    String errorReason = (String) error.get("reason");
-                    Optional<Map<?, ?>> errorCause = Optional.ofNullable((Map<?, ?>) error.get("caused_by"));
-                    f.failure(String.format("%s %s, caused by %s %s",
-                                            type,
-                                            errorReason,
-                                            errorCause.orElse(Collections.emptyMap()).get("type"), errorCause.orElse(Collections.emptyMap()).get("reason")));
+                    // ES writes errors before items, so if no errors, the items are skipped too
+                    parser.skipChildren();
                 }
             }
-        } else if (response != null && Boolean.FALSE.equals(response.get("errors"))) {
-            documents.stream().forEach(i -> i.complete(true));
-        } else {
-            documents.stream().forEach(i -> i.complete(false));
+            return response;
+        }
+
+        private void parseItem(JsonParser parser) throws IOException {
+            int status = 0;
+            String type = null;
+            String reason = null;
+            String causeType = null;
+            String causeReason = null;
+            boolean failed = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("status".equals(field)) {
+                    status = parser.getIntValue();
+                } else if ("error".equals(field) && token == JsonToken.START_OBJECT) {
+                    failed = true;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String errorField = parser.getCurrentName();
+                        JsonToken errorToken = parser.nextToken();
+                        if ("type".equals(errorField)) {
+                            type = parser.getValueAsString();
+                        } else if ("reason".equals(errorField)) {
+                            reason = parser.getValueAsString();
+                        } else if ("caused_by".equals(errorField) && errorToken == JsonToken.START_OBJECT) {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String causeField = parser.getCurrentName();
+                                parser.nextToken();
+                                if ("type".equals(causeField)) {
+                                    causeType = parser.getValueAsString();
+                                } else if ("reason".equals(causeField)) {
+                                    causeReason = parser.getValueAsString();
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            statuses.add(status);
+            types.add(type);
+            failures.add(failed ? String.format("%s %s, caused by %s %s", type, reason, causeType, causeReason) : null);
+        }
+
+        int size() {
+            return failures.size();
+        }
+
+        boolean isErrors() {
+            return errors;
+        }
+
+        int getStatus(int item) {
+            return statuses.get(item);
+        }
+
+        String getFailure(int item) {
+            return failures.get(item);
+        }
+
+        /**
+         * A document rejected because the cluster is overloaded or a shard unavailable can be sent again.
+         */
+        boolean isRetryable(int item) {
+            int status = statuses.get(item);
+            return status == 429 || status == 502 || status == 503 || status == 504 || "es_rejected_execution_exception".equals(types.get(item));
         }
     }
 
-    private byte[] putContent(List<EventFuture> events, List<EventFuture> toprocess) {
-        StringBuilder builder = new StringBuilder();
-        StringBuilder eventbuilder = new StringBuilder();
-        Map<String, String> settings = new HashMap<>(2);
-        Map<String, Object> action = Collections.singletonMap("index", settings);
-        Map<String, Object> esjson = new HashMap<>();
+    /**
+     * The delay before the next retry, exponential with a random jitter, to spread the retries of all the workers.
+     */
+    private long backoff(int attempt) {
+        long delay = retryBackoff << Math.min(attempt, MAXBACKOFFSHIFT);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Each new document gives a fraction of a retry, so retries can't exceed a share of the sent documents.
+     */
+    private void depositRetryTokens(int documents) {
+        long maxRetryTokens = maxRetryTokens();
+        retryTokens.accumulateAndGet(documents * RETRYRATIO, (i, j) -> Math.min(i + j, maxRetryTokens));
+    }
+
+    /**
+     * Enough to retry a full batch maxRetries times, it follows the batch size when it's adaptive.
+     */
+    private long maxRetryTokens() {
+        return Math.max(1, currentBatchSize()) * Math.max(1, maxRetries) * RETRYCOST;
+    }
+
+    private boolean withdrawRetryTokens(int documents) {
+        long cost = documents * RETRYCOST;
+        long tokens;
+        do {
+            tokens = retryTokens.get();
+            if (tokens < cost) {
+                return false;
+            }
+        } while (! retryTokens.compareAndSet(tokens, tokens - cost));
+        return true;
+    }
+
+    /**
+     * Write the bulk request for the events in the buffer, the action and the source lines are streamed directly
+     * from the events.
+     * @param events the events to send
+     * @param toprocess filled with the events effectively written
+     * @param buffer the destination buffer
+     * @return the count of events written
+     * @throws IOException if the buffer can't be written
+     */
+    // Package visible for the benchmarks
+    int putContent(List<EventFuture> events, List<EventFuture> toprocess, BulkBuffer buffer) throws IOException {
         ObjectMapper jsonmapper = json.get();
+        DefaultSerializerProvider provider = ((DefaultSerializerProvider) jsonmapper.getSerializerProvider()).createInstance(jsonmapper.getSerializationConfig(), jsonmapper.getSerializerFactory());
+        TimestampFormatter timestamps = new TimestampFormatter(zone);
+        JsonGenerator gen = null;
         int validEvents = 0;
-        for (EventFuture ef: events) {
-            try {
+        try {
+            for (EventFuture ef: events) {
                 Event e = ef.getEvent();
-                eventbuilder.setLength(0);
-                esjson.clear();
-                esjson.putAll(e);
-                esjson.put("@timestamp", ISO8601.get().format(e.getTimestamp()));
-                String indexvalue;
-                if (indexExpression != null) {
-                    indexvalue = Optional.ofNullable(indexExpression.eval(e)).map( i-> i.toString()).orElse(null);
-                } else {
-                    indexvalue = esIndexFormat.get().format(e.getTimestamp());
-                }
-                if (indexvalue == null || indexvalue.isEmpty()) {
-                    ef.completeExceptionally(new EncodeException("No usable index name for event"));
-                    logger.debug("No usable index name for event {}", e);
+                int mark = buffer.size();
+                try {
+                    String indexvalue;
+                    if (indexExpression != null) {
+                        indexvalue = Optional.ofNullable(indexExpression.eval(e)).map( i-> i.toString()).orElse(null);
+                    } else {
+                        indexvalue = esIndexFormat.get().format(e.getTimestamp());
+                    }
+                    if (indexvalue == null || indexvalue.isEmpty()) {
+                        ef.completeExceptionally(new EncodeException("No usable index name for event"));
+                        logger.debug("No usable index name for event {}", e);
+                        continue;
+                    }
+                    String typevalue;
+                    if (typeExpression != null) {
+                        typevalue = Optional.ofNullable(typeExpression.eval(e)).map( i-> i.toString()).orElse(null);
+                    } else {
+                        typevalue = Optional.ofNullable(e.get(type)).map(i -> i.toString()).orElse(null);
+                    }
+                    if (typevalue == null || typevalue.isEmpty()) {
+                        ef.completeExceptionally(new EncodeException("No usable type for event"));
+                        logger.debug("No usable type for event {}", e);
+                        continue;
+                    }
+                    if (gen == null) {
+                        gen = jsonmapper.getFactory().createGenerator(buffer);
+                        gen.setRootValueSeparator(null);
+                    }
+                    gen.writeStartObject();
+                    gen.writeObjectFieldStart("index");
+                    gen.writeStringField("_index", indexvalue);
+                    gen.writeStringField("_type", typevalue);
+                    gen.writeEndObject();
+                    gen.writeEndObject();
+                    gen.writeRaw('\n');
+                    gen.writeStartObject();
+                    for (Map.Entry<String, Object> field: e.entrySet()) {
+                        String name = field.getKey();
+                        // The type field is only removed if it was used
+                        if ("@timestamp".equals(name) || (typeExpression == null && type.equals(name))) {
+                            continue;
+                        }
+                        gen.writeFieldName(name);
+                        provider.serializeValue(gen, field.getValue());
+                    }
+                    gen.writeFieldName("@timestamp");
+                    timestamps.write(gen, e.getTimestamp());
+                    gen.writeEndObject();
+                    gen.writeRaw('\n');
+                    // Flushed for each event, so a failed event can be removed from the buffer
+                    gen.flush();
+                    validEvents++;
+                    toprocess.add(ef);
+                } catch (JsonProcessingException | ProcessorException ex) {
+                    // The generator state is lost, a new one will be needed
+                    if (gen != null) {
+                        gen.close();
+                        gen = null;
+                    }
+                    buffer.truncate(mark);
+                    ef.completeExceptionally(ex);
+                    logger.debug("Failed to serialized {}: {}", ef.getEvent(),Helpers.resolveThrowableException(ex));
                     continue;
-                } else {
-                    settings.put("_index", indexvalue);
-                }
-                String typevalue;
-                if (typeExpression != null) {
-                    typevalue = Optional.ofNullable(typeExpression.eval(e)).map( i-> i.toString()).orElse(null);
-                } else {
-                    typevalue = Optional.ofNullable(esjson.remove(type)).map(i -> i.toString()).orElse(null);
                 }
-                if (typevalue == null || typevalue.isEmpty()) {
-                    ef.completeExceptionally(new EncodeException("No usable type for event"));
-                    logger.debug("No usable type for event {}", e);
-                    continue;
-                } else {
-                    settings.put("_type", typevalue);
+            }
+        } finally {
+            if (gen != null) {
+                gen.close();
+            }
+        }
+        return validEvents;
+    }
+
+    /**
+     * Format the @timestamp field, as yyyy-MM-dd'T'HH:mm:ss.SSSZ. Successive events are usually in the same
+     * second, so only the milliseconds are formatted again.
+     */
+    private static class TimestampFormatter {
+        private final ZoneId zone;
+        private final char[] buffer = new char[28];
+        private long currentSecond = Long.MIN_VALUE;
+        TimestampFormatter(ZoneId zone) {
+            this.zone = zone;
+        }
+        void write(JsonGenerator gen, Date timestamp) throws IOException {
+            long millis = timestamp.getTime();
+            long second = Math.floorDiv(millis, 1000);
+            if (second != currentSecond) {
+                Instant instant = Instant.ofEpochSecond(second);
+                ZoneOffset offset = zone.getRules().getOffset(instant);
+                LocalDateTime ldt = LocalDateTime.ofEpochSecond(second, 0, offset);
+                int year = ldt.getYear();
+                if (year < 0 || year > 9999) {
+                    // Not worth a fast path
+                    gen.writeString(ISO8601.format(Instant.ofEpochMilli(millis).atZone(zone)));
+                    return;
                 }
-                eventbuilder.append(jsonmapper.writeValueAsString(action));
-                eventbuilder.append("\n");
-                eventbuilder.append(jsonmapper.writeValueAsString(esjson));
-                eventbuilder.append("\n");
-                builder.append(eventbuilder);
-                validEvents++;
-                toprocess.add(ef);
-            } catch (JsonProcessingException | ProcessorException ex) {
-                ef.completeExceptionally(ex);
-                logger.debug("Failed to serialized {}: {}", ef.getEvent(),Helpers.resolveThrowableException(ex));
-                continue;
+                int offsetMinutes = offset.getTotalSeconds() / 60;
+                digits(year, 0, 4);
+                buffer[4] = '-';
+                digits(ldt.getMonthValue(), 5, 2);
+                buffer[7] = '-';
+                digits(ldt.getDayOfMonth(), 8, 2);
+                buffer[10] = 'T';
+                digits(ldt.getHour(), 11, 2);
+                buffer[13] = ':';
+                digits(ldt.getMinute(), 14, 2);
+                buffer[16] = ':';
+                digits(ldt.getSecond(), 17, 2);
+                buffer[19] = '.';
+                buffer[23] = offsetMinutes < 0 ? '-' : '+';
+                digits(Math.abs(offsetMinutes) / 60, 24, 2);
+                digits(Math.abs(offsetMinutes) % 60, 26, 2);
+                currentSecond = second;
             }
+            digits((int) Math.floorMod(millis, 1000), 20, 3);
+            gen.writeString(buffer, 0, buffer.length);
         }
-        if (validEvents == 0) {
-            return new byte[] {};
-        } else {
-            return builder.toString().getBytes(CharsetUtil.UTF_8);
+        private void digits(int value, int position, int length) {
+            for (int i = position + length - 1; i >= position; i--) {
+                buffer[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
         }
     }
 
@@ -376,12 +719,27 @@ public class ElasticSearch extends AbstractHttpSender {
     }
 
     private <T> T doquery(HttpRequest request, String filePart, Function<JsonNode, T> transform, Map<Integer, Function<JsonNode, T>> failureHandlers, T onFailure) {
-        if (request == null) {
-            request = new HttpRequest();
-        }
-        URL[] localendPoints = UrlArrayCopy.get();
-        Helpers.shuffleArray(localendPoints);
-        for (URL endPoint: localendPoints) {
+        return dostreamquery(request, filePart, r -> transform.apply(json.get().readTree(r)), failureHandlers, onFailure);
+    }
+
+    /**
+     * Send a request to the first responding node, a successful response is given as a stream to the reader
+     */
+    private <T> T dostreamquery(HttpRequest request, String filePart, ResponseReader<T> transform, Map<Integer, Function<JsonNode, T>> failureHandlers, T onFailure) {
+        return dostreamqueryAsync(request, filePart, transform, failureHandlers, onFailure).join();
+    }
+
+    private <T> CompletableFuture<T> dostreamqueryAsync(HttpRequest request, String filePart, ResponseReader<T> transform, Map<Integer, Function<JsonNode, T>> failureHandlers, T onFailure) {
+        return dostreamquery(request != null ? request : new HttpRequest(), filePart, transform, failureHandlers, onFailure, getEndpoints(), 0);
+    }
+
+    /**
+     * Send a request to the nodes, starting with the given one, without waiting for the response. The next node is
+     * tried only when the previous one failed.
+     */
+    private <T> CompletableFuture<T> dostreamquery(HttpRequest request, String filePart, ResponseReader<T> transform, Map<Integer, Function<JsonNode, T>> failureHandlers, T onFailure, URL[] endPoints, int next) {
+        for (int i = next; i < endPoints.length; i++) {
+            URL endPoint = endPoints[i];
             URL newEndPoint;
             try {
                 newEndPoint = new URL(endPoint.getProtocol(), endPoint.getHost(), endPoint.getPort(), endPoint.getFile() + filePart);
@@ -389,39 +747,42 @@ public class ElasticSearch extends AbstractHttpSender {
                 continue;
             }
             request.setUrl(newEndPoint);
-            try (HttpResponse response = doRequest(request)) {
-                if (response.isConnexionFailed()) {
-                    continue;
+            int tried = i;
+            return doAsyncRequest(request).thenCompose(r -> {
+                if (r.isConnexionFailed()) {
+                    r.close();
+                    return dostreamquery(request, filePart, transform, failureHandlers, onFailure, endPoints, tried + 1);
                 }
-                int status = response.getStatus();
-                String responseMimeType = response.getMimeType();
-                if ((status - status % 100) == 200 && "application/json".equals(responseMimeType)) {
-                    JsonNode node = json.get().readTree(response.getContentReader());
-                    return transform.apply(node);
-                } else if ((status - status % 100) == 200 || (status - status % 100) == 500) {
-                    // This node return 200 but not a application/json, or a 500
-                    // Looks like this node is broken try another one
-                    logger.warn("Broken node: {}, returned '{} {}' {}", newEndPoint, status, response.getStatusMessage(), response.getMimeType());
-                    continue;
-                } else if (failureHandlers.containsKey(status) && "application/json".equals(responseMimeType)){
-                    JsonNode node = json.get().readTree(response.getContentReader());
-                    // Only ES failures can be handled
-                    return failureHandlers.get(status).apply(node);
-                } else if ("application/json".equals(responseMimeType)){
-                    JsonNode node = json.get().readTree(response.getContentReader());
-                    logger.error("Invalid query: {} {}, return '{} {}'", request.getVerb(), newEndPoint, status, response.getStatusMessage());
-                    logger.debug("error body: {}", () -> node.toString());
-                } else {
-                    // Valid, but not good request, useless to try something else
-                    logger.error("Invalid query: {} {}, return '{} {}', {}", request.getVerb(), newEndPoint, status, response.getStatusMessage(), responseMimeType);
-                    break;
+                try (HttpResponse response = r) {
+                    int status = response.getStatus();
+                    String responseMimeType = response.getMimeType();
+                    if ((status - status % 100) == 200 && "application/json".equals(responseMimeType)) {
+                        return CompletableFuture.completedFuture(transform.read(response.getContentReader()));
+                    } else if (failureHandlers.containsKey(status)) {
+                        // Only ES failures have a body to handle
+                        JsonNode node = "application/json".equals(responseMimeType) ? json.get().readTree(response.getContentReader()) : null;
+                        return CompletableFuture.completedFuture(failureHandlers.get(status).apply(node));
+                    } else if ((status - status % 100) == 200 || (status - status % 100) == 500) {
+                        // This node return 200 but not a application/json, or a 500
+                        // Looks like this node is broken try another one
+                        logger.warn("Broken node: {}, returned '{} {}' {}", newEndPoint, status, response.getStatusMessage(), response.getMimeType());
+                    } else if ("application/json".equals(responseMimeType)){
+                        JsonNode node = json.get().readTree(response.getContentReader());
+                        logger.error("Invalid query: {} {}, return '{} {}'", request.getVerb(), newEndPoint, status, response.getStatusMessage());
+                        logger.debug("error body: {}", () -> node.toString());
+                    } else {
+                        // Valid, but not good request, useless to try something else
+                        logger.error("Invalid query: {} {}, return '{} {}', {}", request.getVerb(), newEndPoint, status, response.getStatusMessage(), responseMimeType);
+                        return CompletableFuture.completedFuture(onFailure);
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    logger.error("Can't communicate with node {}:{}: {}", endPoint.getHost(), endPoint.getPort(), e.getMessage());
+                    logger.catching(Level.DEBUG, e);
                 }
-            } catch (IOException | UncheckedIOException e) {
-                logger.error("Can't communicate with node {}:{}: {}", endPoint.getHost(), endPoint.getPort(), e.getMessage());
-                logger.catching(Level.DEBUG, e);
-            }
+                return dostreamquery(request, filePart, transform, failureHandlers, onFailure, endPoints, tried + 1);
+            });
         }
-        return onFailure;
+        return CompletableFuture.completedFuture(onFailure);
     }
 
     @Override
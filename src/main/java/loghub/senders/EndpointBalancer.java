@@ -0,0 +1,219 @@
+package loghub.senders;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Chooses the endpoint for the requests of a HTTP sender, and tracks their health.
+ * <p>
+ * For each endpoint, it keeps the requests in progress, and an exponentially weighted moving average of the latency
+ * and of the error rate. The first endpoint tried is the best of two random healthy endpoints, scored by their latency
+ * times the requests in progress, the others are the fallbacks, best first.
+ * <p>
+ * An endpoint is ejected after too many consecutive failures or a too high error rate, it's used again when the
+ * ejection time is elapsed. If the first request after that fails, it's ejected again, for twice the time.
+ */
+class EndpointBalancer {
+
+    // The weight of a new sample in the moving averages
+    private static final double LATENCYALPHA = 0.2;
+    private static final double ERRORALPHA = 0.1;
+    // The ejection time is at most multiplied by that
+    private static final int MAXBACKOFF = 16;
+
+    class Endpoint {
+        private final URL url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // in ms
+        private double latency = 0;
+        private double errorRate = 0;
+        private int failures = 0;
+        private int ejections = 0;
+        private long ejectedUntil = 0;
+
+        private Endpoint(URL url) {
+            this.url = url;
+        }
+
+        URL getUrl() {
+            return url;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        synchronized double getLatency() {
+            return latency;
+        }
+
+        synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        synchronized boolean isEjected(long now) {
+            return ejectedUntil - now > 0;
+        }
+
+        private synchronized long getEjectedUntil() {
+            return ejectedUntil;
+        }
+
+        private synchronized double score() {
+            // Latency is offset, so unknown endpoints are not always preferred
+            return (latency + 1) * (outstanding.get() + 1);
+        }
+
+        private synchronized void done(long elapsed, boolean success, long now) {
+            double elapsedMs = elapsed / 1e6;
+            latency = latency == 0 ? elapsedMs : latency + LATENCYALPHA * (elapsedMs - latency);
+            errorRate += ERRORALPHA * ((success ? 0 : 1) - errorRate);
+            if (success) {
+                if (ejections > 0) {
+                    logger.info("Endpoint {} is back", url);
+                }
+                failures = 0;
+                ejections = 0;
+            } else {
+                failures++;
+                // A failure just after a readmission ejects again, requests sent before the ejection are ignored
+                if (! isEjected(now) && (failures >= maxFailures || errorRate > maxErrorRate || ejections > 0)) {
+                    long duration = ejectionTime * Math.min(1 << Math.min(ejections, 30), MAXBACKOFF);
+                    ejectedUntil = now + duration;
+                    ejections++;
+                    failures = 0;
+                    errorRate = 0;
+                    logger.warn("Endpoint {} ejected for {} ms", url, TimeUnit.NANOSECONDS.toMillis(duration));
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return url.toString();
+        }
+    }
+
+    private final Logger logger;
+    private final Endpoint[] endpoints;
+    private final Map<String, Endpoint> byHost;
+    private final int maxFailures;
+    private final double maxErrorRate;
+    // in ns
+    private final long ejectionTime;
+    // The source of time, in ns
+    private final LongSupplier ticker;
+
+    /**
+     * @param endpoints the endpoints
+     * @param maxFailures the consecutive failures that eject an endpoint
+     * @param maxErrorRate the error rate that eject an endpoint
+     * @param ejectionTime the time an endpoint is ejected, in ms
+     * @param logger the logger of the sender
+     */
+    EndpointBalancer(URL[] endpoints, int maxFailures, double maxErrorRate, long ejectionTime, Logger logger) {
+        this(endpoints, maxFailures, maxErrorRate, ejectionTime, logger, System::nanoTime);
+    }
+
+    /**
+     * @param endpoints the endpoints
+     * @param maxFailures the consecutive failures that eject an endpoint
+     * @param maxErrorRate the error rate that eject an endpoint
+     * @param ejectionTime the time an endpoint is ejected, in ms
+     * @param logger the logger of the sender
+     * @param ticker the source of time, in ns, like {@link System#nanoTime()}
+     */
+    EndpointBalancer(URL[] endpoints, int maxFailures, double maxErrorRate, long ejectionTime, Logger logger, LongSupplier ticker) {
+        this.logger = logger;
+        this.ticker = ticker;
+        this.endpoints = new Endpoint[endpoints.length];
+        this.byHost = new HashMap<>(endpoints.length);
+        for (int i = 0; i < endpoints.length; i++) {
+            this.endpoints[i] = new Endpoint(endpoints[i]);
+            byHost.put(key(endpoints[i]), this.endpoints[i]);
+        }
+        this.maxFailures = Math.max(1, maxFailures);
+        this.maxErrorRate = maxErrorRate;
+        this.ejectionTime = TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+    }
+
+    private static String key(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() > 0 ? url.getPort() : url.getDefaultPort());
+    }
+
+    /**
+     * The endpoints in the order they should be tried. The ejected endpoints are last.
+     */
+    List<Endpoint> order() {
+        long now = ticker.getAsLong();
+        List<Endpoint> healthy = new ArrayList<>(endpoints.length);
+        List<Endpoint> ejected = new ArrayList<>(0);
+        for (Endpoint e: endpoints) {
+            (e.isEjected(now) ? ejected : healthy).add(e);
+        }
+        // The scores and ejection times change while sorting, so they are fixed first
+        Map<Endpoint, Double> scores = new IdentityHashMap<>(endpoints.length);
+        healthy.forEach(e -> scores.put(e, e.score()));
+        Map<Endpoint, Long> ejections = new IdentityHashMap<>(ejected.size());
+        ejected.forEach(e -> ejections.put(e, e.getEjectedUntil()));
+        List<Endpoint> ordered = new ArrayList<>(endpoints.length);
+        if (healthy.size() > 1) {
+            // Power of two choices
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(healthy.size());
+            int second = random.nextInt(healthy.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            Endpoint a = healthy.get(first);
+            Endpoint b = healthy.get(second);
+            Endpoint chosen = scores.get(a) <= scores.get(b) ? a : b;
+            ordered.add(chosen);
+            healthy.remove(chosen);
+            healthy.sort(Comparator.comparingDouble(scores::get));
+        }
+        ordered.addAll(healthy);
+        ejected.sort(Comparator.comparingLong(ejections::get));
+        ordered.addAll(ejected);
+        return ordered;
+    }
+
+    /**
+     * Find the endpoint of a request url
+     * @return the endpoint, or null if unknown
+     */
+    Endpoint find(URL url) {
+        return byHost.get(key(url));
+    }
+
+    /**
+     * Called when a request is sent to an endpoint
+     * @return the start time, to be given to {@link #done(Endpoint, long, boolean)}
+     */
+    long start(Endpoint endpoint) {
+        endpoint.outstanding.incrementAndGet();
+        return ticker.getAsLong();
+    }
+
+    /**
+     * Called when a request is finished
+     * @param success false if the endpoint failed
+     */
+    void done(Endpoint endpoint, long start, boolean success) {
+        long now = ticker.getAsLong();
+        endpoint.outstanding.decrementAndGet();
+        endpoint.done(now - start, success, now);
+    }
+
+}
@@ -1,27 +1,60 @@
 package loghub.senders;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.logging.log4j.Level;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import loghub.BuilderClass;
+import loghub.CanBatch;
+import loghub.Compressor;
 import loghub.Event;
+import loghub.FilterException;
 import loghub.Helpers;
+import loghub.VarFormatter;
 import loghub.configuration.Properties;
 import loghub.encoders.EncodeException;
 import lombok.Getter;
 import lombok.Setter;
 
+/**
+ * Write events to a file.
+ * <p>
+ * Without batches, each event is written asynchronously on its own. In batch mode, the events of a batch are encoded
+ * in a single pooled buffer, written with one call. The file is synchronized to the disk after <code>syncCount</code>
+ * events or <code>syncInterval</code> ms, whichever comes first, otherwise the operating system decides.
+ * <p>
+ * In batch mode, the file can be rotated when it reaches <code>rotateSize</code> bytes or after
+ * <code>rotateInterval</code> seconds. The file name is then a format, with the variables <code>date</code>, the
+ * date the file was opened, and <code>seq</code>, the file number. If the format gives the same name again, the old
+ * file is renamed with its number as a suffix. Numbers already used by existing files, maybe from a previous run, are
+ * skipped. A rotated file can be compressed, using a format given to {@link Compressor}, an existing compressed file is
+ * never overwritten.
+ */
 @AsyncSender
+@CanBatch
 @BuilderClass(File.Builder.class)
 public class File extends Sender {
 
@@ -32,6 +65,16 @@ public class File extends Sender {
         private String separator = "";
         @Setter
         private boolean truncate = false;
+        @Setter
+        private long rotateSize = -1;
+        @Setter
+        private int rotateInterval = -1;
+        @Setter
+        private String compressFormat = null;
+        @Setter
+        private int syncCount = -1;
+        @Setter
+        private int syncInterval = -1;
         @Override
         public File build() {
             return new File(this);
@@ -40,7 +83,7 @@ public class File extends Sender {
     public static Builder getBuilder() {
         return new Builder();
     }
-  
+
     private final CompletionHandler<Integer, Event> handler = new CompletionHandler<Integer, Event>() {
 
         @Override
@@ -64,6 +107,28 @@ public class File extends Sender {
     private AsynchronousFileChannel destination;
     private AtomicLong position;
 
+    // Batch mode settings
+    private final VarFormatter fileNameFormat;
+    @Getter
+    private final long rotateSize;
+    // in ms
+    private final long rotateInterval;
+    private final String compressFormat;
+    private Compressor compressor;
+    private final int syncCount;
+    // in ms
+    private final long syncInterval;
+
+    // The current segment, only used with the segmentLock held
+    private final Object segmentLock = new Object();
+    private FileChannel segment;
+    private Path segmentPath;
+    private long segmentSize;
+    private long segmentStart;
+    private int segmentSeq = 0;
+    private int unsynced = 0;
+    private long lastSync;
+
     public File(Builder builder) {
         super(builder);
         if (builder.separator.length() > 0) {
@@ -73,11 +138,26 @@ public class File extends Sender {
         }
         fileName = builder.fileName;
         truncate = builder.truncate;
+        rotateSize = builder.rotateSize;
+        rotateInterval = builder.rotateInterval * 1000L;
+        compressFormat = builder.compressFormat;
+        syncCount = builder.syncCount;
+        syncInterval = builder.syncInterval;
+        if (rotateSize > 0 || rotateInterval > 0) {
+            fileNameFormat = new VarFormatter(fileName);
+        } else {
+            fileNameFormat = null;
+        }
     }
 
-
     @Override
     public boolean configure(Properties properties) {
+        if (isWithBatch()) {
+            return configureBatch(properties) && super.configure(properties);
+        } else if (fileNameFormat != null) {
+            logger.error("File rotation needs batches");
+            return false;
+        }
         try {
             destination = AsynchronousFileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
             // Failed to used StandardOpenOption.(APPEND vs CREATE), so truncate if need after creation
@@ -93,6 +173,43 @@ public class File extends Sender {
         return super.configure(properties);
     }
 
+    private boolean configureBatch(Properties properties) {
+        if (compressFormat != null) {
+            if (! CompressorStreamFactory.getSingleton().getOutputStreamCompressorNames().contains(compressFormat)) {
+                logger.error("Unknown compression format {}", compressFormat);
+                return false;
+            }
+            Compressor.Builder builder = Compressor.getBuilder();
+            builder.setFormat(compressFormat);
+            compressor = builder.build();
+        }
+        try {
+            synchronized (segmentLock) {
+                openSegment(System.currentTimeMillis());
+                if (truncate) {
+                    segment.truncate(0);
+                    segmentSize = 0;
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("error openening output file {}: {}", fileName, Helpers.resolveThrowableException(e));
+            logger.catching(Level.DEBUG, e);
+            return false;
+        }
+        // Files are synchronized or rotated even without new events
+        long period = Long.MAX_VALUE;
+        if (syncInterval > 0) {
+            period = syncInterval;
+        }
+        if (rotateInterval > 0) {
+            period = Math.min(period, rotateInterval);
+        }
+        if (period != Long.MAX_VALUE) {
+            properties.registerScheduledTask(getName() + "Syncer", this::periodicCheck, Math.max(100, period / 2));
+        }
+        return true;
+    }
+
     @Override
     public boolean send(Event event) throws SendException, EncodeException {
         try {
@@ -111,7 +228,174 @@ public class File extends Sender {
                          Helpers.resolveThrowableException(e));
             logger.catching(Level.DEBUG, e);
             return false;
-        } 
+        }
+    }
+
+    /**
+     * The events are encoded by the publishing thread, then written in one call, the lock is only held while
+     * writing.
+     */
+    @Override
+    protected void flush(Batch documents) throws SendException {
+        List<EventFuture> written = new ArrayList<>(documents.size());
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(64 * 1024);
+        Path rotated = null;
+        try {
+            for (EventFuture ef: documents) {
+                try {
+                    buffer.writeBytes(encode(ef.getEvent()));
+                    buffer.writeBytes(separatorBytes);
+                    written.add(ef);
+                } catch (EncodeException e) {
+                    ef.completeExceptionally(e);
+                }
+            }
+            if (written.isEmpty()) {
+                return;
+            }
+            ByteBuffer[] content = buffer.nioBuffers();
+            synchronized (segmentLock) {
+                long now = System.currentTimeMillis();
+                if (segmentSize > 0 && ((rotateSize > 0 && segmentSize + buffer.readableBytes() > rotateSize) || isRotationDue(now))) {
+                    rotated = rotate(now);
+                }
+                long remaining = buffer.readableBytes();
+                while (remaining > 0) {
+                    remaining -= segment.write(content);
+                }
+                segmentSize += buffer.readableBytes();
+                unsynced += written.size();
+                if ((syncCount > 0 && unsynced >= syncCount) || (syncInterval > 0 && now - lastSync >= syncInterval)) {
+                    sync(now);
+                }
+            }
+            written.forEach(ef -> ef.complete(true));
+        } catch (IOException e) {
+            throw new SendException(e);
+        } finally {
+            buffer.release();
+        }
+        if (rotated != null) {
+            compress(rotated);
+        }
+    }
+
+    private boolean isRotationDue(long now) {
+        return rotateInterval > 0 && now - segmentStart >= rotateInterval;
+    }
+
+    private void periodicCheck() {
+        Path rotated = null;
+        try {
+            synchronized (segmentLock) {
+                if (segment == null || ! segment.isOpen()) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (segmentSize > 0 && isRotationDue(now)) {
+                    rotated = rotate(now);
+                } else if (unsynced > 0 && syncInterval > 0 && now - lastSync >= syncInterval) {
+                    sync(now);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to synchronize {}: {}", segmentPath, Helpers.resolveThrowableException(e));
+            logger.catching(Level.DEBUG, e);
+        }
+        if (rotated != null) {
+            compress(rotated);
+        }
+    }
+
+    private void sync(long now) throws IOException {
+        segment.force(false);
+        unsynced = 0;
+        lastSync = now;
+    }
+
+    private Path segmentName(long now, int seq) {
+        Map<String, Object> values = new HashMap<>(2);
+        values.put("date", new Date(now));
+        values.put("seq", seq);
+        return Paths.get(fileNameFormat.format(values));
+    }
+
+    private boolean isUsed(Path path) {
+        return Files.exists(path) || (compressFormat != null && Files.exists(Paths.get(path.toString() + "." + compressFormat)));
+    }
+
+    private void openSegment(long now) throws IOException {
+        if (fileNameFormat != null) {
+            segmentPath = segmentName(now, segmentSeq);
+            // Skip the numbers already used, unless the number is not in the name
+            Path next;
+            while (isUsed(segmentPath) && ! (next = segmentName(now, segmentSeq + 1)).equals(segmentPath)) {
+                segmentSeq++;
+                segmentPath = next;
+            }
+        } else {
+            segmentPath = Paths.get(fileName);
+        }
+        segment = FileChannel.open(segmentPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+        segmentStart = now;
+        lastSync = now;
+        unsynced = 0;
+    }
+
+    /**
+     * Close the current segment and open the next one
+     * @return the path of the closed segment
+     */
+    private Path rotate(long now) throws IOException {
+        segment.force(true);
+        segment.close();
+        Path closed = segmentPath;
+        int closedSeq = segmentSeq++;
+        openSegment(now);
+        if (segmentPath.equals(closed)) {
+            // The file name did not change, keep the old content with the first free number
+            segment.close();
+            try {
+                Path renamed;
+                while (isUsed(renamed = Paths.get(closed.toString() + "." + closedSeq))) {
+                    closedSeq++;
+                }
+                segmentSeq = closedSeq + 1;
+                Files.move(closed, renamed);
+                closed = renamed;
+            } finally {
+                // If the rename failed, the writing goes on in the same file
+                openSegment(now);
+            }
+        }
+        logger.debug("Rotated {}", closed);
+        return closed;
+    }
+
+    private void compress(Path rotated) {
+        if (compressor == null) {
+            return;
+        }
+        Path compressed = Paths.get(rotated.toString() + "." + compressFormat);
+        try {
+            try (InputStream in = Files.newInputStream(rotated);
+                 OutputStream out = Files.newOutputStream(compressed, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                compressor.filter(in, out);
+            }
+            Files.delete(rotated);
+        } catch (FileAlreadyExistsException e) {
+            // Don't destroy it, the rotated file stays uncompressed
+            logger.error("Failed to compress {}: {} already exists", rotated, compressed);
+        } catch (IOException | FilterException e) {
+            logger.error("Failed to compress {}: {}", rotated, Helpers.resolveThrowableException(e));
+            logger.catching(Level.DEBUG, e);
+            try {
+                Files.deleteIfExists(compressed);
+            } catch (IOException e1) {
+                logger.catching(Level.DEBUG, e1);
+            }
+        }
     }
 
     /**
@@ -120,7 +404,14 @@ public class File extends Sender {
     @Override
     public void close() {
         try {
-            destination.close();
+            if (destination != null) {
+                destination.close();
+            }
+            synchronized (segmentLock) {
+                if (segment != null) {
+                    segment.close();
+                }
+            }
         } catch (IOException e) {
             logger.error("Failed to close {}: {}", fileName,
                          Helpers.resolveThrowableException(e));
@@ -130,7 +421,7 @@ public class File extends Sender {
 
     @Override
     public void customStopSending() {
-        if (destination.isOpen()) {
+        if (destination != null && destination.isOpen()) {
             try {
                 // The lock will not be released, as you don't release a closed file
                 destination.lock();
@@ -140,10 +431,30 @@ public class File extends Sender {
                 logger.error("Failed to close {}: {}", fileName,
                              Helpers.resolveThrowableException(e));
                 logger.catching(Level.DEBUG, e);
-            } 
+            }
+        }
+        synchronized (segmentLock) {
+            if (segment != null && segment.isOpen()) {
+                try {
+                    segment.force(true);
+                    segment.close();
+                } catch (IOException e) {
+                    logger.error("Failed to close {}: {}", segmentPath,
+                                 Helpers.resolveThrowableException(e));
+                    logger.catching(Level.DEBUG, e);
+                }
+            }
         }
     }
 
+    /**
+     * Even in batch mode, each event is encoded on its own
+     */
+    @Override
+    public boolean isBatchEncoded() {
+        return false;
+    }
+
     @Override
     public String getSenderName() {
         return "File_" + fileName;
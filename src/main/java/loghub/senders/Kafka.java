@@ -0,0 +1,238 @@
+package loghub.senders;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.logging.log4j.Level;
+
+import loghub.BuilderClass;
+import loghub.CanBatch;
+import loghub.Event;
+import loghub.Expression;
+import loghub.Expression.ExpressionException;
+import loghub.Helpers;
+import loghub.ProcessorException;
+import loghub.VarFormatter;
+import loghub.configuration.Properties;
+import loghub.encoders.EncodeException;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Send events to a Kafka topic, one record for each event.
+ * <p>
+ * An event is done when the broker acknowledged the record, as defined by the <code>acks</code> setting. In batch
+ * mode, a batch is finished when all its records are acknowledged, the producer itself group records using
+ * <code>lingerMs</code> and <code>producerBatchSize</code>.
+ * <p>
+ * The record key can be a format, using the event as its argument, or an expression, given with <code>keyX</code>.
+ */
+@AsyncSender
+@CanBatch
+@BuilderClass(Kafka.Builder.class)
+public class Kafka extends Sender {
+
+    public static class Builder extends Sender.Builder<Kafka> {
+        @Setter
+        private String[] brokers = new String[] { "localhost"};
+        @Setter
+        private int port = 9092;
+        @Setter
+        private String topic;
+        @Setter
+        private String key = null;
+        @Setter
+        private String keyX = null;
+        @Setter
+        private String acks = "all";
+        @Setter
+        private int lingerMs = 5;
+        @Setter
+        private int producerBatchSize = 16384;
+        @Setter
+        private String compression = "none";
+        @Setter
+        private int retries = 3;
+        @Override
+        public Kafka build() {
+            return new Kafka(this);
+        }
+    };
+    public static Builder getBuilder() {
+        return new Builder();
+    }
+
+    private final String[] brokers;
+    @Getter
+    private final int port;
+    @Getter
+    private final String topic;
+    @Getter
+    private final String acks;
+    @Getter
+    private final int lingerMs;
+    @Getter
+    private final int producerBatchSize;
+    @Getter
+    private final String compression;
+    @Getter
+    private final int retries;
+    private final VarFormatter keyFormatter;
+    private final String keyExpressionSrc;
+    private Expression keyExpression;
+
+    private Producer<byte[], byte[]> producer;
+
+    public Kafka(Builder builder) {
+        super(builder);
+        this.brokers = Arrays.copyOf(builder.brokers, builder.brokers.length);
+        this.port = builder.port;
+        this.topic = builder.topic;
+        this.acks = builder.acks;
+        this.lingerMs = builder.lingerMs;
+        this.producerBatchSize = builder.producerBatchSize;
+        this.compression = builder.compression;
+        this.retries = builder.retries;
+        this.keyFormatter = builder.key != null ? new VarFormatter(builder.key) : null;
+        this.keyExpressionSrc = builder.keyX;
+    }
+
+    @Override
+    public boolean configure(Properties properties) {
+        if (topic == null) {
+            logger.error("No topic given");
+            return false;
+        }
+        if (keyExpressionSrc != null) {
+            try {
+                keyExpression = new Expression(keyExpressionSrc, properties);
+            } catch (ExpressionException e) {
+                Expression.logError(e, keyExpressionSrc, logger);
+                return false;
+            }
+        }
+        java.util.Properties props = new java.util.Properties();
+        URL[] brokersUrl = Helpers.stringsToUrl(brokers, port, "http", logger);
+        String resolvedBrokers = Arrays.stream(brokersUrl)
+                                       .map( i -> i.getHost() + ":" + i.getPort())
+                                       .collect(Collectors.joining(","))
+                                       ;
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, resolvedBrokers);
+        props.put(ProducerConfig.ACKS_CONFIG, acks);
+        props.put(ProducerConfig.LINGER_MS_CONFIG, lingerMs);
+        props.put(ProducerConfig.BATCH_SIZE_CONFIG, producerBatchSize);
+        props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compression);
+        props.put(ProducerConfig.RETRIES_CONFIG, retries);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        try {
+            producer = getProducer(props);
+        } catch (KafkaException e) {
+            logger.error("Can't create Kafka producer: {}", Helpers.resolveThrowableException(e));
+            logger.catching(Level.DEBUG, e);
+            return false;
+        }
+        return super.configure(properties);
+    }
+
+    /**
+     * Create the producer, it's shared by all the sending threads.
+     * @param props the producer properties
+     * @return a new producer
+     */
+    protected Producer<byte[], byte[]> getProducer(java.util.Properties props) {
+        return new KafkaProducer<>(props);
+    }
+
+    private ProducerRecord<byte[], byte[]> getRecord(Event event) throws EncodeException {
+        byte[] keyBytes;
+        if (keyExpression != null) {
+            try {
+                Object keyValue = keyExpression.eval(event);
+                keyBytes = keyValue != null ? keyValue.toString().getBytes(StandardCharsets.UTF_8) : null;
+            } catch (ProcessorException e) {
+                throw new EncodeException("Can't evaluate key", e);
+            }
+        } else if (keyFormatter != null) {
+            keyBytes = keyFormatter.format(event).getBytes(StandardCharsets.UTF_8);
+        } else {
+            keyBytes = null;
+        }
+        return new ProducerRecord<>(topic, null, event.getTimestamp().getTime(), keyBytes, encode(event));
+    }
+
+    @Override
+    public boolean send(Event event) throws SendException, EncodeException {
+        try {
+            producer.send(getRecord(event), (metadata, ex) -> {
+                if (ex != null) {
+                    handleException(ex);
+                }
+                processStatus(event, ex == null);
+            });
+            return true;
+        } catch (KafkaException e) {
+            throw new SendException(e);
+        }
+    }
+
+    /**
+     * Send the records and wait for the acknowledgement of all of them.
+     */
+    @Override
+    protected void flush(Batch batch) throws SendException, EncodeException {
+        for (EventFuture fe: batch) {
+            Callback callback = (metadata, ex) -> {
+                if (ex != null) {
+                    fe.failure(Helpers.resolveThrowableException(ex));
+                } else {
+                    fe.complete(true);
+                }
+            };
+            try {
+                producer.send(getRecord(fe.getEvent()), callback);
+            } catch (EncodeException | KafkaException e) {
+                fe.failure(Helpers.resolveThrowableException(e));
+            }
+        }
+        try {
+            for (EventFuture fe: batch) {
+                fe.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendException(e);
+        } catch (ExecutionException e) {
+            throw new SendException(e.getCause());
+        }
+    }
+
+    @Override
+    public void customStopSending() {
+        if (producer != null) {
+            // The pending records are sent, and their callbacks are fired
+            producer.close(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public String getSenderName() {
+        return "Kafka";
+    }
+
+    public String[] getBrokers() {
+        return Arrays.copyOf(brokers, brokers.length);
+    }
+
+}
@@ -0,0 +1,351 @@
+package loghub.senders;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import loghub.Helpers;
+
+/**
+ * A HTTP/1.1 client for {@link AbstractHttpSender}, using Netty.
+ * <p>
+ * It keeps a fixed number of keep alive connections to each endpoint, and sends many requests on each connection
+ * without waiting for the responses, they are matched in order. So the number of connections doesn't depend on the
+ * number of sending threads, and waiting for a response doesn't hold a connection. Request bodies are copied in pooled
+ * direct buffers.
+ */
+class NettyHttpClient implements AbstractHttpSender.HttpClientStatsMBean, Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // The biggest response body accepted
+    private static final int MAXCONTENT = 64 * 1024 * 1024;
+
+    /**
+     * Handles the responses of a connection, the requests waiting for them are in the same order.
+     */
+    private static class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        // Only used in the event loop
+        private final Deque<CompletableFuture<FullHttpResponse>> waiting = new ArrayDeque<>();
+        private IOException failure = null;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            CompletableFuture<FullHttpResponse> request = waiting.poll();
+            if (request == null) {
+                logger.warn("Unexpected response from {}", ctx.channel().remoteAddress());
+                ctx.close();
+                return;
+            }
+            response.retain();
+            if (! request.complete(response)) {
+                // Already timed out
+                response.release();
+            }
+            if (! HttpUtil.isKeepAlive(response)) {
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            IOException ex = failure != null ? failure : new IOException("Connection to " + ctx.channel().remoteAddress() + " closed");
+            waiting.forEach(f -> f.completeExceptionally(ex));
+            waiting.clear();
+            super.channelInactive(ctx);
+        }
+    }
+
+    private class Connection {
+        private final Endpoint endpoint;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private Channel channel = null;
+
+        Connection(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Return the channel, connecting it if needed.
+         */
+        synchronized Channel getChannel() throws IOException, InterruptedException {
+            if (channel == null || ! channel.isActive()) {
+                ChannelFuture cf = endpoint.bootstrap.connect(endpoint.host, endpoint.port);
+                cf.await();
+                if (! cf.isSuccess()) {
+                    Throwable cause = cf.cause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+                channel = cf.channel();
+            }
+            return channel;
+        }
+
+        void send(FullHttpRequest request, CompletableFuture<FullHttpResponse> result) throws IOException, InterruptedException {
+            Channel sendChannel;
+            try {
+                sendChannel = getChannel();
+            } catch (IOException | InterruptedException e) {
+                request.release();
+                throw e;
+            }
+            try {
+                sendChannel.eventLoop().execute(() -> {
+                    ResponseHandler sendHandler = sendChannel.pipeline().get(ResponseHandler.class);
+                    if (! sendChannel.isActive() || sendHandler == null) {
+                        request.release();
+                        result.completeExceptionally(new IOException("Connection to " + endpoint + " closed"));
+                        return;
+                    }
+                    sendHandler.waiting.add(result);
+                    sendChannel.writeAndFlush(request).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+                    ScheduledFuture<?> timer = sendChannel.eventLoop().schedule(() -> {
+                        // The following responses can't be matched any more
+                        if (result.completeExceptionally(new SocketTimeoutException("Slow response from " + endpoint))) {
+                            sendChannel.close();
+                        }
+                    }, timeout, TimeUnit.MILLISECONDS);
+                    result.whenComplete((r, e) -> timer.cancel(false));
+                });
+            } catch (RejectedExecutionException e) {
+                request.release();
+                throw new IOException("Client closed", e);
+            }
+        }
+    }
+
+    private class Endpoint {
+        private final String host;
+        private final int port;
+        private final String name;
+        private final Bootstrap bootstrap;
+        private final Connection[] connections;
+        // The free requests slots, for all the connections
+        private final Semaphore slots;
+
+        Endpoint(URL url) {
+            this.host = url.getHost();
+            this.port = url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+            this.name = url.getProtocol() + "://" + host + ":" + port;
+            boolean withSsl = "https".equals(url.getProtocol());
+            this.bootstrap = NettyHttpClient.this.bootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ChannelPipeline p = ch.pipeline();
+                    if (withSsl) {
+                        SSLEngine engine = ssl.createSSLEngine(host, port);
+                        engine.setUseClientMode(true);
+                        SSLParameters params = engine.getSSLParameters();
+                        params.setEndpointIdentificationAlgorithm("HTTPS");
+                        engine.setSSLParameters(params);
+                        p.addLast(new SslHandler(engine));
+                    }
+                    p.addLast(new HttpClientCodec());
+                    p.addLast(new HttpObjectAggregator(MAXCONTENT));
+                    p.addLast(new ResponseHandler());
+                }
+            });
+            this.connections = new Connection[connectionsCount];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = new Connection(this);
+            }
+            this.slots = new Semaphore(connectionsCount * inFlight, true);
+        }
+
+        /**
+         * Find the connection with the fewer requests in flight, a slot must have been acquired.
+         */
+        synchronized Connection pick() {
+            Connection best = connections[0];
+            for (Connection c: connections) {
+                if (c.inFlight.get() < best.inFlight.get()) {
+                    best = c;
+                }
+            }
+            best.inFlight.incrementAndGet();
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+    private final SSLContext ssl;
+    private final int timeout;
+    private final int connectionsCount;
+    private final int inFlight;
+    private final String authorization;
+
+    /**
+     * @param name the name of the sender, used for the threads
+     * @param ssl the SSL context for https endpoints
+     * @param timeout the timeout in milliseconds, to connect, to wait for a request slot and for a response
+     * @param connectionsCount the connections for each endpoint
+     * @param inFlight the requests sent on a connection without a response
+     * @param ioThreads the threads of the event loop
+     * @param authorization the Authorization header value, or null
+     */
+    NettyHttpClient(String name, SSLContext ssl, int timeout, int connectionsCount, int inFlight, int ioThreads, String authorization) throws NoSuchAlgorithmException {
+        this.ssl = ssl != null ? ssl : SSLContext.getDefault();
+        this.timeout = timeout;
+        this.connectionsCount = Math.max(1, connectionsCount);
+        this.inFlight = Math.max(1, inFlight);
+        this.authorization = authorization;
+        this.group = new NioEventLoopGroup(ioThreads, new DefaultThreadFactory(name + "/HttpClient", true));
+        this.bootstrap = new Bootstrap()
+                        .group(group)
+                        .channel(NioSocketChannel.class)
+                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout)
+                        .option(ChannelOption.TCP_NODELAY, true)
+                        .option(ChannelOption.SO_KEEPALIVE, true);
+    }
+
+    /**
+     * Send a request.
+     * @return the future response, it must be released by the caller
+     */
+    CompletableFuture<FullHttpResponse> execute(URL url, String verb, Map<String, String> headers, String contentType, byte[] content, int offset, int length) {
+        CompletableFuture<FullHttpResponse> result = new CompletableFuture<>();
+        Endpoint endpoint = endpoints.computeIfAbsent(url.getProtocol() + "://" + url.getAuthority(), k -> new Endpoint(url));
+        try {
+            if (! endpoint.slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                logger.error("All connections slots to {} used.", endpoint);
+                result.completeExceptionally(new IOException("All connections slots to " + endpoint + " used"));
+                return result;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        Connection connection = endpoint.pick();
+        result.whenComplete((r, e) -> {
+            connection.inFlight.decrementAndGet();
+            endpoint.slots.release();
+        });
+        ByteBuf body;
+        if (content != null) {
+            body = PooledByteBufAllocator.DEFAULT.directBuffer(length);
+            body.writeBytes(content, offset, length);
+        } else {
+            body = Unpooled.EMPTY_BUFFER;
+        }
+        String uri = url.getFile().isEmpty() ? "/" : url.getFile();
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(verb), uri, body);
+        request.headers().set(HttpHeaderNames.HOST, url.getPort() > 0 ? url.getHost() + ":" + url.getPort() : url.getHost());
+        request.headers().set(HttpHeaderNames.USER_AGENT, "LogHub-HttpClient");
+        request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        if (authorization != null) {
+            request.headers().set(HttpHeaderNames.AUTHORIZATION, authorization);
+        }
+        if (content != null || ! HttpMethod.GET.name().equals(verb)) {
+            HttpUtil.setContentLength(request, body.readableBytes());
+        }
+        if (contentType != null) {
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        }
+        headers.forEach((i, j) -> request.headers().set(i, j));
+        try {
+            connection.send(request, result);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public int getAvailable() {
+        return endpoints.values().stream().mapToInt(e -> e.slots.availablePermits()).sum();
+    }
+
+    @Override
+    public int getLeased() {
+        return endpoints.values().stream().flatMap(e -> Arrays.stream(e.connections)).mapToInt(c -> c.inFlight.get()).sum();
+    }
+
+    @Override
+    public int getMax() {
+        return endpoints.size() * connectionsCount * inFlight;
+    }
+
+    @Override
+    public int getPending() {
+        return endpoints.values().stream().mapToInt(e -> e.slots.getQueueLength()).sum();
+    }
+
+    @Override
+    public void close() {
+        try {
+            group.shutdownGracefully(0, timeout, TimeUnit.MILLISECONDS).await(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.error("Failed to close HTTP client: {}", Helpers.resolveThrowableException(e));
+            logger.catching(Level.DEBUG, e);
+        }
+    }
+
+}
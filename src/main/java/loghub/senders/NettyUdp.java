@@ -0,0 +1,294 @@
+package loghub.senders;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Level;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import loghub.BuilderClass;
+import loghub.CanBatch;
+import loghub.Event;
+import loghub.Helpers;
+import loghub.configuration.Properties;
+import loghub.encoders.EncodeException;
+import loghub.netty.POLLER;
+import loghub.netty.UdpFactory;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Send events as UDP datagrams using Netty, one datagram for each event.
+ * <p>
+ * The datagrams are written from several sockets, each with its own source port and event loop, the epoll transport
+ * is used when available. In batch mode, the events of a batch are encoded in pooled buffers by the publishing thread,
+ * and the datagrams are written and flushed together in a single event loop task. With epoll, they are then sent
+ * with a single <code>sendmmsg</code> system call.
+ */
+@AsyncSender
+@CanBatch
+@BuilderClass(NettyUdp.Builder.class)
+public class NettyUdp extends Sender {
+
+    /**
+     * Nothing is expected to be read, but each socket needs a handler
+     */
+    @Sharable
+    private static class DropHandler extends ChannelInboundHandlerAdapter {
+    }
+    private static final DropHandler DROPHANDLER = new DropHandler();
+    // How long a publisher waits for the datagrams of a batch to be written, in seconds
+    private static final long WRITETIMEOUT = 5;
+
+    public static class Builder extends Sender.Builder<NettyUdp> {
+        @Setter
+        private int port = -1;
+        @Setter
+        private String destination = "127.0.0.1";
+        @Setter
+        private int sockets = 1;
+        @Setter
+        private String poller = null;
+        @Setter
+        private int bufferSize = -1;
+        @Override
+        public NettyUdp build() {
+            return new NettyUdp(this);
+        }
+    }
+    public static Builder getBuilder() {
+        return new Builder();
+    }
+
+    @Getter
+    private final int port;
+    @Getter
+    private final String destination;
+    private final Channel[] channels;
+    private final POLLER poller;
+    private final int bufferSize;
+    private final AtomicInteger next = new AtomicInteger();
+    private InetSocketAddress address;
+    private EventLoopGroup group;
+
+    public NettyUdp(Builder builder) {
+        super(builder);
+        port = builder.port;
+        destination = builder.destination;
+        channels = new Channel[Math.max(1, builder.sockets)];
+        if (builder.poller != null) {
+            poller = POLLER.valueOf(builder.poller.toUpperCase(Locale.ENGLISH));
+        } else {
+            poller = Epoll.isAvailable() ? POLLER.EPOLL : POLLER.NIO;
+        }
+        bufferSize = builder.bufferSize;
+    }
+
+    @Override
+    public boolean configure(Properties properties) {
+        if (port <= 0 || port > 65535) {
+            logger.error("Invalid or missing destination port: {}", port);
+            return false;
+        }
+        address = new InetSocketAddress(destination, port);
+        if (address.isUnresolved()) {
+            logger.error("Can't resolve destination address '{}'", destination);
+            return false;
+        }
+        UdpFactory factory = new UdpFactory(poller);
+        group = factory.getEventLoopGroup(channels.length, new DefaultThreadFactory(getName() + "/Udp", true));
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group);
+        bootstrap.channelFactory(factory.getInstance());
+        bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        if (bufferSize > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, bufferSize);
+        }
+        bootstrap.handler(DROPHANDLER);
+        try {
+            // Each socket is bound to a different source port
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = bootstrap.bind(0).sync().channel();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            customStopSending();
+            return false;
+        } catch (Exception e) {
+            // sync() rethrows the checked exceptions of the bind, like BindException, undeclared
+            logger.error("Can't start socket: {}", Helpers.resolveThrowableException(e));
+            logger.catching(Level.DEBUG, e);
+            customStopSending();
+            return false;
+        }
+        return super.configure(properties);
+    }
+
+    private Channel nextChannel() {
+        return channels[Math.floorMod(next.getAndIncrement(), channels.length)];
+    }
+
+    private List<DatagramPacket> getPackets(Channel channel, Event event) throws EncodeException {
+        List<byte[]> chunks = encodeChunks(event);
+        List<DatagramPacket> packets = new ArrayList<>(chunks.size());
+        for (byte[] msg: chunks) {
+            ByteBuf content = channel.alloc().directBuffer(msg.length);
+            content.writeBytes(msg);
+            packets.add(new DatagramPacket(content, address));
+        }
+        return packets;
+    }
+
+    /**
+     * Write the datagrams of an event, the writes are done in order, so when the last one is done, all the
+     * previous ones are done too.
+     */
+    private void write(Channel channel, List<DatagramPacket> packets, Consumer<Throwable> onFailure, Runnable onSuccess) {
+        int last = packets.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            boolean isLast = i == last;
+            channel.write(packets.get(i)).addListener((ChannelFutureListener) f -> {
+                if (! f.isSuccess()) {
+                    onFailure.accept(f.cause());
+                } else if (isLast) {
+                    onSuccess.run();
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean send(Event event) throws EncodeException {
+        Channel channel = nextChannel();
+        List<DatagramPacket> packets = getPackets(channel, event);
+        // Listeners are run in the event loop, no need for synchronization
+        boolean[] failed = new boolean[] {false};
+        boolean submitted = execute(channel, Collections.singletonList(packets), () -> {
+            write(channel, packets, ex -> {
+                handleException(ex);
+                if (! failed[0]) {
+                    failed[0] = true;
+                    processStatus(event, false);
+                }
+            }, () -> {
+                if (! failed[0]) {
+                    processStatus(event, true);
+                }
+            });
+            channel.flush();
+        });
+        if (! submitted) {
+            // An asynchronous sender reports the status itself
+            processStatus(event, false);
+        }
+        return true;
+    }
+
+    /**
+     * Write all the datagrams of the batch from one socket, they are flushed together.
+     */
+    @Override
+    protected void flush(Batch batch) throws SendException {
+        Channel channel = nextChannel();
+        List<EventFuture> futures = new ArrayList<>(batch.size());
+        List<List<DatagramPacket>> packets = new ArrayList<>(batch.size());
+        for (EventFuture fe: batch) {
+            try {
+                packets.add(getPackets(channel, fe.getEvent()));
+                futures.add(fe);
+            } catch (EncodeException e) {
+                fe.completeExceptionally(e);
+            }
+        }
+        boolean submitted = execute(channel, packets, () -> {
+            for (int i = 0; i < packets.size(); i++) {
+                EventFuture fe = futures.get(i);
+                write(channel, packets.get(i), ex -> fe.failure(Helpers.resolveThrowableException(ex)), () -> fe.complete(true));
+            }
+            channel.flush();
+        });
+        if (! submitted) {
+            futures.forEach(fe -> fe.complete(false));
+            return;
+        }
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WRITETIMEOUT);
+            for (EventFuture fe: futures) {
+                fe.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendException(e);
+        } catch (ExecutionException e) {
+            throw new SendException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new SendException("Datagrams not written after " + WRITETIMEOUT + " seconds");
+        }
+    }
+
+    /**
+     * Run the writes in the event loop of the socket. If it was shut down, the datagrams are released.
+     * @return false if the writes were rejected
+     */
+    private boolean execute(Channel channel, List<List<DatagramPacket>> packets, Runnable writes) {
+        try {
+            channel.eventLoop().execute(writes);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.error("Can't send datagrams: {}", Helpers.resolveThrowableException(e));
+            logger.catching(Level.DEBUG, e);
+            packets.forEach(l -> l.forEach(DatagramPacket::release));
+            return false;
+        }
+    }
+
+    /**
+     * Even in batch mode, each event is encoded on its own
+     */
+    @Override
+    public boolean isBatchEncoded() {
+        return false;
+    }
+
+    @Override
+    public void customStopSending() {
+        for (Channel channel: channels) {
+            if (channel != null) {
+                channel.close().awaitUninterruptibly(1, TimeUnit.SECONDS);
+            }
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public String getSenderName() {
+        return "NettyUdp";
+    }
+
+    public int getSockets() {
+        return channels.length;
+    }
+
+}
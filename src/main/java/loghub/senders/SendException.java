@@ -6,4 +6,8 @@ public class SendException extends Exception {
         super(cause);
     }
 
+    public SendException(String message) {
+        super(message);
+    }
+
 }
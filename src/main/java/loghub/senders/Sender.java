@@ -1,32 +1,48 @@
 package loghub.senders;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import javax.management.InstanceAlreadyExistsException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanRegistrationException;
 import javax.management.MBeanServer;
+import javax.management.MXBean;
 import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
 
 import loghub.AbstractBuilder;
@@ -38,36 +54,58 @@ import loghub.Helpers;
 import loghub.Stats;
 import loghub.ThreadBuilder;
 import loghub.configuration.Properties;
+import loghub.configuration.Properties.MetricRegistryWrapper.Handle;
 import loghub.encoders.EncodeException;
 import loghub.encoders.Encoder;
+import loghub.queues.PersistentQueue;
 import lombok.Getter;
 import lombok.Setter;
 
 public abstract class Sender extends Thread implements Closeable {
 
     protected static class Batch extends ArrayList<EventFuture> {
-        private final Counter counter;
+        private final Handle<Counter> counter;
         private final Sender sender;
+        // Set when the batch is flushed because it's full
+        private boolean full = false;
+        // When the first event was added, in ms
+        private volatile long started = 0;
+        // How many times the events were already sent, for a retried batch
+        private int attempt = 0;
+        // A retried batch is not sent before that time, in ms
+        private long notBefore = 0;
         Batch() {
             super(0);
             this.sender = null;
             counter = null;
         }
         Batch(Sender sender) {
-            super(sender.batchSize);
+            super(sender.currentBatchSize());
             this.sender = sender;
-            counter = Properties.metrics.counter("sender." + sender.getName() + ".activeBatches");
-            counter.inc();
+            counter = sender.activeBatches;
+            counter.get().inc();
         }
         void finished() {
             super.stream().forEach(sender::processStatus);
-            counter.dec();
+            counter.get().dec();
         }
         public EventFuture add(Event e) {
+            if (isEmpty()) {
+                started = System.currentTimeMillis();
+            }
             EventFuture fe = new EventFuture(e);
             add(fe);
             return fe;
         }
+        /**
+         * @return true if no event was successfully sent
+         */
+        private boolean noneSent() {
+            return super.stream().noneMatch(fe -> Boolean.TRUE.equals(fe.getNow(false)));
+        }
+        int getAttempt() {
+            return attempt;
+        }
         @Override
         public Stream<EventFuture> stream() {
             return super.stream().filter(EventFuture::isNotDone);
@@ -113,8 +151,54 @@ public abstract class Sender extends Thread implements Closeable {
         protected int flushInterval = 5;
         @Setter
         private Filter filter;
+        @Setter
+        protected boolean adaptiveBatch = false;
+        @Setter
+        protected int minBatchSize = 1;
+        @Setter
+        protected int maxBatchSize = -1;
+        @Setter
+        protected boolean circuitBreaker = false;
+        @Setter
+        protected int breakerWindow = 20;
+        @Setter
+        protected double breakerFailureRate = 0.5;
+        @Setter
+        protected int breakerLatency = 0;
+        @Setter
+        protected int breakerOpenTime = 10;
+        @Setter
+        protected String breakerPolicy = "drop";
+        @Setter
+        protected String spillDirectory = null;
     };
 
+    /**
+     * What is done with the events while the circuit breaker is open
+     */
+    private enum ShedPolicy {
+        /**
+         * The events are not taken from the queue, the pipeline is blocked
+         */
+        BLOCK,
+        /**
+         * The events are written in a local queue, and sent when the breaker is closed
+         */
+        SPILL,
+        /**
+         * The events are dropped
+         */
+        DROP,
+    }
+
+    @MXBean
+    public interface CircuitBreakerMBean {
+        public String getState();
+        public double getFailureRate();
+        public long getOpenings();
+        public long getShed();
+    }
+
     protected final Logger logger;
 
     private BlockingQueue<Event> inQueue;
@@ -133,9 +217,26 @@ public abstract class Sender extends Thread implements Closeable {
     private final Runnable publisher;
     private final AtomicReference<Batch> batch = new AtomicReference<>();
     private final int flushInterval;
+    // Only used for adaptive batches
+    private final BatchSizer sizer;
     private volatile boolean closed = false;
     // Don't allow to stop while sending an event
     private final Semaphore stopSemaphore = new Semaphore(1, true);
+    // Metrics are resolved once, not for each batch
+    private final Handle<Counter> activeBatches;
+    private final Handle<Histogram> batchesSize;
+    private final Handle<Timer> flushDuration;
+    private final Handle<Histogram> adaptedSize;
+    // Only used with a circuit breaker
+    private final CircuitBreaker breaker;
+    private final ShedPolicy shedPolicy;
+    private final String breakerPolicy;
+    private final Path spillDirectory;
+    private PersistentQueue spill;
+    private final Handle<Meter> shedMeter;
+    // Only used for retried batches, they wait here until their not-before time
+    private final ScheduledExecutorService retryScheduler;
+    private final Set<Batch> retrying = ConcurrentHashMap.newKeySet();
 
     public Sender(Builder<?  extends  Sender> builder) {
         filter = builder.filter;
@@ -143,6 +244,23 @@ public abstract class Sender extends Thread implements Closeable {
         setName("sender-" + getSenderName());
         logger = LogManager.getLogger(Helpers.getFirstInitClass());
         encoder = builder.encoder;
+        activeBatches = Properties.metrics.counterHandle("sender." + getName() + ".activeBatches");
+        batchesSize = Properties.metrics.histogramHandle("sender." + getName() + ".batchesSize");
+        flushDuration = Properties.metrics.timerHandle("sender." + getName() + ".flushDuration");
+        adaptedSize = Properties.metrics.histogramHandle("sender." + getName() + ".adaptedBatchSize");
+        shedMeter = Properties.metrics.meterHandle("sender." + getName() + ".shed");
+        if (builder.circuitBreaker) {
+            breaker = new CircuitBreaker(builder.breakerWindow, builder.breakerFailureRate, builder.breakerLatency, builder.breakerOpenTime * 1000L, logger);
+            // An unknown policy is reported by configure
+            shedPolicy = Arrays.stream(ShedPolicy.values()).filter(p -> p.name().equalsIgnoreCase(builder.breakerPolicy)).findAny().orElse(null);
+            breakerPolicy = builder.breakerPolicy;
+            spillDirectory = builder.spillDirectory != null ? Paths.get(builder.spillDirectory) : null;
+        } else {
+            breaker = null;
+            shedPolicy = null;
+            breakerPolicy = null;
+            spillDirectory = null;
+        }
         boolean onlyBatch = Optional.ofNullable(getClass().getAnnotation(CanBatch.class)).map(CanBatch::only).orElse(false);
         if (onlyBatch) {
             builder.batchSize = Math.max(1, builder.batchSize);
@@ -152,17 +270,27 @@ public abstract class Sender extends Thread implements Closeable {
             flushInterval = builder.flushInterval * 1000;
             isAsync = true;
             batchSize = builder.batchSize;
+            if (builder.adaptiveBatch) {
+                // By default, the configured batch size is the starting point, and it can grow tenfold
+                int maxBatchSize = builder.maxBatchSize > 0 ? builder.maxBatchSize : batchSize * 10;
+                sizer = new BatchSizer(batchSize, builder.minBatchSize, maxBatchSize, flushInterval);
+            } else {
+                sizer = null;
+            }
             threads = new Thread[builder.workers];
             batches = new ArrayBlockingQueue<>(threads.length * 8);
             publisher = getPublisher();
             batch.set(new Batch(this));
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> ThreadBuilder.get().setName(getName() + "Retry").setTask(r).setDaemon(true).build());
         } else {
             flushInterval = 0;
             isAsync = getClass().getAnnotation(AsyncSender.class) != null;
             threads = null;
             batchSize = -1;
+            sizer = null;
             batches = null;
             publisher = null;
+            retryScheduler = null;
         }
         this.setUncaughtExceptionHandler((t,e) -> {
             logger.error("Uncatched Exception: " + Helpers.resolveThrowableException(e), e);
@@ -170,6 +298,9 @@ public abstract class Sender extends Thread implements Closeable {
     }
 
     public boolean configure(Properties properties) {
+        if (breaker != null && ! configureBreaker()) {
+            return false;
+        }
         if (threads != null) {
             buildSyncer(properties);
         }
@@ -183,6 +314,37 @@ public abstract class Sender extends Thread implements Closeable {
         }
     }
 
+    private boolean configureBreaker() {
+        if (shedPolicy == null) {
+            logger.error("Unknown breaker policy \"{}\"", breakerPolicy);
+            return false;
+        }
+        if (shedPolicy == ShedPolicy.SPILL) {
+            if (spillDirectory == null) {
+                logger.error("No spill directory given");
+                return false;
+            }
+            try {
+                PersistentQueue.Builder spillBuilder = PersistentQueue.getBuilder();
+                spillBuilder.setDirectory(spillDirectory);
+                spillBuilder.setWriteAhead(true);
+                spill = spillBuilder.build();
+            } catch (IOException e) {
+                logger.error("Can't open spill directory {}: {}", spillDirectory, Helpers.resolveThrowableException(e));
+                logger.catching(Level.DEBUG, e);
+                return false;
+            }
+        }
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            mbs.registerMBean(new StandardMBean(breaker, CircuitBreakerMBean.class), new ObjectName("loghub:type=sender,servicename=" + getName() + ",name=circuitBreaker"));
+        } catch (NotCompliantMBeanException | MalformedObjectNameException
+                        | InstanceAlreadyExistsException | MBeanRegistrationException e) {
+            throw new RuntimeException("jmx configuration failed: " + Helpers.resolveThrowableException(e), e);
+        }
+        return true;
+    }
+
     /**
      * A runnable that will be affected to threads. It consumes event and send them as bulk
      * @return
@@ -195,22 +357,23 @@ public abstract class Sender extends Thread implements Closeable {
                     if (flushedBatch == NULLBATCH) {
                         break;
                     }
-                    Properties.metrics.histogram("sender." + getName() + ".batchesSize").update(flushedBatch.size());
+                    batchesSize.get().update(flushedBatch.size());
                     if (flushedBatch.isEmpty()) {
                         flushedBatch.finished();
                         continue;
                     } else {
                         lastFlush = System.currentTimeMillis();
                     }
-                    try (Timer.Context tctx = Properties.metrics.timer("sender." + getName() + ".flushDuration").time()) {
-                        flush(flushedBatch);
-                        flushedBatch.forEach(fe -> fe.complete(true));
+                    Timer.Context tctx = flushDuration.get().time();
+                    CompletableFuture<?> flushed;
+                    try {
+                        flushed = asyncFlush(flushedBatch);
                     } catch (Throwable ex) {
-                        Sender.this.handleException(ex);
-                        flushedBatch.forEach(fe -> fe.complete(false));
-                    } finally {
-                        flushedBatch.finished();
+                        flushed(flushedBatch, tctx, ex);
+                        continue;
                     }
+                    // The publisher doesn't wait for the outcome, an asynchronous flush completes the batch later
+                    flushed.whenComplete((v, ex) -> flushed(flushedBatch, tctx, ex));
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -218,6 +381,28 @@ public abstract class Sender extends Thread implements Closeable {
         };
     }
 
+    private void flushed(Batch flushedBatch, Timer.Context tctx, Throwable failure) {
+        boolean failed = failure != null;
+        try {
+            if (failed) {
+                flushedBatch.forEach(fe -> fe.complete(false));
+                handleException(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+            } else {
+                flushedBatch.forEach(fe -> fe.complete(true));
+            }
+        } finally {
+            long duration = tctx.stop();
+            if (breaker != null) {
+                breaker.record(! failed && ! flushedBatch.noneSent(), duration);
+            }
+            if (sizer != null) {
+                sizer.flushed(flushedBatch.size(), flushedBatch.full, duration, failed || flushedBatch.noneSent(), inQueue.size());
+                adaptedSize.get().update(sizer.getSize());
+            }
+            flushedBatch.finished();
+        }
+    }
+
     protected void buildSyncer(Properties properties) {
         IntStream.rangeClosed(1, threads.length)
                  .mapToObj(i ->getName() + "Publisher" + i)
@@ -238,7 +423,31 @@ public abstract class Sender extends Thread implements Closeable {
                 logger.catching(Level.DEBUG, e);
             }
         };
-        properties.registerScheduledTask(getName() + "Flusher" , flush, 5000);
+        // With adaptive batches, the flush interval bounds the time an event waits in a batch, so it's checked more often
+        Runnable ageFlush = () -> {
+            try {
+                Batch current = batch.get();
+                long started = current.started;
+                if (started != 0 && (System.currentTimeMillis() - started) >= flushInterval) {
+                    Batch next = new Batch(this);
+                    if (batch.compareAndSet(current, next)) {
+                        batches.add(current);
+                    } else {
+                        // The batch was already flushed, the unused one must not be counted as active
+                        next.finished();
+                    }
+                }
+            } catch (IllegalStateException e) {
+                logger.warn("Failed to launch a scheduled batch: " + Helpers.resolveThrowableException(e));
+                logger.catching(Level.DEBUG, e);
+            }
+        };
+        if (sizer != null) {
+            properties.registerScheduledTask(getName() + "Flusher" , ageFlush, Math.max(100, flushInterval / 10));
+            Properties.metrics.gauge("sender." + getName() + ".batchSize", sizer::getSize);
+        } else {
+            properties.registerScheduledTask(getName() + "Flusher" , flush, 5000);
+        }
         Helpers.waitAllThreads(Arrays.stream(threads));
     }
 
@@ -252,6 +461,14 @@ public abstract class Sender extends Thread implements Closeable {
                 List<Batch> missedBatches = new ArrayList<>();
                 // Empty the waiting batches list and put the end-of-processing mark instead
                 batches.drainTo(missedBatches);
+                // Retried batches still waiting are missed too
+                retryScheduler.shutdownNow();
+                retryScheduler.awaitTermination(1, TimeUnit.SECONDS);
+                retrying.forEach(b -> {
+                    b.forEach(ef -> ef.complete(false));
+                    b.finished();
+                });
+                retrying.clear();
                 // Add a mark for each worker
                 for (int i = 0; i < this.threads.length; i++) {
                     batches.add(NULLBATCH);
@@ -269,6 +486,9 @@ public abstract class Sender extends Thread implements Closeable {
                     }
                 });
             }
+            if (breaker != null) {
+                unregisterBreaker();
+            }
             try {
                 MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
                 mbs.unregisterMBean(new ObjectName("loghub:type=sender,servicename="
@@ -302,6 +522,22 @@ public abstract class Sender extends Thread implements Closeable {
         }
     }
     
+    private void unregisterBreaker() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            mbs.unregisterMBean(new ObjectName("loghub:type=sender,servicename=" + getName() + ",name=circuitBreaker"));
+        } catch (InstanceNotFoundException | MalformedObjectNameException | MBeanRegistrationException e) {
+            logger.debug("Failed to unregister mbeam: " + Helpers.resolveThrowableException(e), e);
+        }
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                logger.error("Can't close spill directory {}: {}", spillDirectory, Helpers.resolveThrowableException(e));
+            }
+        }
+    }
+
     protected void customStopSending() {
         // Empty
     }
@@ -313,10 +549,12 @@ public abstract class Sender extends Thread implements Closeable {
             return false;
         }
         batch.get().add(event);
-        if (batch.get().size() >= batchSize) {
+        if (batch.get().size() >= currentBatchSize()) {
             logger.debug("batch full, flush");
             try {
-                batches.put(batch.getAndSet(new Batch(this)));
+                Batch full = batch.getAndSet(new Batch(this));
+                full.full = true;
+                batches.put(full);
             } catch (InterruptedException e) {
                 interrupt();
             }
@@ -327,12 +565,55 @@ public abstract class Sender extends Thread implements Closeable {
         return true;
     }
 
+    /**
+     * Send again some events of a flushed batch, after a delay. They are moved to a new batch that is added to the
+     * batches queue only at its not-before time, so no publisher waits for it.
+     * @param documents the flushed batch
+     * @param events the events to send again
+     * @param delay the delay before the next attempt, in ms
+     */
+    protected void retry(Batch documents, Collection<EventFuture> events, long delay) {
+        documents.removeAll(events);
+        Batch retried = new Batch(this);
+        retried.addAll(events);
+        retried.attempt = documents.attempt + 1;
+        retried.notBefore = System.currentTimeMillis() + delay;
+        retrying.add(retried);
+        retryScheduler.schedule(() -> {
+            if (retrying.remove(retried)) {
+                try {
+                    batches.put(retried);
+                } catch (InterruptedException e) {
+                    retried.forEach(ef -> ef.complete(false));
+                    retried.finished();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, retried.notBefore - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
     public abstract String getSenderName();
 
+    /**
+     * @return the size of the next batches, it changes with adaptive batches
+     */
+    public int currentBatchSize() {
+        return sizer != null ? sizer.getSize() : batchSize;
+    }
+
     protected void flush(Batch documents) throws SendException, EncodeException {
         throw new UnsupportedOperationException("Not a batching sender");
     }
 
+    /**
+     * Flush a batch without waiting for the outcome. When the returned future is done, the events not completed
+     * are successful. By default, the batch is flushed synchronously.
+     */
+    protected CompletableFuture<?> asyncFlush(Batch documents) throws SendException, EncodeException {
+        flush(documents);
+        return CompletableFuture.completedFuture(null);
+    }
+
     @FunctionalInterface
     private interface ByteSource {
         byte[] get() throws EncodeException;
@@ -346,6 +627,13 @@ public abstract class Sender extends Thread implements Closeable {
         return genericEncoder(() -> encoder.encode(event));
     }
 
+    /**
+     * Encode an event as one or many datagrams, as split by the encoder.
+     */
+    protected List<byte[]> encodeChunks(Event event) throws EncodeException {
+        return encoder.chunk(encode(event));
+    }
+
     private byte[] genericEncoder(ByteSource bs) throws EncodeException {
         if (filter != null) {
             try {
@@ -362,18 +650,27 @@ public abstract class Sender extends Thread implements Closeable {
         while (isRunning()) {
             Event event = null;
             try {
-                event = inQueue.take();
+                event = nextEvent();
             } catch (InterruptedException e) {
                 interrupt();
                 break;
             }
             try {
                 stopSemaphore.acquire();
+                // When blocking, the breaker was checked before taking the event
+                if (breaker != null && shedPolicy != ShedPolicy.BLOCK && ! breaker.allow()) {
+                    shed(event);
+                    continue;
+                }
                 logger.trace("New event to send: {}", event);
+                long start = System.nanoTime();
                 boolean status = isWithBatch() ? queue(event): send(event);
                 if (! isAsync) {
                     // real async or in batch mode
                     processStatus(event, status);
+                    if (breaker != null) {
+                        breaker.record(status, System.nanoTime() - start);
+                    }
                 } else if (isWithBatch() && ! status) {
                     // queue return false if this event was not batched
                     processStatus(event, status);
@@ -385,12 +682,53 @@ public abstract class Sender extends Thread implements Closeable {
             } catch (Throwable t) {
                 handleException(t);
                 processStatus(event, false);
+                if (breaker != null && ! isAsync) {
+                    breaker.record(false, -1);
+                }
             } finally {
                 stopSemaphore.release();
             }
         }
     }
 
+    /**
+     * The next event to send. With a circuit breaker, if the upstream should be blocked, it waits until the
+     * breaker is not open any more. Spilled events are sent first when the breaker allows it.
+     */
+    private Event nextEvent() throws InterruptedException {
+        if (breaker != null && shedPolicy == ShedPolicy.BLOCK) {
+            breaker.await();
+        } else if (spill != null) {
+            while (true) {
+                // Spilled events can be the probes of a half-open breaker, the probe is taken when sending it
+                if (breaker.canSend()) {
+                    Event spilled = spill.poll();
+                    if (spilled != null) {
+                        return spilled;
+                    }
+                }
+                // Don't wait too long, so the spilled events are sent even without new events
+                Event event = inQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    return event;
+                }
+            }
+        }
+        return inQueue.take();
+    }
+
+    /**
+     * Handle an event that can't be sent because the breaker is open
+     */
+    private void shed(Event event) {
+        breaker.shed();
+        shedMeter.get().mark();
+        if (spill == null || ! spill.offer(event)) {
+            Stats.dropped.incrementAndGet();
+            event.end();
+        }
+    }
+
     protected boolean isRunning() {
         return !closed && ! isInterrupted();
     }
@@ -398,6 +736,13 @@ public abstract class Sender extends Thread implements Closeable {
     public boolean isWithBatch() {
         return threads != null;
     }
+
+    /**
+     * @return true if the encoder is given whole batches
+     */
+    public boolean isBatchEncoded() {
+        return isWithBatch();
+    }
     
     public int getWorkers() {
         return threads != null ? threads.length : 0;
@@ -464,6 +809,9 @@ public abstract class Sender extends Thread implements Closeable {
     }
 
     protected void processStatus(Event event, boolean status) {
+        if (breaker != null && isAsync && ! isWithBatch()) {
+            breaker.record(status, -1);
+        }
         if (status) {
             Stats.sent.incrementAndGet();
         } else {
@@ -58,10 +58,10 @@ public class Udp extends Sender {
 
     @Override
     public boolean send(Event event) throws EncodeException, SendException {
-        byte[] msg = encode(event);
-        DatagramPacket packet = new DatagramPacket(msg, msg.length, IPAddress, port);
         try {
-            socket.send(packet);
+            for (byte[] msg: encodeChunks(event)) {
+                socket.send(new DatagramPacket(msg, msg.length, IPAddress, port));
+            }
         } catch (IOException e) {
             throw new SendException(e);
         }
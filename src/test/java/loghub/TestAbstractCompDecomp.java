@@ -1,5 +1,7 @@
 package loghub;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 
 import org.apache.commons.compress.MemoryLimitException;
@@ -49,6 +51,21 @@ public class TestAbstractCompDecomp {
         }
     }
 
+    @Test
+    public void testRountTripStream() throws FilterException {
+        byte[] input = "Compressed message".getBytes(StandardCharsets.UTF_8);
+        Compressor.Builder cbuilder = Compressor.getBuilder();
+        cbuilder.setFormat(CompressorStreamFactory.GZIP);
+        Compressor comp = cbuilder.build();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        comp.filter(new ByteArrayInputStream(input), compressed);
+
+        Decompressor dcomp = Decompressor.getBuilder().build();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        dcomp.filter(new ByteArrayInputStream(compressed.toByteArray()), result);
+        Assert.assertArrayEquals(input, result.toByteArray());
+    }
+
     @Test(expected=MemoryLimitException.class)
     public void testTooBig() throws Throwable {
         byte[] input = "Compressed message".getBytes(StandardCharsets.UTF_8);
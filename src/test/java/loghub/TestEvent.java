@@ -5,6 +5,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -13,6 +14,8 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.codahale.metrics.Counter;
+
 import loghub.Event.Action;
 import loghub.EventsProcessor.ProcessingStatus;
 import loghub.configuration.Properties;
@@ -74,6 +77,36 @@ public class TestEvent {
         e2.end();
     }
 
+    @Test
+    public void TestFailedFork() {
+        AtomicInteger copies = new AtomicInteger();
+        ConnectionContext<Object> ctx = new ConnectionContext<Object>() {
+            @Override
+            public Object getLocalAddress() {
+                return null;
+            }
+            @Override
+            public Object getRemoteAddress() {
+                return null;
+            }
+            @Override
+            public ConnectionContext<Object> copy() {
+                copies.incrementAndGet();
+                return super.copy();
+            }
+        };
+        Counter inflight = Properties.metrics.counter("Allevents.inflight");
+        long before = inflight.getCount();
+        Event e = Tools.getEvent(ctx);
+        // Not serializable
+        e.put("key", new Object());
+        Assert.assertNull(e.duplicate());
+        Assert.assertEquals(0, copies.get());
+        Assert.assertEquals(before + 1, inflight.getCount());
+        e.end();
+        Assert.assertEquals(before, inflight.getCount());
+    }
+
     @Test
     public void TestLoop() {
         Map<String, Object> conf = new HashMap<>();
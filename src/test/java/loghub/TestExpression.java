@@ -1,8 +1,14 @@
 package loghub;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -49,4 +55,32 @@ public class TestExpression {
         Assert.assertEquals("failed to parse expression", "11", (String)o);
     }
 
+    @Test(timeout = 10000)
+    public void testConcurrent() throws ExpressionException, InterruptedException, ExecutionException {
+        String expressionScript = "event.getPath(\"a\") + 1";
+        Expression expression = new Expression(expressionScript, new Properties(Collections.emptyMap()).groovyClassLoader, Collections.emptyMap());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int base = t * 1000;
+                results.add(executor.submit(() -> {
+                    for (int i = base; i < base + 1000; i++) {
+                        Event ev = Tools.getEvent();
+                        ev.put("a", i);
+                        if (! Integer.valueOf(i + 1).equals(expression.eval(ev))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> f: results) {
+                Assert.assertTrue(f.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
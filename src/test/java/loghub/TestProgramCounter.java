@@ -0,0 +1,105 @@
+package loghub;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import loghub.processors.AnonymousSubPipeline;
+import loghub.processors.Identity;
+
+public class TestProgramCounter {
+
+    private static Processor named(String name) {
+        return new Identity() {
+            @Override
+            public String getName() {
+                return name;
+            }
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    private static List<String> drain(ProgramCounter pc) {
+        List<String> done = new ArrayList<>();
+        Processor p;
+        while ((p = pc.next()) != null) {
+            done.add(p.getName());
+        }
+        return done;
+    }
+
+    @Test
+    public void testOrder() {
+        ProgramCounter pc = new ProgramCounter();
+        pc.append(new Processor[] {named("b"), named("c")});
+        pc.append(named("d"));
+        pc.insert(named("a"));
+        Assert.assertEquals(4, pc.size());
+        Assert.assertEquals("a", pc.next().getName());
+        pc.insert(new Processor[] {named("a1"), named("a2")});
+        Assert.assertEquals(Arrays.asList("a1", "a2", "b", "c", "d"), drain(pc));
+        Assert.assertEquals(0, pc.size());
+        Assert.assertNull(pc.next());
+    }
+
+    @Test
+    public void testSubPipeline() {
+        Pipeline inner = new Pipeline(Arrays.asList(named("i1"), named("i2")), null, null);
+        AnonymousSubPipeline sub = new AnonymousSubPipeline();
+        sub.setPipeline(inner);
+        Pipeline outer = new Pipeline(Arrays.asList(named("o1"), sub, named("o2")), null, null);
+        // Anonymous sub-pipelines are inlined
+        Assert.assertEquals(4, outer.getProgram().length);
+        ProgramCounter pc = new ProgramCounter();
+        pc.append(outer.getProgram());
+        Assert.assertEquals(Arrays.asList("o1", "i1", "i2", "o2"), drain(pc));
+        // But expanded when inserted
+        pc.insert(sub);
+        Assert.assertEquals(Arrays.asList("i1", "i2"), drain(pc));
+        Pipeline empty = new Pipeline(Collections.emptyList(), null, null);
+        sub.setPipeline(empty);
+        pc.insert(named("a"));
+        pc.insert(sub);
+        Assert.assertEquals(Arrays.asList("a"), drain(pc));
+    }
+
+    @Test
+    public void testCopy() {
+        ProgramCounter master = new ProgramCounter();
+        master.append(new Processor[] {named("a"), named("b"), named("c")});
+        master.insert(named("0"));
+        master.next();
+        master.next();
+        ProgramCounter copy = new ProgramCounter();
+        copy.append(named("z"));
+        copy.append(master);
+        Assert.assertEquals(Arrays.asList("z", "b", "c"), drain(copy));
+        Assert.assertEquals(Arrays.asList("b", "c"), drain(master));
+    }
+
+    @Test
+    public void testDeep() {
+        ProgramCounter pc = new ProgramCounter();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            pc.insert(named(Integer.toString(i)));
+            pc.append(named("-" + i));
+        }
+        for (int i = 19; i >= 0; i--) {
+            expected.add(Integer.toString(i));
+        }
+        for (int i = 0; i < 20; i++) {
+            expected.add("-" + i);
+        }
+        Assert.assertEquals(40, pc.size());
+        Assert.assertEquals(expected, drain(pc));
+    }
+
+}
@@ -0,0 +1,184 @@
+package loghub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import loghub.Event.Action;
+
+public class TestStructuralCopy {
+
+    private static Logger logger ;
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+        LogUtils.setLevel(logger, Level.TRACE, "loghub");
+    }
+
+    private Event getEvent() throws ProcessorException, IOException {
+        Event e = Tools.getEvent();
+        e.setTimestamp(new Date(0));
+        e.put("string", "value");
+        e.put("number", 1);
+        e.put("address", InetAddress.getLoopbackAddress());
+        e.applyAtPath(Action.PUT, new String[]{"a", "b", "c"}, 1, true);
+        e.applyAtPath(Action.PUT, new String[]{"a", "d"}, 2, true);
+        e.put("list", new ArrayList<>(Arrays.asList(1, new HashMap<>(), new ArrayList<>())));
+        e.put("array", new Object[] {1, new ArrayList<>()});
+        e.put("bytes", new byte[] {1, 2});
+        e.putMeta("meta", new ArrayList<>(Arrays.asList(1)));
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void checkIndependant(Event e1, Event e2) throws ProcessorException {
+        Assert.assertEquals(e1.keySet(), e2.keySet());
+        Assert.assertEquals(e1.get("a"), e2.get("a"));
+        Assert.assertEquals(e1.getTimestamp(), e2.getTimestamp());
+        Assert.assertSame(e1.get("string"), e2.get("string"));
+        Assert.assertSame(e1.get("address"), e2.get("address"));
+        Assert.assertNotSame(e1.getConnectionContext(), e2.getConnectionContext());
+
+        // Nested maps
+        e2.applyAtPath(Action.PUT, new String[]{"a", "b", "c"}, 3, true);
+        e2.applyAtPath(Action.REMOVE, new String[]{"a", "d"}, null, true);
+        Assert.assertEquals(1, e1.applyAtPath(Action.GET, new String[]{"a", "b", "c"}, null));
+        Assert.assertEquals(2, e1.applyAtPath(Action.GET, new String[]{"a", "d"}, null));
+        Assert.assertEquals(3, e2.applyAtPath(Action.GET, new String[]{"a", "b", "c"}, null));
+        Assert.assertNull(e2.applyAtPath(Action.GET, new String[]{"a", "d"}, null));
+        e1.applyAtPath(Action.PUT, new String[]{"a", "b", "e"}, 4, true);
+        Assert.assertNull(e2.applyAtPath(Action.GET, new String[]{"a", "b", "e"}, null));
+
+        // Lists
+        List<Object> l1 = (List<Object>) e1.get("list");
+        List<Object> l2 = (List<Object>) e2.get("list");
+        Assert.assertEquals(l1, l2);
+        l2.add(2);
+        ((Map<String, Object>) l2.get(1)).put("key", "value");
+        ((List<Object>) l2.get(2)).add(1);
+        Assert.assertEquals(3, l1.size());
+        Assert.assertTrue(((Map<String, Object>) l1.get(1)).isEmpty());
+        Assert.assertTrue(((List<Object>) l1.get(2)).isEmpty());
+
+        // Arrays
+        Object[] a1 = (Object[]) e1.get("array");
+        Object[] a2 = (Object[]) e2.get("array");
+        Assert.assertArrayEquals(a1, a2);
+        Assert.assertNotSame(a1, a2);
+        ((List<Object>) a2[1]).add(1);
+        Assert.assertTrue(((List<Object>) a1[1]).isEmpty());
+        byte[] b1 = (byte[]) e1.get("bytes");
+        byte[] b2 = (byte[]) e2.get("bytes");
+        Assert.assertArrayEquals(b1, b2);
+        b2[0] = 0;
+        Assert.assertEquals(1, b1[0]);
+
+        // Metas
+        ((List<Object>) e2.getMeta("meta")).add(2);
+        e2.putMeta("other", 1);
+        Assert.assertEquals(Arrays.asList(1), e1.getMeta("meta"));
+        Assert.assertNull(e1.getMeta("other"));
+
+        // Timestamp
+        e2.setTimestamp(new Date(1000));
+        Assert.assertEquals(new Date(0), e1.getTimestamp());
+    }
+
+    @Test
+    public void testEager() throws ProcessorException, IOException {
+        Event e1 = getEvent();
+        Event e2 = e1.duplicate();
+        Assert.assertNotNull(e2);
+        checkIndependant(e1, e2);
+        e1.end();
+        e2.end();
+    }
+
+    @Test
+    public void testCopyOnWrite() throws ProcessorException, IOException {
+        Event e1 = getEvent();
+        Event e2 = e1.duplicate(true);
+        Assert.assertNotNull(e2);
+        // A second fork of the same event
+        Event e3 = e1.duplicate(true);
+        checkIndependant(e1, e2);
+        Assert.assertEquals(1, e3.applyAtPath(Action.GET, new String[]{"a", "b", "c"}, null));
+        Assert.assertEquals(2, e3.applyAtPath(Action.GET, new String[]{"a", "d"}, null));
+        Assert.assertNull(e3.applyAtPath(Action.GET, new String[]{"a", "b", "e"}, null));
+        e1.end();
+        e2.end();
+        e3.end();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException, ProcessorException {
+        Event e1 = getEvent();
+        Event e2 = e1.duplicate(true);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(e2.get("a"));
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            Map<String, Object> a = (Map<String, Object>) ois.readObject();
+            Assert.assertEquals(HashMap.class, a.getClass());
+            Assert.assertEquals(e1.get("a"), a);
+        }
+        e1.end();
+        e2.end();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testOrder() throws NotSerializableException {
+        Map<String, Object> ordered = new LinkedHashMap<>();
+        for (int i = 20; i > 0; i--) {
+            ordered.put("k" + i, i);
+        }
+        Map<String, Object> source = new HashMap<>();
+        source.put("ordered", ordered);
+        Map<String, Object> copy = StructuralCopy.duplicate(source, true);
+        // The write makes the copy own its content
+        Map<String, Object> copied = (Map<String, Object>) copy.get("ordered");
+        copied.put("k0", 0);
+        List<String> keys = new ArrayList<>(copied.keySet());
+        Assert.assertEquals("k20", keys.get(0));
+        Assert.assertEquals("k1", keys.get(19));
+        Assert.assertEquals("k0", keys.get(20));
+    }
+
+    @Test
+    public void testNotSerializable() throws IOException, ProcessorException {
+        Event e1 = getEvent();
+        e1.put("thread", Thread.currentThread());
+        Assert.assertNull(e1.duplicate());
+        try {
+            StructuralCopy.copy(Thread.currentThread());
+            Assert.fail();
+        } catch (NotSerializableException ex) {
+            Assert.assertEquals(Thread.class.getName(), ex.getMessage());
+        }
+        e1.end();
+    }
+
+}
@@ -98,12 +98,12 @@ public class TestVarFormatter {
         checkFormat(date, "%tm");
         checkFormat(date, "%td");
         checkFormat(date, "%te");
-        // checkFormat(new Date(), "%tR"); Not implemented
-        // checkFormat(new Date(), "%tT"); Not implemented
-        // checkFormat(new Date(), "%tr"); Not implemented
-        // checkFormat(new Date(), "%tD"); Not implemented
-        // checkFormat(new Date(), "%tF"); Not implemented
-        // checkFormat(new Date(), "%tc"); Not implemented
+        checkFormat(date, "%tR");
+        checkFormat(date, "%tT");
+        checkFormat(date, "%tr");
+        checkFormat(date, "%tD");
+        checkFormat(date, "%tF");
+        checkFormat(date, "%tc");
 
         checkFormat(date, "%Ta");
         checkFormat(date, "%TA");
@@ -256,6 +256,20 @@ public class TestVarFormatter {
         Assert.assertEquals("1\n1\n3", formatted);
     }
 
+    @Test
+    public void formatBuffer() {
+        VarFormatter vf = new VarFormatter("${a}-${b%05d}-${c%t<UTC>F}", Locale.ENGLISH);
+        Map<String, Object> values = new HashMap<>();
+        values.put("a", "value");
+        values.put("b", 42);
+        values.put("c", new Date(0));
+        StringBuilder buffer = new StringBuilder("prefix:");
+        Assert.assertSame(buffer, vf.format(values, buffer));
+        Assert.assertEquals("prefix:value-00042-1970-01-01", buffer.toString());
+        buffer.setLength(0);
+        Assert.assertEquals("value-00042-1970-01-01", vf.format(values, buffer).toString());
+    }
+
     @Test(expected=IllegalArgumentException.class)
     public void testError1() {
         Map<String, Object> values = Collections.singletonMap("a", 1);
@@ -321,4 +335,9 @@ public class TestVarFormatter {
         vf.format(obj);
     }
 
+    @Test(expected=IllegalArgumentException.class)
+    public void testError10() {
+        new VarFormatter("${a", Locale.ENGLISH);
+    }
+
 }
@@ -0,0 +1,140 @@
+package loghub.configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import loghub.Event;
+import loghub.Expression;
+import loghub.Expression.ExpressionException;
+import loghub.LogUtils;
+import loghub.ProcessorException;
+import loghub.RouteLexer;
+import loghub.RouteParser;
+import loghub.Tools;
+import loghub.configuration.ConfigListener.ObjectWrapped;
+
+public class TestNativeExpressions {
+
+    private static Logger logger ;
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+        LogUtils.setLevel(logger, Level.TRACE, "loghub.configuration", "loghub.Expression");
+    }
+
+    /**
+     * Compile the expression, returns the native and the groovy version
+     */
+    private Expression[] compile(String source) throws ExpressionException {
+        RouteParser parser = new RouteParser(new CommonTokenStream(new RouteLexer(CharStreams.fromString(source))));
+        ConfigListener conf = new ConfigListener();
+        new ParseTreeWalker().walk(conf, parser.expression());
+        @SuppressWarnings("unchecked")
+        ObjectWrapped<String> groovySource = (ObjectWrapped<String>) conf.stack.pop();
+        Map<String, Object> props = new HashMap<>();
+        props.put(Properties.PROPSNAMES.FORMATTERS.toString(), conf.formatters);
+        props.put(Properties.PROPSNAMES.LAMBDAS.toString(), conf.lambdas);
+        Properties p = new Properties(props);
+        return new Expression[] {new Expression(groovySource.wrapped, p), new Expression(groovySource.wrapped, p.groovyClassLoader, p.formatters)};
+    }
+
+    private Event getEvent() {
+        Event ev = Tools.getEvent();
+        ev.setTimestamp(new Date(0));
+        ev.put("a", "b");
+        ev.put("c", 4);
+        ev.put("d", 3.5);
+        ev.put("e", "10-20");
+        ev.put("l", Arrays.asList(1, 2, 3));
+        ev.put("m", new HashMap<>());
+        ev.putMeta("meta", 1);
+        return ev;
+    }
+
+    private void check(String source, boolean isNative) throws ExpressionException, ProcessorException {
+        Expression[] expressions = compile(source);
+        Assert.assertEquals(source, isNative, expressions[0].isNative());
+        Assert.assertFalse(expressions[1].isNative());
+        Object nativeValue = expressions[0].eval(getEvent());
+        Object groovyValue = expressions[1].eval(getEvent());
+        Assert.assertEquals(source, groovyValue, nativeValue);
+        if (groovyValue != null) {
+            Assert.assertEquals(source, groovyValue.getClass(), nativeValue.getClass());
+        }
+    }
+
+    @Test
+    public void testComparison() throws ExpressionException, ProcessorException {
+        check("[a] == \"b\" && [c] > 3", true);
+        check("[a] != \"b\" || ! [missing]", true);
+        check("[c] >= 3.5", true);
+        check("[d] < 4", true);
+        check("[c] <= 10", true);
+        check("[c] <=> 4", true);
+        check("[d] == 3.5d", true);
+        check("[missing] == null", true);
+        check("[c] === 4", true);
+        check("[m] !== null", true);
+        check("([c] > 3) && (1 == 1.0)", true);
+        check("[c] > 3 || [a] == \"x\" && [c] < 2", true);
+        check("[a] == \"x\" && [c] < 2 || [c] > 3", true);
+        check("! [l][0]", true);
+        check("! [a] == false", true);
+    }
+
+    @Test
+    public void testValues() throws ExpressionException, ProcessorException {
+        check("[a]", true);
+        check("[#meta]", true);
+        check("[@timestamp]", true);
+        check("[l][1]", true);
+        check("[l][5]", true);
+        check("[a][0]", true);
+        check("\"${a}-${c}\"", true);
+        check("\"${#1%s}-${#2%s}\"([a], [c])", true);
+        check("true", true);
+        check("1.5", true);
+        check("1.5f", true);
+    }
+
+    @Test
+    public void testPattern() throws ExpressionException, ProcessorException {
+        check("[a] =~ /b/", true);
+        check("[a] =~ /x/", true);
+        check("[a] =~ /(b)(c)?/", true);
+        check("[e] =~ /^(\\d+)-(\\d+)$/", true);
+        check("([e] =~ /^(\\d+)-(\\d+)$/)[2]", true);
+        check("[a] ==~ /b/", true);
+        check("[missing] ==~ /null/", true);
+        check("[a] == \"b\" && ([e] =~ /(\\d+)/)", true);
+        check("[a] ==~ /b/ && [c] == 4", true);
+        check("[a] ==~ /b/ == true", false);
+    }
+
+    @Test
+    public void testFallback() throws ExpressionException, ProcessorException {
+        check("[c] + 1", false);
+        check("- [c]", false);
+        check("[c] .| 1", false);
+        check("java.lang.Integer.MAX_VALUE", false);
+        check("new java.lang.String([a])", false);
+        check("[ @context principal name ] == \"\"", false);
+        check("[c] < 5 < true", false);
+    }
+
+}
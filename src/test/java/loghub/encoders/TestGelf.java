@@ -0,0 +1,161 @@
+package loghub.encoders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import loghub.Event;
+import loghub.LogUtils;
+import loghub.Tools;
+import loghub.configuration.ConfigurationTools;
+
+public class TestGelf {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private static Logger logger;
+
+    private static final ObjectMapper json = new ObjectMapper();
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+        LogUtils.setLevel(logger, Level.TRACE);
+    }
+
+    private Event getEvent() {
+        Event e = Tools.getEvent();
+        e.setTimestamp(new Date(1500L));
+        e.put("shortmessage", "short");
+        e.put("message", "a message");
+        e.put("id", 1);
+        e.put("bad field", 2);
+        e.put("tags", Collections.singletonList("a"));
+        return e;
+    }
+
+    private Map<String, Object> read(byte[] content) throws IOException {
+        return json.readValue(content, new TypeReference<Map<String, Object>>() {});
+    }
+
+    private void check(Map<String, Object> gelf) {
+        Assert.assertEquals("1.1", gelf.get("version"));
+        Assert.assertEquals("short", gelf.get("short_message"));
+        Assert.assertEquals("a message", gelf.get("full_message"));
+        Assert.assertEquals(1.5, gelf.get("timestamp"));
+        Assert.assertEquals(Collections.singletonList("a"), gelf.get("_tags"));
+        Assert.assertFalse(gelf.containsKey("_id"));
+        Assert.assertFalse(gelf.containsKey("_bad field"));
+        Assert.assertFalse(gelf.containsKey("_message"));
+    }
+
+    @Test
+    public void testEncode() throws EncodeException, IOException {
+        Gelf.Builder builder = Gelf.getBuilder();
+        builder.setFullmessagefield("message");
+        Gelf encoder = builder.build();
+        Event e = getEvent();
+        check(read(encoder.encode(e)));
+        // The event is not modified
+        Assert.assertEquals("short", e.get("shortmessage"));
+        Assert.assertEquals("a message", e.get("message"));
+    }
+
+    @Test
+    public void testStream() throws EncodeException, IOException {
+        Gelf.Builder builder = Gelf.getBuilder();
+        builder.setFullmessagefield("message");
+        builder.setStream(true);
+        byte[] content = builder.build().encode(getEvent());
+        Assert.assertEquals(0, content[content.length - 1]);
+        check(read(Arrays.copyOf(content, content.length - 1)));
+    }
+
+    @Test
+    public void testCompressed() throws EncodeException, IOException, DataFormatException {
+        Gelf.Builder builder = Gelf.getBuilder();
+        builder.setFullmessagefield("message");
+        builder.setCompressed(true);
+        Gelf encoder = builder.build();
+        // The deflater is reused
+        for (int i = 0; i < 3; i++) {
+            byte[] content = encoder.encode(getEvent());
+            // zlib header
+            Assert.assertEquals(0x78, content[0] & 0xff);
+            Inflater inflater = new Inflater();
+            inflater.setInput(content);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            while (! inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                out.write(buffer, 0, read);
+            }
+            inflater.end();
+            check(read(out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testChunks() throws EncodeException, IOException {
+        Gelf.Builder builder = Gelf.getBuilder();
+        builder.setFullmessagefield("message");
+        builder.setChunkSize(20);
+        Gelf encoder = builder.build();
+        byte[] content = encoder.encode(getEvent());
+        List<byte[]> chunks = encoder.chunk(content);
+        int count = (content.length + 7) / 8;
+        Assert.assertEquals(count, chunks.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            Assert.assertEquals(0x1e, chunk[0]);
+            Assert.assertEquals(0x0f, chunk[1]);
+            // Same message id for all the chunks
+            for (int j = 2; j < 10; j++) {
+                Assert.assertEquals(chunks.get(0)[j], chunk[j]);
+            }
+            Assert.assertEquals(i, chunk[10]);
+            Assert.assertEquals(count, chunk[11]);
+            Assert.assertTrue(chunk.length <= 20);
+            out.write(chunk, Gelf.CHUNKHEADERSIZE, chunk.length - Gelf.CHUNKHEADERSIZE);
+        }
+        check(read(out.toByteArray()));
+        // A small message is not chunked
+        Assert.assertSame(content, Gelf.getBuilder().build().chunk(content).get(0));
+    }
+
+    @Test
+    public void testTooManyChunks() throws EncodeException {
+        Gelf.Builder builder = Gelf.getBuilder();
+        builder.setChunkSize(13);
+        thrown.expect(EncodeException.class);
+        thrown.expectMessage("GELF message too big, 129 chunks needed");
+        builder.build().chunk(new byte[Gelf.MAXCHUNKS + 1]);
+    }
+
+    @Test
+    public void testParsing() {
+        ConfigurationTools.parseFragment("output { loghub.senders.NettyUdp { encoder: loghub.encoders.Gelf { chunkSize: 1420, compressed: true}}}", i -> i.output());
+    }
+
+}
@@ -2,10 +2,12 @@ package loghub.netflow;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -16,10 +18,13 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import loghub.IpConnectionContext;
 import loghub.LogUtils;
 import loghub.Tools;
+import loghub.configuration.Properties;
+import loghub.decoders.DecodeException;
 import loghub.decoders.Decoder;
 import loghub.netflow.NetflowDecoder;
 import loghub.netflow.NetflowPacket;
@@ -189,4 +194,54 @@ public class PacketsTest {
             }
         });
     }
+
+    private ByteBuf readCapture(String name) throws IOException {
+        try (InputStream is = getClass().getResourceAsStream("/netflow/packets/" + name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8*1024];
+            for (int length; (length = is.read(buffer)) != -1; ){
+                out.write(buffer, 0, length);
+            }
+            return Unpooled.wrappedBuffer(out.toByteArray());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> decodeRecords(Decoder nfd, IpConnectionContext ctx, String capture) throws IOException, DecodeException {
+        List<Map<String, Object>> records = new ArrayList<>();
+        nfd.decode(ctx, readCapture(capture)).forEach(content -> records.addAll((List<Map<String, Object>>) content.get("records")));
+        return records;
+    }
+
+    @Test
+    public void testTemplateCache() throws IOException, DecodeException {
+        IpConnectionContext ctx1 = new IpConnectionContext(new InetSocketAddress(0), new InetSocketAddress("127.0.0.1", 0), null);
+        IpConnectionContext ctx2 = new IpConnectionContext(new InetSocketAddress(0), new InetSocketAddress("127.0.0.2", 0), null);
+
+        // Without the template, nothing can be decoded
+        Decoder nfd = NetflowDecoder.getBuilder().build();
+        Assert.assertTrue(decodeRecords(nfd, ctx1, "netflow9_test_cisco_asa_1_data.dat").isEmpty());
+        Assert.assertTrue(PacketFactory.parsePacket(ctx1.getRemoteAddress().getAddress(), readCapture("netflow9_test_cisco_asa_1_data.dat")).getRecords().isEmpty());
+
+        // The template is kept from a previous packet, but only for the same exporter
+        decodeRecords(nfd, ctx1, "netflow9_test_cisco_asa_1_tpl.dat");
+        List<Map<String, Object>> records = decodeRecords(nfd, ctx1, "netflow9_test_cisco_asa_1_data.dat");
+        Assert.assertFalse(records.isEmpty());
+        records.forEach(r -> Assert.assertEquals(TemplateBasePacket.TemplateType.Records, r.get(PacketFactory.TYPEKEY)));
+        Assert.assertTrue(decodeRecords(nfd, ctx2, "netflow9_test_cisco_asa_1_data.dat").isEmpty());
+    }
+
+    @Test
+    public void testConfiguredTemplateCache() throws IOException, DecodeException {
+        IpConnectionContext ctx = new IpConnectionContext(new InetSocketAddress(0), new InetSocketAddress("127.0.0.1", 0), null);
+        NetflowDecoder.Builder builder = NetflowDecoder.getBuilder();
+        builder.setTemplateCacheSize(10);
+        builder.setTemplateExpiry(60);
+        Decoder nfd = builder.build();
+        Assert.assertTrue(nfd.configure(new Properties(Collections.emptyMap()), null));
+        decodeRecords(nfd, ctx, "ipfix_test_mikrotik_tpl.dat");
+        Assert.assertFalse(decodeRecords(nfd, ctx, "ipfix_test_mikrotik_data258.dat").isEmpty());
+        Assert.assertFalse(decodeRecords(nfd, ctx, "ipfix_test_mikrotik_data259.dat").isEmpty());
+    }
+
 }
@@ -3,11 +3,13 @@ package loghub.processors;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.Collections;
 import java.util.Date;
 
@@ -133,6 +135,86 @@ public class TestDateParser {
         Assert.assertEquals("date not parsed", 14, t.getLong(ChronoField.HOUR_OF_DAY));
     }
 
+    private Object parse(Object value, String timezone, String... patterns) throws ProcessorException {
+        DateParser parse = new DateParser();
+        if (patterns.length > 0) {
+            parse.setPatterns(patterns);
+        }
+        parse.setTimezone(timezone);
+        parse.setField(new String[] {"field"});
+        Assert.assertTrue(parse.configure(new Properties(Collections.emptyMap())));
+        Event event = Tools.getEvent();
+        event.put("field", value);
+        parse.process(event);
+        return event.get("field");
+    }
+
+    @Test
+    public void testIsoFastPath() throws ProcessorException {
+        String[] dates = new String[] {"2016-01-25T12:28:00.164593+01:00", "2016-02-29T23:59:59Z", "1969-12-31T23:59:59.5-02:30",
+                                       "2016-07-04T18:57:37", "2016-01-25t12:28:00.1", "2016-07-04T18:57", "2016-07-04T18:57:37+01:00[Europe/Paris]"};
+        for (String tz: new String[] {"Europe/Paris", "America/Los_Angeles", "Z"}) {
+            for (String date: dates) {
+                TemporalAccessor ta = DateTimeFormatter.ISO_DATE_TIME.parseBest(date, ZonedDateTime::from, LocalDateTime::from);
+                ZonedDateTime zdt = ta instanceof ZonedDateTime ? (ZonedDateTime) ta : ((LocalDateTime) ta).atZone(ZoneId.of(tz));
+                Assert.assertEquals(date, Date.from(zdt.toInstant()), parse(date, tz, "ISO_DATE_TIME"));
+            }
+        }
+        // Invalid dates are not accepted by the fast path
+        Assert.assertEquals("2016-02-30T12:28:00Z", parse("2016-02-30T12:28:00Z", "Z", "ISO_DATE_TIME"));
+        Assert.assertEquals("2016-01-25T24:28:00Z", parse("2016-01-25T24:28:00Z", "Z", "ISO_DATE_TIME"));
+    }
+
+    @Test
+    public void testRfc3164() throws ProcessorException {
+        int year = OffsetDateTime.now(ZoneId.of("CET")).get(ChronoField.YEAR);
+        long expected = ZonedDateTime.of(year, 7, 6, 16, 40, 22, 0, ZoneId.of("CET")).toInstant().toEpochMilli();
+        Assert.assertEquals(expected, ((Date) parse("Jul 06 16:40:22", "CET", "MMM dd HH:mm:ss")).getTime());
+        Assert.assertEquals(expected, ((Date) parse("Jul 6 16:40:22", "CET", "MMM d HH:mm:ss")).getTime());
+        Assert.assertEquals("Jul 6 16:40:22", parse("Jul 6 16:40:22", "CET", "MMM dd HH:mm:ss"));
+    }
+
+    @Test
+    public void testEpoch() throws ProcessorException {
+        Assert.assertEquals(new Date(1500000000123L), parse("1500000000.123", "Z", "UNIX"));
+        Assert.assertEquals(new Date(1500000000100L), parse("1500000000.1", "Z", "UNIX"));
+        Assert.assertEquals(new Date(1500000000000L), parse(1500000000L, "Z", "UNIX"));
+        Assert.assertEquals(new Date(1500000000500L), parse(1500000000.5, "Z", "UNIX"));
+        Assert.assertEquals(new Date(1500000000123L), parse("1500000000123", "Z", "UNIX_MS"));
+        Assert.assertEquals(new Date(-1000L), parse("-1", "Z", "UNIX"));
+        Assert.assertEquals("15000a", parse("15000a", "Z", "UNIX"));
+    }
+
+    @Test
+    public void testManyFormats() throws ProcessorException {
+        DateParser parse = new DateParser();
+        parse.setPatterns(new String[] {"yyyy-MM-dd HH:mm:ss", "MMM dd HH:mm:ss", "UNIX_MS", "ISO_DATE_TIME"});
+        parse.setTimezone("Z");
+        parse.setField(new String[] {"field"});
+        Assert.assertTrue(parse.configure(new Properties(Collections.emptyMap())));
+        // Each shape is parsed many times, the successful format is remembered
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(new Date(0), parse.fieldFunction(null, "1970-01-01 00:00:00"));
+            Assert.assertEquals(new Date(1000), parse.fieldFunction(null, "1970-01-01T00:00:01Z"));
+            Assert.assertEquals(new Date(2000), parse.fieldFunction(null, "2000"));
+            Assert.assertEquals(new Date(86400000), parse.fieldFunction(null, "1970-01-02 00:00:00"));
+            Assert.assertEquals("FAILED", parse.fieldFunction(null, "1970-13-02 00:00:00").toString());
+        }
+    }
+
+    @Test
+    public void testAmbiguousFormats() throws ProcessorException {
+        DateParser parse = new DateParser();
+        parse.setPatterns(new String[] {"MM/dd/yyyy HH:mm:ss", "dd/MM/yyyy HH:mm:ss"});
+        parse.setTimezone("Z");
+        parse.setField(new String[] {"field"});
+        Assert.assertTrue(parse.configure(new Properties(Collections.emptyMap())));
+        // Only valid with the second pattern, it must not change the order for the same shape
+        Assert.assertEquals(new Date(1578873600000L), parse.fieldFunction(null, "13/01/2020 00:00:00"));
+        Assert.assertEquals(new Date(1577923200000L), parse.fieldFunction(null, "01/02/2020 00:00:00"));
+        Assert.assertEquals(new Date(1578873600000L), parse.fieldFunction(null, "13/01/2020 00:00:00"));
+    }
+
     @Test
     public void testBadPattern() throws ProcessorException {
         DateParser parse = new DateParser();
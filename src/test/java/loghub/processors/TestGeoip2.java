@@ -2,10 +2,18 @@ package loghub.processors;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.util.Collections;
 import java.util.Map;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import loghub.Event;
 import loghub.ProcessorException;
@@ -14,6 +22,9 @@ import loghub.configuration.Properties;
 
 public class TestGeoip2 {
 
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
     @Test
     public void testProcess() throws ProcessorException {
         Properties props = new Properties(Collections.emptyMap());
@@ -38,4 +49,49 @@ public class TestGeoip2 {
         assertEquals("not enough elements", 7, geoinfos.size());
     }
 
+    private Map<?, ?> resolve(Properties props, String db, String ip) throws ProcessorException {
+        Geoip2 geoip = new Geoip2();
+        geoip.setField(new String[] {"ip"});
+        geoip.setDestination("geoip");
+        geoip.setTypes(new String[] {"country", "continent"});
+        geoip.setLocale("en");
+        geoip.setGeoipdb(db);
+        assertTrue(geoip.configure(props));
+        Event e = Tools.getEvent();
+        e.put("ip", ip);
+        geoip.process(e);
+        return (Map<?, ?>) e.get("geoip");
+    }
+
+    @Test
+    public void testSharedCache() throws ProcessorException {
+        Properties props = new Properties(Collections.emptyMap());
+        String db = getClass().getClassLoader().getResource("GeoLite2-Country.mmdb").getFile();
+        Map<?, ?> first = resolve(props, db, "8.8.8.8");
+        Map<?, ?> second = resolve(props, db, "8.8.8.8");
+        assertEquals("US", ((Map<?, ?>) first.get("country")).get("code"));
+        assertEquals("North America", first.get("continent"));
+        // The second processor used the cached informations
+        assertSame(first.get("country"), second.get("country"));
+        assertTrue(Geoip2.getHitRatio() > 0);
+        // Unknown addresses are cached too
+        assertNull(resolve(props, db, "127.0.0.1"));
+    }
+
+    @Test
+    public void testReplacedDatabase() throws ProcessorException, IOException {
+        Properties props = new Properties(Collections.emptyMap());
+        Path db = testFolder.newFile("GeoLite2-Country.mmdb").toPath();
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream("GeoLite2-Country.mmdb")) {
+            Files.copy(is, db, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Map<?, ?> first = resolve(props, db.toString(), "8.8.8.8");
+        assertSame(first.get("country"), resolve(props, db.toString(), "8.8.8.8").get("country"));
+        // A new file is read again
+        Files.setLastModifiedTime(db, FileTime.fromMillis(Files.getLastModifiedTime(db).toMillis() + 10000));
+        Map<?, ?> replaced = resolve(props, db.toString(), "8.8.8.8");
+        assertEquals(first, replaced);
+        assertNotSame(first.get("country"), replaced.get("country"));
+    }
+
 }
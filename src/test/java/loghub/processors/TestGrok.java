@@ -1,7 +1,12 @@
 package loghub.processors;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -14,6 +19,7 @@ import loghub.Event;
 import loghub.LogUtils;
 import loghub.ProcessorException;
 import loghub.Tools;
+import loghub.configuration.GrokPatterns;
 import loghub.configuration.Properties;
 
 public class TestGrok {
@@ -133,6 +139,116 @@ public class TestGrok {
         Assert.assertEquals("FAILED", grok.fieldFunction(e, "www.yahoo.com").toString());
     }
 
+    @Test
+    public void TestNoNamedCapture() throws ProcessorException {
+        for (String engine: new String[] {"java", "joni"}) {
+            Grok grok = new Grok();
+            grok.setFields(new String[]{"host"});
+            grok.setEngine(engine);
+            grok.setPattern("%{HOSTNAME}\\.google\\.com");
+            Assert.assertTrue("Failed to configure grok", grok.configure(new Properties(Collections.emptyMap())));
+            Event e = Tools.getEvent();
+            Assert.assertEquals(engine, "FAILED", grok.fieldFunction(e, "www.google.com").toString());
+            Assert.assertEquals(engine, "FAILED", grok.fieldFunction(e, "www.yahoo.com").toString());
+            // Uppercase names are not captured, but they are named
+            grok = new Grok();
+            grok.setFields(new String[]{"host"});
+            grok.setEngine(engine);
+            grok.setPattern("(?<HOST>www)\\.google\\.com");
+            Assert.assertTrue("Failed to configure grok", grok.configure(new Properties(Collections.emptyMap())));
+            Assert.assertEquals(engine, "NOSTORE", grok.fieldFunction(e, "www.google.com").toString());
+            Assert.assertEquals(engine, "FAILED", grok.fieldFunction(e, "www.yahoo.com").toString());
+            Assert.assertEquals(engine, 0, e.size());
+        }
+    }
+
+    @Test
+    public void TestSharedPatterns() throws ProcessorException {
+        Properties props = new Properties(Collections.emptyMap());
+        Assert.assertSame(props.grokPatterns, new Properties(Collections.emptyMap()).grokPatterns);
+
+        Grok grok1 = new Grok();
+        grok1.setField(new String[] {"message"});
+        grok1.setPattern("%{USERNAME:user} %{USERNAME:user} '%{DATA:quoted}' %{INT:count:int}");
+        Assert.assertTrue("Failed to configure grok", grok1.configure(props));
+
+        Grok grok2 = new Grok();
+        grok2.setField(new String[] {"message"});
+        grok2.setPattern("%{USERNAME:user} %{USERNAME:user} %{QS:quoted} %{INT:count}");
+        Assert.assertTrue("Failed to configure grok", grok2.configure(props));
+
+        for (Grok grok: new Grok[] {grok1, grok2}) {
+            Event e = Tools.getEvent();
+            e.put("message", "user1 user2 'some text' 1");
+            Assert.assertTrue(e.process(grok));
+            Assert.assertEquals(Arrays.asList("user1", "user2"), e.get("user"));
+            Assert.assertEquals("some text", e.get("quoted"));
+            Assert.assertEquals(grok == grok1 ? (Object) 1 : "1", e.get("count"));
+        }
+    }
+
+    private Event runEngine(String engine, String message, String... patterns) throws ProcessorException {
+        Grok grok = new Grok();
+        grok.setField(new String[] {"message"});
+        grok.setPatterns(patterns);
+        grok.setEngine(engine);
+        Assert.assertTrue("Failed to configure grok", grok.configure(new Properties(Collections.emptyMap())));
+        Event e = Tools.getEvent();
+        e.put("message", message);
+        Assert.assertTrue(e.process(grok));
+        return e;
+    }
+
+    @Test(timeout = 10000)
+    public void TestPatternsReleased() throws InterruptedException {
+        ClassLoader cl = new URLClassLoader(new URL[0], getClass().getClassLoader());
+        Assert.assertSame(GrokPatterns.get(cl), GrokPatterns.get(cl));
+        WeakReference<ClassLoader> ref = new WeakReference<>(cl);
+        cl = null;
+        while (ref.get() != null) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void TestJoniSameAsJava() throws ProcessorException {
+        String[][] samples = new String[][] {
+            {"%{COMBINEDAPACHELOG}", "112.169.19.192 - - [06/Mar/2013:01:36:30 +0900] \"GET / HTTP/1.1\" 200 44346 \"-\" \"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_8_2) AppleWebKit/537.22 (KHTML, like Gecko) Chrome/25.0.1364.152 Safari/537.22\""},
+            {"%{SYSLOG_LINE}", "<34>1 2016-01-25T12:28:00.164593+01:00 somehost krb5kdc 4906 - -  closing down fd 14"},
+            {"%{CISCOFW106023}", "Deny tcp src outside:192.168.1.10/41378 dst inside:10.0.0.1/443 by access-group \"outside_access_in\" [0x0, 0x0]"},
+            {"%{USERNAME:user} %{USERNAME:user} %{QS:quoted}", "user1 user2 \"some text\" été"},
+        };
+        for (String[] sample: samples) {
+            Event java = runEngine("java", sample[1], sample[0]);
+            Event joni = runEngine("joni", sample[1], sample[0]);
+            Assert.assertEquals(sample[0], new HashMap<>(java), new HashMap<>(joni));
+        }
+    }
+
+    @Test
+    public void TestJoniMultiPatterns() throws ProcessorException {
+        // java-grok can't use the same typed field in many alternatives
+        Event java = runEngine("java", "count=12 user", "%{INT:count} %{USERNAME:user}", "count=%{INT:count} %{USERNAME:user}");
+        Assert.assertEquals("12", java.get("count"));
+        Assert.assertEquals("user", java.get("user"));
+        Event joni = runEngine("joni", "count=12 user", "%{INT:count:int} %{USERNAME:user}", "count=%{INT:count:int} %{USERNAME:user}");
+        Assert.assertEquals(12, joni.get("count"));
+        Assert.assertEquals("user", joni.get("user"));
+    }
+
+    @Test
+    public void TestJoniBadPattern() throws ProcessorException {
+        Grok grok = new Grok();
+        grok.setPattern("%{NOTAPATTERN:field}");
+        grok.setEngine("joni");
+        Assert.assertFalse(grok.configure(new Properties(Collections.emptyMap())));
+        grok.setPattern("%{INT:field:notatype}");
+        Assert.assertFalse(grok.configure(new Properties(Collections.emptyMap())));
+        grok.setPattern("(");
+        Assert.assertFalse(grok.configure(new Properties(Collections.emptyMap())));
+    }
+
     @Test
     public void TestBadPattern() throws ProcessorException {
         Grok grok = new Grok();
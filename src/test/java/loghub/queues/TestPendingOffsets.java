@@ -0,0 +1,49 @@
+package loghub.queues;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPendingOffsets {
+
+    @Test
+    public void testOutOfOrder() {
+        PendingOffsets offsets = new PendingOffsets();
+        Assert.assertEquals(-1, offsets.toSave());
+        // More than the initial size, with a gap
+        for (long i = 0; i < 100; i++) {
+            long offset = i < 50 ? i : i + 10;
+            offsets.add(offset, offset + 1);
+        }
+        offsets.ack(1);
+        offsets.ack(2);
+        Assert.assertEquals(-1, offsets.toSave());
+        offsets.ack(0);
+        Assert.assertEquals(3, offsets.toSave());
+        Assert.assertEquals(-1, offsets.toSave());
+        for (long i = 3; i < 50; i++) {
+            offsets.ack(i);
+        }
+        offsets.ack(60);
+        Assert.assertEquals(61, offsets.toSave());
+        // Unknown offsets are ignored
+        offsets.ack(55);
+        Assert.assertEquals(61, offsets.getPosition());
+        Assert.assertEquals(49, offsets.pending());
+    }
+
+    @Test
+    public void testSizes() {
+        PendingOffsets offsets = new PendingOffsets();
+        offsets.add(0, 10);
+        offsets.add(10, 25);
+        offsets.add(25, 26);
+        offsets.ack(10);
+        Assert.assertEquals(-1, offsets.getPosition());
+        offsets.ack(0);
+        Assert.assertEquals(25, offsets.getPosition());
+        offsets.ack(25);
+        Assert.assertEquals(26, offsets.getPosition());
+        Assert.assertEquals(0, offsets.pending());
+    }
+
+}
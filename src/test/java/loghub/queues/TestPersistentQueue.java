@@ -0,0 +1,297 @@
+package loghub.queues;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+import loghub.Stats;
+import loghub.Tools;
+
+public class TestPersistentQueue {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+    }
+
+    private Event getEvent(int i) {
+        Event e = Event.emptyEvent(ConnectionContext.EMPTY);
+        e.setTimestamp(new Date(i * 1000L));
+        e.put("count", i);
+        e.put("message", "message " + i);
+        return e;
+    }
+
+    private PersistentQueue getQueue(Path directory, boolean writeAhead) throws IOException {
+        return getQueue(directory, writeAhead, 0);
+    }
+
+    private PersistentQueue getQueue(Path directory, boolean writeAhead, long checkpointInterval) throws IOException {
+        PersistentQueue.Builder builder = PersistentQueue.getBuilder();
+        builder.setDirectory(directory);
+        builder.setWriteAhead(writeAhead);
+        builder.setMemoryCapacity(2);
+        builder.setSegmentSize(256);
+        builder.setCheckpointInterval(checkpointInterval);
+        return builder.build();
+    }
+
+    private List<Integer> takeAll(PersistentQueue queue, boolean ack) throws InterruptedException {
+        List<Integer> found = new ArrayList<>();
+        Event e;
+        while ((e = queue.poll(100, TimeUnit.MILLISECONDS)) != null) {
+            found.add((Integer) e.get("count"));
+            if (ack) {
+                e.end();
+            }
+        }
+        return found;
+    }
+
+    private List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            values.add(i);
+        }
+        return values;
+    }
+
+    @Test(timeout = 10000)
+    public void testSerializer() throws IOException {
+        Event e = Event.emptyEvent(ConnectionContext.EMPTY);
+        e.setTimestamp(new Date(1000));
+        e.putMeta("meta", "value");
+        e.put("string", "été");
+        e.put("null", null);
+        e.put("int", 1);
+        e.put("long", 2L);
+        e.put("double", 1.5);
+        e.put("float", 2.5f);
+        e.put("boolean", true);
+        e.put("short", (short) 3);
+        e.put("byte", (byte) 4);
+        e.put("char", 'c');
+        e.put("bigint", new BigInteger("123456789012345678901234567890"));
+        e.put("bigdecimal", new BigDecimal("1234567890.0987654321"));
+        e.put("date", new Date(2000));
+        e.put("instant", Instant.ofEpochSecond(3, 4));
+        e.put("ip", InetAddress.getByName("192.168.0.1"));
+        e.put("map", Collections.singletonMap("a", Collections.singletonMap(1, "b")));
+        e.put("list", Arrays.asList(1, "2", null));
+        e.put("set", new HashSet<>(Arrays.asList(1, 2)));
+        e.put("uuid", java.util.UUID.randomUUID());
+        EventSerializer serializer = new EventSerializer();
+        EventSerializer.Buffer buffer = serializer.write(e);
+        Event copy = serializer.read(buffer.getBuffer(), 0, buffer.size(), ConnectionContext.EMPTY);
+        Assert.assertEquals(e.getTimestamp(), copy.getTimestamp());
+        Assert.assertEquals("value", copy.getMeta("meta"));
+        Assert.assertEquals(new HashMap<>(e), new HashMap<>(copy));
+        byte[] bytes = new byte[] {1, 2, 3};
+        Event withBytes = Event.emptyEvent(ConnectionContext.EMPTY);
+        withBytes.put("bytes", bytes);
+        buffer = serializer.write(withBytes);
+        Assert.assertArrayEquals(bytes, (byte[]) serializer.read(buffer.getBuffer(), 0, buffer.size(), ConnectionContext.EMPTY).get("bytes"));
+    }
+
+    @Test(timeout = 10000)
+    public void testOverflow() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        try (PersistentQueue queue = getQueue(directory, false)) {
+            for (int i = 0; i < 20; i++) {
+                queue.put(getEvent(i));
+            }
+            Assert.assertEquals(20, queue.size());
+            Assert.assertEquals(range(0, 20), takeAll(queue, true));
+            Assert.assertEquals(0, queue.size());
+            // More than one segment was used, the read ones are deleted
+            Assert.assertEquals(1, Files.list(directory).filter(p -> p.toString().endsWith(".segment")).count());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testReplay() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        try (PersistentQueue queue = getQueue(directory, true)) {
+            for (int i = 0; i < 20; i++) {
+                queue.put(getEvent(i));
+            }
+            // The first 5 are acknowledged, the 5 following only taken
+            for (int i = 0; i < 10; i++) {
+                Event e = queue.take();
+                Assert.assertEquals(i, e.get("count"));
+                Assert.assertEquals(new Date(i * 1000L), e.getTimestamp());
+                if (i < 5) {
+                    e.end();
+                }
+            }
+        }
+        try (PersistentQueue queue = getQueue(directory, true)) {
+            Assert.assertEquals(15, queue.size());
+            Assert.assertEquals(range(5, 20), takeAll(queue, false));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testClosedWithMemory() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        try (PersistentQueue queue = getQueue(directory, false)) {
+            queue.put(getEvent(0));
+            queue.put(getEvent(1));
+        }
+        try (PersistentQueue queue = getQueue(directory, false)) {
+            Assert.assertEquals(range(0, 2), takeAll(queue, true));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testTruncated() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        try (PersistentQueue queue = getQueue(directory, true)) {
+            for (int i = 0; i < 3; i++) {
+                queue.put(getEvent(i));
+            }
+        }
+        // Simulate a crash during a write
+        List<Path> segmentsFiles = Files.list(directory).filter(p -> p.toString().endsWith(".segment")).sorted().collect(Collectors.toList());
+        Path last = segmentsFiles.get(segmentsFiles.size() - 1);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        try (PersistentQueue queue = getQueue(directory, true)) {
+            Assert.assertEquals(range(0, 2), takeAll(queue, true));
+            queue.put(getEvent(3));
+            Assert.assertEquals(range(3, 4), takeAll(queue, true));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testMaxSize() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        PersistentQueue.Builder builder = PersistentQueue.getBuilder();
+        builder.setDirectory(directory);
+        builder.setWriteAhead(true);
+        builder.setMaxSize(10);
+        try (PersistentQueue queue = builder.build()) {
+            Assert.assertTrue(queue.offer(getEvent(0)));
+            Assert.assertFalse(queue.offer(getEvent(1)));
+            queue.take().end();
+            Assert.assertTrue(queue.offer(getEvent(1), 1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPeekIterator() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        try (PersistentQueue queue = getQueue(directory, false)) {
+            Assert.assertNull(queue.peek());
+            for (int i = 0; i < 20; i++) {
+                queue.put(getEvent(i));
+            }
+            Assert.assertEquals(0, queue.peek().get("count"));
+            List<Integer> found = new ArrayList<>();
+            queue.forEach(e -> found.add((Integer) e.get("count")));
+            Assert.assertEquals(range(0, 20), found);
+            Event last = getEvent(19);
+            Assert.assertTrue(queue.stream().anyMatch(e -> e.get("count").equals(last.get("count"))));
+            // Nothing consumed
+            Assert.assertEquals(20, queue.size());
+            queue.take().end();
+            queue.take().end();
+            // The head is now on disk
+            Assert.assertEquals(2, queue.peek().get("count"));
+            Assert.assertEquals(2, queue.element().get("count"));
+            Assert.assertEquals(range(2, 20), takeAll(queue, true));
+            Assert.assertFalse(queue.iterator().hasNext());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRemainingCapacity() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        PersistentQueue.Builder builder = PersistentQueue.getBuilder();
+        builder.setDirectory(directory);
+        builder.setWriteAhead(true);
+        builder.setMaxSize(1000);
+        try (PersistentQueue queue = builder.build()) {
+            Assert.assertTrue(queue.remainingCapacity() > 0);
+            while (queue.remainingCapacity() > 0) {
+                Assert.assertTrue(queue.offer(getEvent(0)));
+            }
+            Assert.assertFalse(queue.offer(getEvent(0)));
+        }
+        try (PersistentQueue queue = getQueue(testFolder.newFolder().toPath(), false)) {
+            Assert.assertEquals(Integer.MAX_VALUE, queue.remainingCapacity());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedWrite() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        try (PersistentQueue queue = getQueue(directory, true)) {
+            Event e = getEvent(0);
+            e.put("bad", new Object());
+            Assert.assertFalse(queue.offer(e));
+            Assert.assertEquals(0, queue.size());
+            long dropped = Stats.dropped.get();
+            queue.put(e);
+            Assert.assertEquals(dropped + 1, Stats.dropped.get());
+            Assert.assertEquals(0, queue.size());
+            queue.put(getEvent(1));
+            Assert.assertEquals(Collections.singletonList(1), takeAll(queue, true));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrent() throws IOException, InterruptedException {
+        Path directory = testFolder.newFolder().toPath();
+        int count = 10000;
+        try (PersistentQueue queue = getQueue(directory, false, 1000)) {
+            Map<Integer, Boolean> found = new HashMap<>();
+            Thread consumer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        Event e = queue.take();
+                        found.put((Integer) e.get("count"), true);
+                        e.end();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            consumer.start();
+            for (int i = 0; i < count; i++) {
+                queue.put(getEvent(i));
+            }
+            consumer.join();
+            Assert.assertEquals(count, found.size());
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package loghub.queues;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestShardedQueue {
+
+    @Test(timeout = 5000)
+    public void testNonBlocking() {
+        ShardedQueue<Integer> queue = new ShardedQueue<>(4, 8);
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+        Assert.assertFalse(queue.offer(8));
+        Assert.assertEquals(8, queue.size());
+        Assert.assertEquals(0, queue.remainingCapacity());
+        Set<Integer> found = new HashSet<>();
+        Integer i;
+        while ((i = queue.poll()) != null) {
+            found.add(i);
+        }
+        Assert.assertEquals(8, found.size());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void testSingleSlot() {
+        ShardedQueue<Integer> queue = new ShardedQueue<>(1, 1);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(queue.offer(i));
+            Assert.assertFalse(queue.offer(-1));
+            Assert.assertEquals(Integer.valueOf(i), queue.peek());
+            Assert.assertEquals(Integer.valueOf(i), queue.poll());
+            Assert.assertNull(queue.poll());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSteal() throws InterruptedException {
+        ShardedQueue<Integer> queue = new ShardedQueue<>(4, 40);
+        for (int i = 0; i < 40; i++) {
+            queue.put(i);
+        }
+        // A single consumer must find the elements in every rings
+        List<Integer> found = new ArrayList<>();
+        queue.drainTo(found);
+        Assert.assertEquals(40, found.size());
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000)
+    public void testBlocking() throws InterruptedException {
+        ShardedQueue<Integer> queue = new ShardedQueue<>(2, 2);
+        queue.put(1);
+        queue.put(2);
+        Assert.assertFalse(queue.offer(3, 20, TimeUnit.MILLISECONDS));
+        CountDownLatch putDone = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put(3);
+                putDone.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        Assert.assertFalse(putDone.await(50, TimeUnit.MILLISECONDS));
+        Assert.assertNotNull(queue.take());
+        Assert.assertTrue(putDone.await(1, TimeUnit.SECONDS));
+        Assert.assertNotNull(queue.take());
+        Assert.assertNotNull(queue.take());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrent() throws InterruptedException {
+        int workers = 8;
+        int count = 100000;
+        ShardedQueue<Integer> queue = new ShardedQueue<>(workers, 64);
+        Set<Integer> received = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(count);
+        List<Thread> consumers = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (true) {
+                        received.add(queue.take());
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            consumers.add(t);
+        }
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            int offset = p;
+            producers[p] = new Thread(() -> {
+                try {
+                    for (int i = offset; i < count; i += producers.length) {
+                        queue.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producers[p].start();
+        }
+        Assert.assertTrue(done.await(8, TimeUnit.SECONDS));
+        consumers.forEach(Thread::interrupt);
+        Assert.assertEquals(count, received.size());
+    }
+
+}
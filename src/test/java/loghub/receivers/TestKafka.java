@@ -0,0 +1,110 @@
+package loghub.receivers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import loghub.Event;
+import loghub.LogUtils;
+import loghub.Pipeline;
+import loghub.Tools;
+import loghub.configuration.Properties;
+import loghub.decoders.StringCodec;
+
+public class TestKafka {
+
+    private static Logger logger;
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+        LogUtils.setLevel(logger, Level.TRACE, "loghub.receivers.Kafka");
+    }
+
+    @Test(timeout = 10000)
+    public void testCommitOnAck() throws InterruptedException {
+        TopicPartition tp = new TopicPartition("test", 0);
+        MockConsumer<Long, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(Collections.singletonList(tp));
+            consumer.updateBeginningOffsets(Collections.singletonMap(tp, 0L));
+            for (long i = 0; i < 5; i++) {
+                consumer.addRecord(new ConsumerRecord<>("test", 0, i, i, Long.toString(i).getBytes(StandardCharsets.UTF_8)));
+            }
+        });
+        Kafka.Builder builder = Kafka.getBuilder();
+        builder.setTopic("test");
+        builder.setCommitOnAck(true);
+        builder.setDecoder(StringCodec.getBuilder().build());
+        Kafka receiver = new Kafka(builder) {
+            @Override
+            protected Consumer<Long, byte[]> getConsumer(java.util.Properties props) {
+                return consumer;
+            }
+        };
+        // Smaller than the records count, so the partition is paused
+        BlockingQueue<Event> queue = new ArrayBlockingQueue<>(2);
+        receiver.setOutQueue(queue);
+        receiver.setPipeline(new Pipeline(Collections.emptyList(), "testkafka", null));
+        Assert.assertTrue(receiver.configure(new Properties(Collections.emptyMap())));
+        receiver.start();
+        try {
+            while (! consumer.paused().contains(tp)) {
+                Thread.sleep(10);
+            }
+            List<Event> events = new ArrayList<>(5);
+            for (int i = 0; i < 5; i++) {
+                Event e = queue.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(e);
+                Assert.assertEquals(Integer.toString(i), e.get("message"));
+                events.add(e);
+            }
+            Assert.assertNull(queue.poll(100, TimeUnit.MILLISECONDS));
+            Assert.assertTrue(consumer.paused().isEmpty());
+            // Events 1 and 2 are done, but not 0
+            events.get(1).end();
+            events.get(2).end();
+            Thread.sleep(100);
+            Assert.assertNull(consumer.committed(tp));
+            events.get(0).end();
+            waitCommitted(consumer, tp, 3);
+            events.get(4).end();
+            events.get(3).end();
+            waitCommitted(consumer, tp, 5);
+        } finally {
+            receiver.stopReceiving();
+            receiver.join(5000);
+        }
+        Assert.assertTrue(consumer.closed());
+    }
+
+    private void waitCommitted(MockConsumer<Long, byte[]> consumer, TopicPartition tp, long expected) throws InterruptedException {
+        while (true) {
+            OffsetAndMetadata committed = consumer.committed(tp);
+            if (committed != null && committed.offset() == expected) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
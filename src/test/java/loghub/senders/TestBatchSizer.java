@@ -0,0 +1,50 @@
+package loghub.senders;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBatchSizer {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    @Test
+    public void testIncrease() {
+        BatchSizer sizer = new BatchSizer(10, 10, 330, 1000);
+        Assert.assertEquals(10, sizer.getSize());
+        sizer.flushed(10, true, FAST, false, 100);
+        Assert.assertEquals(20, sizer.getSize());
+        // No backlog, no need to grow
+        sizer.flushed(20, true, FAST, false, 0);
+        Assert.assertEquals(20, sizer.getSize());
+        for (int i = 0; i < 100; i++) {
+            sizer.flushed(sizer.getSize(), true, FAST, false, 1000);
+        }
+        Assert.assertEquals(330, sizer.getSize());
+    }
+
+    @Test
+    public void testDecrease() {
+        BatchSizer sizer = new BatchSizer(100, 10, 1000, 1000);
+        sizer.flushed(100, true, SLOW, false, 1000);
+        Assert.assertEquals(50, sizer.getSize());
+        sizer.flushed(50, true, FAST, true, 1000);
+        Assert.assertEquals(25, sizer.getSize());
+        sizer.flushed(25, true, FAST, true, 1000);
+        sizer.flushed(12, true, FAST, true, 1000);
+        Assert.assertEquals(10, sizer.getSize());
+    }
+
+    @Test
+    public void testLowTraffic() {
+        BatchSizer sizer = new BatchSizer(100, 1, 1000, 1000);
+        // Flushed by the timer
+        sizer.flushed(10, false, FAST, false, 0);
+        Assert.assertEquals(55, sizer.getSize());
+        sizer.flushed(10, false, FAST, false, 0);
+        Assert.assertEquals(32, sizer.getSize());
+    }
+
+}
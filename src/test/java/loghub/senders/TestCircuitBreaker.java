@@ -0,0 +1,205 @@
+package loghub.senders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import loghub.BuilderClass;
+import loghub.Event;
+import loghub.Stats;
+import loghub.Tools;
+import loghub.configuration.Properties;
+
+public class TestCircuitBreaker {
+
+    private static Logger logger;
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+    }
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @BuilderClass(FailingSender.Builder.class)
+    public static class FailingSender extends Sender {
+        public static class Builder extends Sender.Builder<FailingSender> {
+            @Override
+            public FailingSender build() {
+                return new FailingSender(this);
+            }
+        }
+        private volatile boolean healthy = false;
+        private final List<Event> received = Collections.synchronizedList(new ArrayList<>());
+        private volatile int tried = 0;
+        public FailingSender(Builder builder) {
+            super(builder);
+        }
+        @Override
+        protected boolean send(Event e) {
+            tried++;
+            if (healthy) {
+                received.add(e);
+            }
+            return healthy;
+        }
+        @Override
+        public String getSenderName() {
+            return "FailingSender";
+        }
+    }
+
+    @Test
+    public void testStates() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(4, 0.5, 0, 50, logger);
+        breaker.record(true, -1);
+        breaker.record(false, -1);
+        breaker.record(false, -1);
+        // The window is not full
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getBreakerState());
+        breaker.record(true, -1);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getBreakerState());
+        Assert.assertFalse(breaker.allow());
+        Assert.assertEquals(1, breaker.getOpenings());
+        Thread.sleep(60);
+        Assert.assertTrue(breaker.allow());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getBreakerState());
+        breaker.record(false, -1);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getBreakerState());
+        Assert.assertEquals(2, breaker.getOpenings());
+        breaker.await();
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getBreakerState());
+        breaker.record(true, -1);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getBreakerState());
+        Assert.assertEquals(0, breaker.getFailureRate(), 1e-6);
+    }
+
+    @Test
+    public void testSingleProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0.5, 0, 50, logger);
+        breaker.record(false, -1);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getBreakerState());
+        Thread.sleep(60);
+        Assert.assertTrue(breaker.canSend());
+        Assert.assertTrue(breaker.allow());
+        // Only one probe until its result is known
+        Assert.assertFalse(breaker.canSend());
+        Assert.assertFalse(breaker.allow());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getBreakerState());
+        breaker.record(true, -1);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getBreakerState());
+        Assert.assertTrue(breaker.allow());
+        Assert.assertTrue(breaker.allow());
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 0.5, 0, 1000, logger);
+        breaker.record(false, -1);
+        for (int i = 0; i < 10; i++) {
+            breaker.record(true, -1);
+        }
+        // The old failure is out of the window
+        Assert.assertEquals(0, breaker.getFailureRate(), 1e-6);
+        breaker.record(false, -1);
+        Assert.assertEquals(0.25, breaker.getFailureRate(), 1e-6);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getBreakerState());
+    }
+
+    @Test
+    public void testLatency() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 0.5, 100, 1000, logger);
+        breaker.record(true, TimeUnit.MILLISECONDS.toNanos(10));
+        breaker.record(true, TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getBreakerState());
+    }
+
+    @Test
+    public void testBadPolicy() {
+        FailingSender.Builder builder = new FailingSender.Builder();
+        builder.setCircuitBreaker(true);
+        builder.setBreakerPolicy("retry");
+        builder.setEncoder(loghub.encoders.ToJson.getBuilder().build());
+        FailingSender sender = builder.build();
+        Assert.assertFalse(sender.configure(new Properties(Collections.emptyMap())));
+    }
+
+    private FailingSender getSender(BlockingQueue<Event> queue, String policy) throws IOException {
+        FailingSender.Builder builder = new FailingSender.Builder();
+        builder.setCircuitBreaker(true);
+        builder.setBreakerWindow(4);
+        builder.setBreakerOpenTime(1);
+        builder.setBreakerPolicy(policy);
+        builder.setSpillDirectory(testFolder.newFolder().getAbsolutePath());
+        builder.setEncoder(loghub.encoders.ToJson.getBuilder().build());
+        FailingSender sender = builder.build();
+        sender.setInQueue(queue);
+        Assert.assertTrue(sender.configure(new Properties(Collections.emptyMap())));
+        return sender;
+    }
+
+    @Test(timeout = 10000)
+    public void testDrop() throws IOException, InterruptedException {
+        Stats.reset();
+        BlockingQueue<Event> queue = new ArrayBlockingQueue<>(100);
+        FailingSender sender = getSender(queue, "drop");
+        sender.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                queue.put(Tools.getEvent());
+            }
+            while (! queue.isEmpty()) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+        } finally {
+            sender.stopSending();
+        }
+        // Only the window was tried
+        Assert.assertEquals(4, sender.tried);
+        Assert.assertEquals(16, Stats.dropped.intValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testSpill() throws IOException, InterruptedException {
+        BlockingQueue<Event> queue = new ArrayBlockingQueue<>(100);
+        FailingSender sender = getSender(queue, "spill");
+        sender.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                Event ev = Tools.getEvent();
+                ev.put("value", i);
+                queue.put(ev);
+            }
+            while (! queue.isEmpty()) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(4, sender.tried);
+            sender.healthy = true;
+            // Sent when the breaker is half-open
+            while (sender.received.size() < 16) {
+                Thread.sleep(10);
+            }
+        } finally {
+            sender.stopSending();
+        }
+        // The spilled events are sent in order
+        Assert.assertEquals(4, sender.received.get(0).get("value"));
+        Assert.assertEquals(19, sender.received.get(15).get("value"));
+    }
+
+}
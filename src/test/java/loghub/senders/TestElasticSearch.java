@@ -5,28 +5,50 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.config.Configurator;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.ClassRule;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.junit.rules.ExternalResource;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import loghub.BeanChecks;
 import loghub.BeanChecks.BeanInfo;
 import loghub.Event;
+import loghub.HttpTestServer;
 import loghub.LogUtils;
 import loghub.Stats;
 import loghub.Tools;
 import loghub.configuration.ConfigurationTools;
 import loghub.configuration.Properties;
+import loghub.netty.http.ContentType;
+import loghub.netty.http.HttpRequestFailure;
+import loghub.netty.http.HttpRequestProcessing;
+import loghub.netty.http.RequestAccept;
+import loghub.senders.Sender.EventFuture;
 
 public class TestElasticSearch {
 
@@ -157,6 +179,193 @@ public class TestElasticSearch {
         Assert.assertEquals(0, Properties.metrics.counter("Allevents.inflight").getCount());
     }
 
+    @ContentType("application/json")
+    @RequestAccept(filter = "^/(_bulk)?$", methods = {"GET", "POST"})
+    private static class FakeElasticSearch extends HttpRequestProcessing {
+        private final AtomicInteger bulks = new AtomicInteger();
+        private final AtomicInteger documents = new AtomicInteger();
+        // The count of bulks where the first document is rejected and the second one is invalid
+        private final AtomicInteger rejections = new AtomicInteger();
+        // The count of bulks rejected as a whole
+        private final AtomicInteger throttled = new AtomicInteger();
+        @Override
+        protected void processRequest(FullHttpRequest request, ChannelHandlerContext ctx) throws HttpRequestFailure {
+            String body;
+            if (HttpMethod.GET.equals(request.method())) {
+                body = "{\"version\": {\"number\": \"7.6.0\"}}";
+            } else {
+                bulks.incrementAndGet();
+                // An action line and a source line for each document
+                int received = request.content().toString(StandardCharsets.UTF_8).split("\n").length / 2;
+                documents.addAndGet(received);
+                if (throttled.getAndDecrement() > 0) {
+                    throw new HttpRequestFailure(HttpResponseStatus.TOO_MANY_REQUESTS, "Too many requests");
+                } else if (rejections.getAndDecrement() > 0) {
+                    StringBuilder items = new StringBuilder();
+                    items.append("{\"index\": {\"status\": 429, \"error\": {\"type\": \"es_rejected_execution_exception\", \"reason\": \"queue full\"}}}");
+                    items.append(", {\"index\": {\"status\": 400, \"error\": {\"type\": \"mapper_parsing_exception\", \"reason\": \"failed to parse\"}}}");
+                    for (int i = 2; i < received; i++) {
+                        items.append(", {\"index\": {\"status\": 201, \"result\": \"created\"}}");
+                    }
+                    body = "{\"took\": 1, \"errors\": true, \"items\": [" + items + "]}";
+                } else {
+                    body = "{\"errors\": false, \"items\": []}";
+                }
+            }
+            ByteBuf content = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+            writeResponse(ctx, request, content, content.readableBytes());
+        }
+    }
+
+    private static final FakeElasticSearch fakeElasticSearch = new FakeElasticSearch();
+    private static final int serverPort = Tools.tryGetPort();
+
+    @ClassRule
+    public static ExternalResource resource = new HttpTestServer(null, serverPort, fakeElasticSearch);
+
+    @Before
+    public void resetServer() {
+        fakeElasticSearch.bulks.set(0);
+        fakeElasticSearch.documents.set(0);
+        fakeElasticSearch.rejections.set(0);
+        fakeElasticSearch.throttled.set(0);
+    }
+
+    @Test(timeout = 10000)
+    public void testNettyTransport() throws InterruptedException {
+        Stats.reset();
+        int count = 40;
+        ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(count);
+        ElasticSearch.Builder esbuilder = new ElasticSearch.Builder();
+        esbuilder.setDestinations(new String[]{"http://localhost:" + serverPort});
+        esbuilder.setTransport("netty");
+        esbuilder.setConnections(1);
+        esbuilder.setInFlight(4);
+        esbuilder.setWorkers(4);
+        esbuilder.setBatchSize(5);
+        esbuilder.setTemplateName(null);
+        ElasticSearch es = esbuilder.build();
+        es.setInQueue(queue);
+        Assert.assertTrue("Elastic configuration failed", es.configure(new Properties(Collections.emptyMap())));
+        es.start();
+        try {
+            for (int i = 0 ; i < count ; i++) {
+                Event ev = Tools.getEvent();
+                ev.put("type", "junit");
+                ev.put("value", "atest" + i);
+                ev.setTimestamp(new Date(0));
+                queue.put(ev);
+            }
+            while (Stats.sent.intValue() < count) {
+                Thread.sleep(10);
+            }
+        } finally {
+            es.stopSending();
+        }
+        Assert.assertEquals(count, fakeElasticSearch.documents.get());
+        Assert.assertEquals(count / 5, fakeElasticSearch.bulks.get());
+        Assert.assertEquals(0, Stats.failedSend.intValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testRetry() throws InterruptedException {
+        Stats.reset();
+        int count = 5;
+        fakeElasticSearch.rejections.set(1);
+        ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(count);
+        ElasticSearch.Builder esbuilder = new ElasticSearch.Builder();
+        esbuilder.setDestinations(new String[]{"http://localhost:" + serverPort});
+        esbuilder.setWorkers(1);
+        esbuilder.setBatchSize(count);
+        esbuilder.setRetryBackoff(10);
+        esbuilder.setTemplateName(null);
+        ElasticSearch es = esbuilder.build();
+        es.setInQueue(queue);
+        Assert.assertTrue("Elastic configuration failed", es.configure(new Properties(Collections.emptyMap())));
+        es.start();
+        try {
+            for (int i = 0 ; i < count ; i++) {
+                Event ev = Tools.getEvent();
+                ev.put("type", "junit");
+                ev.put("value", "atest" + i);
+                ev.setTimestamp(new Date(0));
+                queue.put(ev);
+            }
+            while (Stats.sent.intValue() + Stats.failedSend.intValue() < count) {
+                Thread.sleep(10);
+            }
+        } finally {
+            es.stopSending();
+        }
+        // Only the rejected document is sent again
+        Assert.assertEquals(2, fakeElasticSearch.bulks.get());
+        Assert.assertEquals(count + 1, fakeElasticSearch.documents.get());
+        Assert.assertEquals(count - 1, Stats.sent.intValue());
+        Assert.assertEquals(1, Stats.failedSend.intValue());
+        Assert.assertEquals("mapper_parsing_exception failed to parse, caused by null null", Stats.getSenderError().iterator().next());
+    }
+
+    @Test(timeout = 10000)
+    public void testThrottled() throws InterruptedException {
+        Stats.reset();
+        int count = 5;
+        fakeElasticSearch.throttled.set(1);
+        ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(count);
+        ElasticSearch.Builder esbuilder = new ElasticSearch.Builder();
+        esbuilder.setDestinations(new String[]{"http://localhost:" + serverPort});
+        esbuilder.setWorkers(1);
+        esbuilder.setBatchSize(count);
+        esbuilder.setRetryBackoff(10);
+        esbuilder.setTemplateName(null);
+        ElasticSearch es = esbuilder.build();
+        es.setInQueue(queue);
+        Assert.assertTrue("Elastic configuration failed", es.configure(new Properties(Collections.emptyMap())));
+        es.start();
+        try {
+            for (int i = 0 ; i < count ; i++) {
+                Event ev = Tools.getEvent();
+                ev.put("type", "junit");
+                ev.put("value", "atest" + i);
+                ev.setTimestamp(new Date(0));
+                queue.put(ev);
+            }
+            while (Stats.sent.intValue() + Stats.failedSend.intValue() < count) {
+                Thread.sleep(10);
+            }
+        } finally {
+            es.stopSending();
+        }
+        // The whole bulk is sent again
+        Assert.assertEquals(2, fakeElasticSearch.bulks.get());
+        Assert.assertEquals(count * 2, fakeElasticSearch.documents.get());
+        Assert.assertEquals(count, Stats.sent.intValue());
+        Assert.assertEquals(0, Stats.failedSend.intValue());
+    }
+
+    @Test
+    public void testBulkResponse() throws IOException {
+        String body = "{\"took\": 30, \"errors\": true, \"items\": ["
+                        + "{\"index\": {\"_index\": \"test\", \"_shards\": {\"total\": 2}, \"status\": 201}},"
+                        + "{\"index\": {\"_index\": \"test\", \"status\": 503, \"error\": {\"type\": \"unavailable_shards_exception\", \"reason\": \"primary shard is not active\"}}},"
+                        + "{\"index\": {\"_index\": \"test\", \"status\": 400, \"error\": {\"type\": \"mapper_parsing_exception\", \"reason\": \"failed to parse\", \"caused_by\": {\"type\": \"illegal_argument_exception\", \"reason\": \"bad value\", \"caused_by\": {\"type\": \"deeper\"}}}}}"
+                        + "]}";
+        ElasticSearch.BulkResponse response = ElasticSearch.BulkResponse.parse(new ObjectMapper().getFactory().createParser(body));
+        Assert.assertTrue(response.isErrors());
+        Assert.assertEquals(3, response.size());
+        Assert.assertNull(response.getFailure(0));
+        Assert.assertEquals(201, response.getStatus(0));
+        Assert.assertFalse(response.isRetryable(0));
+        Assert.assertEquals("unavailable_shards_exception primary shard is not active, caused by null null", response.getFailure(1));
+        Assert.assertTrue(response.isRetryable(1));
+        Assert.assertEquals("mapper_parsing_exception failed to parse, caused by illegal_argument_exception bad value", response.getFailure(2));
+        Assert.assertFalse(response.isRetryable(2));
+
+        // Without errors, the items are skipped
+        response = ElasticSearch.BulkResponse.parse(new ObjectMapper().getFactory().createParser("{\"took\": 30, \"errors\": false, \"items\": [{\"index\": {\"status\": 201}}]}"));
+        Assert.assertFalse(response.isErrors());
+        Assert.assertEquals(0, response.size());
+    }
+
     @Test
     public void testParse() throws MalformedURLException, URISyntaxException {
         String[] destinations  = new String[] {"//localhost", "//truc:9301", "truc", "truc:9300"};
@@ -217,12 +426,76 @@ public class TestElasticSearch {
         logger.debug("Events failed: {}", () -> Stats.getSenderError());
     }
 
+    @Test
+    public void testPutContent() throws IOException {
+        ElasticSearch.Builder esbuilder = new ElasticSearch.Builder();
+        esbuilder.setDestinations(new String[]{"http://localhost:9200", });
+        esbuilder.setIndexformat("'testputcontent-'yyyy.MM.dd");
+        ElasticSearch es = esbuilder.build();
+        List<EventFuture> batch = new ArrayList<>();
+        Event ev1 = Tools.getEvent();
+        ev1.put("type", "junit");
+        ev1.put("value", "atest\u00e9");
+        ev1.put("@timestamp", "ignored");
+        ev1.setTimestamp(new Date(1500L));
+        batch.add(new EventFuture(ev1));
+        // No type
+        Event ev2 = Tools.getEvent();
+        ev2.setTimestamp(new Date(0));
+        batch.add(new EventFuture(ev2));
+        // Can't be serialized
+        Event ev3 = Tools.getEvent();
+        ev3.put("type", "junit");
+        ev3.put("value", new Object());
+        batch.add(new EventFuture(ev3));
+        Event ev4 = Tools.getEvent();
+        ev4.put("type", "junit");
+        ev4.put("value", Collections.singletonMap("a", 1));
+        ev4.setTimestamp(new Date(86400000L + 1));
+        batch.add(new EventFuture(ev4));
+
+        ElasticSearch.BulkBuffer buffer = new ElasticSearch.BulkBuffer(16);
+        List<EventFuture> tosend = new ArrayList<>();
+        Assert.assertEquals(2, es.putContent(batch, tosend, buffer));
+        Assert.assertEquals(2, tosend.size());
+        Assert.assertTrue(batch.get(1).isCompletedExceptionally());
+        Assert.assertTrue(batch.get(2).isCompletedExceptionally());
+
+        String content = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(content.contains("\\u00E9"));
+        String[] lines = content.split("\n");
+        Assert.assertEquals(4, lines.length);
+        ObjectMapper mapper = new ObjectMapper();
+        Map<?, ?> action = mapper.readValue(lines[0], Map.class);
+        Assert.assertEquals("testputcontent-1970.01.01", ((Map<?, ?>) action.get("index")).get("_index"));
+        Assert.assertEquals("junit", ((Map<?, ?>) action.get("index")).get("_type"));
+        Map<?, ?> source = mapper.readValue(lines[1], Map.class);
+        Assert.assertEquals(2, source.size());
+        Assert.assertEquals("atest\u00e9", source.get("value"));
+        Assert.assertEquals("1970-01-01T00:00:01.500+0000", source.get("@timestamp"));
+        action = mapper.readValue(lines[2], Map.class);
+        Assert.assertEquals("testputcontent-1970.01.02", ((Map<?, ?>) action.get("index")).get("_index"));
+        source = mapper.readValue(lines[3], Map.class);
+        Assert.assertEquals(Collections.singletonMap("a", 1), source.get("value"));
+        Assert.assertEquals("1970-01-02T00:00:00.001+0000", source.get("@timestamp"));
+    }
+
     @Test
     public void testBeans() throws ClassNotFoundException, IntrospectionException {
         BeanChecks.beansCheck(logger, "loghub.senders.ElasticSearch"
                               , BeanInfo.build("workers", Integer.TYPE)
                               , BeanInfo.build("batchSize", Integer.TYPE)
                               , BeanInfo.build("flushInterval", Integer.TYPE)
+                              , BeanInfo.build("adaptiveBatch", Boolean.TYPE)
+                              , BeanInfo.build("minBatchSize", Integer.TYPE)
+                              , BeanInfo.build("maxBatchSize", Integer.TYPE)
+                              , BeanInfo.build("circuitBreaker", Boolean.TYPE)
+                              , BeanInfo.build("breakerWindow", Integer.TYPE)
+                              , BeanInfo.build("breakerFailureRate", Double.TYPE)
+                              , BeanInfo.build("breakerLatency", Integer.TYPE)
+                              , BeanInfo.build("breakerOpenTime", Integer.TYPE)
+                              , BeanInfo.build("breakerPolicy", String.class)
+                              , BeanInfo.build("spillDirectory", String.class)
                               , BeanInfo.build("destinations", BeanChecks.LSTRING)
                               , BeanInfo.build("indexX", String.class)
                               , BeanInfo.build("timeout", Integer.TYPE)
@@ -232,6 +505,14 @@ public class TestElasticSearch {
                               , BeanInfo.build("templatePath", String.class)
                               , BeanInfo.build("login", String.class)
                               , BeanInfo.build("password", String.class)
+                              , BeanInfo.build("transport", String.class)
+                              , BeanInfo.build("connections", Integer.TYPE)
+                              , BeanInfo.build("inFlight", Integer.TYPE)
+                              , BeanInfo.build("ioThreads", Integer.TYPE)
+                              , BeanInfo.build("maxFailures", Integer.TYPE)
+                              , BeanInfo.build("ejectionTime", Integer.TYPE)
+                              , BeanInfo.build("maxRetries", Integer.TYPE)
+                              , BeanInfo.build("retryBackoff", Integer.TYPE)
                         );
     }
 
@@ -0,0 +1,108 @@
+package loghub.senders;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import loghub.Tools;
+
+public class TestEndpointBalancer {
+
+    private static Logger logger;
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+    }
+
+    // A manual clock, in ns
+    private final AtomicLong now = new AtomicLong(0);
+
+    private void advance(long ms) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    private EndpointBalancer getBalancer(int count, long ejectionTime) throws MalformedURLException {
+        URL[] urls = new URL[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = new URL("http://node" + i + ":9200");
+        }
+        return new EndpointBalancer(urls, 2, 0.5, ejectionTime, logger, now::get);
+    }
+
+    private EndpointBalancer.Endpoint endpoint(EndpointBalancer balancer, int i) throws MalformedURLException {
+        return balancer.find(new URL("http://node" + i + ":9200/_bulk"));
+    }
+
+    private void request(EndpointBalancer balancer, EndpointBalancer.Endpoint e, long latency, boolean success) {
+        long start = balancer.start(e);
+        balancer.done(e, start - TimeUnit.MILLISECONDS.toNanos(latency), success);
+    }
+
+    @Test
+    public void testSlowEndpoint() throws MalformedURLException {
+        EndpointBalancer balancer = getBalancer(3, 1000);
+        request(balancer, endpoint(balancer, 0), 1, true);
+        request(balancer, endpoint(balancer, 1), 2, true);
+        request(balancer, endpoint(balancer, 2), 100, true);
+        for (int i = 0; i < 100; i++) {
+            List<EndpointBalancer.Endpoint> order = balancer.order();
+            Assert.assertEquals(3, order.size());
+            // Never the best of two
+            Assert.assertNotSame(endpoint(balancer, 2), order.get(0));
+            Assert.assertSame(endpoint(balancer, 2), order.get(2));
+        }
+    }
+
+    @Test
+    public void testOutstanding() throws MalformedURLException {
+        EndpointBalancer balancer = getBalancer(2, 1000);
+        EndpointBalancer.Endpoint busy = endpoint(balancer, 0);
+        request(balancer, busy, 1, true);
+        request(balancer, endpoint(balancer, 1), 1, true);
+        for (int i = 0; i < 5; i++) {
+            balancer.start(busy);
+        }
+        Assert.assertEquals(5, busy.getOutstanding());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertSame(endpoint(balancer, 1), balancer.order().get(0));
+        }
+    }
+
+    @Test
+    public void testEjection() throws MalformedURLException {
+        EndpointBalancer balancer = getBalancer(2, 50);
+        EndpointBalancer.Endpoint failing = endpoint(balancer, 0);
+        request(balancer, failing, 1, false);
+        Assert.assertFalse(failing.isEjected(now.get()));
+        request(balancer, failing, 1, false);
+        Assert.assertTrue(failing.isEjected(now.get()));
+        Assert.assertSame(failing, balancer.order().get(1));
+        advance(49);
+        Assert.assertTrue(failing.isEjected(now.get()));
+        advance(1);
+        Assert.assertFalse(failing.isEjected(now.get()));
+        // Ejected again with the first failure, for a longer time
+        request(balancer, failing, 1, false);
+        Assert.assertTrue(failing.isEjected(now.get()));
+        advance(99);
+        Assert.assertTrue(failing.isEjected(now.get()));
+        advance(1);
+        Assert.assertFalse(failing.isEjected(now.get()));
+        // A success resets the failures
+        request(balancer, failing, 1, true);
+        request(balancer, failing, 1, false);
+        Assert.assertFalse(failing.isEjected(now.get()));
+    }
+
+}
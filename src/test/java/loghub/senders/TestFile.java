@@ -1,7 +1,11 @@
 package loghub.senders;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -19,7 +23,9 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import loghub.ConnectionContext;
+import loghub.Decompressor;
 import loghub.Event;
+import loghub.FilterException;
 import loghub.LogUtils;
 import loghub.Stats;
 import loghub.Tools;
@@ -135,6 +141,123 @@ public class TestFile {
         Assert.assertEquals(2L, Stats.sent.get());
     }
 
+    private void sendBatch(Consumer<File.Builder> prepare, int count) throws IOException, InterruptedException {
+        StringField.Builder builder1 = StringField.getBuilder();
+        builder1.setFormat("${message%s}");
+        File.Builder fb = File.getBuilder();
+        fb.setEncoder(builder1.build());
+        fb.setSeparator("\n");
+        fb.setBatchSize(1);
+        fb.setWorkers(1);
+        prepare.accept(fb);
+        File fsend = fb.build();
+        fsend.setInQueue(queue);
+        Assert.assertTrue(fsend.configure(new Properties(Collections.emptyMap())));
+        fsend.start();
+        try {
+            for (int i = 0; i < count; i++) {
+                Event ev = Tools.getEvent();
+                ev.put("message", "message" + i);
+                queue.put(ev);
+            }
+            while (Stats.sent.get() < count) {
+                Thread.sleep(10);
+            }
+        } finally {
+            fsend.stopSending();
+        }
+    }
+
+    @Test(timeout=5000)
+    public void testRotateCompress() throws IOException, InterruptedException, FilterException {
+        String root = folder.getRoot().getCanonicalPath();
+        sendBatch(i -> {
+            i.setFileName(root + "/archive-${seq}.log");
+            // One event per file
+            i.setRotateSize(10);
+            i.setCompressFormat("gz");
+            i.setSyncCount(2);
+        }, 4);
+        Decompressor decompressor = Decompressor.getBuilder().build();
+        for (int i = 0; i < 3; i++) {
+            Path rotated = Paths.get(root, "archive-" + i + ".log.gz");
+            Assert.assertFalse(Files.exists(Paths.get(root, "archive-" + i + ".log")));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            // The format detection needs mark
+            decompressor.filter(new BufferedInputStream(Files.newInputStream(rotated)), content);
+            Assert.assertEquals("message" + i + "\n", new String(content.toByteArray(), StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals("message3\n", new String(Files.readAllBytes(Paths.get(root, "archive-3.log")), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout=5000)
+    public void testRotateSameName() throws IOException, InterruptedException {
+        String root = folder.getRoot().getCanonicalPath();
+        sendBatch(i -> {
+            i.setFileName(root + "/plain.log");
+            i.setRotateSize(20);
+        }, 5);
+        Assert.assertEquals("message0\nmessage1\n", new String(Files.readAllBytes(Paths.get(root, "plain.log.0")), StandardCharsets.UTF_8));
+        Assert.assertEquals("message2\nmessage3\n", new String(Files.readAllBytes(Paths.get(root, "plain.log.1")), StandardCharsets.UTF_8));
+        Assert.assertEquals("message4\n", new String(Files.readAllBytes(Paths.get(root, "plain.log")), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout=5000)
+    public void testRotateRestart() throws IOException, InterruptedException {
+        String root = folder.getRoot().getCanonicalPath();
+        Consumer<File.Builder> prepare = i -> {
+            i.setFileName(root + "/plain.log");
+            i.setRotateSize(20);
+        };
+        sendBatch(prepare, 5);
+        Stats.reset();
+        // The numbers of the previous run are not reused
+        sendBatch(prepare, 5);
+        Assert.assertEquals("message0\nmessage1\n", new String(Files.readAllBytes(Paths.get(root, "plain.log.0")), StandardCharsets.UTF_8));
+        Assert.assertEquals("message2\nmessage3\n", new String(Files.readAllBytes(Paths.get(root, "plain.log.1")), StandardCharsets.UTF_8));
+        Assert.assertEquals("message4\nmessage0\n", new String(Files.readAllBytes(Paths.get(root, "plain.log.2")), StandardCharsets.UTF_8));
+        Assert.assertEquals("message1\nmessage2\n", new String(Files.readAllBytes(Paths.get(root, "plain.log.3")), StandardCharsets.UTF_8));
+        Assert.assertEquals("message3\nmessage4\n", new String(Files.readAllBytes(Paths.get(root, "plain.log")), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout=5000)
+    public void testRotateCompressRestart() throws IOException, InterruptedException, FilterException {
+        String root = folder.getRoot().getCanonicalPath();
+        Consumer<File.Builder> prepare = i -> {
+            i.setFileName(root + "/archive-${seq}.log");
+            i.setRotateSize(10);
+            i.setCompressFormat("gz");
+        };
+        sendBatch(prepare, 4);
+        Stats.reset();
+        sendBatch(prepare, 4);
+        Decompressor decompressor = Decompressor.getBuilder().build();
+        for (int i = 0; i < 7; i++) {
+            if (i == 3) {
+                continue;
+            }
+            Path rotated = Paths.get(root, "archive-" + i + ".log.gz");
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            decompressor.filter(new BufferedInputStream(Files.newInputStream(rotated)), content);
+            Assert.assertEquals("message" + (i % 4) + "\n", new String(content.toByteArray(), StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals("message3\n", new String(Files.readAllBytes(Paths.get(root, "archive-3.log")), StandardCharsets.UTF_8));
+        Assert.assertEquals("message3\n", new String(Files.readAllBytes(Paths.get(root, "archive-7.log")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRotateNeedsBatch() throws IOException {
+        File.Builder fb = File.getBuilder();
+        fb.setFileName(Paths.get(folder.getRoot().getCanonicalPath(), "file1").toString());
+        StringField.Builder builder1 = StringField.getBuilder();
+        builder1.setFormat("${message%s}");
+        fb.setEncoder(builder1.build());
+        fb.setRotateSize(10);
+        File fsend = fb.build();
+        fsend.setInQueue(queue);
+        Assert.assertFalse(fsend.configure(new Properties(Collections.emptyMap())));
+    }
+
     @Test
     public void testBrokenFormatter() throws InterruptedException, IOException {
         outFile = Paths.get(folder.getRoot().getCanonicalPath(), "file1").toAbsolutePath().toString();
@@ -0,0 +1,148 @@
+package loghub.senders;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import loghub.ConnectionContext;
+import loghub.Event;
+import loghub.LogUtils;
+import loghub.Tools;
+import loghub.configuration.Properties;
+import loghub.encoders.ToJson;
+
+public class TestKafka {
+
+    private static Logger logger;
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+        LogUtils.setLevel(logger, Level.TRACE, "loghub.senders.Kafka");
+    }
+
+    private final AtomicInteger acknowledged = new AtomicInteger();
+
+    private final ConnectionContext<Object> ctx = new ConnectionContext<Object>() {
+        @Override
+        public void acknowledge() {
+            acknowledged.incrementAndGet();
+        }
+        @Override
+        public Object getLocalAddress() {
+            return null;
+        }
+        @Override
+        public Object getRemoteAddress() {
+            return null;
+        }
+    };
+
+    private Event getEvent(int i) {
+        Event e = Event.emptyEvent(ctx);
+        e.setTimestamp(new Date(i * 1000L));
+        e.put("host", "host" + i);
+        e.put("message", "message " + i);
+        return e;
+    }
+
+    private Kafka getSender(MockProducer<byte[], byte[]> producer, int batchSize, BlockingQueue<Event> queue) {
+        Kafka.Builder builder = Kafka.getBuilder();
+        builder.setTopic("test");
+        builder.setKey("${host}");
+        builder.setBatchSize(batchSize);
+        builder.setWorkers(1);
+        builder.setEncoder(ToJson.getBuilder().build());
+        Kafka sender = new Kafka(builder) {
+            @Override
+            protected Producer<byte[], byte[]> getProducer(java.util.Properties props) {
+                return producer;
+            }
+        };
+        sender.setInQueue(queue);
+        Assert.assertTrue(sender.configure(new Properties(Collections.emptyMap())));
+        return sender;
+    }
+
+    private void waitSent(MockProducer<byte[], byte[]> producer, int count) throws InterruptedException {
+        while (producer.history().size() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitAcknowledged(int count) throws InterruptedException {
+        while (acknowledged.get() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSend() throws InterruptedException {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+        BlockingQueue<Event> queue = new ArrayBlockingQueue<>(10);
+        Kafka sender = getSender(producer, -1, queue);
+        sender.start();
+        try {
+            queue.put(getEvent(1));
+            queue.put(getEvent(2));
+            waitSent(producer, 2);
+            ProducerRecord<byte[], byte[]> record = producer.history().get(0);
+            Assert.assertEquals("test", record.topic());
+            Assert.assertEquals("host1", new String(record.key(), StandardCharsets.UTF_8));
+            Assert.assertEquals(1000L, record.timestamp().longValue());
+            Assert.assertTrue(new String(record.value(), StandardCharsets.UTF_8).contains("\"message\":\"message 1\""));
+            // Events are done only when the broker answered
+            Thread.sleep(100);
+            Assert.assertEquals(0, acknowledged.get());
+            Assert.assertTrue(producer.completeNext());
+            waitAcknowledged(1);
+            Assert.assertTrue(producer.errorNext(new RuntimeException("failed")));
+            waitAcknowledged(2);
+        } finally {
+            sender.stopSending();
+        }
+        Assert.assertTrue(producer.closed());
+    }
+
+    @Test(timeout = 10000)
+    public void testBatch() throws InterruptedException {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+        BlockingQueue<Event> queue = new ArrayBlockingQueue<>(10);
+        Kafka sender = getSender(producer, 3, queue);
+        sender.start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                queue.put(getEvent(i));
+            }
+            waitSent(producer, 3);
+            Thread.sleep(100);
+            Assert.assertEquals(0, acknowledged.get());
+            Assert.assertTrue(producer.completeNext());
+            Assert.assertTrue(producer.errorNext(new RuntimeException("failed")));
+            Thread.sleep(100);
+            // The batch is finished only when all the records are acknowledged
+            Assert.assertEquals(0, acknowledged.get());
+            Assert.assertTrue(producer.completeNext());
+            waitAcknowledged(3);
+        } finally {
+            sender.stopSending();
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package loghub.senders;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import loghub.Event;
+import loghub.LogUtils;
+import loghub.Stats;
+import loghub.Tools;
+import loghub.configuration.Properties;
+import loghub.encoders.StringField;
+
+public class TestNettyUdp {
+
+    private static Logger logger;
+
+    @BeforeClass
+    static public void configure() throws IOException {
+        Tools.configure();
+        logger = LogManager.getLogger();
+        LogUtils.setLevel(logger, Level.TRACE, "loghub.senders.NettyUdp");
+    }
+
+    private void send(int batchSize, int sockets, String poller) throws IOException, InterruptedException {
+        Stats.reset();
+        int count = 20;
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(5000);
+            StringField.Builder sfbuilder = StringField.getBuilder();
+            sfbuilder.setFormat("${message%s}");
+            NettyUdp.Builder builder = NettyUdp.getBuilder();
+            builder.setDestination(InetAddress.getLoopbackAddress().getHostAddress());
+            builder.setPort(server.getLocalPort());
+            builder.setEncoder(sfbuilder.build());
+            builder.setBatchSize(batchSize);
+            builder.setSockets(sockets);
+            builder.setPoller(poller);
+            BlockingQueue<Event> queue = new ArrayBlockingQueue<>(count);
+            NettyUdp sender = builder.build();
+            sender.setInQueue(queue);
+            Assert.assertTrue(sender.configure(new Properties(Collections.emptyMap())));
+            sender.start();
+            Set<String> received = new HashSet<>();
+            Set<Integer> ports = new HashSet<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    Event ev = Tools.getEvent();
+                    ev.put("message", "message" + i);
+                    queue.put(ev);
+                }
+                byte[] buffer = new byte[1024];
+                for (int i = 0; i < count; i++) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    server.receive(packet);
+                    received.add(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+                    ports.add(packet.getPort());
+                }
+                while (Stats.sent.get() < count) {
+                    Thread.sleep(10);
+                }
+            } finally {
+                sender.stopSending();
+            }
+            Assert.assertEquals(count, received.size());
+            Assert.assertTrue(received.contains("message0"));
+            Assert.assertEquals(sockets, ports.size());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSingle() throws IOException, InterruptedException {
+        send(-1, 2, "NIO");
+    }
+
+    @Test(timeout = 10000)
+    public void testBatch() throws IOException, InterruptedException {
+        send(5, 2, null);
+    }
+
+    @Test(timeout = 10000)
+    public void testBatchNio() throws IOException, InterruptedException {
+        send(5, 1, "nio");
+    }
+
+    @Test
+    public void testMissingPort() {
+        NettyUdp.Builder builder = NettyUdp.getBuilder();
+        builder.setDestination(InetAddress.getLoopbackAddress().getHostAddress());
+        StringField.Builder sfbuilder = StringField.getBuilder();
+        sfbuilder.setFormat("${message%s}");
+        builder.setEncoder(sfbuilder.build());
+        NettyUdp sender = builder.build();
+        Assert.assertFalse(sender.configure(new Properties(Collections.emptyMap())));
+    }
+
+}